@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.Paint
+import android.os.Debug
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.geeksville.mesh.model.map.MarkerBitmapCache
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+
+@RunWith(AndroidJUnit4::class)
+class MarkerBitmapCacheTest {
+
+    private val textPaint = Paint().apply {
+        textSize = 40f
+        color = Color.DKGRAY
+        isAntiAlias = true
+        textAlign = Paint.Align.CENTER
+    }
+    private val bgPaint = Paint().apply { color = Color.WHITE }
+    private val base = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888)
+
+    private fun MarkerBitmapCache.label(text: String, densityDpi: Int = 420) =
+        label(text, textPaint, bgPaint, 12f, 11f, 2f, densityDpi)
+
+    @Test
+    fun reusesBitmapsPerKey() {
+        val cache = MarkerBitmapCache(1024 * 1024)
+        val a = cache.label("ABCD 5m")
+        assertSame(a, cache.label("ABCD 5m"))
+        assertNotSame(a, cache.label("ABCD 6m"))
+        assertNotSame(a, cache.label("ABCD 5m", densityDpi = 160))
+        assertNotSame(a, cache.clusterIcon(base, "ABCD 5m", textPaint, 0.5f, 0.5f, 420))
+
+        assertEquals(1L, cache.stats.hits)
+        assertEquals(4L, cache.stats.misses)
+    }
+
+    @Test
+    fun keysOnHowTheBitmapIsDrawn() {
+        val cache = MarkerBitmapCache(1024 * 1024)
+        val label = cache.label("ABCD 5m")
+        val darkBg = Paint().apply { color = Color.BLACK }
+        assertNotSame(label, cache.label("ABCD 5m", textPaint, darkBg, 12f, 11f, 2f, 420))
+        assertNotSame(label, cache.label("ABCD 5m", textPaint, bgPaint, 12f, 20f, 2f, 420))
+        val bigText = Paint(textPaint).apply { textSize = 60f }
+        assertNotSame(label, cache.label("ABCD 5m", bigText, bgPaint, 12f, 11f, 2f, 420))
+
+        val cluster = cache.clusterIcon(base, "12", textPaint, 0.5f, 0.5f, 420)
+        assertSame(cluster, cache.clusterIcon(base, "12", textPaint, 0.5f, 0.5f, 420))
+        assertNotSame(cluster, cache.clusterIcon(base, "12", textPaint, 0.5f, 0.3f, 420))
+        val otherBase = Bitmap.createBitmap(48, 48, Bitmap.Config.ARGB_8888)
+        assertNotSame(cluster, cache.clusterIcon(otherBase, "12", textPaint, 0.5f, 0.5f, 420))
+    }
+
+    @Test
+    fun staysWithinItsByteBudget() {
+        val one = MarkerBitmapCache(Int.MAX_VALUE).label("N0000 1m").allocationByteCount
+        val cache = MarkerBitmapCache(one * 10)
+        repeat(100) { cache.label("N%04d 1m".format(it)) }
+
+        assertTrue(cache.stats.sizeBytes <= one * 10)
+        assertTrue(cache.stats.evictions >= 90)
+    }
+
+    /**
+     * One zoom gesture: every frame re-clusters and redraws the visible labels, like MarkerClusterer
+     * does each time the zoom level settles, with mostly the same labels and cluster counts.
+     */
+    private fun zoomGesture(cache: MarkerBitmapCache, frames: Int = 30) {
+        val random = Random(3)
+        val names = List(2_000) { "N%03X %dm".format(it, it % 60) }
+        val emojiPaint = Paint().apply { textSize = 80f }
+        repeat(frames) { frame ->
+            val clusters = 20 + frame % 10
+            repeat(clusters) { cache.clusterIcon(base, "${2 + random.nextInt(40)}", textPaint, 0.5f, 0.5f, 420) }
+            repeat(300) { cache.label(names[random.nextInt(names.size / 4)]) }
+            repeat(10) { cache.emoji(String(Character.toChars(128205)), emojiPaint, 420) }
+        }
+    }
+
+    @Test
+    fun benchmarkAllocationsPerZoomGesture() {
+        fun measure(cache: MarkerBitmapCache): Pair<Long, Long> {
+            val gcBefore = Debug.getRuntimeStat("art.gc.gc-count")?.toLongOrNull() ?: 0
+            val start = System.nanoTime()
+            zoomGesture(cache)
+            val ms = (System.nanoTime() - start) / 1_000_000
+            val gcs = (Debug.getRuntimeStat("art.gc.gc-count")?.toLongOrNull() ?: 0) - gcBefore
+            Log.i("MarkerBitmapCacheTest", "${cache.maxBytes}B cache: ${cache.stats}, ${ms}ms, $gcs GCs")
+            return cache.stats.misses to cache.stats.allocatedBytes
+        }
+
+        val (uncachedBitmaps, uncachedBytes) = measure(MarkerBitmapCache(1)) // every lookup renders
+        val (cachedBitmaps, cachedBytes) = measure(MarkerBitmapCache(8 * 1024 * 1024))
+
+        assertTrue(cachedBitmaps * 5 < uncachedBitmaps)
+        assertTrue(cachedBytes * 5 < uncachedBytes)
+    }
+}
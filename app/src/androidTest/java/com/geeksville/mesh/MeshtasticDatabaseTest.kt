@@ -21,10 +21,20 @@ import androidx.room.Room
 import androidx.room.testing.MigrationTestHelper
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.platform.app.InstrumentationRegistry
+import com.geeksville.mesh.database.MIGRATION_24_25
+import com.geeksville.mesh.database.MIGRATION_25_26
+import com.geeksville.mesh.database.MIGRATION_26_27
+import com.geeksville.mesh.database.MIGRATION_27_28
+import com.geeksville.mesh.database.MIGRATION_28_29
+import com.geeksville.mesh.database.MIGRATIONS
+import com.geeksville.mesh.database.Converters
 import com.geeksville.mesh.database.MeshtasticDatabase
+import org.junit.Assert.assertEquals
 import org.junit.Rule
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.Portnums.PortNum
 import java.io.IOException
 
 @RunWith(AndroidJUnit4::class)
@@ -58,4 +68,96 @@ class MeshtasticDatabaseTest {
             openHelper.writableDatabase.close()
         }
     }
+
+    @Test
+    fun migrate24To25FillsSearchIndex() {
+        helper.createDatabase(TEST_DB, 24).apply {
+            execSQL(
+                "INSERT INTO node_registry (nodeId, longName, shortName, nodeNum, lastSeen) " +
+                    "VALUES ('!0a1b2c3d', 'Base Camp', 'BC', 169552957, 1)"
+            )
+            close()
+        }
+
+        helper.runMigrationsAndValidate(TEST_DB, 25, true, MIGRATION_24_25).apply {
+            query("SELECT user_id FROM node_registry_fts WHERE node_registry_fts MATCH 'camp*'").use {
+                assertEquals(1, it.count)
+                it.moveToFirst()
+                assertEquals("!0a1b2c3d", it.getString(0))
+            }
+            close()
+        }
+    }
+
+    @Test
+    fun migrate25To26IndexesPositions() {
+        helper.createDatabase(TEST_DB, 25).close()
+
+        helper.runMigrationsAndValidate(TEST_DB, 26, true, MIGRATION_25_26).apply {
+            query("SELECT name FROM sqlite_master WHERE type = 'index' AND name LIKE '%latitude%'").use {
+                assertEquals(2, it.count)
+            }
+            close()
+        }
+    }
+
+    @Test
+    fun migrate26To27KeepsLatestWaypoints() {
+        fun waypointPacket(name: String) = Converters().dataToString(
+            DataPacket(
+                DataPacket.ID_BROADCAST,
+                0,
+                MeshProtos.Waypoint.newBuilder().setId(7).setName(name).setLatitudeI(450_000_000).build(),
+            )
+        )
+        helper.createDatabase(TEST_DB, 26).apply {
+            listOf("Camp" to 1L, "Camp moved" to 2L).forEach { (name, time) ->
+                execSQL(
+                    "INSERT INTO packet (myNodeNum, port_num, contact_key, received_time, read, data) " +
+                        "VALUES (1, ${PortNum.WAYPOINT_APP_VALUE}, '0^all', $time, 1, ?)",
+                    arrayOf(waypointPacket(name)),
+                )
+            }
+            close()
+        }
+
+        helper.runMigrationsAndValidate(TEST_DB, 27, true, MIGRATION_26_27).apply {
+            query("SELECT name, latitude_i, packet_uuid FROM waypoint").use {
+                assertEquals(1, it.count)
+                it.moveToFirst()
+                assertEquals("Camp moved", it.getString(0))
+                assertEquals(450_000_000, it.getInt(1))
+                assertEquals(2L, it.getLong(2))
+            }
+            query("SELECT uuid FROM packet").use { assertEquals(1, it.count) }
+            close()
+        }
+    }
+
+    @Test
+    fun migrate27To28AddsArchives() {
+        helper.createDatabase(TEST_DB, 27).close()
+
+        helper.runMigrationsAndValidate(TEST_DB, 28, true, MIGRATION_27_28).close()
+    }
+
+    @Test
+    fun migrate28To29AddsTopology() {
+        helper.createDatabase(TEST_DB, 28).close()
+
+        helper.runMigrationsAndValidate(TEST_DB, 29, true, MIGRATION_28_29).close()
+    }
+
+    @Test
+    fun migrate24To29KeepsData() {
+        helper.createDatabase(TEST_DB, 24).apply {
+            execSQL("INSERT INTO contact_settings (contact_key, muteUntil) VALUES ('0^all', 5)")
+            close()
+        }
+
+        helper.runMigrationsAndValidate(TEST_DB, 29, true, *MIGRATIONS).apply {
+            query("SELECT muteUntil FROM contact_settings").use { assertEquals(1, it.count) }
+            close()
+        }
+    }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh
+
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.geeksville.mesh.database.MeshtasticDatabase
+import com.geeksville.mesh.database.NodeRegistryUpdate
+import com.geeksville.mesh.database.NodeRetention
+import com.geeksville.mesh.database.RetentionCandidate
+import com.geeksville.mesh.database.dao.NodeInfoDao
+import com.geeksville.mesh.database.dao.NodeRegistryDao
+import com.geeksville.mesh.database.entity.MyNodeEntity
+import com.geeksville.mesh.database.entity.NodeEntity
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.user
+
+@RunWith(AndroidJUnit4::class)
+class NodeArchiveTest {
+    private lateinit var database: MeshtasticDatabase
+    private lateinit var nodeInfoDao: NodeInfoDao
+    private lateinit var registryDao: NodeRegistryDao
+
+    private fun node(num: Int, lastHeard: Int, favorite: Boolean = false) = NodeEntity(
+        num = num,
+        user = user {
+            id = DataPacket.nodeNumToDefaultId(num)
+            longName = "Node $num"
+            shortName = "N$num"
+            hwModel = MeshProtos.HardwareModel.ANDROID_SIM
+        },
+        longName = "Node $num",
+        shortName = "N$num",
+        lastHeard = lastHeard,
+        isFavorite = favorite,
+        latitude = 30.0,
+        longitude = -97.0,
+    )
+
+    private val nodes = List(120) { node(num = 1_000 + it, lastHeard = 10_000 + it, favorite = it % 40 == 0) }
+
+    @Before
+    fun createDb(): Unit = runBlocking {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        database = Room.inMemoryDatabaseBuilder(context, MeshtasticDatabase::class.java).build()
+        nodeInfoDao = database.nodeInfoDao()
+        registryDao = database.nodeRegistryDao()
+        nodeInfoDao.putAll(nodes)
+    }
+
+    @After
+    fun closeDb() {
+        database.close()
+    }
+
+    /** What MeshService does with its node map, against the table directly. */
+    private fun enforce(retention: NodeRetention): List<Int> {
+        val stored = nodeInfoDao.getAllNodes()
+        val evict = retention.evictions(stored.map {
+            RetentionCandidate(it.num, it.lastHeard.toLong(), it.hopsAway, pinned = it.isFavorite)
+        })
+        return nodeInfoDao.archiveNodes(evict.associateWith { Int.MAX_VALUE })
+    }
+
+    @Test
+    fun evictedNodesMoveToTheArchive() = runBlocking {
+        val archived = enforce(NodeRetention(capacity = 100, lowWater = 90))
+
+        // the 30 least recently heard, skipping the favorite 1000
+        assertEquals((1_001..1_030).toList(), archived.sorted())
+        assertEquals(90, nodeInfoDao.countNodes())
+        assertEquals(archived.sorted(), nodeInfoDao.getArchivedNodeNums().sorted())
+        assertEquals(30, nodeInfoDao.getArchivedNodes().first().size)
+    }
+
+    @Test
+    fun restoreBringsTheWholeNodeBack() = runBlocking {
+        val archived = enforce(NodeRetention(capacity = 100, lowWater = 90))
+        val num = archived.first()
+
+        val restored = nodeInfoDao.restoreNode(num)
+
+        assertEquals(nodes.single { it.num == num }, restored)
+        assertEquals(restored, nodeInfoDao.getAllNodes().single { it.num == num })
+        assertTrue(num !in nodeInfoDao.getArchivedNodeNums())
+        assertNull(nodeInfoDao.restoreNode(num)) // nothing left to restore
+    }
+
+    @Test
+    fun nodesHeardSincePickedStay() = runBlocking {
+        val picked = mapOf(1_001 to 10_001, 1_002 to 10_002)
+        nodeInfoDao.upsert(node(1_002, lastHeard = 20_000))
+
+        assertEquals(listOf(1_001), nodeInfoDao.archiveNodes(picked))
+        assertEquals(listOf(1_001), nodeInfoDao.getArchivedNodeNums())
+    }
+
+    @Test
+    fun eachNodeIsCheckedAgainstItsOwnLastHeard() = runBlocking {
+        // 1_001 is heard again, still before 1_110 was last heard
+        val picked = mapOf(1_001 to 10_001, 1_110 to 10_110)
+        nodeInfoDao.upsert(node(1_001, lastHeard = 10_050))
+
+        assertEquals(listOf(1_110), nodeInfoDao.archiveNodes(picked))
+        assertEquals(10_050, nodeInfoDao.getAllNodes().single { it.num == 1_001 }.lastHeard)
+    }
+
+    @Test
+    fun nodesTheRadioDroppedAreArchivedOnInstall() = runBlocking {
+        val mi = MyNodeEntity(
+            myNodeNum = 1_000, model = null, firmwareVersion = null, couldUpdate = false,
+            shouldUpdate = false, currentPacketId = 1L, messageTimeoutMsec = 300_000,
+            minAppVersion = 1, maxChannels = 8, hasWifi = false,
+        )
+        val diff = nodeInfoDao.installNodeDB(mi, nodes.drop(5))
+
+        assertEquals((1_000..1_004).toList(), diff.deleted)
+        assertEquals((1_000..1_004).toList(), nodeInfoDao.getArchivedNodeNums().sorted())
+
+        // the radio sends two of them back: they leave the archive in the same install
+        val again = nodeInfoDao.installNodeDB(mi, nodes.drop(3))
+        assertEquals(listOf(1_003, 1_004), again.inserted.map { it.num })
+        assertEquals((1_000..1_002).toList(), nodeInfoDao.getArchivedNodeNums().sorted())
+    }
+
+    @Test
+    fun registryRowsRestoreWhenSeenAgain() = runBlocking {
+        val updates = List(60) {
+            NodeRegistryUpdate(nodeId = "!%08x".format(it), lastSeen = 1_000L + it, nodeNum = it, longName = "Reg $it")
+        }
+        registryDao.applyUpdates(updates)
+        val rows = registryDao.getRetentionRows()
+        val evict = NodeRetention(capacity = 50, lowWater = 40)
+            .evictions(rows.map { RetentionCandidate(it.nodeId, it.lastSeen, it.hopCount ?: -1) })
+        assertEquals(20, registryDao.archive(evict.associateWith { Long.MAX_VALUE }))
+        assertEquals(40, registryDao.count())
+
+        // heard again with only a position, the archived name comes back with it
+        registryDao.applyUpdates(
+            listOf(NodeRegistryUpdate(nodeId = "!%08x".format(0), lastSeen = 5_000L, latitudeI = 1, longitudeI = 2))
+        )
+        val back = registryDao.getById("!%08x".format(0))!!
+        assertEquals("Reg 0", back.longName)
+        assertEquals(1, back.latitudeI)
+        assertEquals(5_000L, back.lastSeen)
+        assertNull(registryDao.getArchived("!%08x".format(0)))
+        assertEquals(41, registryDao.count())
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh
+
+import android.util.Log
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.geeksville.mesh.database.MeshtasticDatabase
+import com.geeksville.mesh.database.NodeDbDiff
+import com.geeksville.mesh.database.dao.NodeInfoDao
+import com.geeksville.mesh.database.entity.MyNodeEntity
+import com.geeksville.mesh.database.entity.NodeEntity
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.user
+import java.util.Collections
+
+@RunWith(AndroidJUnit4::class)
+class NodeDbSyncTest {
+    private lateinit var database: MeshtasticDatabase
+    private lateinit var nodeInfoDao: NodeInfoDao
+
+    private val myNodeInfo = MyNodeEntity(
+        myNodeNum = 100,
+        model = null,
+        firmwareVersion = null,
+        couldUpdate = false,
+        shouldUpdate = false,
+        currentPacketId = 1L,
+        messageTimeoutMsec = 5 * 60 * 1000,
+        minAppVersion = 1,
+        maxChannels = 8,
+        hasWifi = false,
+    )
+
+    private fun node(num: Int, lastHeard: Int = 1_000 + num) = NodeEntity(
+        num = num,
+        user = user {
+            id = DataPacket.nodeNumToDefaultId(num)
+            longName = "Node $num"
+            shortName = "N${num % 1000}"
+            hwModel = MeshProtos.HardwareModel.ANDROID_SIM
+        },
+        longName = "Node $num",
+        shortName = "N${num % 1000}",
+        lastHeard = lastHeard,
+        latitude = 30.0 + num * 1e-4,
+        longitude = -97.0,
+    )
+
+    private val mesh = List(500) { node(100 + it) }
+
+    @Before
+    fun createDb(): Unit = runBlocking {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        database = Room.inMemoryDatabaseBuilder(context, MeshtasticDatabase::class.java).build()
+        nodeInfoDao = database.nodeInfoDao()
+        nodeInfoDao.installNodeDB(myNodeInfo, mesh)
+    }
+
+    @After
+    fun closeDb() {
+        database.close()
+    }
+
+    /** Sizes of the node maps nodeDBbyNum() emits while [block] runs, once it has settled. */
+    private suspend fun emissionsDuring(block: () -> Unit): List<Int> {
+        val seen = Collections.synchronizedList(mutableListOf<Int>())
+        val started = CompletableDeferred<Unit>()
+        val job = CoroutineScope(Dispatchers.IO).launch {
+            nodeInfoDao.nodeDBbyNum().collect {
+                seen += it.size
+                started.complete(Unit)
+            }
+        }
+        started.await()
+        seen.clear()
+        block()
+        delay(SETTLE_MS)
+        job.cancelAndJoin()
+        return seen.toList()
+    }
+
+    private fun storedNodes() = nodeInfoDao.getAllNodes().sortedBy { it.num }
+
+    @Test
+    fun reconnectWithFiveChangedNodesWritesFiveRows() = runBlocking {
+        val reconnect = mesh.map { if (it.num % 100 == 7) node(it.num, lastHeard = it.lastHeard + 60) else it }
+
+        lateinit var diff: NodeDbDiff
+        val emissions = emissionsDuring { diff = nodeInfoDao.installNodeDB(myNodeInfo, reconnect) }
+
+        assertEquals(5, diff.updated.size)
+        assertEquals(5, diff.rowsWritten)
+        assertEquals(listOf(500), emissions)
+        assertEquals(reconnect, storedNodes())
+
+        // the legacy install: clear the table, write every row
+        val legacy = emissionsDuring {
+            nodeInfoDao.clearMyNodeInfo()
+            nodeInfoDao.setMyNodeInfo(myNodeInfo)
+            nodeInfoDao.clearNodeInfo()
+            nodeInfoDao.putAll(mesh)
+        }
+        Log.i(
+            "NodeDbSyncTest",
+            "500 node reconnect, 5 changed: diff ${diff.rowsWritten} rows, ${emissions.size} emissions; " +
+                "clear and refill ${2 * mesh.size} rows, ${legacy.size} emissions $legacy"
+        )
+        assertTrue(legacy.isNotEmpty())
+    }
+
+    @Test
+    fun unchangedReconnectWritesNothing() = runBlocking {
+        lateinit var diff: NodeDbDiff
+        val emissions = emissionsDuring { diff = nodeInfoDao.installNodeDB(myNodeInfo, mesh.shuffled()) }
+
+        assertTrue(diff.isEmpty)
+        assertEquals(emptyList<Int>(), emissions)
+    }
+
+    @Test
+    fun insertsAndDeletesLandInOneEmission() = runBlocking {
+        val reconnect = mesh.drop(3) + node(1_000) + node(1_001)
+
+        lateinit var diff: NodeDbDiff
+        val emissions = emissionsDuring { diff = nodeInfoDao.installNodeDB(myNodeInfo, reconnect) }
+
+        assertEquals(listOf(1_000, 1_001), diff.inserted.map { it.num })
+        assertEquals(listOf(100, 101, 102), diff.deleted)
+        assertEquals(listOf(499), emissions)
+        assertEquals(reconnect.sortedBy { it.num }, storedNodes())
+    }
+
+    @Test
+    fun changedMyNodeInfoIsReplaced() = runBlocking {
+        val updated = myNodeInfo.copy(firmwareVersion = "2.6.0")
+        val diff = nodeInfoDao.installNodeDB(updated, mesh)
+
+        assertTrue(diff.isEmpty)
+        assertEquals(listOf(updated), nodeInfoDao.getMyNodeInfoNow())
+    }
+
+    companion object {
+        private const val SETTLE_MS = 500L
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh
+
+import android.util.Log
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.geeksville.mesh.database.GeoBox
+import com.geeksville.mesh.database.MeshtasticDatabase
+import com.geeksville.mesh.database.NodeGeoIndex
+import com.geeksville.mesh.database.dao.NodeInfoDao
+import com.geeksville.mesh.database.dao.NodeRegistryDao
+import com.geeksville.mesh.database.entity.MyNodeEntity
+import com.geeksville.mesh.database.entity.NodeEntity
+import com.geeksville.mesh.database.entity.NodeRegistry
+import com.geeksville.mesh.model.NodeSortOption
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.meshtastic.proto.MeshProtos
+import kotlin.math.asin
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+@RunWith(AndroidJUnit4::class)
+class NodeGeoIndexTest {
+    private lateinit var database: MeshtasticDatabase
+    private lateinit var nodeInfoDao: NodeInfoDao
+    private lateinit var nodeRegistryDao: NodeRegistryDao
+
+    private val myNodeNum = 1
+
+    /** Straight from the textbook, kept separate from NodeGeoIndex on purpose. */
+    private fun referenceMeters(lat1: Double, lon1: Double, lat2: Double, lon2: Double): Double {
+        val p1 = Math.toRadians(lat1)
+        val p2 = Math.toRadians(lat2)
+        val h = sin((p2 - p1) / 2).let { it * it } +
+                cos(p1) * cos(p2) * sin(Math.toRadians(lon2 - lon1) / 2).let { it * it }
+        return 2 * 6_371_008.8 * asin(sqrt(h))
+    }
+
+    private fun node(num: Int, lat: Double, lon: Double) = NodeEntity(
+        num = num,
+        longName = "Node $num",
+        shortName = "N$num",
+        lastHeard = num,
+    ).apply {
+        setPosition(
+            MeshProtos.Position.newBuilder()
+                .setLatitudeI(NodeEntity.degI(lat))
+                .setLongitudeI(NodeEntity.degI(lon))
+                .build(),
+            defaultTime = 1,
+        )
+    }
+
+    /**
+     * Mostly clustered around a few cities, plus the awkward places: both sides of the
+     * antimeridian, around both poles, and some nodes without a position.
+     */
+    private fun randomPositions(count: Int, random: Random): List<Pair<Double, Double>> {
+        val centers = listOf(45.46 to 9.19, -16.8 to 179.95, -16.8 to -179.95, 89.9 to 0.0, -89.9 to 120.0, 37.77 to -122.42)
+        return List(count) { i ->
+            if (i % 50 == 0) return@List 0.0 to 0.0
+            val (cLat, cLon) = centers[random.nextInt(centers.size)]
+            val lat = (cLat + random.nextDouble(-2.0, 2.0)).coerceIn(-89.999, 89.999)
+            var lon = cLon + random.nextDouble(-2.0, 2.0)
+            if (lon > 180) lon -= 360
+            if (lon < -180) lon += 360
+            lat to lon
+        }
+    }
+
+    @Before
+    fun createDb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        database = Room.inMemoryDatabaseBuilder(context, MeshtasticDatabase::class.java).build()
+        nodeInfoDao = database.nodeInfoDao()
+        nodeRegistryDao = database.nodeRegistryDao()
+    }
+
+    @After
+    fun closeDb() {
+        database.close()
+    }
+
+    private suspend fun nearestFromIndex(lat: Double, lon: Double, limit: Int) =
+        NodeGeoIndex.nearest(lat, lon, limit, { it.latitude to it.longitude }) { box: GeoBox ->
+            nodeInfoDao.getNodesInBox(box.south, box.north, box.west1, box.east1, box.west2, box.east2)
+        }
+
+    private fun nearestByReference(all: List<NodeEntity>, lat: Double, lon: Double, limit: Int) = all
+        .filter { NodeGeoIndex.isValid(it.latitude, it.longitude) }
+        .sortedBy { referenceMeters(lat, lon, it.latitude, it.longitude) }
+        .take(limit)
+
+    @Test
+    fun nearestMatchesReferenceEverywhere() = runBlocking {
+        val random = Random(11)
+        val all = randomPositions(5_000, random).mapIndexed { i, (lat, lon) -> node(i + 2, lat, lon) }
+        nodeInfoDao.putAll(all)
+
+        val origins = listOf(45.46 to 9.19, -16.8 to 179.99, -16.8 to -179.99, 89.95 to -60.0, -89.95 to 10.0, 0.5 to 0.5)
+        for ((lat, lon) in origins) {
+            val expected = nearestByReference(all, lat, lon, 25).map { it.num }
+            val actual = nearestFromIndex(lat, lon, 25).map { it.num }
+            assertEquals("nearest to $lat,$lon", expected, actual)
+        }
+    }
+
+    @Test
+    fun boxQueriesWrapTheAntimeridian() = runBlocking {
+        nodeInfoDao.putAll(
+            listOf(node(2, -16.8, 179.9), node(3, -16.8, -179.9), node(4, -16.8, 0.0), node(5, 0.0, 0.0))
+        )
+        val box = NodeGeoIndex.boxAround(-16.8, 180.0, 50_000.0)
+        assertTrue(box.crossesAntimeridian)
+
+        val inBox = nodeInfoDao.getNodesInBox(box.south, box.north, box.west1, box.east1, box.west2, box.east2)
+        assertEquals(setOf(2, 3), inBox.map { it.num }.toSet())
+    }
+
+    @Test
+    fun distanceSortMatchesReference() = runBlocking {
+        val random = Random(5)
+        val ours = node(myNodeNum, -16.8, 179.99)
+        val all = listOf(ours) + randomPositions(2_000, random).mapIndexed { i, (lat, lon) -> node(i + 2, lat, lon) }
+        nodeInfoDao.setMyNodeInfo(myNode())
+        nodeInfoDao.putAll(all)
+
+        val fromDb = nodeInfoDao.getNodes(NodeSortOption.DISTANCE.sqlValue, "", true).first().map { it.node }
+        assertEquals(myNodeNum, fromDb.first().num)
+        val sorted = fromDb.drop(1)
+
+        val meters = sorted.filter { NodeGeoIndex.isValid(it.latitude, it.longitude) }
+            .map { referenceMeters(ours.latitude, ours.longitude, it.latitude, it.longitude) }
+        assertTrue(meters.zipWithNext().all { (a, b) -> a <= b + 1e-6 })
+        assertTrue(sorted.takeLast(all.count { !NodeGeoIndex.isValid(it.latitude, it.longitude) })
+            .all { !NodeGeoIndex.isValid(it.latitude, it.longitude) })
+    }
+
+    @Test
+    fun registryNearestMatchesReference() = runBlocking {
+        val random = Random(3)
+        val all = randomPositions(3_000, random).mapIndexed { i, (lat, lon) ->
+            NodeRegistry(
+                nodeId = DataPacket.nodeNumToDefaultId(i + 2),
+                latitudeI = NodeEntity.degI(lat),
+                longitudeI = NodeEntity.degI(lon),
+            )
+        }
+        all.forEach { nodeRegistryDao.upsert(it) }
+
+        val (lat, lon) = -16.8 to -179.99
+        fun pos(n: NodeRegistry) = NodeEntity.degD(n.latitudeI!!) to NodeEntity.degD(n.longitudeI!!)
+        val expected = all.filter { pos(it).let { (a, b) -> NodeGeoIndex.isValid(a, b) } }
+            .sortedBy { pos(it).let { (a, b) -> referenceMeters(lat, lon, a, b) } }
+            .take(10).map { it.nodeId }
+        val actual = NodeGeoIndex.nearest(lat, lon, 10, ::pos) { box ->
+            nodeRegistryDao.getInBox(
+                NodeEntity.degI(box.south), NodeEntity.degI(box.north),
+                NodeEntity.degI(box.west1), NodeEntity.degI(box.east1),
+                NodeEntity.degI(box.west2), NodeEntity.degI(box.east2),
+            )
+        }.map { it.nodeId }
+        assertEquals(expected, actual)
+    }
+
+    @Test
+    fun benchmarkAt20kNodes() = runBlocking {
+        val random = Random(20)
+        val all = randomPositions(20_000, random).mapIndexed { i, (lat, lon) -> node(i + 2, lat, lon) }
+        nodeInfoDao.setMyNodeInfo(myNode())
+        val ours = node(myNodeNum, 45.46, 9.19)
+        nodeInfoDao.putAll(listOf(ours) + all)
+
+        fun <T> timed(rounds: Int, block: suspend () -> T): Pair<T, Double> = runBlocking {
+            block() // warm up
+            var result: T? = null
+            val start = System.nanoTime()
+            repeat(rounds) { result = block() }
+            result!! to (System.nanoTime() - start) / 1e6 / rounds
+        }
+
+        val (nearest, nearestMs) = timed(20) { nearestFromIndex(45.46, 9.19, 50) }
+        val (box, boxMs) = timed(20) {
+            val b = NodeGeoIndex.boxAround(45.46, 9.19, 25_000.0)
+            nodeInfoDao.getNodesInBox(b.south, b.north, b.west1, b.east1, b.west2, b.east2)
+        }
+        val (_, sortMs) = timed(5) {
+            nodeInfoDao.getNodes(NodeSortOption.DISTANCE.sqlValue, "", true).first()
+        }
+        Log.i(
+            "NodeGeoIndexTest",
+            "20k nodes: nearest 50 %.2fms, 25km box (${box.size}) %.2fms, full distance sort %.1fms"
+                .format(nearestMs, boxMs, sortMs)
+        )
+        assertEquals(nearestByReference(listOf(ours) + all, 45.46, 9.19, 50).map { it.num }, nearest.map { it.num })
+        // the index only reads the rows around the point, the sorted list reads all 20k
+        assertTrue("nearest $nearestMs ms vs sort $sortMs ms", nearestMs < sortMs)
+        assertTrue("box $boxMs ms vs sort $sortMs ms", boxMs < sortMs)
+    }
+
+    private fun myNode() = MyNodeEntity(
+        myNodeNum = myNodeNum,
+        model = null,
+        firmwareVersion = null,
+        couldUpdate = false,
+        shouldUpdate = false,
+        currentPacketId = 1L,
+        messageTimeoutMsec = 5 * 60 * 1000,
+        minAppVersion = 1,
+        maxChannels = 8,
+        hasWifi = false,
+    )
+}
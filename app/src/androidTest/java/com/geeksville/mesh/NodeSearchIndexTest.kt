@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh
+
+import android.util.Log
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.geeksville.mesh.database.MeshtasticDatabase
+import com.geeksville.mesh.database.NodeSearchIndex
+import com.geeksville.mesh.database.dao.NodeInfoDao
+import com.geeksville.mesh.database.dao.NodeRegistryDao
+import com.geeksville.mesh.database.entity.NodeEntity
+import com.geeksville.mesh.database.entity.NodeRegistry
+import com.geeksville.mesh.model.NodeSortOption
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.user
+
+@RunWith(AndroidJUnit4::class)
+class NodeSearchIndexTest {
+    private lateinit var database: MeshtasticDatabase
+    private lateinit var nodeInfoDao: NodeInfoDao
+    private lateinit var nodeRegistryDao: NodeRegistryDao
+
+    private fun testNode(num: Int, longName: String, shortName: String) = NodeEntity(
+        num = num,
+        user = user {
+            id = DataPacket.nodeNumToDefaultId(num)
+            this.longName = longName
+            this.shortName = shortName
+            hwModel = MeshProtos.HardwareModel.ANDROID_SIM
+        },
+        longName = longName,
+        shortName = shortName,
+        lastHeard = num,
+    )
+
+    @Before
+    fun createDb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        database = Room.inMemoryDatabaseBuilder(context, MeshtasticDatabase::class.java)
+            .addCallback(NodeSearchIndex.callback)
+            .build()
+        nodeInfoDao = database.nodeInfoDao()
+        nodeRegistryDao = database.nodeRegistryDao()
+    }
+
+    @After
+    fun closeDb() {
+        database.close()
+    }
+
+    private suspend fun search(filter: String): List<Int> = nodeInfoDao
+        .findNodes(sort = NodeSortOption.LAST_HEARD.sqlValue, filter = filter, includeUnknown = true)
+        .first().map { it.node.num }
+
+    /** The substring scan the index sits in front of. */
+    private suspend fun scan(filter: String): List<Int> = nodeInfoDao
+        .getNodes(sort = NodeSortOption.LAST_HEARD.sqlValue, filter = filter, includeUnknown = true)
+        .first().map { it.node.num }
+
+    @Test
+    fun testPrefixMatchesNamesIdAndNum() = runBlocking {
+        nodeInfoDao.putAll(
+            listOf(
+                testNode(0x0a1b2c3d, "Base Camp", "BASE"),
+                testNode(0x7f000001, "Mobile Relay", "MOB"),
+            )
+        )
+
+        assertEquals(listOf(0x0a1b2c3d), search("bas"))
+        assertEquals(listOf(0x0a1b2c3d), search("Camp"))
+        assertEquals(listOf(0x7f000001), search("mo"))
+        assertEquals(listOf(0x0a1b2c3d), search("!0a1b"))
+        assertEquals(listOf(0x7f000001), search("2130706"))
+        assertEquals(listOf(0x7f000001, 0x0a1b2c3d), search(""))
+        assertTrue(search("nomatch").isEmpty())
+    }
+
+    @Test
+    fun testInfixFallsBackToSubstring() = runBlocking {
+        nodeInfoDao.putAll(
+            listOf(
+                testNode(0x0a1b2c3d, "Base Camp", "BASE"),
+                testNode(0x7f000001, "Mobile Relay", "MOB"),
+            )
+        )
+
+        assertEquals(listOf(0x0a1b2c3d), search("amp"))
+        assertEquals(listOf(0x7f000001), search("elay"))
+        assertEquals(listOf(0x0a1b2c3d), search("2c3d"))
+        assertEquals(listOf(0x0a1b2c3d), search("!0a1b2c3d"))
+        // 0x7f000001 is 2130706433
+        assertEquals(listOf(0x7f000001), search("070643"))
+        assertEquals(listOf(0x7f000001), search("bile rel"))
+    }
+
+    @Test
+    fun testUnsearchableFilterFallsBackToSubstring() = runBlocking {
+        nodeInfoDao.putAll(
+            listOf(
+                testNode(1, "Base \uD83C\uDFD5\uFE0F", "BASE"),
+                testNode(2, "Relay", "R-1"),
+            )
+        )
+
+        assertEquals(listOf(1), search("\uD83C\uDFD5"))
+        assertEquals(listOf(2), search("-"))
+        assertTrue(search("#").isEmpty())
+    }
+
+    @Test
+    fun testTriggersFollowUpsertAndDelete() = runBlocking {
+        nodeInfoDao.putAll(listOf(testNode(42, "Old Name", "OLD")))
+        assertEquals(listOf(42), search("old"))
+
+        nodeInfoDao.upsert(testNode(42, "New Name", "NEW"))
+        assertTrue(search("old").isEmpty())
+        assertEquals(listOf(42), search("new"))
+
+        // REPLACE must not leave a duplicate index row behind
+        nodeInfoDao.putAll(listOf(testNode(42, "New Name", "NEW")))
+        assertEquals(listOf(42), search("name"))
+
+        nodeInfoDao.deleteNode(42)
+        assertTrue(search("new").isEmpty())
+    }
+
+    @Test
+    fun testRegistrySearch() = runBlocking {
+        nodeRegistryDao.upsert(NodeRegistry(nodeId = "!a1b2c3d4", longName = "Hilltop Router", shortName = "HILL"))
+        nodeRegistryDao.upsert(NodeRegistry(nodeId = "!00000042", longName = "Valley", shortName = "VAL"))
+
+        val byId = nodeRegistryDao.search(NodeSearchIndex.toMatchQuery("!0000"))
+        assertEquals(listOf("!00000042"), byId.map { it.nodeId })
+
+        assertEquals(listOf("!a1b2c3d4"), nodeRegistryDao.searchLongName("hill").map { it.nodeId })
+        assertEquals(listOf("!00000042"), nodeRegistryDao.searchLongName("val").map { it.nodeId })
+        // only the long name is searched, not the id
+        assertTrue(nodeRegistryDao.searchLongName("a1b2").isEmpty())
+
+        nodeRegistryDao.updateNodeInfo("!00000042", 0x42, "Valley Repeater", "VAL", 0L)
+        assertEquals(listOf("!00000042"), nodeRegistryDao.searchLongName("rep").map { it.nodeId })
+        assertEquals(listOf("!00000042"), nodeRegistryDao.searchLongName("peater").map { it.nodeId })
+        assertEquals(listOf("!a1b2c3d4"), nodeRegistryDao.searchLongName("top R").map { it.nodeId })
+    }
+
+    @Test
+    fun testSearchLatencyAt20kNodes() = runBlocking {
+        val nodeCount = 20_000
+        nodeInfoDao.putAll(
+            (1..nodeCount).map { testNode(it, "Node ${WORDS[it % WORDS.size]} $it", "N${it % 10_000}") }
+        )
+
+        // prefix-as-you-type: every keystroke of a few names re-queries the list
+        val keystrokes = listOf("alpha", "!0000", "Node bra", "1999", "zulu 19").flatMap { word ->
+            (1..word.length).map { word.substring(0, it) }
+        }
+        repeat(WARMUP_ROUNDS) { keystrokes.forEach { search(it); scan(it) } }
+
+        val indexed = p50Ms(keystrokes) { search(it) }
+        val scanned = p50Ms(keystrokes) { scan(it) }
+        Log.i("NodeSearchIndexTest", "nodes=$nodeCount p50 index=${indexed}ms scan=${scanned}ms")
+
+        assertEquals(scan("alpha").size, search("alpha").size)
+        assertTrue("index p50 ${indexed}ms, scan p50 ${scanned}ms", indexed < scanned)
+    }
+
+    private suspend fun p50Ms(keystrokes: List<String>, query: suspend (String) -> Unit): Double {
+        val samples = mutableListOf<Long>()
+        repeat(MEASURED_ROUNDS) {
+            keystrokes.forEach {
+                val start = System.nanoTime()
+                query(it)
+                samples += System.nanoTime() - start
+            }
+        }
+        samples.sort()
+        return samples[samples.size / 2] / 1_000_000.0
+    }
+
+    companion object {
+        private const val WARMUP_ROUNDS = 2
+        private const val MEASURED_ROUNDS = 10
+        private val WORDS = listOf("alpha", "bravo", "charlie", "delta", "echo", "zulu")
+    }
+}
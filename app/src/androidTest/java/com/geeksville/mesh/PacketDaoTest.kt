@@ -20,10 +20,13 @@ package com.geeksville.mesh
 import androidx.room.Room
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.platform.app.InstrumentationRegistry
+import com.geeksville.mesh.database.GeoBox
 import com.geeksville.mesh.database.MeshtasticDatabase
+import com.geeksville.mesh.database.NodeGeoIndex
 import com.geeksville.mesh.database.dao.NodeInfoDao
 import com.geeksville.mesh.database.dao.PacketDao
 import com.geeksville.mesh.database.entity.MyNodeEntity
+import com.geeksville.mesh.database.entity.NodeEntity
 import com.geeksville.mesh.database.entity.Packet
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.runBlocking
@@ -33,6 +36,7 @@ import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.meshtastic.proto.MeshProtos
 import org.meshtastic.proto.Portnums
 
 @RunWith(AndroidJUnit4::class)
@@ -169,6 +173,76 @@ class PacketDaoTest {
         }
     }
 
+    private fun waypointPacket(id: Int, name: String, lat: Double, lon: Double, expire: Int) =
+        MeshProtos.Waypoint.newBuilder()
+            .setId(id)
+            .setName(name)
+            .setLatitudeI((lat * 1e7).toInt())
+            .setLongitudeI((lon * 1e7).toInt())
+            .setExpire(expire)
+            .build()
+            .let { waypoint ->
+                Packet(
+                    uuid = 0L,
+                    myNodeNum = myNodeNum,
+                    port_num = Portnums.PortNum.WAYPOINT_APP_VALUE,
+                    contact_key = "0${DataPacket.ID_BROADCAST}",
+                    received_time = System.currentTimeMillis(),
+                    read = true,
+                    DataPacket(DataPacket.ID_BROADCAST, 0, waypoint),
+                ) to waypoint
+            }
+
+    private suspend fun insertWaypoint(id: Int, name: String, lat: Double, lon: Double, expire: Int = Int.MAX_VALUE) {
+        val (packet, waypoint) = waypointPacket(id, name, lat, lon, expire)
+        packetDao.insertWaypoint(packet, waypoint)
+    }
+
+    private suspend fun waypointsIn(box: GeoBox, now: Int = 1000) = packetDao.getWaypointsInBox(
+        now,
+        NodeEntity.degI(box.south), NodeEntity.degI(box.north),
+        NodeEntity.degI(box.west1), NodeEntity.degI(box.east1),
+        NodeEntity.degI(box.west2), NodeEntity.degI(box.east2),
+    ).first()
+
+    @Test
+    fun test_waypointUpdateReplacesPacket() = runBlocking {
+        insertWaypoint(1, "Camp", 45.0, 9.0)
+        insertWaypoint(1, "Camp moved", 45.1, 9.1)
+
+        val waypoints = waypointsIn(NodeGeoIndex.WHOLE_EARTH)
+        assertEquals(listOf("Camp moved"), waypoints.map { it.name })
+        assertEquals(1, packetDao.getAllPackets(Portnums.PortNum.WAYPOINT_APP_VALUE).first().size)
+
+        packetDao.deleteWaypoint(1)
+        assertTrue(waypointsIn(NodeGeoIndex.WHOLE_EARTH).isEmpty())
+        assertTrue(packetDao.getAllPackets(Portnums.PortNum.WAYPOINT_APP_VALUE).first().isEmpty())
+    }
+
+    @Test
+    fun test_waypointsInBox() = runBlocking {
+        insertWaypoint(1, "Milan", 45.46, 9.19)
+        insertWaypoint(2, "Rome", 41.9, 12.5)
+        insertWaypoint(3, "Fiji east", -16.8, 179.9)
+        insertWaypoint(4, "Fiji west", -16.8, -179.9)
+
+        assertEquals(listOf(1), waypointsIn(GeoBox(45.0, 46.0, 9.0, 10.0)).map { it.id })
+        assertEquals(setOf(3, 4), waypointsIn(GeoBox(-17.0, -16.0, 179.0, -179.0)).map { it.id }.toSet())
+    }
+
+    @Test
+    fun test_purgeExpiredWaypoints() = runBlocking {
+        insertWaypoint(1, "Expired", 45.0, 9.0, expire = 500)
+        insertWaypoint(2, "Deleted", 45.0, 9.0, expire = 1) // how the map deletes a waypoint
+        insertWaypoint(3, "Valid", 45.0, 9.0, expire = 2000)
+        insertWaypoint(4, "Forever", 45.0, 9.0, expire = 0)
+
+        assertEquals(setOf(3, 4), waypointsIn(NodeGeoIndex.WHOLE_EARTH, now = 1000).map { it.id }.toSet())
+        assertEquals(2, packetDao.purgeExpiredWaypoints(1000))
+        assertEquals(2, packetDao.getAllPackets(Portnums.PortNum.WAYPOINT_APP_VALUE).first().size)
+        assertEquals(setOf(3, 4), waypointsIn(NodeGeoIndex.WHOLE_EARTH, now = 1000).map { it.id }.toSet())
+    }
+
     companion object {
         private const val SAMPLE_SIZE = 10
     }
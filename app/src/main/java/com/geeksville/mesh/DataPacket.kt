@@ -21,6 +21,7 @@ import android.os.Parcel
 import android.os.Parcelable
 import kotlinx.parcelize.Parcelize
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.Transient
 import org.meshtastic.proto.MeshProtos
 import org.meshtastic.proto.Portnums
 
@@ -107,26 +108,30 @@ data class DataPacket(
         replyId = replyId ?: 0,
     )
 
+    // Never parcelled or serialized, every copy decodes for itself (bytes, dataType and clearText are vals)
+    @Transient
+    @Volatile
+    private var decoded: DecodedPayload? = null
+
+    /**
+     * The payload decoded by port number, parsed on first use and shared by every later caller.
+     */
+    val payload: DecodedPayload
+        get() = decoded ?: DecodedPayload.decode(dataType, bytes, clearText).also { decoded = it }
+
+    /// True once [payload] has parsed the bytes
+    internal val isDecoded: Boolean
+        get() = decoded != null
+
     /**
      * If this is a text message or compressed, return the string, otherwise null
      */
     val text: String?
-        get() = if (
-            dataType == Portnums.PortNum.TEXT_MESSAGE_APP_VALUE ||
-            dataType == Portnums.PortNum.TEXT_MESSAGE_COMPRESSED_APP_VALUE) {
-            if(clearText.isNullOrBlank()){
-                bytes?.decodeToString()
-            } else clearText
-        } else {
-            null
-        }
+        get() = if (DecodedPayload.isText(dataType)) (payload as? DecodedPayload.Text)?.text else null
 
     val statusMessageText: String?
-        get() = if (
-            dataType == Portnums.PortNum.NODE_STATUS_APP_VALUE){
-            bytes?.let {
-                MeshProtos.StatusMessage.parseFrom(it).status
-            }
+        get() = if (dataType == Portnums.PortNum.NODE_STATUS_APP_VALUE) {
+            (payload as? DecodedPayload.Status)?.status?.status
         } else {
             null
         }
@@ -140,7 +145,7 @@ data class DataPacket(
 
     val waypoint: MeshProtos.Waypoint?
         get() = if (dataType == Portnums.PortNum.WAYPOINT_APP_VALUE) {
-            MeshProtos.Waypoint.parseFrom(bytes)
+            (payload as? DecodedPayload.Waypoint)?.waypoint
         } else {
             null
         }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh
+
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.Portnums
+
+/**
+ * The payload of a [DataPacket], decoded by port number.
+ *
+ * [DataPacket.payload] decodes once per packet instance and hands every caller the same object,
+ * so reading [DataPacket.text] or [DataPacket.waypoint] from a recomposition is free after the
+ * first time. Only the ports those accessors read are decoded, everything else is [Opaque].
+ */
+sealed interface DecodedPayload {
+    data class Text(val text: String) : DecodedPayload
+    data class Waypoint(val waypoint: MeshProtos.Waypoint) : DecodedPayload
+    data class Status(val status: MeshProtos.StatusMessage) : DecodedPayload
+
+    /// A port we don't decode here, or no bytes at all
+    data object Opaque : DecodedPayload
+
+    /// The bytes did not parse as what the port says they are
+    data class Undecodable(val error: String?) : DecodedPayload
+
+    companion object {
+        fun isText(dataType: Int) = dataType == Portnums.PortNum.TEXT_MESSAGE_APP_VALUE ||
+                dataType == Portnums.PortNum.TEXT_MESSAGE_COMPRESSED_APP_VALUE
+
+        /**
+         * @param clearText the already readable text of a (possibly compressed) text message,
+         * used instead of [bytes] when set
+         */
+        fun decode(dataType: Int, bytes: ByteArray?, clearText: String? = null): DecodedPayload {
+            if (isText(dataType) && !clearText.isNullOrBlank()) return Text(clearText)
+            if (bytes == null) return Opaque
+
+            return try {
+                when (dataType) {
+                    Portnums.PortNum.TEXT_MESSAGE_APP_VALUE,
+                    Portnums.PortNum.TEXT_MESSAGE_COMPRESSED_APP_VALUE -> Text(bytes.decodeToString())
+                    Portnums.PortNum.WAYPOINT_APP_VALUE -> Waypoint(MeshProtos.Waypoint.parseFrom(bytes))
+                    Portnums.PortNum.NODE_STATUS_APP_VALUE -> Status(MeshProtos.StatusMessage.parseFrom(bytes))
+                    else -> Opaque
+                }
+            } catch (ex: com.google.protobuf.InvalidProtocolBufferException) {
+                Undecodable(ex.message)
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.android
+
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Bounded lock-free multi-producer queue (Vyukov's array queue). Every slot carries a sequence
+ * number that tells producers and consumers whose turn it is, so neither side ever blocks.
+ */
+internal class LogRing<T : Any>(capacity: Int) {
+    private val size = Integer.highestOneBit((capacity - 1).coerceAtLeast(1)) shl 1
+    private val mask = size - 1L
+    private val items = AtomicReferenceArray<T?>(size)
+    private val sequences = AtomicLongArray(size).apply { for (i in 0 until size) set(i, i.toLong()) }
+    private val head = AtomicLong() // next to poll
+    private val tail = AtomicLong() // next to offer
+
+    val capacity: Int get() = size
+    val count: Int get() = (tail.get() - head.get()).coerceIn(0, size.toLong()).toInt()
+
+    fun offer(item: T): Boolean {
+        var pos = tail.get()
+        while (true) {
+            val index = (pos and mask).toInt()
+            val diff = sequences.get(index) - pos
+            when {
+                diff == 0L -> if (tail.compareAndSet(pos, pos + 1)) {
+                    items.set(index, item)
+                    sequences.set(index, pos + 1)
+                    return true
+                } else {
+                    pos = tail.get()
+                }
+                diff < 0 -> return false // full
+                else -> pos = tail.get()
+            }
+        }
+    }
+
+    fun poll(): T? {
+        var pos = head.get()
+        while (true) {
+            val index = (pos and mask).toInt()
+            val diff = sequences.get(index) - (pos + 1)
+            when {
+                diff == 0L -> if (head.compareAndSet(pos, pos + 1)) {
+                    val item = items.getAndSet(index, null)
+                    sequences.set(index, pos + size)
+                    return item
+                } else {
+                    pos = head.get()
+                }
+                diff < 0 -> return null // empty
+                else -> pos = head.get()
+            }
+        }
+    }
+}
+
+enum class LogDropPolicy {
+    /** A full buffer rejects the new entry. Cheapest, keeps the start of a burst. */
+    DROP_NEWEST,
+
+    /** A full buffer discards its oldest entry to make room. Keeps the end of a burst. */
+    DROP_OLDEST,
+}
+
+data class AsyncLogStats(
+    val written: Long,
+    val dropped: Long,
+    val bytes: Long,
+    val batches: Long,
+    val rotations: Long,
+    val errors: Long,
+)
+
+/**
+ * An append-only log file that never touches storage on the caller's thread.
+ *
+ * [log] and [write] put the entry in a lock-free ring of [bufferEntries] and return. A single
+ * background writer drains the ring in batches, flushing at most every [flushIntervalMs] or
+ * as soon as the ring is half full. When the ring is full, [dropPolicy] decides what is lost
+ * and [AsyncLogStats.dropped] counts it.
+ *
+ * The file is rotated to `name.1` .. `name.[keepFiles]` once it reaches [maxFileBytes] or is
+ * older than [maxAgeMs].
+ */
+class AsyncLogFile(
+    dir: File,
+    private val name: String,
+    private val maxFileBytes: Long = DEFAULT_MAX_FILE_BYTES,
+    private val maxAgeMs: Long = DEFAULT_MAX_AGE_MSEC,
+    private val keepFiles: Int = DEFAULT_KEEP_FILES,
+    bufferEntries: Int = DEFAULT_BUFFER_ENTRIES,
+    private val dropPolicy: LogDropPolicy = LogDropPolicy.DROP_NEWEST,
+    private val flushIntervalMs: Long = DEFAULT_FLUSH_INTERVAL_MSEC,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    private val dir = dir.apply { mkdirs() }
+    val file = File(dir, name)
+
+    private val ring = LogRing<Any>(bufferEntries)
+    private val wakeAt = ring.capacity / 2
+
+    @Volatile
+    private var closed = false
+
+    // callers between their closed check and their offer, which the writer waits out before its last drain
+    private val appending = AtomicLong()
+
+    private val written = AtomicLong()
+    private val dropped = AtomicLong()
+    private val bytes = AtomicLong()
+    private val batches = AtomicLong()
+    private val rotations = AtomicLong()
+    private val errors = AtomicLong()
+
+    // only touched by the writer thread
+    private var out: OutputStream? = null
+    private var fileBytes = 0L
+    private var openedAt = 0L
+
+    private val writer = Thread(::run, "log-$name").apply {
+        isDaemon = true
+        priority = Thread.MIN_PRIORITY
+        start()
+    }
+
+    /** Queue a line of text, a newline is added. */
+    fun log(line: String) = enqueue(line)
+
+    /** Queue raw bytes, written as is. */
+    fun write(data: ByteArray) = enqueue(data.copyOf())
+
+    private fun enqueue(entry: Any): Boolean {
+        appending.incrementAndGet()
+        try {
+            return offer(entry)
+        } finally {
+            appending.decrementAndGet()
+        }
+    }
+
+    private fun offer(entry: Any): Boolean {
+        if (closed) {
+            dropped.incrementAndGet()
+            return false
+        }
+        var queued = ring.offer(entry)
+        if (!queued && dropPolicy == LogDropPolicy.DROP_OLDEST) {
+            while (!queued) {
+                if (ring.poll() != null) dropped.incrementAndGet()
+                queued = ring.offer(entry)
+            }
+        } else if (!queued) {
+            dropped.incrementAndGet()
+        }
+        if (ring.count >= wakeAt) LockSupport.unpark(writer)
+        return queued
+    }
+
+    /** Ask the writer to write out what is queued now, without waiting for it. */
+    fun flush() = LockSupport.unpark(writer)
+
+    /** Write out everything queued so far and stop. Later entries are dropped. */
+    fun close() {
+        closed = true
+        LockSupport.unpark(writer)
+        writer.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECS))
+    }
+
+    val stats: AsyncLogStats
+        get() = AsyncLogStats(
+            written = written.get(),
+            dropped = dropped.get(),
+            bytes = bytes.get(),
+            batches = batches.get(),
+            rotations = rotations.get(),
+            errors = errors.get(),
+        )
+
+    private fun run() {
+        while (true) {
+            val stopping = closed
+            if (stopping) {
+                // anyone who saw the file open is about to queue, so they land in the last drain
+                while (appending.get() != 0L) Thread.yield()
+            }
+            drain()
+            if (stopping) break
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushIntervalMs))
+        }
+        try {
+            out?.close()
+        } catch (ex: IOException) {
+            errors.incrementAndGet()
+        }
+        out = null
+    }
+
+    private fun drain() {
+        var entry = ring.poll() ?: return
+        try {
+            while (true) {
+                val data = when (entry) {
+                    is String -> (entry + "\n").encodeToByteArray()
+                    else -> entry as ByteArray
+                }
+                val stream = streamFor(data.size)
+                stream.write(data)
+                fileBytes += data.size
+                bytes.addAndGet(data.size.toLong())
+                written.incrementAndGet()
+                entry = ring.poll() ?: break
+            }
+            out?.flush()
+            batches.incrementAndGet()
+        } catch (ex: IOException) {
+            // storage trouble must not take the app down, lose this batch and reopen next time
+            errors.incrementAndGet()
+            try {
+                out?.close()
+            } catch (ignored: IOException) {
+            }
+            out = null
+        }
+    }
+
+    private fun streamFor(nextBytes: Int): OutputStream {
+        val now = clock()
+        val current = out
+        if (current != null) {
+            val tooBig = fileBytes > 0 && fileBytes + nextBytes > maxFileBytes
+            if (!tooBig && now - openedAt < maxAgeMs) return current
+            current.close()
+            rotate()
+        } else if (file.exists() && (file.length() >= maxFileBytes || now - file.lastModified() >= maxAgeMs)) {
+            // left over from an earlier run
+            rotate()
+        }
+        return open(now)
+    }
+
+    private fun open(now: Long): OutputStream {
+        fileBytes = file.length()
+        openedAt = if (fileBytes > 0) file.lastModified().coerceAtMost(now) else now
+        return BufferedOutputStream(FileOutputStream(file, true), WRITE_BUFFER_BYTES).also { out = it }
+    }
+
+    private fun rotate() {
+        File(dir, "$name.$keepFiles").delete()
+        for (i in keepFiles - 1 downTo 1) {
+            File(dir, "$name.$i").takeIf { it.exists() }?.renameTo(File(dir, "$name.${i + 1}"))
+        }
+        if (keepFiles > 0) file.renameTo(File(dir, "$name.1")) else file.delete()
+        rotations.incrementAndGet()
+    }
+
+    companion object {
+        const val DEFAULT_MAX_FILE_BYTES = 2L * 1024 * 1024
+        const val DEFAULT_MAX_AGE_MSEC = 24 * 60 * 60 * 1000L
+        const val DEFAULT_KEEP_FILES = 3
+        const val DEFAULT_BUFFER_ENTRIES = 4096
+        const val DEFAULT_FLUSH_INTERVAL_MSEC = 250L
+        private const val WRITE_BUFFER_BYTES = 64 * 1024
+        private const val CLOSE_TIMEOUT_SECS = 5L
+    }
+}
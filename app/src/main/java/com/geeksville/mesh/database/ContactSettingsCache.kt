@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import com.geeksville.mesh.database.entity.ContactSettings
+import java.util.concurrent.atomic.AtomicLong
+
+data class ContactSettingsCacheStats(
+    val hits: Long,
+    val coldReads: Long,
+    val hydrations: Long,
+    val pendingWrites: Int,
+)
+
+/**
+ * The `contact_settings` table held in memory, so the receive path can check mutes without a
+ * DB read per message.
+ *
+ * [hydrate] is fed every snapshot the table's Flow emits. Mute writes go through [setMuteUntil]
+ * before they reach the DB and stay overlaid on the snapshots until one catches up with them,
+ * so a snapshot queried before the write landed can't undo it. Reads take a lock-free look at
+ * an immutable map; writers (a mute toggle, a DB emission) are rare and serialized.
+ */
+class ContactSettingsCache {
+    private val lock = Any()
+
+    // last snapshot from the DB, null until the first one arrives
+    private var stored: Map<String, ContactSettings>? = null
+
+    // muteUntil of writes the DB snapshots haven't shown yet, guarded by lock
+    private val pending = HashMap<String, Long>()
+
+    @Volatile
+    private var settings: Map<String, ContactSettings>? = null
+
+    private val hits = AtomicLong()
+    private val coldReads = AtomicLong()
+    private val hydrations = AtomicLong()
+
+    val isHydrated: Boolean get() = settings != null
+
+    /** Settings for [contact], or null before the first snapshot, when the caller must ask the DB. */
+    fun get(contact: String): ContactSettings? {
+        val current = settings
+        if (current == null) {
+            coldReads.incrementAndGet()
+            return null
+        }
+        hits.incrementAndGet()
+        return current[contact] ?: ContactSettings(contact)
+    }
+
+    fun hydrate(snapshot: Map<String, ContactSettings>) = synchronized(lock) {
+        pending.entries.removeAll { (contact, until) -> snapshot[contact]?.muteUntil == until }
+        stored = snapshot
+        hydrations.incrementAndGet()
+        publish()
+    }
+
+    /** Record a mute change about to be written, visible to readers straight away. */
+    fun setMuteUntil(contacts: List<String>, until: Long) = synchronized(lock) {
+        contacts.forEach { pending[it] = until }
+        publish()
+    }
+
+    /** Drop writes that never made it to the DB, going back to what it last said. */
+    fun discard(contacts: List<String>) = synchronized(lock) {
+        contacts.forEach { pending.remove(it) }
+        publish()
+    }
+
+    private fun publish() {
+        val base = stored ?: return
+        settings = if (pending.isEmpty()) {
+            base
+        } else {
+            HashMap(base).apply {
+                pending.forEach { (contact, until) ->
+                    put(contact, (base[contact] ?: ContactSettings(contact)).copy(muteUntil = until))
+                }
+            }
+        }
+    }
+
+    val stats: ContactSettingsCacheStats
+        get() = ContactSettingsCacheStats(
+            hits = hits.get(),
+            coldReads = coldReads.get(),
+            hydrations = hydrations.get(),
+            pendingWrites = synchronized(lock) { pending.size },
+        )
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.geeksville.mesh.database.entity.WaypointEntity
+import org.meshtastic.proto.Portnums.PortNum
+
+/*
+ * Hand-written migrations for schema changes Room can't auto-migrate, so that upgrading keeps
+ * the user's messages, nodes and contact settings. The SQL matches the createSql Room exports
+ * to app/schemas, which the migrated schema is validated against.
+ */
+
+/** Adds the node and node registry full-text search tables and fills them. */
+val MIGRATION_24_25 = object : Migration(24, 25) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL(
+            "CREATE VIRTUAL TABLE IF NOT EXISTS `nodes_fts` USING FTS4(" +
+                "`long_name` TEXT, `short_name` TEXT, `user_id` TEXT, `node_num` TEXT, tokenize=unicode61)"
+        )
+        db.execSQL(
+            "CREATE VIRTUAL TABLE IF NOT EXISTS `node_registry_fts` USING FTS4(" +
+                "`long_name` TEXT, `short_name` TEXT, `user_id` TEXT, `node_num` TEXT, tokenize=unicode61)"
+        )
+        NodeSearchIndex.install(db)
+    }
+}
+
+/** Indexes node positions for the area queries in [NodeGeoIndex]. */
+val MIGRATION_25_26 = object : Migration(25, 26) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS `index_nodes_latitude_longitude` ON `nodes` (`latitude`, `longitude`)")
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_node_registry_latitudeI_longitudeI` " +
+                "ON `node_registry` (`latitudeI`, `longitudeI`)"
+        )
+    }
+}
+
+/**
+ * Adds the `waypoint` table and fills it from the stored WAYPOINT_APP packets, keeping the latest
+ * version of each waypoint and dropping the packets of older versions as [PacketRepository.insert]
+ * now does.
+ */
+val MIGRATION_26_27 = object : Migration(26, 27) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL(
+            "CREATE TABLE IF NOT EXISTS `waypoint` (`id` INTEGER NOT NULL, " +
+                "`my_node_num` INTEGER NOT NULL DEFAULT 0, `name` TEXT NOT NULL, `description` TEXT NOT NULL, " +
+                "`latitude_i` INTEGER NOT NULL, `longitude_i` INTEGER NOT NULL, `expire` INTEGER NOT NULL, " +
+                "`locked_to` INTEGER NOT NULL, `icon` INTEGER NOT NULL, `from_id` TEXT, " +
+                "`received_time` INTEGER NOT NULL, `packet_uuid` INTEGER NOT NULL, PRIMARY KEY(`id`))"
+        )
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_waypoint_latitude_i_longitude_i` " +
+                "ON `waypoint` (`latitude_i`, `longitude_i`)"
+        )
+        db.execSQL("CREATE INDEX IF NOT EXISTS `index_waypoint_expire` ON `waypoint` (`expire`)")
+
+        val converters = Converters()
+        val latest = HashMap<Int, WaypointEntity>()
+        val superseded = mutableListOf<Long>()
+        db.query(
+            "SELECT uuid, myNodeNum, received_time, data FROM packet " +
+                "WHERE port_num = ${PortNum.WAYPOINT_APP_VALUE} ORDER BY received_time, uuid"
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                val data = runCatching { converters.dataFromString(cursor.getString(3)) }.getOrNull()
+                val waypoint = data?.waypoint ?: continue
+                val entity = WaypointEntity(
+                    id = waypoint.id,
+                    myNodeNum = cursor.getInt(1),
+                    name = waypoint.name,
+                    description = waypoint.description,
+                    latitudeI = waypoint.latitudeI,
+                    longitudeI = waypoint.longitudeI,
+                    expire = waypoint.expire,
+                    lockedTo = waypoint.lockedTo,
+                    icon = waypoint.icon,
+                    from = data.from,
+                    receivedTime = cursor.getLong(2),
+                    packetUuid = cursor.getLong(0),
+                )
+                latest.put(waypoint.id, entity)?.let { superseded += it.packetUuid }
+            }
+        }
+
+        latest.values.forEach {
+            db.execSQL(
+                "INSERT OR REPLACE INTO waypoint (id, my_node_num, name, description, latitude_i, " +
+                    "longitude_i, expire, locked_to, icon, from_id, received_time, packet_uuid) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                arrayOf<Any?>(
+                    it.id, it.myNodeNum, it.name, it.description, it.latitudeI, it.longitudeI,
+                    it.expire, it.lockedTo, it.icon, it.from, it.receivedTime, it.packetUuid,
+                ),
+            )
+        }
+        superseded.forEach { db.execSQL("DELETE FROM packet WHERE uuid = ?", arrayOf<Any?>(it)) }
+    }
+}
+
+/** Adds the cold archive tables [NodeRetention] moves evicted nodes and registry rows to. */
+val MIGRATION_27_28 = object : Migration(27, 28) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL(
+            "CREATE TABLE IF NOT EXISTS `nodes_archive` (`num` INTEGER NOT NULL, `user` BLOB NOT NULL, " +
+                "`long_name` TEXT, `short_name` TEXT, `position` BLOB NOT NULL, `latitude` REAL NOT NULL, " +
+                "`longitude` REAL NOT NULL, `snr` REAL NOT NULL, `rssi` INTEGER NOT NULL, " +
+                "`last_heard` INTEGER NOT NULL, `device_metrics` BLOB NOT NULL, `channel` INTEGER NOT NULL, " +
+                "`via_mqtt` INTEGER NOT NULL, `hops_away` INTEGER NOT NULL, `is_favorite` INTEGER NOT NULL, " +
+                "`is_ignored` INTEGER NOT NULL DEFAULT 0, `environment_metrics` BLOB NOT NULL, " +
+                "`power_metrics` BLOB NOT NULL, `paxcounter` BLOB NOT NULL, `role` TEXT, `node_status` TEXT, " +
+                "`archived_at` INTEGER NOT NULL, PRIMARY KEY(`num`))"
+        )
+        db.execSQL(
+            "CREATE TABLE IF NOT EXISTS `node_registry_archive` (`nodeId` TEXT NOT NULL, `shortName` TEXT, " +
+                "`defaultName` TEXT, `longName` TEXT, `nodeNum` INTEGER, `latitudeI` INTEGER, " +
+                "`longitudeI` INTEGER, `lastSeen` INTEGER NOT NULL, `hopCount` INTEGER, `lastRssi` INTEGER, " +
+                "`archivedAt` INTEGER NOT NULL, PRIMARY KEY(`nodeId`))"
+        )
+    }
+}
+
+/** Adds the links [TopologyRepository] keeps between sessions. */
+val MIGRATION_28_29 = object : Migration(28, 29) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL(
+            "CREATE TABLE IF NOT EXISTS `topology_edges` (`from_num` INTEGER NOT NULL, " +
+                "`to_num` INTEGER NOT NULL, `source` TEXT NOT NULL, `snr` REAL, `last_seen` INTEGER NOT NULL, " +
+                "`observations` INTEGER NOT NULL, PRIMARY KEY(`from_num`, `to_num`, `source`))"
+        )
+        db.execSQL("CREATE INDEX IF NOT EXISTS `index_topology_edges_to_num` ON `topology_edges` (`to_num`)")
+    }
+}
+
+val MIGRATIONS = arrayOf(
+    MIGRATION_24_25,
+    MIGRATION_25_26,
+    MIGRATION_26_27,
+    MIGRATION_27_28,
+    MIGRATION_28_29,
+)
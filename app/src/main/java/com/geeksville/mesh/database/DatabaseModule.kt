@@ -23,6 +23,7 @@ import com.geeksville.mesh.database.dao.NodeInfoDao
 import com.geeksville.mesh.database.dao.NodeRegistryDao
 import com.geeksville.mesh.database.dao.PacketDao
 import com.geeksville.mesh.database.dao.QuickChatActionDao
+import com.geeksville.mesh.database.dao.TopologyDao
 import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
@@ -62,4 +63,9 @@ class DatabaseModule {
         return database.nodeRegistryDao()
     }
 
+    @Provides
+    fun provideTopologyDao(database: MeshtasticDatabase): TopologyDao {
+        return database.topologyDao()
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import com.geeksville.mesh.DataPacket
+import java.util.PriorityQueue
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.exp
+import kotlin.math.ln
+import kotlin.math.pow
+
+/** Where a link was learned from. */
+enum class TopologySource {
+    /** A node's neighbor info listed the other end. */
+    NEIGHBOR_INFO,
+
+    /** Consecutive hops of a traceroute, either way. */
+    TRACEROUTE,
+
+    /** A packet reached us from the other end, directly or as the relay we attributed it to. */
+    RELAY,
+}
+
+/**
+ * [to] heard [from] at [snr] dB (null when the source didn't measure it), last at [lastSeen]
+ * (millis), over [observations] reports from [source].
+ */
+data class MeshLink(
+    val from: Int,
+    val to: Int,
+    val source: TopologySource,
+    val snr: Float?,
+    val lastSeen: Long,
+    val observations: Int = 1,
+)
+
+/** Links to write to and delete from the store since the last [MeshTopology.drainChanges]. */
+data class TopologyChanges(val upserts: List<MeshLink>, val deletes: List<MeshLink>) {
+    val isEmpty: Boolean get() = upserts.isEmpty() && deletes.isEmpty()
+}
+
+data class MeshTopologyStats(
+    val observations: Long,
+    val links: Int,
+    val pruned: Long,
+    val snapshots: Long,
+)
+
+/** A route through the mesh and the chance every hop of it still works. */
+data class TopologyPath(val nodes: List<Int>, val reliability: Double) {
+    val hops: Int get() = nodes.size - 1
+}
+
+/**
+ * What the mesh has told us about its own shape: directed links from neighbor info, traceroutes
+ * and the packets we receive, each with its latest SNR and when it was last seen.
+ *
+ * A link's reliability is how good its SNR is, halved every [halfLifeMs] since it was last seen;
+ * links unseen for [staleAfterMs] are dropped by [prune]. Changes are tracked for
+ * [drainChanges] so a store can be kept in step, and [load] merges what the store held back in.
+ * Queries go to a [TopologySnapshot], rebuilt only when the links change or age.
+ */
+class MeshTopology(
+    private val halfLifeMs: Long = DEFAULT_HALF_LIFE_MS,
+    private val staleAfterMs: Long = DEFAULT_STALE_AFTER_MS,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    private data class Key(val from: Int, val to: Int, val source: TopologySource)
+
+    private val lock = Any()
+
+    // guarded by lock
+    private val links = HashMap<Key, MeshLink>()
+    private val upserted = HashSet<Key>()
+    private val deleted = HashMap<Key, MeshLink>()
+    private var version = 0L
+
+    @Volatile
+    private var cached: TopologySnapshot? = null
+
+    private val observations = AtomicLong()
+    private val pruned = AtomicLong()
+    private val snapshots = AtomicLong()
+
+    val size: Int get() = synchronized(lock) { links.size }
+
+    /** Record that [to] heard [from], ignoring links to nobody or to themselves. */
+    fun observe(from: Int, to: Int, source: TopologySource, snr: Float?, at: Long = clock()) {
+        if (from == to || !isNode(from) || !isNode(to)) return
+        observations.incrementAndGet()
+        val key = Key(from, to, source)
+        synchronized(lock) {
+            val old = links[key]
+            links[key] = when {
+                old == null -> MeshLink(from, to, source, snr, at)
+                at < old.lastSeen -> old.copy(observations = old.observations + 1)
+                else -> old.copy(
+                    snr = smooth(old.snr, snr),
+                    lastSeen = at,
+                    observations = old.observations + 1,
+                )
+            }
+            upserted += key
+            deleted -= key
+            version++
+        }
+    }
+
+    fun observe(link: MeshLink) = observe(link.from, link.to, link.source, link.snr, link.lastSeen)
+
+    /** Merge links read back from the store; anything observed since wins. */
+    fun load(stored: Collection<MeshLink>) = synchronized(lock) {
+        version++
+        stored.forEach { link ->
+            val key = Key(link.from, link.to, link.source)
+            val current = links[key]
+            if (current == null || current.lastSeen < link.lastSeen) links[key] = link
+        }
+    }
+
+    /** Drop links unseen for longer than staleAfterMs. @return how many were dropped */
+    fun prune(now: Long = clock()): Int = synchronized(lock) {
+        val stale = links.filterValues { now - it.lastSeen > staleAfterMs }
+        stale.forEach { (key, link) ->
+            links -= key
+            upserted -= key
+            deleted[key] = link
+        }
+        if (stale.isNotEmpty()) version++
+        pruned.addAndGet(stale.size.toLong())
+        stale.size
+    }
+
+    fun links(): List<MeshLink> = synchronized(lock) { links.values.toList() }
+
+    /** What changed since the last call, for the store to write. */
+    fun drainChanges(): TopologyChanges = synchronized(lock) {
+        val changes = TopologyChanges(upserted.mapNotNull { links[it] }, deleted.values.toList())
+        upserted.clear()
+        deleted.clear()
+        changes
+    }
+
+    /** Give back [changes] the store failed to write, under anything that changed since. */
+    fun requeue(changes: TopologyChanges) = synchronized(lock) {
+        changes.upserts.forEach { link ->
+            val key = Key(link.from, link.to, link.source)
+            if (key in links) upserted += key
+        }
+        changes.deletes.forEach { link ->
+            val key = Key(link.from, link.to, link.source)
+            if (key !in links && key !in deleted) deleted[key] = link
+        }
+    }
+
+    /** How likely [link] still works at [now], from its SNR and age. */
+    fun reliability(link: MeshLink, now: Long = clock()): Double {
+        val age = (now - link.lastSeen).coerceAtLeast(0L)
+        return (snrQuality(link.snr) * 0.5.pow(age.toDouble() / halfLifeMs)).coerceIn(MIN_RELIABILITY, 1.0)
+    }
+
+    /**
+     * The graph as of [now], links taken both ways at the best reliability any source gives
+     * them. Reused until a link changes or the last one is [SNAPSHOT_MAX_AGE_MS] old.
+     */
+    fun snapshot(now: Long = clock()): TopologySnapshot {
+        val (current, currentVersion) = synchronized(lock) {
+            cached?.let { if (it.version == version && now - it.builtAt < SNAPSHOT_MAX_AGE_MS) return it }
+            links.values.toList() to version
+        }
+
+        val best = HashMap<Long, Double>(current.size * 2)
+        current.forEach { link ->
+            val a = minOf(link.from, link.to)
+            val b = maxOf(link.from, link.to)
+            val key = (a.toLong() shl 32) or (b.toLong() and 0xFFFF_FFFFL)
+            val reliability = reliability(link, now)
+            if (reliability > (best[key] ?: 0.0)) best[key] = reliability
+        }
+        return TopologySnapshot.build(best, now, currentVersion).also {
+            cached = it
+            snapshots.incrementAndGet()
+        }
+    }
+
+    val stats: MeshTopologyStats
+        get() = MeshTopologyStats(
+            observations = observations.get(),
+            links = size,
+            pruned = pruned.get(),
+            snapshots = snapshots.get(),
+        )
+
+    companion object {
+        const val DEFAULT_HALF_LIFE_MS = 12 * 60 * 60 * 1000L
+        const val DEFAULT_STALE_AFTER_MS = 3 * 24 * 60 * 60 * 1000L
+        const val SNAPSHOT_MAX_AGE_MS = 60 * 1000L
+
+        // a link is even odds at -10 dB, near certain at 0 dB and all but dead at -20 dB
+        private const val SNR_MIDPOINT_DB = -10.0
+        private const val SNR_SCALE_DB = 3.0
+        private const val UNKNOWN_SNR_QUALITY = 0.5
+        private const val SNR_SMOOTHING = 0.5f
+        private const val MIN_RELIABILITY = 1e-9
+
+        private fun isNode(num: Int) = num != 0 && num != DataPacket.NODENUM_BROADCAST
+
+        private fun smooth(old: Float?, new: Float?) = when {
+            new == null -> old
+            old == null -> new
+            else -> old + (new - old) * SNR_SMOOTHING
+        }
+
+        fun snrQuality(snr: Float?): Double =
+            if (snr == null) UNKNOWN_SNR_QUALITY else 1 / (1 + exp(-(snr - SNR_MIDPOINT_DB) / SNR_SCALE_DB))
+    }
+}
+
+/**
+ * An immutable, undirected view of [MeshTopology] with the graph algorithms run on it. Nodes are
+ * packed into arrays with their links in adjacency lists, so every query is O(nodes + links) or
+ * better, and the whole-graph answers are worked out once per snapshot.
+ */
+class TopologySnapshot private constructor(
+    val builtAt: Long,
+    internal val version: Long,
+    private val nums: IntArray,
+    private val offsets: IntArray,
+    private val targets: IntArray,
+    private val reliabilities: DoubleArray,
+) {
+    private val indexOf = HashMap<Int, Int>(nums.size * 2).apply { nums.forEachIndexed { i, num -> put(num, i) } }
+
+    val nodeCount: Int get() = nums.size
+    val linkCount: Int get() = targets.size / 2
+
+    operator fun contains(num: Int) = num in indexOf
+
+    /** The nodes [num] has a link with, and how reliable each link is. */
+    fun neighbors(num: Int): Map<Int, Double> {
+        val i = indexOf[num] ?: return emptyMap()
+        return (offsets[i] until offsets[i + 1]).associate { nums[targets[it]] to reliabilities[it] }
+    }
+
+    /** The fewest hops from [from] to [to], or null if no known links join them. */
+    fun shortestPath(from: Int, to: Int): TopologyPath? {
+        val source = indexOf[from] ?: return null
+        val target = indexOf[to] ?: return null
+        val previous = IntArray(nums.size) { UNVISITED }
+        previous[source] = source
+        val queue = IntArray(nums.size)
+        var head = 0
+        var tail = 0
+        queue[tail++] = source
+        while (head < tail && previous[target] == UNVISITED) {
+            val v = queue[head++]
+            for (e in offsets[v] until offsets[v + 1]) {
+                val w = targets[e]
+                if (previous[w] == UNVISITED) {
+                    previous[w] = v
+                    queue[tail++] = w
+                }
+            }
+        }
+        return path(previous, source, target)
+    }
+
+    /** The route from [from] to [to] most likely to work end to end, or null if there is none. */
+    fun mostReliablePath(from: Int, to: Int): TopologyPath? {
+        val source = indexOf[from] ?: return null
+        val target = indexOf[to] ?: return null
+        // the most reliable path is the shortest one when each link costs -ln(reliability)
+        val cost = DoubleArray(nums.size) { Double.POSITIVE_INFINITY }
+        val previous = IntArray(nums.size) { UNVISITED }
+        val queue = PriorityQueue<Pair<Double, Int>>(compareBy { it.first })
+        cost[source] = 0.0
+        previous[source] = source
+        queue += 0.0 to source
+        while (queue.isNotEmpty()) {
+            val (c, v) = queue.poll()!!
+            if (c > cost[v]) continue
+            if (v == target) break
+            for (e in offsets[v] until offsets[v + 1]) {
+                val w = targets[e]
+                val next = c - ln(reliabilities[e])
+                if (next < cost[w]) {
+                    cost[w] = next
+                    previous[w] = v
+                    queue += next to w
+                }
+            }
+        }
+        return path(previous, source, target)
+    }
+
+    /** Nodes whose loss would split the part of the mesh they are in. */
+    val articulationPoints: Set<Int> by lazy { findArticulationPoints() }
+
+    /** Groups of nodes joined by known links, largest first. */
+    val connectedComponents: List<Set<Int>> by lazy { findComponents() }
+
+    private fun path(previous: IntArray, source: Int, target: Int): TopologyPath? {
+        if (previous[target] == UNVISITED) return null
+        val path = ArrayList<Int>()
+        var reliability = 1.0
+        var v = target
+        while (v != source) {
+            val p = previous[v]
+            reliability *= linkReliability(p, v)
+            path += nums[v]
+            v = p
+        }
+        path += nums[source]
+        return TopologyPath(path.reversed(), reliability)
+    }
+
+    private fun linkReliability(a: Int, b: Int): Double {
+        for (e in offsets[a] until offsets[a + 1]) if (targets[e] == b) return reliabilities[e]
+        error("no link between ${nums[a]} and ${nums[b]}")
+    }
+
+    // Tarjan's low-link search, iterative so long chains don't overflow the stack
+    private fun findArticulationPoints(): Set<Int> {
+        val n = nums.size
+        val discovered = IntArray(n) { UNVISITED }
+        val low = IntArray(n)
+        val parent = IntArray(n) { UNVISITED }
+        val nextEdge = offsets.copyOf(n)
+        val stack = IntArray(n)
+        val points = HashSet<Int>()
+        var time = 0
+
+        for (root in 0 until n) {
+            if (discovered[root] != UNVISITED) continue
+            var top = 0
+            stack[top++] = root
+            discovered[root] = time
+            low[root] = time++
+            var rootChildren = 0
+
+            while (top > 0) {
+                val v = stack[top - 1]
+                if (nextEdge[v] < offsets[v + 1]) {
+                    val w = targets[nextEdge[v]++]
+                    if (discovered[w] == UNVISITED) {
+                        parent[w] = v
+                        discovered[w] = time
+                        low[w] = time++
+                        if (v == root) rootChildren++
+                        stack[top++] = w
+                    } else if (w != parent[v]) {
+                        low[v] = minOf(low[v], discovered[w])
+                    }
+                } else {
+                    top--
+                    val p = parent[v]
+                    if (p != UNVISITED) {
+                        low[p] = minOf(low[p], low[v])
+                        if (p != root && low[v] >= discovered[p]) points += nums[p]
+                    }
+                }
+            }
+            if (rootChildren > 1) points += nums[root]
+        }
+        return points
+    }
+
+    private fun findComponents(): List<Set<Int>> {
+        val component = IntArray(nums.size) { UNVISITED }
+        val queue = IntArray(nums.size)
+        val components = ArrayList<Set<Int>>()
+        for (start in nums.indices) {
+            if (component[start] != UNVISITED) continue
+            val members = HashSet<Int>()
+            var head = 0
+            var tail = 0
+            queue[tail++] = start
+            component[start] = components.size
+            while (head < tail) {
+                val v = queue[head++]
+                members += nums[v]
+                for (e in offsets[v] until offsets[v + 1]) {
+                    val w = targets[e]
+                    if (component[w] == UNVISITED) {
+                        component[w] = components.size
+                        queue[tail++] = w
+                    }
+                }
+            }
+            components += members
+        }
+        return components.sortedByDescending { it.size }
+    }
+
+    internal companion object {
+        private const val UNVISITED = -1
+
+        /** Builds a snapshot from undirected links, keyed by the smaller num in the high half. */
+        fun build(links: Map<Long, Double>, builtAt: Long, version: Long): TopologySnapshot {
+            val index = HashMap<Int, Int>()
+            val degree = ArrayList<Int>()
+            fun indexOf(num: Int) = index.getOrPut(num) { degree += 0; index.size }
+
+            val ends = IntArray(links.size * 2)
+            val linkReliabilities = DoubleArray(links.size)
+            var i = 0
+            links.forEach { (key, reliability) ->
+                val a = indexOf((key ushr 32).toInt())
+                val b = indexOf(key.toInt())
+                linkReliabilities[i / 2] = reliability
+                ends[i++] = a
+                ends[i++] = b
+                degree[a]++
+                degree[b]++
+            }
+
+            val nums = IntArray(index.size).apply { index.forEach { (num, at) -> set(at, num) } }
+            val offsets = IntArray(nums.size + 1)
+            for (v in nums.indices) offsets[v + 1] = offsets[v] + degree[v]
+            val fill = offsets.copyOf(nums.size)
+            val targets = IntArray(ends.size)
+            val reliabilities = DoubleArray(ends.size)
+            for (link in linkReliabilities.indices) {
+                val a = ends[2 * link]
+                val b = ends[2 * link + 1]
+                val reliability = linkReliabilities[link]
+                targets[fill[a]] = b
+                reliabilities[fill[a]++] = reliability
+                targets[fill[b]] = a
+                reliabilities[fill[b]++] = reliability
+            }
+            return TopologySnapshot(builtAt, version, nums, offsets, targets, reliabilities)
+        }
+    }
+}
@@ -30,15 +30,22 @@ import com.geeksville.mesh.database.dao.NodeInfoDao
 import com.geeksville.mesh.database.dao.NodeRegistryDao
 import com.geeksville.mesh.database.dao.PacketDao
 import com.geeksville.mesh.database.dao.QuickChatActionDao
+import com.geeksville.mesh.database.dao.TopologyDao
+import com.geeksville.mesh.database.entity.ArchivedNodeEntity
+import com.geeksville.mesh.database.entity.ArchivedNodeRegistry
 import com.geeksville.mesh.database.entity.ContactSettings
 import com.geeksville.mesh.database.entity.MeshLog
 import com.geeksville.mesh.database.entity.MetadataEntity
 import com.geeksville.mesh.database.entity.MyNodeEntity
 import com.geeksville.mesh.database.entity.NodeEntity
 import com.geeksville.mesh.database.entity.NodeRegistry
+import com.geeksville.mesh.database.entity.NodeRegistrySearchEntity
+import com.geeksville.mesh.database.entity.NodeSearchEntity
 import com.geeksville.mesh.database.entity.Packet
 import com.geeksville.mesh.database.entity.QuickChatAction
 import com.geeksville.mesh.database.entity.ReactionEntity
+import com.geeksville.mesh.database.entity.TopologyEdgeEntity
+import com.geeksville.mesh.database.entity.WaypointEntity
 
 @Database(
     entities = [
@@ -50,7 +57,13 @@ import com.geeksville.mesh.database.entity.ReactionEntity
         QuickChatAction::class,
         ReactionEntity::class,
         MetadataEntity::class,
-        NodeRegistry::class
+        NodeRegistry::class,
+        NodeSearchEntity::class,
+        NodeRegistrySearchEntity::class,
+        WaypointEntity::class,
+        ArchivedNodeEntity::class,
+        ArchivedNodeRegistry::class,
+        TopologyEdgeEntity::class,
     ],
     autoMigrations = [
         AutoMigration(from = 3, to = 4),
@@ -67,7 +80,7 @@ import com.geeksville.mesh.database.entity.ReactionEntity
         AutoMigration(from = 14, to = 15),
         AutoMigration(from = 15, to = 16),
     ],
-    version = 24,
+    version = 29,
     exportSchema = true,
 )
 @TypeConverters(Converters::class)
@@ -77,6 +90,7 @@ abstract class MeshtasticDatabase : RoomDatabase() {
     abstract fun meshLogDao(): MeshLogDao
     abstract fun quickChatActionDao(): QuickChatActionDao
     abstract fun nodeRegistryDao(): NodeRegistryDao
+    abstract fun topologyDao(): TopologyDao
 
     companion object {
         fun getDatabase(context: Context): MeshtasticDatabase {
@@ -86,7 +100,9 @@ abstract class MeshtasticDatabase : RoomDatabase() {
                 MeshtasticDatabase::class.java,
                 "meshtastic_database"
             )
+                .addMigrations(*MIGRATIONS)
                 .fallbackToDestructiveMigration()
+                .addCallback(NodeSearchIndex.callback)
                 .build()
         }
     }
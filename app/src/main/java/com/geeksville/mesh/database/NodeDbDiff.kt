@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import com.geeksville.mesh.database.entity.NodeEntity
+
+/**
+ * What it takes to turn a stored node DB into the one the radio just sent: new nodes, nodes
+ * with any field changed, and nodes the radio no longer has. Identical nodes are left alone,
+ * so a reconnect to an unchanged mesh writes nothing.
+ */
+data class NodeDbDiff(
+    val inserted: List<NodeEntity>,
+    val updated: List<NodeEntity>,
+    val deleted: List<Int>,
+) {
+    val upserts: List<NodeEntity> get() = inserted + updated
+    val rowsWritten: Int get() = inserted.size + updated.size + deleted.size
+    val isEmpty: Boolean get() = rowsWritten == 0
+
+    override fun toString() = "NodeDbDiff(inserted=${inserted.size}, updated=${updated.size}, deleted=${deleted.size})"
+
+    companion object {
+        val EMPTY = NodeDbDiff(emptyList(), emptyList(), emptyList())
+
+        fun of(stored: Map<Int, NodeEntity>, incoming: List<NodeEntity>): NodeDbDiff {
+            val inserted = mutableListOf<NodeEntity>()
+            val updated = mutableListOf<NodeEntity>()
+            val byNum = incoming.associateBy { it.num } // the radio's last word on a repeated node
+            byNum.values.forEach { node ->
+                when (stored[node.num]) {
+                    null -> inserted += node
+                    node -> Unit
+                    else -> updated += node
+                }
+            }
+            val deleted = stored.keys.filter { it !in byNum }
+            return NodeDbDiff(inserted, updated, deleted)
+        }
+    }
+}
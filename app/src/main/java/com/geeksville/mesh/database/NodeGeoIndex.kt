@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import kotlin.math.PI
+import kotlin.math.asin
+import kotlin.math.atan2
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * A latitude/longitude box as the `nodes` and `node_registry` (latitude, longitude) indices can
+ * answer it. When [west] > [east] the box crosses the antimeridian, and the DAO queries take it
+ * as the two longitude ranges [west1]..[east1] and [west2]..[east2].
+ */
+data class GeoBox(
+    val south: Double,
+    val north: Double,
+    val west: Double,
+    val east: Double,
+) {
+    val crossesAntimeridian: Boolean get() = west > east
+    val isWholeEarth: Boolean get() = south <= -90.0 && north >= 90.0 && west <= -180.0 && east >= 180.0
+
+    val west1: Double get() = west
+    val east1: Double get() = if (crossesAntimeridian) 180.0 else east
+
+    // an empty range (1..0) when the box does not wrap
+    val west2: Double get() = if (crossesAntimeridian) -180.0 else 1.0
+    val east2: Double get() = if (crossesAntimeridian) east else 0.0
+
+    fun contains(lat: Double, lon: Double): Boolean =
+        lat in south..north && (lon in west1..east1 || lon in west2..east2)
+
+    private val lonSpan: Double get() = if (crossesAntimeridian) east + 360.0 - west else east - west
+
+    /** True if every point of [other] is inside this box. */
+    fun covers(other: GeoBox): Boolean =
+        isWholeEarth || (contains(other.south, other.west) && contains(other.north, other.east) &&
+                other.lonSpan <= lonSpan)
+}
+
+/**
+ * Great-circle distances and index-backed proximity search over node positions.
+ *
+ * Positions are found through plain B-tree indices on (latitude, longitude): a box query is a
+ * range scan on latitude filtered by longitude, and [nearest] widens a box around the origin
+ * until it holds enough nodes, then ranks them by [haversineMeters]. SQLite has no trigonometry
+ * built in, so the exact ranking happens here rather than in SQL.
+ */
+object NodeGeoIndex {
+
+    /// Mean earth radius (IUGG)
+    const val EARTH_RADIUS_METERS = 6_371_008.8
+
+    /// First radius [nearest] tries, doubled until enough nodes are found
+    private const val START_RADIUS_METERS = 2_000.0
+
+    val WHOLE_EARTH = GeoBox(-90.0, 90.0, -180.0, 180.0)
+
+    private fun rad(deg: Double) = deg * PI / 180.0
+    private fun deg(rad: Double) = rad * 180.0 / PI
+
+    /** (0, 0) and out of range coordinates are how a missing position is stored. */
+    fun isValid(lat: Double, lon: Double): Boolean =
+        !(lat == 0.0 && lon == 0.0) && lat in -90.0..90.0 && lon in -180.0..180.0
+
+    /** Great-circle distance in meters, accurate at any distance, near the poles and across the antimeridian. */
+    fun haversineMeters(lat1: Double, lon1: Double, lat2: Double, lon2: Double): Double {
+        val dLat = rad(lat2 - lat1)
+        val dLon = rad(lon2 - lon1)
+        val a = sin(dLat / 2).let { it * it } +
+                cos(rad(lat1)) * cos(rad(lat2)) * sin(dLon / 2).let { it * it }
+        return 2 * EARTH_RADIUS_METERS * atan2(sqrt(a), sqrt(1 - a))
+    }
+
+    /** The smallest [GeoBox] holding every point within [radiusMeters] of ([lat], [lon]). */
+    fun boxAround(lat: Double, lon: Double, radiusMeters: Double): GeoBox {
+        val r = radiusMeters / EARTH_RADIUS_METERS
+        if (r >= PI) return WHOLE_EARTH
+
+        val south = lat - deg(r)
+        val north = lat + deg(r)
+        if (south <= -90.0 || north >= 90.0) {
+            // a pole is inside the circle, so every longitude is
+            return GeoBox(south.coerceAtLeast(-90.0), north.coerceAtMost(90.0), -180.0, 180.0)
+        }
+
+        val dLon = deg(asin((sin(r) / cos(rad(lat))).coerceAtMost(1.0)))
+        if (dLon >= 180.0) return GeoBox(south, north, -180.0, 180.0)
+
+        var west = lon - dLon
+        var east = lon + dLon
+        if (west < -180.0) west += 360.0
+        if (east > 180.0) east -= 360.0
+        return GeoBox(south, north, west, east)
+    }
+
+    /**
+     * The view box grown by [margin] of its size on every side, so small pans and zooms stay
+     * inside it. Longitudes are normalized, a box wider than the world becomes every longitude.
+     */
+    fun padded(view: GeoBox, margin: Double): GeoBox {
+        val latPad = (view.north - view.south) * margin
+        val lonSpan = if (view.crossesAntimeridian) view.east + 360.0 - view.west else view.east - view.west
+        val lonPad = lonSpan * margin
+        val south = (view.south - latPad).coerceAtLeast(-90.0)
+        val north = (view.north + latPad).coerceAtMost(90.0)
+        if (lonSpan + 2 * lonPad >= 360.0) return GeoBox(south, north, -180.0, 180.0)
+
+        var west = view.west - lonPad
+        var east = view.east + lonPad
+        if (west < -180.0) west += 360.0
+        if (east > 180.0) east -= 360.0
+        return GeoBox(south, north, west, east)
+    }
+
+    /**
+     * The [limit] items closest to ([lat], [lon]), nearest first.
+     *
+     * @param query items inside a box, straight from one of the box DAO queries
+     * @param position (`item`) -> its (latitude, longitude)
+     */
+    suspend fun <T> nearest(
+        lat: Double,
+        lon: Double,
+        limit: Int,
+        position: (T) -> Pair<Double, Double>,
+        query: suspend (GeoBox) -> List<T>,
+    ): List<T> {
+        if (limit <= 0) return emptyList()
+        var radius = START_RADIUS_METERS
+        while (true) {
+            val box = boxAround(lat, lon, radius)
+            val ranked = query(box)
+                .map { it to position(it).let { (pLat, pLon) -> haversineMeters(lat, lon, pLat, pLon) } }
+                .sortedBy { it.second }
+            // the box corners reach past the radius, so only trust what is inside the circle
+            val inside = ranked.count { it.second <= radius }
+            if (inside >= limit || box.isWholeEarth) return ranked.take(limit).map { it.first }
+            radius *= 2
+        }
+    }
+
+    /**
+     * [items] sorted by distance from ([lat], [lon]), keeping the existing order between equal
+     * distances. Items without a valid position go last.
+     */
+    fun <T> sortByDistance(
+        items: List<T>,
+        lat: Double,
+        lon: Double,
+        position: (T) -> Pair<Double, Double>,
+    ): List<T> = items
+        .map { item ->
+            val (pLat, pLon) = position(item)
+            item to if (isValid(pLat, pLon)) haversineMeters(lat, lon, pLat, pLon) else Double.MAX_VALUE
+        }
+        .sortedBy { it.second }
+        .map { it.first }
+}
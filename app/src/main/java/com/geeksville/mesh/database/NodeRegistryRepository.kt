@@ -109,6 +109,26 @@ class NodeRegistryRepository @Inject constructor(
         )
     }
 
+    suspend fun applyUpdates(updates: List<NodeRegistryUpdate>) = withContext(dispatchers.io) {
+        nodeRegistryDao.applyUpdates(updates)
+    }
+
+    /**
+     * Archives registry rows beyond [retention]'s capacity; nodes whose num is in [pinned] stay.
+     * @return how many rows were archived
+     */
+    suspend fun enforceRetention(retention: NodeRetention, pinned: Set<Int>): Int = withContext(dispatchers.io) {
+        if (!retention.isOver(nodeRegistryDao.count())) return@withContext 0
+        val rows = nodeRegistryDao.getRetentionRows()
+        val candidates = rows.map {
+            RetentionCandidate(it.nodeId, it.lastSeen, it.hopCount ?: -1, pinned = it.nodeNum in pinned)
+        }
+        val evict = retention.evictions(candidates)
+        if (evict.isEmpty()) return@withContext 0
+        val evicted = evict.toSet()
+        nodeRegistryDao.archive(rows.filter { it.nodeId in evicted }.associate { it.nodeId to it.lastSeen })
+    }
+
     suspend fun searchLongName(
         longName: String
     ) = withContext(dispatchers.io) {
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import com.geeksville.mesh.concurrent.handledLaunch
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A pending change to a [com.geeksville.mesh.database.entity.NodeRegistry] row.
+ * Null fields are left untouched when the change is applied.
+ */
+data class NodeRegistryUpdate(
+    val nodeId: String,
+    val lastSeen: Long,
+    val nodeNum: Int? = null,
+    val longName: String? = null,
+    val shortName: String? = null,
+    val latitudeI: Int? = null,
+    val longitudeI: Int? = null,
+) {
+    val defaultName get() = "Meshtastic ${nodeId.takeLast(n = 4)}"
+
+    /** Combine with a [newer] change to the same node, newer non-null fields win. */
+    fun mergedWith(newer: NodeRegistryUpdate): NodeRegistryUpdate {
+        val newerHasPosition = newer.latitudeI != null || newer.longitudeI != null
+        return NodeRegistryUpdate(
+            nodeId = nodeId,
+            lastSeen = maxOf(lastSeen, newer.lastSeen),
+            nodeNum = newer.nodeNum ?: nodeNum,
+            longName = newer.longName ?: longName,
+            shortName = newer.shortName ?: shortName,
+            latitudeI = if (newerHasPosition) newer.latitudeI else latitudeI,
+            longitudeI = if (newerHasPosition) newer.longitudeI else longitudeI,
+        )
+    }
+}
+
+/**
+ * Write-behind buffer for node registry changes.
+ *
+ * Changes are coalesced per nodeId in memory and handed to [writer] as one batch, either
+ * [flushDelayMs] after the first buffered change or as soon as [maxPending] distinct nodes are
+ * waiting. Batches are written one at a time and in order; a batch that fails to write is merged
+ * back underneath any newer changes so nothing is lost. Call [flush] on shutdown.
+ */
+class NodeRegistryWriteBuffer(
+    private val scope: CoroutineScope,
+    private val flushDelayMs: Long = DEFAULT_FLUSH_DELAY_MS,
+    private val maxPending: Int = DEFAULT_MAX_PENDING,
+    private val writer: suspend (List<NodeRegistryUpdate>) -> Unit,
+) {
+    private val lock = Any()
+    private val writeMutex = Mutex()
+    private var pending = LinkedHashMap<String, NodeRegistryUpdate>()
+    private var timerJob: Job? = null
+
+    private val _submitted = AtomicLong()
+    private val _written = AtomicLong()
+    private val _batches = AtomicLong()
+
+    /** Number of changes submitted so far. */
+    val submittedCount: Long get() = _submitted.get()
+
+    /** Number of coalesced rows handed to the writer so far. */
+    val writtenCount: Long get() = _written.get()
+
+    /** Number of batches (transactions) written so far. */
+    val batchCount: Long get() = _batches.get()
+
+    val pendingCount: Int get() = synchronized(lock) { pending.size }
+
+    fun submit(update: NodeRegistryUpdate) {
+        _submitted.incrementAndGet()
+        val flushNow = synchronized(lock) {
+            pending[update.nodeId] = pending[update.nodeId]?.mergedWith(update) ?: update
+            if (pending.size >= maxPending) {
+                true
+            } else {
+                armTimer()
+                false
+            }
+        }
+        if (flushNow) scope.handledLaunch { flush() }
+    }
+
+    /** Schedule a flush [flushDelayMs] from now unless one is already scheduled. Call with [lock] held. */
+    private fun armTimer() {
+        if (timerJob != null) return
+        timerJob = scope.handledLaunch {
+            delay(flushDelayMs)
+            flush()
+        }
+    }
+
+    /** Write everything buffered so far and wait for it to complete. */
+    suspend fun flush() = writeMutex.withLock {
+        val batch = synchronized(lock) {
+            val drained = pending.values.toList()
+            pending = LinkedHashMap()
+            timerJob = null
+            drained
+        }
+        if (batch.isEmpty()) return@withLock
+
+        try {
+            writer(batch)
+            _written.addAndGet(batch.size.toLong())
+            _batches.incrementAndGet()
+        } catch (ex: Throwable) {
+            requeue(batch)
+            throw ex
+        }
+    }
+
+    private fun requeue(batch: List<NodeRegistryUpdate>) = synchronized(lock) {
+        batch.forEach { older ->
+            pending[older.nodeId] = pending[older.nodeId]?.let { older.mergedWith(it) } ?: older
+        }
+        // flush() cleared the timer, so without this nothing retries until the next submit
+        armTimer()
+    }
+
+    companion object {
+        const val DEFAULT_FLUSH_DELAY_MS = 2_000L
+        const val DEFAULT_MAX_PENDING = 64
+    }
+}
@@ -64,6 +64,9 @@ class NodeRepository @Inject constructor(
     fun getNodeDBbyNum() = nodeInfoDao.nodeDBbyNum()
         .map { map -> map.mapValues { (_, it) -> it.toEntity() } }
 
+    // relay node candidates by the low byte of their num, kept in step with nodeDBbyNum
+    private val relayNodeIndex = RelayNodeIndex()
+
     // A map from nodeNum to Node
     @OptIn(ExperimentalCoroutinesApi::class)
     val nodeDBbyNum: StateFlow<Map<Int, Node>> = nodeInfoDao.nodeDBbyNum()
@@ -72,6 +75,7 @@ class NodeRepository @Inject constructor(
             val ourNodeInfo = it.values.firstOrNull()
             _ourNodeInfo.value = ourNodeInfo
             _myId.value = ourNodeInfo?.user?.id
+            relayNodeIndex.update(it.values, ourNodeInfo?.num)
         }
         .flowOn(dispatchers.io)
         .conflate()
@@ -94,15 +98,24 @@ class NodeRepository @Inject constructor(
                 .setHwModel(MeshProtos.HardwareModel.UNSET)
                 .build()
 
+    /** The node most likely to have relayed a packet with [relayNode] in its relay_node field. */
+    fun getRelayNode(relayNode: Int): RelayCandidate? = relayNodeIndex.lookup(relayNode)
+
+    /** Teach the relay lookup that [nodeNum] relayed a packet with [relayNode], as a traceroute showed. */
+    fun confirmRelayNode(relayNode: Int, nodeNum: Int) = relayNodeIndex.confirm(relayNode, nodeNum)
+
+    val relayNodeIndexStats get() = relayNodeIndex.stats
+
     fun getUserLongNameContains(longName: String): Node? =
         nodeDBbyNum.value.values.find {longName.contains(it.user.longName)}
 
+    /** Nodes matching [filter] in their names, id or number, see [NodeInfoDao.findNodes]. */
     @OptIn(ExperimentalCoroutinesApi::class)
     fun getNodes(
         sort: NodeSortOption = NodeSortOption.LAST_HEARD,
         filter: String = "",
         includeUnknown: Boolean = true,
-    ) = nodeInfoDao.getNodes(
+    ) = nodeInfoDao.findNodes(
         sort = sort.sqlValue,
         filter = filter,
         includeUnknown = includeUnknown,
@@ -112,13 +125,31 @@ class NodeRepository @Inject constructor(
         nodeInfoDao.upsert(node)
     }
 
-    suspend fun installNodeDB(mi: MyNodeEntity, nodes: List<NodeEntity>) = withContext(dispatchers.io) {
-        nodeInfoDao.clearMyNodeInfo()
-        nodeInfoDao.setMyNodeInfo(mi) // set MyNodeEntity first
-        nodeInfoDao.clearNodeInfo()
-        nodeInfoDao.putAll(nodes)
+    suspend fun upsert(nodes: List<NodeEntity>) = withContext(dispatchers.io) {
+        nodeInfoDao.upsert(nodes)
     }
 
+    /** Brings the stored node DB in line with [nodes], writing only what changed. */
+    suspend fun installNodeDB(mi: MyNodeEntity, nodes: List<NodeEntity>): NodeDbDiff = withContext(dispatchers.io) {
+        nodeInfoDao.installNodeDB(mi, nodes)
+    }
+
+    /** Moves the nodes in [heardBefore] to the archive, unless heard since. @return the nums archived */
+    suspend fun archiveNodes(heardBefore: Map<Int, Int>): List<Int> = withContext(dispatchers.io) {
+        nodeInfoDao.archiveNodes(heardBefore)
+    }
+
+    /** Moves [num] back from the archive, or null if it isn't archived. */
+    suspend fun restoreNode(num: Int): NodeEntity? = withContext(dispatchers.io) {
+        nodeInfoDao.restoreNode(num)
+    }
+
+    suspend fun getArchivedNodeNums(): List<Int> = withContext(dispatchers.io) {
+        nodeInfoDao.getArchivedNodeNums()
+    }
+
+    fun getArchivedNodes() = nodeInfoDao.getArchivedNodes().flowOn(dispatchers.io)
+
     suspend fun deleteNode(num: Int) = withContext(dispatchers.io) {
         nodeInfoDao.deleteNode(num)
         nodeInfoDao.deleteMetadata(num)
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import android.content.SharedPreferences
+import java.util.concurrent.atomic.AtomicLong
+
+const val PREF_NODE_CAPACITY = "node-retention-capacity"
+const val PREF_NODE_REGISTRY_CAPACITY = "node-retention-registry-capacity"
+const val PREF_NODE_EVICTION_POLICY = "node-retention-policy"
+
+const val DEFAULT_NODE_CAPACITY = 500
+const val DEFAULT_NODE_REGISTRY_CAPACITY = 5_000
+private const val MIN_CAPACITY = 50
+
+/**
+ * What an eviction policy sees of a node. [lastHeard] is in whatever unit the table keeps, only
+ * its order matters; [hopsAway] is -1 when unknown.
+ */
+data class RetentionCandidate<K>(
+    val key: K,
+    val lastHeard: Long,
+    val hopsAway: Int = -1,
+    val pinned: Boolean = false,
+)
+
+/** Orders unpinned nodes most evictable first. */
+interface NodeEvictionPolicy : Comparator<RetentionCandidate<*>> {
+    val id: String
+
+    companion object {
+        /** The longest unheard go first. */
+        val LEAST_RECENTLY_HEARD: NodeEvictionPolicy = policy("lru", compareBy<RetentionCandidate<*>> { it.lastHeard })
+
+        /** The farthest away go first (unknown hops counting as farthest), then the longest unheard. */
+        val FARTHEST_FIRST: NodeEvictionPolicy = policy(
+            "hops",
+            compareByDescending<RetentionCandidate<*>> { if (it.hopsAway < 0) Int.MAX_VALUE else it.hopsAway }
+                .thenBy { it.lastHeard },
+        )
+
+        val all = listOf(LEAST_RECENTLY_HEARD, FARTHEST_FIRST)
+
+        fun forId(id: String?) = all.firstOrNull { it.id == id } ?: LEAST_RECENTLY_HEARD
+
+        private fun policy(id: String, order: Comparator<RetentionCandidate<*>>) = object : NodeEvictionPolicy {
+            override val id = id
+            override fun compare(a: RetentionCandidate<*>, b: RetentionCandidate<*>) = order.compare(a, b)
+            override fun toString() = id
+        }
+    }
+}
+
+data class NodeRetentionSettings(
+    val capacity: Int = DEFAULT_NODE_CAPACITY,
+    val registryCapacity: Int = DEFAULT_NODE_REGISTRY_CAPACITY,
+    val policy: NodeEvictionPolicy = NodeEvictionPolicy.LEAST_RECENTLY_HEARD,
+)
+
+fun SharedPreferences.getNodeRetentionSettings() = NodeRetentionSettings(
+    capacity = getInt(PREF_NODE_CAPACITY, DEFAULT_NODE_CAPACITY).coerceAtLeast(MIN_CAPACITY),
+    registryCapacity = getInt(PREF_NODE_REGISTRY_CAPACITY, DEFAULT_NODE_REGISTRY_CAPACITY).coerceAtLeast(MIN_CAPACITY),
+    policy = NodeEvictionPolicy.forId(getString(PREF_NODE_EVICTION_POLICY, null)),
+)
+
+data class NodeRetentionStats(
+    val runs: Long,
+    val evicted: Long,
+    val restored: Long,
+)
+
+/**
+ * Keeps a node table at most [capacity] rows. Once over, it picks nodes to move to the archive
+ * by [policy] until the table is down to [lowWater], so eviction runs now and then rather than
+ * for every new node. Pinned nodes (our own, favorites, ignored) are never picked, so a table
+ * of nothing but pinned nodes may stay over capacity.
+ */
+class NodeRetention(
+    val capacity: Int,
+    val policy: NodeEvictionPolicy = NodeEvictionPolicy.LEAST_RECENTLY_HEARD,
+    private val lowWater: Int = capacity - capacity / 10,
+) {
+    private val runs = AtomicLong()
+    private val evicted = AtomicLong()
+    private val restored = AtomicLong()
+
+    fun isOver(size: Int) = size > capacity
+
+    /** Keys to archive, most evictable first; empty while within capacity. */
+    fun <K> evictions(candidates: Collection<RetentionCandidate<K>>): List<K> {
+        if (!isOver(candidates.size)) return emptyList()
+        runs.incrementAndGet()
+        val excess = candidates.size - lowWater
+        return candidates.asSequence()
+            .filterNot { it.pinned }
+            .sortedWith(policy)
+            .take(excess)
+            .map { it.key }
+            .toList()
+            .also { evicted.addAndGet(it.size.toLong()) }
+    }
+
+    fun onRestored() {
+        restored.incrementAndGet()
+    }
+
+    val stats: NodeRetentionStats
+        get() = NodeRetentionStats(runs = runs.get(), evicted = evicted.get(), restored = restored.get())
+}
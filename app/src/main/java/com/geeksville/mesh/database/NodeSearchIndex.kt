@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import androidx.room.RoomDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+/**
+ * Keeps the `nodes_fts` and `node_registry_fts` full-text tables in sync with their
+ * content tables, and turns user filter text into FTS prefix queries.
+ *
+ * The index is maintained by SQL triggers rather than Room's external-content FTS because the
+ * user ID and hex node number are derived from `num` and are not stored as columns.
+ *
+ * FTS only matches the start of a word, which keeps the index to one entry per word. Filters
+ * that only match inside a word are left to the LIKE queries the index sits in front of.
+ */
+object NodeSearchIndex {
+
+    // node nums are unsigned 32-bit values stored in a signed INTEGER column
+    private fun nodeNum(row: String) = "(${row}num & 4294967295)"
+
+    /** The index row of a `nodes` row, read through [row] (`NEW.` in a trigger). */
+    private fun nodeValues(row: String) = "${row}num, ${row}long_name, ${row}short_name, " +
+        "printf('!%08x', ${nodeNum(row)}), CAST(${nodeNum(row)} AS TEXT)"
+
+    private fun registryNodeNum(row: String) =
+        "CASE WHEN ${row}nodeNum IS NULL THEN NULL ELSE CAST((${row}nodeNum & 4294967295) AS TEXT) END"
+
+    private fun registryValues(row: String) = "${row}rowid, ${row}longName, ${row}shortName, ${row}nodeId, " +
+        registryNodeNum(row)
+
+    private const val COLUMNS = "rowid, long_name, short_name, user_id, node_num"
+
+    private val nodeTriggers = listOf(
+        """
+        CREATE TRIGGER IF NOT EXISTS nodes_fts_ai AFTER INSERT ON nodes BEGIN
+            DELETE FROM nodes_fts WHERE rowid = NEW.num;
+            INSERT INTO nodes_fts($COLUMNS) VALUES (${nodeValues("NEW.")});
+        END
+        """,
+        """
+        CREATE TRIGGER IF NOT EXISTS nodes_fts_au AFTER UPDATE OF long_name, short_name ON nodes
+        WHEN OLD.long_name IS NOT NEW.long_name OR OLD.short_name IS NOT NEW.short_name BEGIN
+            UPDATE nodes_fts SET long_name = NEW.long_name, short_name = NEW.short_name
+            WHERE rowid = NEW.num;
+        END
+        """,
+        """
+        CREATE TRIGGER IF NOT EXISTS nodes_fts_ad AFTER DELETE ON nodes BEGIN
+            DELETE FROM nodes_fts WHERE rowid = OLD.num;
+        END
+        """,
+    )
+
+    private val registryTriggers = listOf(
+        """
+        CREATE TRIGGER IF NOT EXISTS node_registry_fts_ai AFTER INSERT ON node_registry BEGIN
+            DELETE FROM node_registry_fts WHERE rowid = NEW.rowid;
+            INSERT INTO node_registry_fts($COLUMNS) VALUES (${registryValues("NEW.")});
+        END
+        """,
+        """
+        CREATE TRIGGER IF NOT EXISTS node_registry_fts_au AFTER UPDATE OF longName, shortName, nodeNum
+        ON node_registry
+        WHEN OLD.longName IS NOT NEW.longName
+            OR OLD.shortName IS NOT NEW.shortName
+            OR OLD.nodeNum IS NOT NEW.nodeNum BEGIN
+            UPDATE node_registry_fts SET long_name = NEW.longName, short_name = NEW.shortName,
+                node_num = ${registryNodeNum("NEW.")}
+            WHERE rowid = NEW.rowid;
+        END
+        """,
+        """
+        CREATE TRIGGER IF NOT EXISTS node_registry_fts_ad AFTER DELETE ON node_registry BEGIN
+            DELETE FROM node_registry_fts WHERE rowid = OLD.rowid;
+        END
+        """,
+    )
+
+    private val REBUILD_NODES = "INSERT INTO nodes_fts($COLUMNS) SELECT ${nodeValues("")} FROM nodes"
+
+    private val REBUILD_REGISTRY =
+        "INSERT INTO node_registry_fts($COLUMNS) SELECT ${registryValues("")} FROM node_registry"
+
+    /**
+     * Installs the sync triggers and rebuilds an index that has drifted from its content table.
+     * Called by the migration that adds the FTS tables, and on every open since the triggers are
+     * not part of the Room schema (a destructive migration or an in-memory database lacks them).
+     */
+    fun install(db: SupportSQLiteDatabase) {
+        (nodeTriggers + registryTriggers).forEach { db.execSQL(it.trimIndent()) }
+        rebuildIfStale(db, "nodes", "nodes_fts", REBUILD_NODES)
+        rebuildIfStale(db, "node_registry", "node_registry_fts", REBUILD_REGISTRY)
+    }
+
+    val callback = object : RoomDatabase.Callback() {
+        override fun onOpen(db: SupportSQLiteDatabase) = install(db)
+    }
+
+    private fun count(db: SupportSQLiteDatabase, table: String): Long =
+        db.query("SELECT COUNT(*) FROM $table").use { c -> if (c.moveToFirst()) c.getLong(0) else 0L }
+
+    private fun rebuildIfStale(db: SupportSQLiteDatabase, table: String, ftsTable: String, rebuild: String) {
+        if (count(db, table) == count(db, ftsTable)) return
+        db.beginTransaction()
+        try {
+            db.execSQL("DELETE FROM $ftsTable")
+            db.execSQL(rebuild.trimIndent())
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    /**
+     * Converts free-form filter text into an FTS4 MATCH expression where every word must
+     * prefix-match some indexed column, or only [column] when given, e.g. `"Base !a1b2"` becomes
+     * `"base* a1b2*"`. Returns an empty string when the filter contains nothing searchable.
+     */
+    fun toMatchQuery(filter: String, column: String? = null): String = filter
+        .lowercase() // lower case keeps AND/OR/NOT/NEAR from being parsed as operators
+        .split(Regex("[^\\p{L}\\p{N}]+"))
+        .filter { it.isNotEmpty() }
+        .joinToString(" ") { if (column == null) "$it*" else "$column:$it*" }
+}
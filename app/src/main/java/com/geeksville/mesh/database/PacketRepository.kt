@@ -17,24 +17,62 @@
 
 package com.geeksville.mesh.database
 
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.coroutineScope
+import com.geeksville.mesh.CoroutineDispatchers
 import com.geeksville.mesh.DataPacket
 import com.geeksville.mesh.MessageStatus
 import com.geeksville.mesh.database.dao.PacketDao
 import com.geeksville.mesh.database.entity.ContactSettings
 import com.geeksville.mesh.database.entity.Packet
+import com.geeksville.mesh.database.entity.NodeEntity
 import com.geeksville.mesh.database.entity.ReactionEntity
+import com.geeksville.mesh.database.entity.WaypointEntity
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import org.meshtastic.proto.Portnums.PortNum
 import javax.inject.Inject
-
-class PacketRepository @Inject constructor(private val packetDaoLazy: dagger.Lazy<PacketDao>) {
+import javax.inject.Singleton
+
+@Singleton
+class PacketRepository @Inject constructor(
+    private val packetDaoLazy: dagger.Lazy<PacketDao>,
+    processLifecycle: Lifecycle,
+    dispatchers: CoroutineDispatchers,
+) {
     private val packetDao by lazy {
         packetDaoLazy.get()
     }
 
-    fun getWaypoints(): Flow<List<Packet>> = packetDao.getAllPackets(PortNum.WAYPOINT_APP_VALUE)
+    private val contactSettingsCache = ContactSettingsCache()
+
+    // one mute write at a time, so the cache and the DB agree on which came last
+    private val muteLock = Mutex()
+
+    init {
+        processLifecycle.coroutineScope.launch(dispatchers.io) {
+            packetDao.getContactSettings().collect { contactSettingsCache.hydrate(it) }
+        }
+    }
+
+    /** Waypoints still valid at [now] (secs since 1970) inside [box], the whole world by default. */
+    fun getWaypoints(
+        now: Int,
+        box: GeoBox = NodeGeoIndex.WHOLE_EARTH,
+    ): Flow<List<WaypointEntity>> = packetDao.getWaypointsInBox(
+        now,
+        NodeEntity.degI(box.south), NodeEntity.degI(box.north),
+        NodeEntity.degI(box.west1), NodeEntity.degI(box.east1),
+        NodeEntity.degI(box.west2), NodeEntity.degI(box.east2),
+    )
+
+    suspend fun purgeExpiredWaypoints(now: Int) = withContext(Dispatchers.IO) {
+        packetDao.purgeExpiredWaypoints(now)
+    }
 
     fun getContacts(): Flow<Map<String, Packet>> = packetDao.getContactKeys()
 
@@ -55,7 +93,12 @@ class PacketRepository @Inject constructor(private val packetDaoLazy: dagger.Laz
     }
 
     suspend fun insert(packet: Packet) = withContext(Dispatchers.IO) {
-        packetDao.insert(packet)
+        val waypoint = if (packet.port_num == PortNum.WAYPOINT_APP_VALUE) packet.data.waypoint else null
+        if (waypoint != null) {
+            packetDao.insertWaypoint(packet, waypoint)
+        } else {
+            packetDao.insert(packet)
+        }
     }
 
     fun getMessagesFrom(contact: String) = packetDao.getMessagesFrom(contact)
@@ -96,12 +139,21 @@ class PacketRepository @Inject constructor(private val packetDaoLazy: dagger.Laz
 
     fun getContactSettings(): Flow<Map<String, ContactSettings>> = packetDao.getContactSettings()
 
-    suspend fun getContactSettings(contact: String) = withContext(Dispatchers.IO) {
-        packetDao.getContactSettings(contact) ?: ContactSettings(contact)
-    }
+    suspend fun getContactSettings(contact: String) = contactSettingsCache.get(contact)
+        ?: withContext(Dispatchers.IO) {
+            packetDao.getContactSettings(contact) ?: ContactSettings(contact)
+        }
 
     suspend fun setMuteUntil(contacts: List<String>, until: Long) = withContext(Dispatchers.IO) {
-        packetDao.setMuteUntil(contacts, until)
+        muteLock.withLock {
+            contactSettingsCache.setMuteUntil(contacts, until)
+            try {
+                packetDao.setMuteUntil(contacts, until)
+            } catch (ex: Exception) {
+                contactSettingsCache.discard(contacts)
+                throw ex
+            }
+        }
     }
 
     suspend fun insertReaction(reaction: ReactionEntity) = withContext(Dispatchers.IO) {
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import com.geeksville.mesh.model.Node
+import org.meshtastic.proto.ConfigProtos.Config.DeviceConfig
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/** A node that may have relayed a packet, with how sure we are of it (0..100). */
+data class RelayCandidate(val node: Node, val confidence: Int)
+
+data class RelayNodeIndexStats(
+    val updates: Long,
+    val bucketsRebuilt: Long,
+    val lookups: Long,
+    val confirmations: Long,
+)
+
+/**
+ * Nodes by the low byte of their num, which is all a packet's `relay_node` field carries.
+ *
+ * [update] is fed the node DB whenever it changes and only re-ranks the suffixes whose nodes
+ * changed, so [lookup] is a read of a precomputed list. Candidates are ranked by a confidence
+ * that favors few hops and little competition for the suffix, and that [confirm] moves towards
+ * whichever node traceroutes showed actually relaying with that suffix.
+ */
+class RelayNodeIndex {
+    private val lock = Any()
+
+    // per suffix, the eligible nodes by num, guarded by lock
+    private val members = Array(SUFFIXES) { HashMap<Int, Node>() }
+
+    // per suffix, confirmation weight by node num, guarded by lock
+    private val confirmed = Array(SUFFIXES) { HashMap<Int, Double>() }
+
+    private var ourNodeNum: Int? = null
+
+    // per suffix, candidates best first
+    private val ranked = AtomicReferenceArray<List<RelayCandidate>?>(SUFFIXES)
+
+    private val updates = AtomicLong()
+    private val bucketsRebuilt = AtomicLong()
+    private val lookups = AtomicLong()
+    private val confirmations = AtomicLong()
+
+    /** Brings the index in line with [nodes], the whole node DB. */
+    fun update(nodes: Collection<Node>, ourNodeNum: Int?) = synchronized(lock) {
+        val dirty = BooleanArray(SUFFIXES)
+        if (ourNodeNum != this.ourNodeNum) {
+            this.ourNodeNum?.let { dirty[suffixOf(it)] = true }
+            ourNodeNum?.let { dirty[suffixOf(it)] = true }
+            this.ourNodeNum = ourNodeNum
+        }
+
+        val present = HashSet<Int>(nodes.size * 2)
+        nodes.forEach { node ->
+            val suffix = suffixOf(node.num)
+            val bucket = members[suffix]
+            if (isEligible(node, ourNodeNum)) {
+                present += node.num
+                if (bucket.put(node.num, node) != node) dirty[suffix] = true
+            } else if (bucket.remove(node.num) != null) {
+                dirty[suffix] = true
+            }
+        }
+        members.forEachIndexed { suffix, bucket ->
+            if (bucket.keys.retainAll(present)) dirty[suffix] = true
+        }
+
+        updates.incrementAndGet()
+        dirty.forEachIndexed { suffix, isDirty -> if (isDirty) rank(suffix) }
+    }
+
+    /** The likeliest relay for [relayNode] (only its low byte is used), or null if no node matches. */
+    fun lookup(relayNode: Int): RelayCandidate? = candidates(relayNode).firstOrNull()
+
+    /** Every node matching [relayNode], best first. */
+    fun candidates(relayNode: Int): List<RelayCandidate> {
+        lookups.incrementAndGet()
+        return ranked.get(suffixOf(relayNode)).orEmpty()
+    }
+
+    /**
+     * Record that [nodeNum] was seen relaying with [relayNode], as a traceroute shows.
+     * Earlier confirmations for the suffix fade, so a suffix whose relay moves on follows it.
+     * @return false if [nodeNum] can't have sent [relayNode]
+     */
+    fun confirm(relayNode: Int, nodeNum: Int): Boolean = synchronized(lock) {
+        val suffix = suffixOf(relayNode)
+        if (suffixOf(nodeNum) != suffix) return false
+
+        val weights = confirmed[suffix]
+        weights.replaceAll { num, weight -> if (num == nodeNum) weight else weight * CONFIRMATION_DECAY }
+        weights.values.removeAll { it < MIN_CONFIRMATION_WEIGHT }
+        weights[nodeNum] = ((weights[nodeNum] ?: 0.0) + 1).coerceAtMost(MAX_CONFIRMATION_WEIGHT)
+
+        rank(suffix)
+        confirmations.incrementAndGet()
+        true
+    }
+
+    private fun rank(suffix: Int) {
+        val nodes = members[suffix].values
+        if (nodes.isEmpty()) {
+            ranked.set(suffix, null)
+            bucketsRebuilt.incrementAndGet()
+            return
+        }
+
+        val weights = confirmed[suffix]
+        val totalWeight = nodes.sumOf { weights[it.num] ?: 0.0 }
+        // how far confirmations override the hop count guess
+        val evidence = (totalWeight / TRUSTED_CONFIRMATION_WEIGHT).coerceAtMost(1.0)
+        val knownHops = nodes.filter { it.hopsAway >= 0 }
+        val avgHops = if (knownHops.isEmpty()) 0.0 else knownHops.sumOf { it.hopsAway }.toDouble() / knownHops.size
+
+        ranked.set(suffix, nodes.map { node ->
+            val guess = hopConfidence(node.hopsAway, avgHops, nodes.size)
+            val share = if (totalWeight > 0) (weights[node.num] ?: 0.0) / totalWeight else 0.0
+            RelayCandidate(node, (guess * (1 - evidence) + 100 * share * evidence).toInt().coerceIn(0, 100))
+        }.sortedWith(BEST_FIRST))
+        bucketsRebuilt.incrementAndGet()
+    }
+
+    val stats: RelayNodeIndexStats
+        get() = RelayNodeIndexStats(
+            updates = updates.get(),
+            bucketsRebuilt = bucketsRebuilt.get(),
+            lookups = lookups.get(),
+            confirmations = confirmations.get(),
+        )
+
+    companion object {
+        const val RELAY_NODE_SUFFIX_MASK = 0xFF
+        private const val SUFFIXES = RELAY_NODE_SUFFIX_MASK + 1
+
+        private const val CONFIRMATION_DECAY = 0.5
+        private const val MIN_CONFIRMATION_WEIGHT = 0.1
+        private const val MAX_CONFIRMATION_WEIGHT = 8.0
+        private const val TRUSTED_CONFIRMATION_WEIGHT = 3.0
+
+        private fun suffixOf(num: Int) = num and RELAY_NODE_SUFFIX_MASK
+
+        private fun isEligible(node: Node, ourNodeNum: Int?) = node.num != ourNodeNum &&
+            node.role != DeviceConfig.Role.CLIENT_MUTE.name && // client mute does not rebroadcast
+            node.lastHeard != 0
+
+        private val BEST_FIRST = compareByDescending<RelayCandidate> { it.confidence }
+            .thenBy { if (it.node.hopsAway < 0) Int.MAX_VALUE else it.node.hopsAway }
+            .thenByDescending { it.node.lastHeard }
+            .thenBy { it.node.num }
+
+        /** The guess from hops alone: fewer than the other candidates, and fewer candidates, is likelier. */
+        @Suppress("MagicNumber")
+        private fun hopConfidence(hopsAway: Int, avgHops: Double, candidates: Int): Int {
+            var confidence = 50 - (candidates - 1) * 5
+            if (hopsAway < 0) return confidence.coerceIn(0, 100)
+
+            confidence += when {
+                hopsAway <= 1 -> 25
+                hopsAway == 2 -> 15
+                hopsAway <= 4 -> 5
+                else -> -10
+            }
+            val hopGap = avgHops - hopsAway
+            confidence += when {
+                hopGap >= 3 -> 20
+                hopGap >= 2 -> 15
+                hopGap >= 1 -> 10
+                else -> 0
+            }
+            return confidence.coerceIn(0, 100)
+        }
+    }
+}
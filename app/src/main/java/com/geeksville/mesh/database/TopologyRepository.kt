@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database
+
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.coroutineScope
+import com.geeksville.mesh.CoroutineDispatchers
+import com.geeksville.mesh.concurrent.handledLaunch
+import com.geeksville.mesh.database.dao.TopologyDao
+import com.geeksville.mesh.database.entity.TopologyEdgeEntity
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.inject.Inject
+import javax.inject.Singleton
+
+private const val FLUSH_DELAY_MS = 10_000L
+
+/**
+ * The mesh topology learned from neighbor info, traceroutes and received packets, kept in
+ * memory for instant queries and written behind to the `topology_edges` table.
+ */
+@Singleton
+class TopologyRepository @Inject constructor(
+    processLifecycle: Lifecycle,
+    private val topologyDao: TopologyDao,
+    private val dispatchers: CoroutineDispatchers,
+) {
+    private val scope = processLifecycle.coroutineScope
+    private val topology = MeshTopology()
+    private val writeMutex = Mutex()
+    private val flushScheduled = AtomicBoolean()
+
+    init {
+        scope.handledLaunch(dispatchers.io) {
+            topology.load(topologyDao.getAll().mapNotNull { it.toLink() })
+            flush()
+        }
+    }
+
+    /** Record links a packet showed; they reach the DB in a batch shortly after. */
+    fun observe(links: List<MeshLink>) {
+        if (links.isEmpty()) return
+        links.forEach { topology.observe(it) }
+        if (flushScheduled.compareAndSet(false, true)) {
+            scope.handledLaunch(dispatchers.io) {
+                delay(FLUSH_DELAY_MS)
+                flushScheduled.set(false)
+                flush()
+            }
+        }
+    }
+
+    /** The mesh as we know it; only rebuilt when links changed or aged since the last call. */
+    fun snapshot(): TopologySnapshot = topology.snapshot()
+
+    val stats: MeshTopologyStats get() = topology.stats
+
+    /** Drop stale links and write everything changed so far. */
+    suspend fun flush() = withContext(dispatchers.io) {
+        writeMutex.withLock {
+            topology.prune()
+            val changes = topology.drainChanges()
+            if (changes.isEmpty) return@withLock
+            try {
+                topologyDao.apply(
+                    upserts = changes.upserts.map(TopologyEdgeEntity::of),
+                    deletes = changes.deletes.map(TopologyEdgeEntity::of),
+                )
+            } catch (ex: Exception) {
+                topology.requeue(changes)
+                throw ex
+            }
+        }
+    }
+}
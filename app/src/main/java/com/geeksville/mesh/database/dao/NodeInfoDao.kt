@@ -24,11 +24,76 @@ import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import androidx.room.Transaction
 import androidx.room.Upsert
+import com.geeksville.mesh.database.NodeDbDiff
+import com.geeksville.mesh.database.NodeGeoIndex
+import com.geeksville.mesh.database.NodeSearchIndex
+import com.geeksville.mesh.database.entity.ArchivedNodeEntity
 import com.geeksville.mesh.database.entity.MetadataEntity
 import com.geeksville.mesh.database.entity.MyNodeEntity
 import com.geeksville.mesh.database.entity.NodeEntity
 import com.geeksville.mesh.database.entity.NodeWithRelations
+import com.geeksville.mesh.model.NodeSortOption
+import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flowOf
+
+// SQLite's default limit on host parameters per statement
+private const val MAX_BIND_ARGS = 999
+
+// shared by the LIKE and full-text node list queries
+private const val NODE_LIST_FILTERS = """(:includeUnknown = 1 OR short_name IS NOT NULL)
+        AND (
+             :sort != 'online' 
+             OR last_heard >= strftime('%s','now') - 7200
+        )"""
+
+private const val NODE_LIST_ORDER = """ORDER BY CASE
+        WHEN num = (SELECT myNodeNum FROM my_node LIMIT 1) THEN 0
+        ELSE 1
+    END,
+    CASE
+        WHEN :sort = 'last_heard' THEN last_heard * -1
+        WHEN :sort = 'alpha' THEN UPPER(long_name) 
+        WHEN :sort = 'hops_away' THEN
+            CASE
+                WHEN hops_away = -1 THEN 999999999
+                ELSE hops_away
+            END
+        WHEN :sort = 'channel' THEN channel
+        WHEN :sort = 'via_mqtt' THEN via_mqtt
+        WHEN :sort = 'is_favorite' THEN -is_favorite
+        WHEN :sort = 'infrastructure' THEN
+            CASE
+                WHEN role IN ('ROUTER', 'ROUTER_LATE', 'CLIENT_BASE', 'REPEATER') THEN 0
+                ELSE 1
+            END
+            
+        ELSE 0
+    END ASC,
+    last_heard DESC"""
+
+/**
+ * The distance sort, which SQL can't do right across the antimeridian and near the poles: our
+ * node first as the query put it, then by great-circle distance from it, nodes without a
+ * position last. Other sorts are left as the query ordered them.
+ */
+private fun Flow<List<NodeWithRelations>>.sortedFor(sort: String, myNode: Flow<MyNodeEntity?>) =
+    if (sort != NodeSortOption.DISTANCE.sqlValue) {
+        this
+    } else {
+        combine(myNode) { list, my ->
+            val ours = list.firstOrNull()?.takeIf { it.node.num == my?.myNodeNum }?.node
+            if (ours == null || !NodeGeoIndex.isValid(ours.latitude, ours.longitude)) {
+                list
+            } else {
+                listOf(list.first()) + NodeGeoIndex.sortByDistance(list.drop(1), ours.latitude, ours.longitude) {
+                    it.node.latitude to it.node.longitude
+                }
+            }
+        }
+    }
 
 @Suppress("TooManyFunctions")
 @Dao
@@ -43,6 +108,9 @@ interface NodeInfoDao {
     @Query("DELETE FROM my_node")
     fun clearMyNodeInfo()
 
+    @Query("SELECT * FROM my_node")
+    fun getMyNodeInfoNow(): List<MyNodeEntity>
+
     @Query(
         """
         SELECT * FROM nodes
@@ -56,76 +124,177 @@ interface NodeInfoDao {
     @Transaction
     fun nodeDBbyNum(): Flow<Map<@MapColumn(columnName = "num") Int, NodeWithRelations>>
 
+    /** The node list in SQL's order, see [getNodes]. */
     @Query(
         """
-    WITH OurNode AS (
-        SELECT latitude, longitude
-        FROM nodes
-        WHERE num = (SELECT myNodeNum FROM my_node LIMIT 1)
-    )
     SELECT * FROM nodes
-    WHERE (:includeUnknown = 1 OR short_name IS NOT NULL)
+    WHERE $NODE_LIST_FILTERS
         AND (:filter = ''
             OR (long_name LIKE '%' || :filter || '%'
             OR short_name LIKE '%' || :filter || '%'
             OR CAST(num AS TEXT) LIKE '%' || :filter || '%'
             OR LOWER(printf('!%08x', num)) LIKE '%' || LOWER(:filter) || '%'
             OR LOWER(printf('%08x', num)) LIKE '%' || LOWER(REPLACE(:filter, '!', '')) || '%'))
-        AND (
-             :sort != 'online' 
-             OR last_heard >= strftime('%s','now') - 7200
-        )
-    ORDER BY CASE
-        WHEN num = (SELECT myNodeNum FROM my_node LIMIT 1) THEN 0
-        ELSE 1
-    END,
-    CASE
-        WHEN :sort = 'last_heard' THEN last_heard * -1
-        WHEN :sort = 'alpha' THEN UPPER(long_name) 
-        WHEN :sort = 'distance' THEN
-            CASE
-                WHEN latitude IS NULL OR longitude IS NULL OR
-                    (latitude = 0.0 AND longitude = 0.0) THEN 999999999
-                ELSE
-                    (latitude - (SELECT latitude FROM OurNode)) *
-                    (latitude - (SELECT latitude FROM OurNode)) +
-                    (longitude - (SELECT longitude FROM OurNode)) *
-                    (longitude - (SELECT longitude FROM OurNode))
-            END
-        WHEN :sort = 'hops_away' THEN
-            CASE
-                WHEN hops_away = -1 THEN 999999999
-                ELSE hops_away
-            END
-        WHEN :sort = 'channel' THEN channel
-        WHEN :sort = 'via_mqtt' THEN via_mqtt
-        WHEN :sort = 'is_favorite' THEN -is_favorite
-        WHEN :sort = 'infrastructure' THEN
-            CASE
-                WHEN role IN ('ROUTER', 'ROUTER_LATE', 'CLIENT_BASE', 'REPEATER') THEN 0
-                ELSE 1
-            END
-            
-        ELSE 0
-    END ASC,
-    last_heard DESC
+    $NODE_LIST_ORDER
     """
     )
     @Transaction
-    fun getNodes(
+    fun getNodeList(
         sort: String,
         filter: String,
         includeUnknown: Boolean,
     ): Flow<List<NodeWithRelations>>
 
+    @Query(
+        """
+    SELECT * FROM nodes
+    WHERE $NODE_LIST_FILTERS
+        AND num IN (SELECT rowid FROM nodes_fts WHERE nodes_fts MATCH :match)
+    $NODE_LIST_ORDER
+    """
+    )
+    @Transaction
+    fun searchNodeList(
+        sort: String,
+        match: String,
+        includeUnknown: Boolean,
+    ): Flow<List<NodeWithRelations>>
+
+    /** The node list, nodes matching [filter] anywhere in their names, id or number. */
+    fun getNodes(
+        sort: String,
+        filter: String,
+        includeUnknown: Boolean,
+    ): Flow<List<NodeWithRelations>> = getNodeList(sort, filter, includeUnknown).sortedFor(sort, getMyNodeInfo())
+
+    /**
+     * [getNodes] filtered through the `nodes_fts` index instead of a LIKE scan of every row.
+     *
+     * @param match an FTS4 MATCH expression from [com.geeksville.mesh.database.NodeSearchIndex.toMatchQuery],
+     * which must not be empty
+     */
+    fun searchNodes(
+        sort: String,
+        match: String,
+        includeUnknown: Boolean,
+    ): Flow<List<NodeWithRelations>> = searchNodeList(sort, match, includeUnknown).sortedFor(sort, getMyNodeInfo())
+
+    /**
+     * The node list filtered by [filter], through the `nodes_fts` index when some node has a word
+     * starting with each word of the filter. Otherwise, for a filter that only matches inside a
+     * word or has nothing to index, such as emoji, it falls back to the substring scan of [getNodes].
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    fun findNodes(
+        sort: String,
+        filter: String,
+        includeUnknown: Boolean,
+    ): Flow<List<NodeWithRelations>> {
+        val match = NodeSearchIndex.toMatchQuery(filter)
+        if (match.isEmpty()) return getNodes(sort, filter, includeUnknown)
+        return searchNodes(sort, match, includeUnknown).flatMapLatest { hits ->
+            if (hits.isEmpty()) getNodes(sort, filter, includeUnknown) else flowOf(hits)
+        }
+    }
+
+    /** Nodes with a position inside a [com.geeksville.mesh.database.GeoBox], via the (latitude, longitude) index. */
+    @Query(
+        """
+        SELECT * FROM nodes
+        WHERE latitude BETWEEN :south AND :north
+            AND (longitude BETWEEN :west1 AND :east1 OR longitude BETWEEN :west2 AND :east2)
+            AND NOT (latitude = 0.0 AND longitude = 0.0)
+        """
+    )
+    suspend fun getNodesInBox(
+        south: Double,
+        north: Double,
+        west1: Double,
+        east1: Double,
+        west2: Double,
+        east2: Double,
+    ): List<NodeEntity>
+
     @Upsert
     fun upsert(node: NodeEntity)
 
+    @Upsert
+    fun upsert(nodes: List<NodeEntity>)
+
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun putAll(nodes: List<NodeEntity>)
 
     @Query("DELETE FROM nodes")
     fun clearNodeInfo()
+
+    @Query("SELECT * FROM nodes")
+    fun getAllNodes(): List<NodeEntity>
+
+    @Query("DELETE FROM nodes WHERE num IN (:nums)")
+    fun deleteNodes(nums: List<Int>)
+
+    /**
+     * Replaces the node DB with [nodes] and our node with [mi], writing only the rows that differ,
+     * in one transaction so observers see a single change (or none) instead of an empty table.
+     * Nodes the radio sent back are taken out of the archive, missing ones are archived.
+     */
+    @Transaction
+    fun installNodeDB(mi: MyNodeEntity, nodes: List<NodeEntity>): NodeDbDiff {
+        if (getMyNodeInfoNow() != listOf(mi)) {
+            clearMyNodeInfo()
+            setMyNodeInfo(mi) // set MyNodeEntity first
+        }
+        val diff = NodeDbDiff.of(getAllNodes().associateBy { it.num }, nodes)
+        if (diff.deleted.isNotEmpty()) archiveNodes(diff.deleted.associateWith { Int.MAX_VALUE })
+        if (diff.upserts.isNotEmpty()) putAll(diff.upserts)
+        diff.inserted.map { it.num }.chunked(MAX_BIND_ARGS).forEach { deleteArchivedNodes(it) }
+        return diff
+    }
+
+    @Query("SELECT * FROM nodes WHERE num IN (:nums)")
+    fun getNodesByNum(nums: List<Int>): List<NodeEntity>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun putArchived(nodes: List<ArchivedNodeEntity>)
+
+    @Query("SELECT * FROM nodes_archive WHERE num = :num")
+    fun getArchivedNode(num: Int): ArchivedNodeEntity?
+
+    @Query("SELECT num FROM nodes_archive")
+    suspend fun getArchivedNodeNums(): List<Int>
+
+    @Query("SELECT * FROM nodes_archive ORDER BY last_heard DESC")
+    fun getArchivedNodes(): Flow<List<ArchivedNodeEntity>>
+
+    @Query("DELETE FROM nodes_archive WHERE num = :num")
+    fun deleteArchivedNode(num: Int)
+
+    @Query("DELETE FROM nodes_archive WHERE num IN (:nums)")
+    fun deleteArchivedNodes(nums: List<Int>)
+
+    /**
+     * Moves the nodes keyed in [heardBefore] from `nodes` to `nodes_archive`, skipping any heard
+     * after its own last heard time in the meantime.
+     * @return the nums actually archived
+     */
+    @Transaction
+    fun archiveNodes(heardBefore: Map<Int, Int>): List<Int> =
+        heardBefore.keys.chunked(MAX_BIND_ARGS).flatMap { chunk ->
+            val nodes = getNodesByNum(chunk).filter { it.lastHeard <= heardBefore.getValue(it.num) }
+            val now = System.currentTimeMillis()
+            putArchived(nodes.map { ArchivedNodeEntity(it, archivedAt = now) })
+            nodes.map { it.num }.also { if (it.isNotEmpty()) deleteNodes(it) }
+        }
+
+    /** Moves [num] back from the archive, or null if it isn't archived. */
+    @Transaction
+    fun restoreNode(num: Int): NodeEntity? {
+        val archived = getArchivedNode(num) ?: return null
+        upsert(archived.node)
+        deleteArchivedNode(num)
+        return archived.node
+    }
+
     @Query("DELETE FROM nodes WHERE num != :nyNodeNum")
     fun clearNodeInfoExceptOurs(nyNodeNum: Int)
 
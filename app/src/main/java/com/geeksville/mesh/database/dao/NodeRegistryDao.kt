@@ -1,11 +1,21 @@
 package com.geeksville.mesh.database.dao
 
 import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.Transaction
 import androidx.room.Upsert
+import com.geeksville.mesh.database.NodeRegistryUpdate
+import com.geeksville.mesh.database.NodeSearchIndex
+import com.geeksville.mesh.database.entity.ArchivedNodeRegistry
 import com.geeksville.mesh.database.entity.NodeRegistry
+import com.geeksville.mesh.database.entity.NodeRegistryRetentionRow
 import kotlinx.coroutines.flow.Flow
 
+// SQLite's default limit on host parameters per statement
+private const val MAX_REGISTRY_BIND_ARGS = 999
+
 @Dao
 interface NodeRegistryDao {
 
@@ -124,9 +134,178 @@ interface NodeRegistryDao {
         lastSeen: Long,
     )
 
+    @Query("""
+    UPDATE node_registry
+    SET
+        nodeNum = COALESCE(:nodeNum, nodeNum),
+        longName = COALESCE(:longName, longName),
+        shortName = COALESCE(:shortName, shortName),
+        latitudeI = COALESCE(:latitudeI, latitudeI),
+        longitudeI = COALESCE(:longitudeI, longitudeI),
+        lastSeen = :lastSeen
+    WHERE nodeId = :nodeId
+    """
+    )
+    suspend fun mergeUpdate(
+        nodeId: String,
+        nodeNum: Int?,
+        longName: String?,
+        shortName: String?,
+        latitudeI: Int?,
+        longitudeI: Int?,
+        lastSeen: Long,
+    ): Int
+
+    @Query("""
+    INSERT INTO node_registry (
+        nodeId,
+        nodeNum,
+        longName,
+        shortName,
+        defaultName,
+        latitudeI,
+        longitudeI,
+        lastSeen
+    )
+    VALUES (
+        :nodeId,
+        :nodeNum,
+        :longName,
+        :shortName,
+        :defaultName,
+        :latitudeI,
+        :longitudeI,
+        :lastSeen)
+    """
+    )
+    suspend fun insertMerged(
+        nodeId: String,
+        nodeNum: Int?,
+        longName: String?,
+        shortName: String?,
+        defaultName: String,
+        latitudeI: Int?,
+        longitudeI: Int?,
+        lastSeen: Long,
+    )
+
+    /**
+     * Apply a batch of coalesced changes in a single transaction, inserting rows for nodes
+     * we have not seen before. Archived nodes are restored first, so they come back with
+     * everything we knew about them.
+     */
+    @Transaction
+    suspend fun applyUpdates(updates: List<NodeRegistryUpdate>) {
+        suspend fun merge(u: NodeRegistryUpdate) = mergeUpdate(
+            nodeId = u.nodeId,
+            nodeNum = u.nodeNum,
+            longName = u.longName,
+            shortName = u.shortName,
+            latitudeI = u.latitudeI,
+            longitudeI = u.longitudeI,
+            lastSeen = u.lastSeen,
+        )
+
+        updates.forEach { u ->
+            var updated = merge(u)
+            if (updated == 0 && restore(u.nodeId)) updated = merge(u)
+            if (updated == 0) {
+                insertMerged(
+                    nodeId = u.nodeId,
+                    nodeNum = u.nodeNum,
+                    longName = u.longName ?: u.defaultName,
+                    shortName = u.shortName ?: u.nodeId.takeLast(n = 4),
+                    defaultName = u.defaultName,
+                    latitudeI = u.latitudeI,
+                    longitudeI = u.longitudeI,
+                    lastSeen = u.lastSeen,
+                )
+            }
+        }
+    }
+
+    @Query("SELECT COUNT(*) FROM node_registry")
+    suspend fun count(): Int
+
+    @Query("SELECT nodeId, nodeNum, lastSeen, hopCount FROM node_registry")
+    suspend fun getRetentionRows(): List<NodeRegistryRetentionRow>
+
+    @Query("SELECT * FROM node_registry WHERE nodeId IN (:nodeIds)")
+    suspend fun getByIds(nodeIds: List<String>): List<NodeRegistry>
+
+    @Query("DELETE FROM node_registry WHERE nodeId IN (:nodeIds)")
+    suspend fun deleteByIds(nodeIds: List<String>)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun putArchived(nodes: List<ArchivedNodeRegistry>)
+
+    @Query("SELECT * FROM node_registry_archive WHERE nodeId = :nodeId")
+    suspend fun getArchived(nodeId: String): ArchivedNodeRegistry?
+
+    @Query("DELETE FROM node_registry_archive WHERE nodeId = :nodeId")
+    suspend fun deleteArchived(nodeId: String)
+
+    /**
+     * Moves the rows keyed in [seenBefore] to `node_registry_archive`, skipping any seen after
+     * its own last seen time in the meantime.
+     * @return how many were archived
+     */
+    @Transaction
+    suspend fun archive(seenBefore: Map<String, Long>): Int {
+        var archived = 0
+        seenBefore.keys.chunked(MAX_REGISTRY_BIND_ARGS).forEach { chunk ->
+            val nodes = getByIds(chunk).filter { it.lastSeen <= seenBefore.getValue(it.nodeId) }
+            if (nodes.isEmpty()) return@forEach
+            val now = System.currentTimeMillis()
+            putArchived(nodes.map { ArchivedNodeRegistry(it, archivedAt = now) })
+            deleteByIds(nodes.map { it.nodeId })
+            archived += nodes.size
+        }
+        return archived
+    }
+
+    /** Moves [nodeId] back from the archive. @return false if it isn't archived */
+    @Transaction
+    suspend fun restore(nodeId: String): Boolean {
+        val archived = getArchived(nodeId) ?: return false
+        upsert(archived.node)
+        deleteArchived(nodeId)
+        return true
+    }
+
+    /** Nodes with a position inside a box, bounds in 1e-7 degrees as stored. */
+    @Query("""
+        SELECT * FROM node_registry
+        WHERE latitudeI BETWEEN :south AND :north
+            AND (longitudeI BETWEEN :west1 AND :east1 OR longitudeI BETWEEN :west2 AND :east2)
+            AND NOT (latitudeI = 0 AND longitudeI = 0)
+    """)
+    suspend fun getInBox(south: Int, north: Int, west1: Int, east1: Int, west2: Int, east2: Int): List<NodeRegistry>
+
+    /**
+     * @param query an FTS4 MATCH expression over `node_registry_fts`
+     * (see [NodeSearchIndex])
+     */
+    @Query("""
+        SELECT * FROM node_registry
+        WHERE rowid IN (SELECT rowid FROM node_registry_fts WHERE node_registry_fts MATCH :query)
+        ORDER BY lastSeen DESC
+    """)
+    suspend fun search(query: String): List<NodeRegistry>
+
     @Query("""
         SELECT * FROM node_registry
-        WHERE longName like :longName ORDER BY lastSeen DESC
+        WHERE longName LIKE '%' || :longName || '%' ORDER BY lastSeen DESC
     """)
-    suspend fun searchLongName(longName: String?): List<NodeRegistry>
+    suspend fun searchLongNameContaining(longName: String): List<NodeRegistry>
+
+    /**
+     * Nodes whose long name has words starting with each word of [longName], through the
+     * `node_registry_fts` index, falling back to a substring scan when none do.
+     */
+    suspend fun searchLongName(longName: String): List<NodeRegistry> {
+        val query = NodeSearchIndex.toMatchQuery(longName, column = "long_name")
+        val hits = if (query.isEmpty()) emptyList() else search(query)
+        return hits.ifEmpty { searchLongNameContaining(longName) }
+    }
 }
@@ -29,7 +29,9 @@ import com.geeksville.mesh.database.entity.ContactSettings
 import com.geeksville.mesh.database.entity.Packet
 import com.geeksville.mesh.database.entity.PacketEntity
 import com.geeksville.mesh.database.entity.ReactionEntity
+import com.geeksville.mesh.database.entity.WaypointEntity
 import kotlinx.coroutines.flow.Flow
+import org.meshtastic.proto.MeshProtos
 
 @Dao
 interface PacketDao {
@@ -82,8 +84,9 @@ interface PacketDao {
     )
     suspend fun clearUnreadCount(contact: String, timestamp: Long)
 
+    /** @return the uuid of the stored row */
     @Upsert
-    suspend fun insert(packet: Packet)
+    suspend fun insert(packet: Packet): Long
 
     @Query(
         """
@@ -178,20 +181,75 @@ interface PacketDao {
     suspend fun getQueuedPackets(): List<DataPacket>? =
         getDataPackets().filter { it.status == MessageStatus.QUEUED }
 
+    @Query("SELECT * FROM waypoint WHERE id = :id")
+    suspend fun getWaypoint(id: Int): WaypointEntity?
+
+    @Upsert
+    suspend fun upsert(waypoint: WaypointEntity)
+
+    /**
+     * Store a waypoint packet and index it in `waypoint`, replacing the packet of any older
+     * version of the same waypoint. Returns the uuid of the stored packet.
+     */
+    @Transaction
+    suspend fun insertWaypoint(packet: Packet, waypoint: MeshProtos.Waypoint): Long {
+        val previous = getWaypoint(waypoint.id)
+        val uuid = insert(packet)
+        previous?.let { deletePackets(listOf(it.packetUuid)) }
+        upsert(WaypointEntity.from(waypoint, packet, uuid))
+        return uuid
+    }
+
+    /**
+     * Waypoints still valid at [now] (secs since 1970) inside a [com.geeksville.mesh.database.GeoBox],
+     * in 1e-7 degrees as stored.
+     */
     @Query(
         """
-    SELECT * FROM packet
-    WHERE (myNodeNum = 0 OR myNodeNum = (SELECT myNodeNum FROM my_node))
-        AND port_num = 8
+    SELECT * FROM waypoint
+    WHERE (my_node_num = 0 OR my_node_num = (SELECT myNodeNum FROM my_node))
+        AND (expire = 0 OR expire > :now)
+        AND latitude_i BETWEEN :south AND :north
+        AND (longitude_i BETWEEN :west1 AND :east1 OR longitude_i BETWEEN :west2 AND :east2)
     ORDER BY received_time ASC
     """
     )
-    suspend fun getAllWaypoints(): List<Packet>
+    fun getWaypointsInBox(
+        now: Int,
+        south: Int,
+        north: Int,
+        west1: Int,
+        east1: Int,
+        west2: Int,
+        east2: Int,
+    ): Flow<List<WaypointEntity>>
+
+    @Query("DELETE FROM packet WHERE uuid IN (SELECT packet_uuid FROM waypoint WHERE id = :id)")
+    suspend fun deleteWaypointPackets(id: Int)
+
+    @Query("DELETE FROM waypoint WHERE id = :id")
+    suspend fun deleteWaypointEntry(id: Int)
 
     @Transaction
     suspend fun deleteWaypoint(id: Int) {
-        val uuidList = getAllWaypoints().filter { it.data.waypoint?.id == id }.map { it.uuid }
-        deleteMessages(uuidList)
+        deleteWaypointPackets(id)
+        deleteWaypointEntry(id)
+    }
+
+    @Query("DELETE FROM packet WHERE uuid IN (SELECT packet_uuid FROM waypoint WHERE expire > 0 AND expire <= :now)")
+    suspend fun deleteExpiredWaypointPackets(now: Int)
+
+    @Query("DELETE FROM waypoint WHERE expire > 0 AND expire <= :now")
+    suspend fun deleteExpiredWaypointEntries(now: Int): Int
+
+    /**
+     * Drop waypoints whose expiry is at or before [now] (secs since 1970), returns how many.
+     * An expiry of 0 means the waypoint never expires.
+     */
+    @Transaction
+    suspend fun purgeExpiredWaypoints(now: Int): Int {
+        deleteExpiredWaypointPackets(now)
+        return deleteExpiredWaypointEntries(now)
     }
 
     @Query("SELECT * FROM contact_settings")
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database.dao
+
+import androidx.room.Dao
+import androidx.room.Delete
+import androidx.room.Query
+import androidx.room.Transaction
+import androidx.room.Upsert
+import com.geeksville.mesh.database.entity.TopologyEdgeEntity
+
+@Dao
+interface TopologyDao {
+
+    @Query("SELECT * FROM topology_edges")
+    fun getAll(): List<TopologyEdgeEntity>
+
+    @Upsert
+    fun upsert(edges: List<TopologyEdgeEntity>)
+
+    @Delete
+    fun delete(edges: List<TopologyEdgeEntity>)
+
+    @Query("DELETE FROM topology_edges")
+    fun deleteAll()
+
+    /** Writes one batch of changes from [com.geeksville.mesh.database.MeshTopology.drainChanges]. */
+    @Transaction
+    fun apply(upserts: List<TopologyEdgeEntity>, deletes: List<TopologyEdgeEntity>) {
+        if (deletes.isNotEmpty()) delete(deletes)
+        if (upserts.isNotEmpty()) upsert(upserts)
+    }
+}
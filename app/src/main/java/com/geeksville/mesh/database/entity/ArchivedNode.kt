@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database.entity
+
+import androidx.room.ColumnInfo
+import androidx.room.Embedded
+import androidx.room.Entity
+
+/**
+ * A node moved out of `nodes` by [com.geeksville.mesh.database.NodeRetention]. Nothing on a hot
+ * path reads this table; a node comes back when it is heard again.
+ */
+@Entity(tableName = "nodes_archive", primaryKeys = ["num"])
+data class ArchivedNodeEntity(
+    @Embedded val node: NodeEntity,
+    @ColumnInfo(name = "archived_at") val archivedAt: Long = System.currentTimeMillis(),
+)
+
+/** A [NodeRegistry] row moved out of `node_registry` by [com.geeksville.mesh.database.NodeRetention]. */
+@Entity(tableName = "node_registry_archive", primaryKeys = ["nodeId"])
+data class ArchivedNodeRegistry(
+    @Embedded val node: NodeRegistry,
+    val archivedAt: Long = System.currentTimeMillis(),
+)
+
+/** What registry retention needs of a `node_registry` row. */
+data class NodeRegistryRetentionRow(
+    val nodeId: String,
+    val nodeNum: Int?,
+    val lastSeen: Long,
+    val hopCount: Int?,
+)
@@ -100,7 +100,12 @@ data class MetadataEntity(
 )
 
 @Suppress("MagicNumber")
-@Entity(tableName = "nodes")
+@Entity(
+    tableName = "nodes",
+    indices = [
+        Index(value = ["latitude", "longitude"]),
+    ],
+)
 data class NodeEntity(
     @PrimaryKey(autoGenerate = false)
     val num: Int, // This is immutable, and used as a key
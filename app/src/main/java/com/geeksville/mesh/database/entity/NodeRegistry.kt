@@ -8,7 +8,8 @@ import androidx.room.PrimaryKey
     tableName = "node_registry",
     indices = [
         Index(value = ["nodeId"]),
-        Index(value = ["lastSeen"])
+        Index(value = ["lastSeen"]),
+        Index(value = ["latitudeI", "longitudeI"]),
     ]
 )
 data class NodeRegistry(
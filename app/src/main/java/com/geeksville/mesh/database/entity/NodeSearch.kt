@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database.entity
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+import androidx.room.PrimaryKey
+
+/**
+ * Full-text search index over [NodeEntity], keyed by node num (rowid).
+ * Rows are maintained by the triggers in [com.geeksville.mesh.database.NodeSearchIndex].
+ */
+@Fts4(tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity(tableName = "nodes_fts")
+data class NodeSearchEntity(
+    @PrimaryKey @ColumnInfo(name = "rowid") val num: Int,
+    @ColumnInfo(name = "long_name") val longName: String?,
+    @ColumnInfo(name = "short_name") val shortName: String?,
+    @ColumnInfo(name = "user_id") val userId: String?, // !hex node id
+    @ColumnInfo(name = "node_num") val nodeNum: String?, // decimal node num
+)
+
+/**
+ * Full-text search index over [NodeRegistry], keyed by the registry table rowid.
+ * Rows are maintained by the triggers in [com.geeksville.mesh.database.NodeSearchIndex].
+ */
+@Fts4(tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity(tableName = "node_registry_fts")
+data class NodeRegistrySearchEntity(
+    @PrimaryKey @ColumnInfo(name = "rowid") val rowId: Long,
+    @ColumnInfo(name = "long_name") val longName: String?,
+    @ColumnInfo(name = "short_name") val shortName: String?,
+    @ColumnInfo(name = "user_id") val userId: String?,
+    @ColumnInfo(name = "node_num") val nodeNum: String?,
+)
@@ -27,7 +27,6 @@ import com.geeksville.mesh.DataPacket
 import com.geeksville.mesh.model.Message
 import com.geeksville.mesh.model.Node
 import com.geeksville.mesh.util.getShortDateTime
-import org.meshtastic.proto.ConfigProtos
 import org.meshtastic.proto.MeshProtos.User
 
 data class PacketEntity(
@@ -74,58 +73,7 @@ data class Packet(
     @ColumnInfo(name = "packet_id", defaultValue = "0") val packetId: Int = 0,
     @ColumnInfo(name = "routing_error", defaultValue = "-1") var routingError: Int = -1,
     @ColumnInfo(name = "reply_id", defaultValue = "0") val replyId: Int = 0,
-) {
-    companion object {
-        const val RELAY_NODE_SUFFIX_MASK = 0xFF
-
-        fun getRelayNode(
-            relayNodeId: Int,
-            nodes: List<Node>,
-            ourNodeNum: Int?
-        ): Pair<Node?, Int> {
-
-            val relayNodeIdSuffix = relayNodeId and RELAY_NODE_SUFFIX_MASK
-
-            val candidates = nodes.filter {
-                it.num != ourNodeNum &&
-                        ConfigProtos.Config.DeviceConfig.Role.CLIENT_MUTE.name != it.role && //client mute does not rebroadcast
-                        it.lastHeard != 0 &&
-                        (it.num and RELAY_NODE_SUFFIX_MASK) == relayNodeIdSuffix
-            }
-
-            if (candidates.isEmpty()) return null to 0
-
-            val best = candidates.minByOrNull { it.hopsAway } ?: return null to 0
-            var confidence = 50
-
-            val collisionCount = candidates.size
-            val bestHop = best.hopsAway
-            val avgHop = candidates.map { it.hopsAway }.average()
-            val hopGap = avgHop - bestHop
-
-            confidence -= (collisionCount - 1) * 5
-
-            confidence += when {
-                bestHop <= 1 -> 25
-                bestHop == 2 -> 15
-                bestHop <= 4 -> 5
-                else -> -10
-            }
-
-            confidence += when {
-                hopGap >= 3 -> 20
-                hopGap >= 2 -> 15
-                hopGap >= 1 -> 10
-                else -> 0
-            }
-
-            confidence = confidence.coerceIn(0, 100)
-
-            return best to confidence
-        }
-    }
-}
-
+)
 
 @Entity(tableName = "contact_settings")
 data class ContactSettings(
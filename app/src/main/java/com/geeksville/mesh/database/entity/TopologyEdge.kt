@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database.entity
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+import com.geeksville.mesh.database.MeshLink
+import com.geeksville.mesh.database.TopologySource
+
+/** A [MeshLink] as [com.geeksville.mesh.database.TopologyRepository] keeps it between sessions. */
+@Entity(
+    tableName = "topology_edges",
+    primaryKeys = ["from_num", "to_num", "source"],
+    indices = [Index(value = ["to_num"])],
+)
+data class TopologyEdgeEntity(
+    @ColumnInfo(name = "from_num") val fromNum: Int,
+    @ColumnInfo(name = "to_num") val toNum: Int,
+    val source: String,
+    val snr: Float?,
+    @ColumnInfo(name = "last_seen") val lastSeen: Long,
+    val observations: Int,
+) {
+    /** Null for a source this build doesn't know. */
+    fun toLink(): MeshLink? = TopologySource.entries.firstOrNull { it.name == source }?.let {
+        MeshLink(fromNum, toNum, it, snr, lastSeen, observations)
+    }
+
+    companion object {
+        fun of(link: MeshLink) = TopologyEdgeEntity(
+            fromNum = link.from,
+            toNum = link.to,
+            source = link.source.name,
+            snr = link.snr,
+            lastSeen = link.lastSeen,
+            observations = link.observations,
+        )
+    }
+}
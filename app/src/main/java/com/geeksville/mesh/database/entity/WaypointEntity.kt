@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.database.entity
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+import org.meshtastic.proto.MeshProtos
+
+/**
+ * The latest version of each waypoint, decoded once when its packet is stored so the map can
+ * query by area and expiry without parsing protobufs. [packetUuid] is the `packet` row it came
+ * from, which is replaced along with this row when a newer version arrives.
+ */
+@Entity(
+    tableName = "waypoint",
+    indices = [
+        Index(value = ["latitude_i", "longitude_i"]),
+        Index(value = ["expire"]),
+    ]
+)
+data class WaypointEntity(
+    @PrimaryKey val id: Int,
+    @ColumnInfo(name = "my_node_num", defaultValue = "0") val myNodeNum: Int,
+    val name: String,
+    val description: String,
+    @ColumnInfo(name = "latitude_i") val latitudeI: Int,
+    @ColumnInfo(name = "longitude_i") val longitudeI: Int,
+    val expire: Int, // secs since 1970, the waypoint is gone once this has passed, 0 for never
+    @ColumnInfo(name = "locked_to") val lockedTo: Int,
+    val icon: Int,
+    @ColumnInfo(name = "from_id") val from: String?,
+    @ColumnInfo(name = "received_time") val receivedTime: Long,
+    @ColumnInfo(name = "packet_uuid") val packetUuid: Long,
+) {
+    val latitude: Double get() = latitudeI * 1e-7
+    val longitude: Double get() = longitudeI * 1e-7
+
+    fun toProto(): MeshProtos.Waypoint = MeshProtos.Waypoint.newBuilder()
+        .setId(id)
+        .setName(name)
+        .setDescription(description)
+        .setLatitudeI(latitudeI)
+        .setLongitudeI(longitudeI)
+        .setExpire(expire)
+        .setLockedTo(lockedTo)
+        .setIcon(icon)
+        .build()
+
+    companion object {
+        fun from(waypoint: MeshProtos.Waypoint, packet: Packet, packetUuid: Long) = WaypointEntity(
+            id = waypoint.id,
+            myNodeNum = packet.myNodeNum,
+            name = waypoint.name,
+            description = waypoint.description,
+            latitudeI = waypoint.latitudeI,
+            longitudeI = waypoint.longitudeI,
+            expire = waypoint.expire,
+            lockedTo = waypoint.lockedTo,
+            icon = waypoint.icon,
+            from = packet.data.from,
+            receivedTime = packet.received_time,
+            packetUuid = packetUuid,
+        )
+    }
+}
@@ -22,10 +22,13 @@ import androidx.lifecycle.viewModelScope
 import com.geeksville.mesh.android.Logging
 import com.geeksville.mesh.database.MeshLogRepository
 import com.geeksville.mesh.database.entity.MeshLog
+import com.geeksville.mesh.repository.radio.RadioInterfaceService
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import javax.inject.Inject
@@ -33,10 +36,14 @@ import javax.inject.Inject
 @HiltViewModel
 class DebugViewModel @Inject constructor(
     private val meshLogRepository: MeshLogRepository,
+    private val radioInterfaceService: RadioInterfaceService,
 ) : ViewModel(), Logging {
     val meshLog: StateFlow<List<MeshLog>> = meshLogRepository.getAllLogs()
         .stateIn(viewModelScope, SharingStarted.WhileSubscribed(5_000), emptyList())
 
+    private val _captureEnabled = MutableStateFlow(radioInterfaceService.isCaptureEnabled)
+    val captureEnabled: StateFlow<Boolean> = _captureEnabled.asStateFlow()
+
     init {
         debug("DebugViewModel created")
     }
@@ -49,4 +56,9 @@ class DebugViewModel @Inject constructor(
     fun deleteAllLogs() = viewModelScope.launch(Dispatchers.IO) {
         meshLogRepository.deleteAll()
     }
+
+    fun setCaptureEnabled(enabled: Boolean) {
+        _captureEnabled.value = enabled
+        viewModelScope.launch(Dispatchers.IO) { radioInterfaceService.setCaptureEnabled(enabled) }
+    }
 }
@@ -37,6 +37,7 @@ import com.geeksville.mesh.repository.datastore.RadioConfigRepository
 import com.geeksville.mesh.ui.Route
 import com.geeksville.mesh.ui.Route.Telemetry
 import com.geeksville.mesh.ui.map.MAP_STYLE_ID
+import com.geeksville.mesh.util.SeriesDownsampleCache
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.MutableStateFlow
@@ -223,6 +224,9 @@ class MetricsViewModel @Inject constructor(
     private val _timeFrame = MutableStateFlow(TimeFrame.TWENTY_FOUR_HOURS)
     val timeFrame: StateFlow<TimeFrame> = _timeFrame
 
+    /** Downsampled chart series, kept per [TimeFrame] for as long as this screen lives. */
+    val chartCache = SeriesDownsampleCache<TimeFrame>()
+
     private var deviceHardwareList: List<DeviceHardware> = listOf()
 
     init {
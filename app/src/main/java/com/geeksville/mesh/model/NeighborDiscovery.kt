@@ -19,7 +19,9 @@ package com.geeksville.mesh.model
 
 import android.graphics.Color
 import com.geeksville.mesh.DataPacket
+import com.geeksville.mesh.database.MeshLink
 import com.geeksville.mesh.database.NodeRepository
+import com.geeksville.mesh.database.TopologySource
 import com.geeksville.mesh.database.entity.NodeRegistry
 import org.meshtastic.proto.MeshProtos
 import org.meshtastic.proto.Portnums
@@ -86,6 +88,14 @@ fun MeshProtos.MeshPacket.getNeighborDiscoveryResult(
     )
 }
 
+/** The links this neighbor info reports: each neighbor heard by the node that sent it. */
+fun MeshProtos.MeshPacket.getNeighborInfoLinks(now: Long): List<MeshLink> = fullNeighborInfo?.let { info ->
+    val originNum = info.nodeId.takeIf { it != 0 } ?: from
+    info.neighborsList.map { neighbor ->
+        MeshLink(neighbor.nodeId, originNum, TopologySource.NEIGHBOR_INFO, neighbor.snr, now)
+    }
+}.orEmpty()
+
 fun evaluateNeighborDiscoveryMapAvailability(
     discovery: NeighborDiscoveryResult?,
     nodeDb: NodeRepository,
@@ -25,7 +25,10 @@ import android.text.Spanned
 import android.text.style.ForegroundColorSpan
 import android.text.style.StyleSpan
 import android.util.Log
+import com.geeksville.mesh.DataPacket
+import com.geeksville.mesh.database.MeshLink
 import com.geeksville.mesh.database.NodeRepository
+import com.geeksville.mesh.database.TopologySource
 import com.geeksville.mesh.database.entity.NodeRegistry
 import com.geeksville.mesh.database.entity.isValidForTraceMap
 import com.geeksville.mesh.util.AppUtil.hexIdToNodeNum
@@ -35,6 +38,7 @@ import org.meshtastic.proto.Portnums
 
 const val SNR_GOOD_THRESHOLD = -7f
 const val SNR_FAIR_THRESHOLD = -15f
+private const val UNKNOWN_SNR = -128
 
 val MeshProtos.MeshPacket.fullRouteDiscovery: RouteDiscovery?
     get() = with(decoded) {
@@ -55,6 +59,30 @@ val MeshProtos.MeshPacket.fullRouteDiscovery: RouteDiscovery?
         }
     }
 
+/**
+ * The node that handed this traceroute response to its destination (the sender itself when it
+ * came direct), or null when the route back wasn't recorded or that hop is unknown.
+ */
+val MeshProtos.MeshPacket.lastTracerouteRelayer: Int?
+    get() = fullRouteDiscovery?.routeBackList
+        ?.takeIf { it.size >= 2 }
+        ?.let { it[it.size - 2] }
+        ?.takeIf { it != DataPacket.NODENUM_BROADCAST }
+
+/** The links this traceroute response walked, each hop with the SNR its receiver measured. */
+fun MeshProtos.MeshPacket.getTracerouteLinks(now: Long): List<MeshLink> = fullRouteDiscovery?.let {
+    tracerouteLinks(it.routeList, it.snrTowardsList, now) + tracerouteLinks(it.routeBackList, it.snrBackList, now)
+}.orEmpty()
+
+private fun tracerouteLinks(nodes: List<Int>, snrs: List<Int>, now: Long): List<MeshLink> {
+    // same rule as formatTraceroutePath: a list of the wrong size tells us nothing
+    val measured = snrs.takeIf { it.size == nodes.size - 1 }
+    return nodes.zipWithNext().mapIndexed { i, (from, to) ->
+        val snr = measured?.get(i)?.takeIf { it != UNKNOWN_SNR }?.let { it / 4f }
+        MeshLink(from, to, TopologySource.TRACEROUTE, snr, now)
+    }
+}
+
 data class TraceRouteMap(
     val traceForwardList: List<Node>,
     val traceBackList: List<Node>,
@@ -75,9 +103,9 @@ private fun formatTraceroutePath(nodesList: List<String>, snrList: List<Int>): S
         snrList
     } else {
         // use unknown SNR for entire route if snrList has invalid size
-        List(nodesList.size - 1) { -128 }
+        List(nodesList.size - 1) { UNKNOWN_SNR }
     }.map { snr ->
-        val str = if (snr == -128) "?" else "${snr / 4f}"
+        val str = if (snr == UNKNOWN_SNR) "?" else "${snr / 4f}"
         "⇊ $str dB"
     }
 
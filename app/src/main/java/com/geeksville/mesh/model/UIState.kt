@@ -46,7 +46,9 @@ import com.geeksville.mesh.database.DbImportState.DEFAULT_IMPORTED_NODES_PERMITT
 import com.geeksville.mesh.database.DbImportState.MAX_ALLOWED_DB_SIZE_BYTES
 import com.geeksville.mesh.database.DbImportState.NODE_EXPORT_DB_VER
 import com.geeksville.mesh.database.DbImportState.NODE_EXPORT_SEPARATOR
+import com.geeksville.mesh.database.GeoBox
 import com.geeksville.mesh.database.MeshLogRepository
+import com.geeksville.mesh.database.NodeGeoIndex
 import com.geeksville.mesh.database.NodeRegistryRepository
 import com.geeksville.mesh.database.NodeRepository
 import com.geeksville.mesh.database.PacketRepository
@@ -55,6 +57,7 @@ import com.geeksville.mesh.database.entity.MyNodeEntity
 import com.geeksville.mesh.database.entity.NodeRegistry
 import com.geeksville.mesh.database.entity.Packet
 import com.geeksville.mesh.database.entity.QuickChatAction
+import com.geeksville.mesh.database.entity.WaypointEntity
 import com.geeksville.mesh.repository.datastore.RadioConfigRepository
 import com.geeksville.mesh.repository.radio.RadioInterfaceService
 import com.geeksville.mesh.service.GlobalRadioMesh.ourNeighborRequests
@@ -74,6 +77,7 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
@@ -82,6 +86,7 @@ import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.launchIn
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.mapLatest
@@ -454,17 +459,11 @@ class UIViewModel @Inject constructor(
             .onEach { relayEvent ->
 
                 val nodes = unfilteredNodeList.value
-                val ourNodeNum = ourNodeInfo.value?.num
 
                 if (relayEvent.relayNodeLastByte > 0){ //relayed packets
 
-                    val (relayNodeEntity, confidence) = Packet.getRelayNode(
-                        relayEvent.relayNodeLastByte,
-                        nodes,
-                        ourNodeNum
-                    )
-
-                    relayNodeEntity?.let {
+                    nodeDB.getRelayNode(relayEvent.relayNodeLastByte)?.let {
+                        (relayNodeEntity, confidence) ->
 
                         relayEvent.nodeLongName = relayNodeEntity.user.longName
                         relayEvent.nodeShortName = relayNodeEntity.user.shortName
@@ -611,12 +610,33 @@ class UIViewModel @Inject constructor(
     fun getMessagesFrom(contactKey: String) = packetRepository.getMessagesFrom(contactKey)
         .mapLatest { list -> list.map { it.toMessage(::getNode) } }
 
-    @OptIn(ExperimentalCoroutinesApi::class)
-    val waypoints = packetRepository.getWaypoints().mapLatest { list ->
-        list.associateBy { packet -> packet.data.waypoint!!.id }
-            .filterValues { it.data.waypoint!!.expire > System.currentTimeMillis() / 1000 }
+    /// The area waypoints are loaded for: what the map shows plus a margin, null until it is laid out
+    private val waypointArea = MutableStateFlow<GeoBox?>(null)
+
+    /** The map moved, reload waypoints if the view left the area already loaded. */
+    fun setMapViewport(view: GeoBox) {
+        val loaded = waypointArea.value
+        if (loaded == null || !loaded.covers(view)) {
+            waypointArea.value = NodeGeoIndex.padded(view, WAYPOINT_AREA_MARGIN)
+        }
     }
 
+    /// Purges expired waypoints now and then, emitting the time (secs since 1970) to query at
+    private val waypointClock = flow {
+        while (true) {
+            val now = (System.currentTimeMillis() / 1000).toInt()
+            packetRepository.purgeExpiredWaypoints(now)
+            emit(now)
+            delay(WAYPOINT_PURGE_INTERVAL_MSEC)
+        }
+    }
+
+    // Waypoints valid now in the area around the map view, by waypoint id
+    @OptIn(ExperimentalCoroutinesApi::class)
+    val waypoints: Flow<Map<Int, WaypointEntity>> = combine(waypointArea, waypointClock) { area, now -> area to now }
+        .flatMapLatest { (area, now) -> packetRepository.getWaypoints(now, area ?: NodeGeoIndex.WHOLE_EARTH) }
+        .map { list -> list.associateBy { it.id } }
+
     fun generatePacketId(): Int? {
         return try {
             meshService?.packetId
@@ -799,6 +819,10 @@ class UIViewModel @Inject constructor(
     }
 
     companion object {
+        /// Waypoints are loaded for the map view grown by this fraction on every side
+        private const val WAYPOINT_AREA_MARGIN = 0.5
+        private const val WAYPOINT_PURGE_INTERVAL_MSEC = 60 * 1000L
+
         fun getPreferences(context: Context): SharedPreferences =
             context.getSharedPreferences("ui-prefs", Context.MODE_PRIVATE)
     }
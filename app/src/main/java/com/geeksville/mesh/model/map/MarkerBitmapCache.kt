@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.model.map
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.util.LruCache
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.ceil
+
+/** What a cached bitmap is. */
+enum class MarkerIconStyle {
+    /// Cluster icon with the number of markers on it
+    CLUSTER,
+
+    /// Text on a rounded white pill, drawn above node and waypoint markers
+    LABEL,
+
+    /// Waypoint emoji
+    EMOJI,
+}
+
+/**
+ * Everything a cached bitmap is drawn from. [look] holds what else the style draws with: the base
+ * icon and anchor of a cluster, the background and padding of a label.
+ */
+data class MarkerBitmapKey(
+    val style: MarkerIconStyle,
+    val text: String,
+    val densityDpi: Int,
+    val textColor: Int,
+    val textSize: Float,
+    val look: List<Any> = emptyList(),
+)
+
+data class MarkerBitmapStats(
+    val hits: Long,
+    val misses: Long,
+    val evictions: Int,
+    val sizeBytes: Int,
+    val allocatedBytes: Long,
+) {
+    override fun toString() =
+        "hits=$hits misses=$misses evictions=$evictions size=${sizeBytes / 1024}KiB allocated=${allocatedBytes / 1024}KiB"
+}
+
+/**
+ * Bitmaps for map markers, labels and cluster icons, so zooming and panning reuse what was already
+ * drawn instead of allocating a new bitmap per marker per frame.
+ *
+ * Bounded by [maxBytes] of bitmap memory and evicted least recently used first. Evicted bitmaps
+ * are left to the GC rather than recycled, a marker may still be drawing one.
+ */
+class MarkerBitmapCache(val maxBytes: Int) {
+
+    private val bitmaps = object : LruCache<MarkerBitmapKey, Bitmap>(maxBytes.coerceAtLeast(1)) {
+        override fun sizeOf(key: MarkerBitmapKey, value: Bitmap) = value.allocationByteCount
+    }
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val allocatedBytes = AtomicLong()
+
+    val stats: MarkerBitmapStats
+        get() = MarkerBitmapStats(
+            hits.get(), misses.get(), bitmaps.evictionCount(), bitmaps.size(), allocatedBytes.get()
+        )
+
+    fun getOrRender(key: MarkerBitmapKey, render: () -> Bitmap): Bitmap {
+        bitmaps.get(key)?.let {
+            hits.incrementAndGet()
+            return it
+        }
+        misses.incrementAndGet()
+        val bitmap = render()
+        allocatedBytes.addAndGet(bitmap.allocationByteCount.toLong())
+        bitmaps.put(key, bitmap)
+        return bitmap
+    }
+
+    /** [base] with [text] drawn at ([anchorU], [anchorV]) of it, scaled to [densityDpi]. */
+    fun clusterIcon(
+        base: Bitmap,
+        text: String,
+        paint: Paint,
+        anchorU: Float,
+        anchorV: Float,
+        densityDpi: Int,
+    ): Bitmap = getOrRender(
+        MarkerBitmapKey(
+            MarkerIconStyle.CLUSTER, text, densityDpi, paint.color, paint.textSize, listOf(base, anchorU, anchorV)
+        )
+    ) {
+        val icon = Bitmap.createBitmap(
+            base.getScaledWidth(densityDpi), base.getScaledHeight(densityDpi), base.config ?: Bitmap.Config.ARGB_8888
+        )
+        val canvas = Canvas(icon)
+        canvas.drawBitmap(base, 0f, 0f, null)
+        val textHeight = (paint.descent() + paint.ascent()).toInt()
+        canvas.drawText(text, anchorU * icon.width, anchorV * icon.height - textHeight / 2, paint)
+        icon
+    }
+
+    /**
+     * [text] on a rounded rectangle of [background], padded by [padX] / [padY] around the text.
+     * The text baseline sits [labelBaseline] px from the top of the result.
+     */
+    fun label(
+        text: String,
+        textPaint: Paint,
+        background: Paint,
+        cornerRadius: Float,
+        padX: Float,
+        padY: Float,
+        densityDpi: Int,
+    ): Bitmap = getOrRender(
+        MarkerBitmapKey(
+            MarkerIconStyle.LABEL, text, densityDpi, textPaint.color, textPaint.textSize,
+            listOf(background.color, cornerRadius, padX, padY),
+        )
+    ) {
+        val fm = textPaint.fontMetrics
+        val width = ceil(textPaint.measureText(text) + 2 * padX).toInt().coerceAtLeast(1)
+        val height = ceil(fm.bottom - fm.top + 2 * padY).toInt().coerceAtLeast(1)
+        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bitmap)
+        canvas.drawRoundRect(0f, 0f, width.toFloat(), height.toFloat(), cornerRadius, cornerRadius, background)
+        canvas.drawText(text, width / 2f, labelBaseline(textPaint, padY), textPaint)
+        bitmap
+    }
+
+    /** [text] (usually a single emoji) on a transparent background, baseline as for [label]. */
+    fun emoji(text: String, paint: Paint, densityDpi: Int): Bitmap =
+        getOrRender(MarkerBitmapKey(MarkerIconStyle.EMOJI, text, densityDpi, paint.color, paint.textSize)) {
+            val fm = paint.fontMetrics
+            val width = ceil(paint.measureText(text)).toInt().coerceAtLeast(1)
+            val height = ceil(fm.bottom - fm.top).toInt().coerceAtLeast(1)
+            val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            Canvas(bitmap).drawText(text, width / 2f, labelBaseline(paint, 0f), paint)
+            bitmap
+        }
+
+    fun clear() = bitmaps.evictAll()
+
+    companion object {
+        /// Upper bound for the shared cache, a few hundred labels and cluster icons
+        private const val MAX_SHARED_BYTES = 8 * 1024 * 1024
+
+        /** Distance from the top of a [label] / [emoji] bitmap to the text baseline. */
+        fun labelBaseline(textPaint: Paint, padY: Float): Float = padY - textPaint.fontMetrics.top
+
+        /// Shared by node markers, waypoint markers and cluster icons
+        val shared by lazy {
+            MarkerBitmapCache((Runtime.getRuntime().maxMemory() / 32).coerceAtMost(MAX_SHARED_BYTES.toLong()).toInt())
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.model.map
+
+/** What a [MarkerReconciler.reconcile] pass did. */
+data class MarkerChanges(
+    val added: Int = 0,
+    val removed: Int = 0,
+    val updated: Int = 0,
+    val unchanged: Int = 0,
+) {
+    /** True if no overlay was touched, i.e. nothing needs re-clustering or redrawing. */
+    val isEmpty: Boolean get() = added == 0 && removed == 0 && updated == 0
+
+    val mutations: Int get() = added + removed + updated
+}
+
+/**
+ * Keeps a set of map markers in step with a keyed list of states, touching only what changed.
+ *
+ * Each state [S] is everything a marker shows and must compare by value (a data class). Keys seen
+ * for the first time get a marker from [create] handed to [attach], keys that disappeared are
+ * [detach]ed, and markers whose state differs from last time are changed in place by [update].
+ * Markers whose state is equal are left alone.
+ *
+ * Not thread safe, call it from the thread that owns the map.
+ */
+class MarkerReconciler<K : Any, S : Any, M : Any>(
+    private val create: (S) -> M,
+    private val update: (M, S) -> Unit,
+    private val attach: (M) -> Unit,
+    private val detach: (M) -> Unit,
+) {
+    private class Entry<S, M>(var state: S, val marker: M)
+
+    private val entries = LinkedHashMap<K, Entry<S, M>>()
+
+    val size: Int get() = entries.size
+
+    fun markerFor(key: K): M? = entries[key]?.marker
+
+    fun reconcile(states: Map<K, S>): MarkerChanges {
+        var removed = 0
+        val it = entries.entries.iterator()
+        while (it.hasNext()) {
+            val (key, entry) = it.next()
+            if (key !in states) {
+                detach(entry.marker)
+                it.remove()
+                removed++
+            }
+        }
+
+        var added = 0
+        var updated = 0
+        var unchanged = 0
+        for ((key, state) in states) {
+            val entry = entries[key]
+            when {
+                entry == null -> {
+                    val marker = create(state)
+                    entries[key] = Entry(state, marker)
+                    attach(marker)
+                    added++
+                }
+                entry.state != state -> {
+                    update(entry.marker, state)
+                    entry.state = state
+                    updated++
+                }
+                else -> unchanged++
+            }
+        }
+        return MarkerChanges(added, removed, updated, unchanged)
+    }
+
+    /** Detach every marker, e.g. when the map is torn down. */
+    fun clear() {
+        entries.values.forEach { detach(it.marker) }
+        entries.clear()
+    }
+}
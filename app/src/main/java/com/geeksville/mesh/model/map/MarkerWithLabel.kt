@@ -20,7 +20,6 @@ package com.geeksville.mesh.model.map
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
-import android.graphics.RectF
 import android.view.MotionEvent
 import org.osmdroid.views.MapView
 import org.osmdroid.views.overlay.Marker
@@ -31,18 +30,30 @@ class MarkerWithLabel(mapView: MapView?, label: String, emoji: String? = null) :
     companion object {
         private const val LABEL_CORNER_RADIUS = 12F
         private const val LABEL_Y_OFFSET = 100F
+        private const val LABEL_PAD_X = 11F
+        private const val LABEL_PAD_Y = 2F
+        private const val EMOJI_Y_OFFSET = 30F
     }
 
+    private val bitmapCache = MarkerBitmapCache.shared
+
     private var nodeColor: Int = Color.GRAY
     fun setNodeColors(colors: Pair<Int, Int>) {
+        if (nodeColor != colors.second) precisionCircle = null
         nodeColor = colors.second
     }
 
     private var precisionBits: Int? = null
-    fun setPrecisionBits(bits: Int) {
+    fun setPrecisionBits(bits: Int?) {
+        if (precisionBits != bits) precisionCircle = null
         precisionBits = bits
     }
 
+    /// Built on first draw and kept until the position, precision or color changes
+    private var precisionCircle: Polygon? = null
+    private var precisionLat = Double.NaN
+    private var precisionLon = Double.NaN
+
     @Suppress("MagicNumber")
     private fun getPrecisionMeters(): Double? {
         return when (precisionBits) {
@@ -66,8 +77,10 @@ class MarkerWithLabel(mapView: MapView?, label: String, emoji: String? = null) :
         onLongClickListener = listener
     }
 
-    private val mLabel = label
-    private val mEmoji = emoji
+    /** Text drawn above the marker, can be changed in place (call invalidate on the map after). */
+    var label: String = label
+
+    var emoji: String? = emoji
     private val textPaint = Paint().apply {
         textSize = 40f
         color = Color.DKGRAY
@@ -83,15 +96,26 @@ class MarkerWithLabel(mapView: MapView?, label: String, emoji: String? = null) :
 
     private val bgPaint = Paint().apply { color = Color.WHITE }
 
-    private fun getTextBackgroundSize(text: String, x: Float, y: Float): RectF {
-        val fontMetrics = textPaint.fontMetrics
-        val halfTextLength = textPaint.measureText(text) / 2 + 3
-        return RectF(
-            (x - halfTextLength),
-            (y + fontMetrics.top),
-            (x + halfTextLength),
-            (y + fontMetrics.bottom)
-        )
+    private fun densityDpi(osmv: MapView?) = osmv?.context?.resources?.displayMetrics?.densityDpi ?: 0
+
+    private fun precisionCircle(osmv: MapView?, radius: Double): Polygon {
+        val pos = position
+        precisionCircle?.let {
+            if (precisionLat == pos.latitude && precisionLon == pos.longitude) return it
+        }
+        precisionLat = pos.latitude
+        precisionLon = pos.longitude
+        return Polygon(osmv).apply {
+            points = Polygon.pointsAsCircle(pos, radius)
+            fillPaint.apply {
+                color = nodeColor
+                alpha = 48
+            }
+            outlinePaint.apply {
+                color = nodeColor
+                alpha = 64
+            }
+        }.also { precisionCircle = it }
     }
 
     override fun onLongPress(event: MotionEvent?, mapView: MapView?): Boolean {
@@ -106,31 +130,23 @@ class MarkerWithLabel(mapView: MapView?, label: String, emoji: String? = null) :
     override fun draw(c: Canvas, osmv: MapView?, shadow: Boolean) {
         super.draw(c, osmv, false)
         val p = mPositionPixels
-        val bgRect = getTextBackgroundSize(mLabel, (p.x - 0F), (p.y - LABEL_Y_OFFSET))
-        bgRect.inset(-8F, -2F)
-
-        if (mLabel.isNotEmpty()) {
-            c.drawRoundRect(bgRect, LABEL_CORNER_RADIUS, LABEL_CORNER_RADIUS, bgPaint)
-            c.drawText(mLabel, (p.x - 0F), (p.y - LABEL_Y_OFFSET), textPaint)
+        val density = densityDpi(osmv)
+
+        if (label.isNotEmpty()) {
+            val bitmap = bitmapCache.label(
+                label, textPaint, bgPaint, LABEL_CORNER_RADIUS, LABEL_PAD_X, LABEL_PAD_Y, density
+            )
+            val baseline = MarkerBitmapCache.labelBaseline(textPaint, LABEL_PAD_Y)
+            c.drawBitmap(bitmap, p.x - bitmap.width / 2f, p.y - LABEL_Y_OFFSET - baseline, null)
+        }
+        emoji?.let {
+            val bitmap = bitmapCache.emoji(it, emojiPaint, density)
+            val baseline = MarkerBitmapCache.labelBaseline(emojiPaint, 0f)
+            c.drawBitmap(bitmap, p.x - bitmap.width / 2f, p.y - EMOJI_Y_OFFSET - baseline, null)
         }
-        mEmoji?.let { c.drawText(it, (p.x - 0f), (p.y - 30f), emojiPaint) }
 
         getPrecisionMeters()?.let { radius ->
-            val polygon = Polygon(osmv).apply {
-                points = Polygon.pointsAsCircle(
-                    position,
-                    radius
-                )
-                fillPaint.apply {
-                    color = nodeColor
-                    alpha = 48
-                }
-                outlinePaint.apply {
-                    color = nodeColor
-                    alpha = 64
-                }
-            }
-            polygon.draw(c, osmv, false)
+            precisionCircle(osmv, radius).draw(c, osmv, false)
         }
     }
 }
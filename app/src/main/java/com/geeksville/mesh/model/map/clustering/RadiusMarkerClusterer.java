@@ -14,6 +14,7 @@ import org.osmdroid.bonuspack.R;
 import org.osmdroid.util.BoundingBox;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
+import com.geeksville.mesh.model.map.MarkerBitmapCache;
 import com.geeksville.mesh.model.map.MarkerWithLabel;
 
 import java.util.ArrayList;
@@ -40,6 +41,7 @@ public class RadiusMarkerClusterer extends MarkerClusterer {
     private ArrayList<MarkerWithLabel> mClonedMarkers;
     protected boolean mAnimated;
     int mDensityDpi;
+    protected MarkerBitmapCache mBitmapCache = MarkerBitmapCache.Companion.getShared();
 
     /** cluster icon anchor */
     public float mAnchorU = MarkerWithLabel.ANCHOR_CENTER, mAnchorV = MarkerWithLabel.ANCHOR_CENTER;
@@ -124,16 +126,10 @@ public class RadiusMarkerClusterer extends MarkerClusterer {
         m.setInfoWindow(null);
         m.setAnchor(mAnchorU, mAnchorV);
 
-        Bitmap finalIcon = Bitmap.createBitmap(mClusterIcon.getScaledWidth(mDensityDpi),
-                mClusterIcon.getScaledHeight(mDensityDpi), mClusterIcon.getConfig());
-        Canvas iconCanvas = new Canvas(finalIcon);
-        iconCanvas.drawBitmap(mClusterIcon, 0, 0, null);
+        // the same count on the same icon is the same bitmap, so reuse it across zooms and clusters
         String text = "" + cluster.getSize();
-        int textHeight = (int) (mTextPaint.descent() + mTextPaint.ascent());
-        iconCanvas.drawText(text,
-                mTextAnchorU * finalIcon.getWidth(),
-                mTextAnchorV * finalIcon.getHeight() - textHeight / 2,
-                mTextPaint);
+        Bitmap finalIcon = mBitmapCache.clusterIcon(mClusterIcon, text, mTextPaint,
+                mTextAnchorU, mTextAnchorV, mDensityDpi);
         m.setIcon(new BitmapDrawable(mapView.getContext().getResources(), finalIcon));
 
         return m;
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.prefs
+
+import android.content.SharedPreferences
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Typed settings read from [prefs] once and re-read only when one of [keys] changes (any key
+ * when null), for code that checks settings on every packet. Readers get the current immutable
+ * [value] with a volatile read; a change replaces it whole, so no reader sees half an update.
+ *
+ * SharedPreferences holds its listeners weakly: keep the snapshot in a field, and [close] it
+ * when done.
+ */
+class PrefsSnapshot<T : Any>(
+    private val prefs: SharedPreferences,
+    private val keys: Set<String>? = null,
+    private val read: SharedPreferences.() -> T,
+) : SharedPreferences.OnSharedPreferenceChangeListener {
+    private val parses = AtomicLong(1)
+    private val state = MutableStateFlow(prefs.read())
+
+    init {
+        prefs.registerOnSharedPreferenceChangeListener(this)
+    }
+
+    val value: T get() = state.value
+
+    val flow: StateFlow<T> get() = state.asStateFlow()
+
+    /** How many times the settings have been read from [prefs], the first load included. */
+    val parseCount: Long get() = parses.get()
+
+    override fun onSharedPreferenceChanged(sharedPreferences: SharedPreferences, key: String?) {
+        // a null key means the file was cleared
+        if (key == null || keys == null || key in keys) refresh()
+    }
+
+    fun refresh() {
+        parses.incrementAndGet()
+        state.value = prefs.read()
+    }
+
+    fun close() {
+        prefs.unregisterOnSharedPreferenceChangeListener(this)
+    }
+}
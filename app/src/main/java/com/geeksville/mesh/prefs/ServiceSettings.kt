@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.prefs
+
+import android.content.SharedPreferences
+import com.geeksville.mesh.ui.MUTE_NODEINFO_NOTIFICATIONS
+import com.geeksville.mesh.ui.SKIP_MQTT_ENTIRELY
+import com.geeksville.mesh.ui.TRACE_MAX_PRIORITY_PREF
+
+/** The hunting prefs ([UserPrefs.Hunting]) as the packet path needs them. */
+data class HuntSettings(
+    val enabled: Boolean = false,
+    val background: Boolean = false,
+    val domain: String? = null,
+    val token: String? = null,
+) {
+    /** Whether received packets are forwarded to the hunt server. */
+    val canUpload: Boolean get() = enabled && domain != null && token != null
+
+    companion object {
+        @JvmField
+        val KEYS = setOf(
+            UserPrefs.Hunting.HUNT_MODE,
+            UserPrefs.Hunting.BACKGROUND_HUNT,
+            UserPrefs.Hunting.HUNT_DOMAIN,
+            UserPrefs.Hunting.HUNT_TOKEN,
+        )
+    }
+}
+
+fun SharedPreferences.getHuntSettings() = HuntSettings(
+    enabled = getBoolean(UserPrefs.Hunting.HUNT_MODE, false),
+    background = getBoolean(UserPrefs.Hunting.BACKGROUND_HUNT, false),
+    domain = getString(UserPrefs.Hunting.HUNT_DOMAIN, null),
+    token = getString(UserPrefs.Hunting.HUNT_TOKEN, null),
+)
+
+/** The advanced settings MeshService consults while handling packets. */
+data class AdvancedServiceSettings(
+    val skipMqtt: Boolean = false,
+    val muteNodeInfoNotifications: Boolean = false,
+    val traceMaxPriority: Boolean = false,
+) {
+    companion object {
+        val KEYS = setOf(SKIP_MQTT_ENTIRELY, MUTE_NODEINFO_NOTIFICATIONS, TRACE_MAX_PRIORITY_PREF)
+    }
+}
+
+fun SharedPreferences.getAdvancedServiceSettings() = AdvancedServiceSettings(
+    skipMqtt = getBoolean(SKIP_MQTT_ENTIRELY, false),
+    muteNodeInfoNotifications = getBoolean(MUTE_NODEINFO_NOTIFICATIONS, false),
+    traceMaxPriority = getBoolean(TRACE_MAX_PRIORITY_PREF, false),
+)
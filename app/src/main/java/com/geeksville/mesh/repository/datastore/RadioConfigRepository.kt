@@ -88,9 +88,11 @@ class RadioConfigRepository @Inject constructor(
 
     suspend fun getNodeDBbyNum() = nodeDB.getNodeDBbyNum().first()
     suspend fun upsert(node: NodeEntity) = nodeDB.upsert(node)
-    suspend fun installNodeDB(mi: MyNodeEntity, nodes: List<NodeEntity>) {
-        nodeDB.installNodeDB(mi, nodes)
-    }
+    suspend fun upsert(nodes: List<NodeEntity>) = nodeDB.upsert(nodes)
+    suspend fun installNodeDB(mi: MyNodeEntity, nodes: List<NodeEntity>) = nodeDB.installNodeDB(mi, nodes)
+    suspend fun archiveNodes(heardBefore: Map<Int, Int>) = nodeDB.archiveNodes(heardBefore)
+    suspend fun restoreNode(num: Int) = nodeDB.restoreNode(num)
+    suspend fun getArchivedNodeNums() = nodeDB.getArchivedNodeNums()
     suspend fun insertMetadata(fromNum: Int, metadata: DeviceMetadata) {
         nodeDB.insertMetadata(MetadataEntity(fromNum, metadata))
     }
@@ -247,5 +249,9 @@ class RadioConfigRepository @Inject constructor(
        _relayEvents.tryEmit(event)
     }
 
+    fun getRelayNode(relayNode: Int) = nodeDB.getRelayNode(relayNode)
+
+    fun confirmRelayNode(relayNode: Int, nodeNum: Int) = nodeDB.confirmRelayNode(relayNode, nodeNum)
+
 
 }
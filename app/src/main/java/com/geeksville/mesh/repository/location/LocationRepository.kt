@@ -93,6 +93,15 @@ data class LocationEmitPolicy(
             emitMaxIntervalMs = 30_000L,
             emitMaxAccuracyM = 300f,
         )
+
+        /**
+         * Every usable fix, for a [SmartPositionReporter] to pick from: it decides what is worth
+         * sending, so the debounce here only drops garbage.
+         */
+        val Smart = LocationEmitPolicy(
+            requestIntervalMs = 10_000L,
+            emitMinDistanceM = 0f,
+        )
     }
 }
 
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.repository.location
+
+import android.content.SharedPreferences
+import com.geeksville.mesh.util.HeadingTracker
+import com.geeksville.mesh.util.channelLoadFactor
+import com.geeksville.mesh.util.latLongToMeter
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+const val PREF_SMART_POSITION_ENABLED = "smart-position-enabled"
+const val PREF_SMART_POSITION_MIN_INTERVAL_S = "smart-position-min-interval"
+const val PREF_SMART_POSITION_MAX_INTERVAL_S = "smart-position-max-interval"
+
+/** A fix as the reporter sees it, [speedMps] and [bearingDeg] null when the provider has none. */
+data class PositionSample(
+    val latitude: Double,
+    val longitude: Double,
+    val timeMs: Long,
+    val speedMps: Float? = null,
+    val bearingDeg: Float? = null,
+    val accuracyM: Float? = null,
+)
+
+data class SmartPositionPolicy(
+    /** Never report more often than this, stretched further on a busy channel. */
+    val minIntervalMs: Long = 15_000,
+    /** Always report at least this often, a heartbeat for stationary devices. */
+    val maxIntervalMs: Long = 15 * 60_000,
+    /** Moving this far from the last reported position makes a report due. */
+    val minDistanceM: Double = 30.0,
+    /** Below this a device counts as stationary, and turns are GPS noise. */
+    val stationarySpeedMps: Float = 0.5f,
+    /**
+     * A turn sharper than [turnMinDeg] + [turnSlope] / speed reports early, so the track keeps
+     * its corners: slow movers need a sharper turn than fast ones (APRS SmartBeaconing).
+     */
+    val turnMinDeg: Double = 25.0,
+    val turnSlope: Double = 60.0,
+    /** Fixes worse than this are ignored. */
+    val maxAccuracyM: Float = 100f,
+    val busyChannelPercent: Float = 25f,
+    val congestedChannelPercent: Float = 50f,
+) {
+    init {
+        require(minIntervalMs > 0) { "minIntervalMs must be > 0" }
+        require(maxIntervalMs >= minIntervalMs) { "maxIntervalMs must be >= minIntervalMs" }
+        require(minDistanceM > 0) { "minDistanceM must be > 0" }
+    }
+}
+
+/**
+ * The policy set in [PREF_SMART_POSITION_ENABLED] and friends, or null to keep the fixed interval.
+ * Off unless turned on, as it keeps the GPS on high accuracy.
+ */
+fun SharedPreferences.getSmartPositionPolicy(): SmartPositionPolicy? {
+    if (!getBoolean(PREF_SMART_POSITION_ENABLED, false)) return null
+    val defaults = SmartPositionPolicy()
+    val minS = getInt(PREF_SMART_POSITION_MIN_INTERVAL_S, (defaults.minIntervalMs / 1000).toInt()).coerceAtLeast(5)
+    val maxS = getInt(PREF_SMART_POSITION_MAX_INTERVAL_S, (defaults.maxIntervalMs / 1000).toInt()).coerceAtLeast(minS)
+    return defaults.copy(minIntervalMs = minS * 1000L, maxIntervalMs = maxS * 1000L)
+}
+
+enum class PositionReason {
+    FIRST,
+    MOVED,
+    TURNED,
+    HEARTBEAT,
+    TOO_SOON,
+    NOT_MOVED,
+    INACCURATE,
+}
+
+data class PositionDecision(val send: Boolean, val reason: PositionReason)
+
+data class SmartPositionStats(
+    val samples: Long,
+    val sent: Long,
+    val turns: Long,
+    val heartbeats: Long,
+)
+
+/**
+ * Decides which fixes are worth sending to the mesh, so position reports follow movement
+ * instead of a timer.
+ *
+ * A report is due once the device is [SmartPositionPolicy.minDistanceM] from the last reported
+ * position, which bounds how far off the mesh's picture of it can be. Turning sharply reports
+ * early so the track keeps its corners. A stationary device goes quiet until the
+ * [SmartPositionPolicy.maxIntervalMs] heartbeat. A busy channel (the local node's channel
+ * utilization) stretches both the minimum interval and the distance, trading accuracy for
+ * airtime.
+ *
+ * Not thread safe, owned by the location collector.
+ */
+class SmartPositionReporter(private val policy: SmartPositionPolicy = SmartPositionPolicy()) {
+    private var lastSent: PositionSample? = null
+    private var lastSentHeading: Double? = null
+    private val headings = HeadingTracker(minStepM = policy.minDistanceM / 3)
+
+    private val samples = AtomicLong()
+    private val sent = AtomicLong()
+    private val turns = AtomicLong()
+    private val heartbeats = AtomicLong()
+
+    private fun track(sample: PositionSample) {
+        val speed = sample.speedMps
+        if (sample.bearingDeg != null && speed != null && speed >= policy.stationarySpeedMps) {
+            headings.set(sample.bearingDeg.toDouble())
+        } else {
+            headings.track(sample.latitude, sample.longitude)
+        }
+    }
+
+    private fun turned(speedMps: Float, movedM: Double): Boolean {
+        // a few meters off the last report is jitter, whatever the bearing says
+        if (speedMps < policy.stationarySpeedMps || movedM < policy.minDistanceM / 3) return false
+        val now = headings.heading ?: return false
+        val then = lastSentHeading ?: return false
+        return HeadingTracker.turnDeg(then, now) >= policy.turnMinDeg + policy.turnSlope / speedMps
+    }
+
+    fun evaluate(sample: PositionSample, channelUtilization: Float? = null): PositionDecision {
+        samples.incrementAndGet()
+        val accuracy = sample.accuracyM
+        if (accuracy != null && accuracy > policy.maxAccuracyM) {
+            return PositionDecision(false, PositionReason.INACCURATE)
+        }
+        track(sample)
+
+        val last = lastSent
+        val load = channelLoadFactor(channelUtilization, policy.busyChannelPercent, policy.congestedChannelPercent)
+        val reason = if (last == null) {
+            PositionReason.FIRST
+        } else {
+            val since = sample.timeMs - last.timeMs
+            val moved = latLongToMeter(last.latitude, last.longitude, sample.latitude, sample.longitude)
+            // the fix's speed, or the average since the last report when the provider has none
+            val speed = sample.speedMps ?: (moved / max(since, 1) * 1000).toFloat()
+            when {
+                since >= policy.maxIntervalMs -> PositionReason.HEARTBEAT
+                since < policy.minIntervalMs * load -> PositionReason.TOO_SOON
+                moved >= policy.minDistanceM * load -> PositionReason.MOVED
+                turned(speed, moved) -> PositionReason.TURNED
+                else -> PositionReason.NOT_MOVED
+            }
+        }
+
+        val send = reason == PositionReason.FIRST || reason == PositionReason.MOVED ||
+            reason == PositionReason.TURNED || reason == PositionReason.HEARTBEAT
+        if (send) {
+            lastSent = sample
+            lastSentHeading = headings.heading
+            sent.incrementAndGet()
+            if (reason == PositionReason.TURNED) turns.incrementAndGet()
+            if (reason == PositionReason.HEARTBEAT) heartbeats.incrementAndGet()
+        }
+        return PositionDecision(send, reason)
+    }
+
+    val stats: SmartPositionStats
+        get() = SmartPositionStats(
+            samples = samples.get(),
+            sent = sent.get(),
+            turns = turns.get(),
+            heartbeats = heartbeats.get(),
+        )
+}
@@ -17,27 +17,33 @@
 
 package com.geeksville.mesh.repository.network
 
+import android.content.Context
 import com.geeksville.mesh.android.Logging
 import com.geeksville.mesh.model.subscribeList
 import com.geeksville.mesh.repository.datastore.RadioConfigRepository
 import com.geeksville.mesh.util.ignoreException
 import com.google.protobuf.ByteString
+import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.callbackFlow
 import kotlinx.coroutines.flow.first
-import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient.generateClientId
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.MqttException
 import org.eclipse.paho.client.mqttv3.MqttMessage
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
 import org.meshtastic.proto.MeshProtos.MqttClientProxyMessage
 import org.meshtastic.proto.mqttClientProxyMessage
+import java.io.File
+import java.io.IOException
 import java.net.URI
 import java.security.SecureRandom
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import javax.inject.Inject
 import javax.inject.Singleton
 import javax.net.ssl.SSLContext
@@ -45,6 +51,7 @@ import javax.net.ssl.TrustManager
 
 @Singleton
 class MQTTRepository @Inject constructor(
+    @ApplicationContext private val context: Context,
     private val radioConfigRepository: RadioConfigRepository,
 ) : Logging {
 
@@ -60,10 +67,50 @@ class MQTTRepository @Inject constructor(
         private const val DEFAULT_TOPIC_LEVEL = "/2/e/"
         private const val JSON_TOPIC_LEVEL = "/2/json/"
         private const val DEFAULT_SERVER_ADDRESS = "mqtt.meshtastic.org"
+        private const val MAX_INFLIGHT = 10
     }
 
     private var mqttClient: MqttAsyncClient? = null
 
+    /**
+     * Replaces Paho's in-memory disconnected buffer: publishes wait here on disk, through outages
+     * and process restarts, until the broker acknowledges them.
+     */
+    private val outbox by lazy { MqttOutboundQueue(File(context.filesDir, "mqtt-outbound")) }
+
+    // the broker and root topic the outbox was filled for
+    private val outboxDestination by lazy { File(context.filesDir, "mqtt-outbound.destination") }
+
+    // publishes arrive on the packet thread, the outbox writes to disk on this one
+    private val outboxExecutor: ExecutorService = Executors.newSingleThreadExecutor { r ->
+        Thread(r, "MQTTOutbox").apply { isDaemon = true }
+    }
+
+    val outboxStats: MqttQueueStats get() = outbox.stats
+
+    /** Drop everything waiting to be published, for when MQTT is turned off. */
+    fun clearOutbox() = outboxExecutor.execute {
+        outbox.clear()
+        outboxDestination.delete()
+    }
+
+    /** Messages queued for another broker or root topic must not go to [destination]. */
+    private fun retargetOutbox(destination: String) {
+        val previous = try {
+            outboxDestination.takeIf { it.exists() }?.readText()
+        } catch (ex: IOException) {
+            null
+        }
+        if (previous == destination) return
+        if (outbox.size > 0) info("MQTT destination changed, dropping ${outbox.size} queued messages")
+        outbox.clear()
+        try {
+            outboxDestination.writeText(destination)
+        } catch (ex: IOException) {
+            errormsg("MQTT outbox destination write error: ${ex.message}")
+        }
+    }
+
     fun disconnect() {
         info("MQTT Disconnected")
         mqttClient?.apply {
@@ -88,21 +135,19 @@ class MQTTRepository @Inject constructor(
             userName = mqttConfig.username
             password = mqttConfig.password.toCharArray()
             isAutomaticReconnect = true
+            maxInflight = MAX_INFLIGHT
             if (mqttConfig.tlsEnabled) {
                 socketFactory = sslContext.socketFactory
             }
         }
 
-        val bufferOptions = DisconnectedBufferOptions().apply {
-            isBufferEnabled = true
-            bufferSize = 512
-            isPersistBuffer = false
-            isDeleteOldestMessages = true
-        }
-
         val callback = object : MqttCallbackExtended {
             override fun connectComplete(reconnect: Boolean, serverURI: String) {
                 info("MQTT connectComplete: $serverURI reconnect: $reconnect")
+                // anything sent but not acknowledged before the connection dropped goes out again, in order
+                outbox.rewind()
+                info("MQTT outbox: ${outbox.stats}")
+                drainOutbox()
                 channelSet.subscribeList.ifEmpty { return }.forEach { globalId ->
                     subscribe("$rootTopic$DEFAULT_TOPIC_LEVEL$globalId/+")
                     if (mqttConfig.jsonEnabled) subscribe("$rootTopic$JSON_TOPIC_LEVEL$globalId/+")
@@ -125,6 +170,8 @@ class MQTTRepository @Inject constructor(
 
             override fun deliveryComplete(token: IMqttDeliveryToken?) {
                 info("MQTT deliveryComplete messageId: ${token?.messageId}")
+                (token?.userContext as? Long)?.let { outbox.ack(it) }
+                drainOutbox()
             }
         }
 
@@ -132,13 +179,15 @@ class MQTTRepository @Inject constructor(
         val (host, port) = mqttConfig.address.ifEmpty { DEFAULT_SERVER_ADDRESS }
             .split(":", limit = 2).let { it[0] to (it.getOrNull(1)?.toIntOrNull() ?: -1) }
 
+        val serverUri = URI(scheme, null, host, port, "", "", "").toString()
+        retargetOutbox("$serverUri $rootTopic")
+
         mqttClient = MqttAsyncClient(
-            URI(scheme, null, host, port, "", "", "").toString(),
+            serverUri,
             ownerId,
             MemoryPersistence(),
         ).apply {
             setCallback(callback)
-            setBufferOpts(bufferOptions)
             connect(connectOptions)
         }
 
@@ -150,11 +199,29 @@ class MQTTRepository @Inject constructor(
         info("MQTT Subscribed to topic: $topic")
     }
 
-    fun publish(topic: String, data: ByteArray, retained: Boolean) {
+    fun publish(topic: String, data: ByteArray, retained: Boolean) = outboxExecutor.execute {
+        try {
+            outbox.add(topic, data, retained)
+        } catch (ex: IOException) {
+            errormsg("MQTT outbox write error: ${ex.message}")
+            return@execute
+        }
+        drainOutbox()
+    }
+
+    private fun drainOutbox() {
+        val client = mqttClient?.takeIf { it.isConnected } ?: return
         try {
-            val token = mqttClient?.publish(topic, data, DEFAULT_QOS, retained)
-            info("MQTT Publish messageId: ${token?.messageId}")
-        } catch (ex: Exception) {
+            outbox.drain(MAX_INFLIGHT) { entry ->
+                val message = MqttMessage(entry.payload).apply {
+                    qos = DEFAULT_QOS
+                    isRetained = entry.retained
+                }
+                val token = client.publish(entry.topic, message, entry.seq, null)
+                info("MQTT Publish messageId: ${token.messageId}")
+            }
+        } catch (ex: MqttException) {
+            // left in the outbox, sent again on the next delivery or reconnect
             errormsg("MQTT Publish error: ${ex.message}")
         }
     }
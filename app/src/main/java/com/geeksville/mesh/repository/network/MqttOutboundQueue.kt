@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.repository.network
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.TreeMap
+import java.util.concurrent.atomic.AtomicLong
+
+data class MqttQueueStats(
+    val depth: Int,
+    val bytes: Long,
+    val inFlight: Int,
+    val enqueued: Long,
+    val delivered: Long,
+    val replayed: Long,
+    val dropped: Long,
+    val expired: Long,
+)
+
+/**
+ * Outbound MQTT messages kept on disk until the broker acknowledges them.
+ *
+ * Every message is one file in [dir], named by an increasing sequence number, so the queue
+ * survives the process dying and replays in the order messages were published. [drain] sends
+ * from a cursor and [ack] deletes a message once its PUBACK arrives; after a reconnect [rewind]
+ * moves the cursor back so anything sent but never acknowledged goes out again (at least once,
+ * which is what QoS 1 promises anyway).
+ *
+ * The queue holds at most [maxMessages] messages and [maxBytes] of payload. Past that the
+ * oldest messages are dropped and counted in [MqttQueueStats.dropped]. Messages older than
+ * [maxAgeMs] are stale for the mesh and are dropped unsent, counted in [MqttQueueStats.expired].
+ */
+class MqttOutboundQueue(
+    private val dir: File,
+    private val maxMessages: Int = DEFAULT_MAX_MESSAGES,
+    private val maxBytes: Long = DEFAULT_MAX_BYTES,
+    private val maxAgeMs: Long = DEFAULT_MAX_AGE_MS,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    class Entry(
+        val seq: Long,
+        val topic: String,
+        val payload: ByteArray,
+        val retained: Boolean,
+    )
+
+    private class Stored(val size: Long, val addedAt: Long)
+
+    private val index = TreeMap<Long, Stored>()
+    private var totalBytes = 0L
+    private var nextSeq = 0L
+
+    // highest seq handed to the client on this connection
+    private var cursor = -1L
+
+    private val enqueued = AtomicLong()
+    private val delivered = AtomicLong()
+    private val replayed = AtomicLong()
+    private val dropped = AtomicLong()
+    private val expired = AtomicLong()
+
+    init {
+        dir.mkdirs()
+        dir.listFiles()?.forEach { file ->
+            val seq = file.name.removeSuffix(SUFFIX).toLongOrNull()
+            if (seq == null || !file.name.endsWith(SUFFIX)) {
+                file.delete() // a write that never got renamed into place
+            } else {
+                index[seq] = Stored(file.length(), file.lastModified())
+                totalBytes += file.length()
+            }
+        }
+        nextSeq = (index.lastEntry()?.key ?: -1L) + 1
+        trim()
+    }
+
+    private fun fileFor(seq: Long) = File(dir, "%019d%s".format(seq, SUFFIX))
+
+    /** Queue a message for delivery and return its sequence number. */
+    @Synchronized
+    fun add(topic: String, payload: ByteArray, retained: Boolean): Long {
+        val seq = nextSeq++
+        val tmp = File(dir, "$seq.tmp")
+        try {
+            DataOutputStream(tmp.outputStream().buffered()).use { out ->
+                out.writeByte(FORMAT_VERSION)
+                out.writeUTF(topic)
+                out.writeBoolean(retained)
+                out.writeInt(payload.size)
+                out.write(payload)
+            }
+            val file = fileFor(seq)
+            if (!tmp.renameTo(file)) throw IOException("rename to ${file.name} failed")
+            index[seq] = Stored(file.length(), clock())
+            totalBytes += file.length()
+        } finally {
+            tmp.delete()
+        }
+        enqueued.incrementAndGet()
+        trim()
+        return seq
+    }
+
+    private fun trim() {
+        while (index.size > maxMessages || (totalBytes > maxBytes && index.size > 1)) {
+            val (seq, _) = index.firstEntry()
+            remove(seq)
+            dropped.incrementAndGet()
+        }
+    }
+
+    private fun isExpired(seq: Long) = index[seq]?.let { clock() - it.addedAt > maxAgeMs } ?: false
+
+    private fun remove(seq: Long): Boolean {
+        val stored = index.remove(seq) ?: return false
+        totalBytes -= stored.size
+        fileFor(seq).delete()
+        return true
+    }
+
+    private fun read(seq: Long): Entry? = try {
+        DataInputStream(fileFor(seq).inputStream().buffered()).use { input ->
+            if (input.readByte().toInt() != FORMAT_VERSION) throw IOException("unknown format")
+            val topic = input.readUTF()
+            val retained = input.readBoolean()
+            val payload = ByteArray(input.readInt()).also { input.readFully(it) }
+            Entry(seq, topic, payload, retained)
+        }
+    } catch (ex: IOException) {
+        null
+    }
+
+    /** The broker acknowledged [seq]. */
+    @Synchronized
+    fun ack(seq: Long): Boolean = remove(seq).also { if (it) delivered.incrementAndGet() }
+
+    /** Sent but not yet acknowledged on this connection. */
+    @Synchronized
+    fun inFlight(): Int = index.headMap(cursor, true).size
+
+    /** Start over from the oldest unacknowledged message, call when a connection comes up. */
+    @Synchronized
+    fun rewind() {
+        replayed.addAndGet(inFlight().toLong())
+        cursor = -1L
+    }
+
+    /**
+     * Hand messages to [send] in order until [window] are in flight or the queue is empty.
+     * If [send] throws, the cursor stays on that message and the exception is rethrown.
+     * Messages that can no longer be read, or have expired, are dropped.
+     */
+    @Synchronized
+    fun drain(window: Int, send: (Entry) -> Unit): Int {
+        var sent = 0
+        while (inFlight() < window) {
+            val seq = index.higherKey(cursor) ?: break
+            if (isExpired(seq)) {
+                remove(seq)
+                expired.incrementAndGet()
+                continue
+            }
+            val entry = read(seq)
+            if (entry == null) {
+                remove(seq)
+                dropped.incrementAndGet()
+                continue
+            }
+            send(entry)
+            cursor = seq
+            sent++
+        }
+        return sent
+    }
+
+    @Synchronized
+    fun clear() {
+        index.keys.toList().forEach { remove(it) }
+        cursor = -1L
+    }
+
+    val size: Int @Synchronized get() = index.size
+
+    val stats: MqttQueueStats
+        @Synchronized get() = MqttQueueStats(
+            depth = index.size,
+            bytes = totalBytes,
+            inFlight = inFlight(),
+            enqueued = enqueued.get(),
+            delivered = delivered.get(),
+            replayed = replayed.get(),
+            dropped = dropped.get(),
+            expired = expired.get(),
+        )
+
+    companion object {
+        const val DEFAULT_MAX_MESSAGES = 4096
+        const val DEFAULT_MAX_BYTES = 4L * 1024 * 1024
+        const val DEFAULT_MAX_AGE_MS = 15 * 60 * 1000L
+        private const val FORMAT_VERSION = 1
+        private const val SUFFIX = ".msg"
+    }
+}
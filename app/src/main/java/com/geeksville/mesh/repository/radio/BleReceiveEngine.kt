@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.repository.radio
+
+import com.geeksville.mesh.concurrent.handledLaunch
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The fromradio mailbox as seen by [BleReceiveEngine], one read is one GATT round-trip.
+ * On a real device this is backed by SafeBluetooth, tests use a fake.
+ */
+fun interface FromRadioMailbox {
+    /**
+     * Read the next packet. An empty array means the mailbox is drained. The array handed to
+     * [cb] must not be touched by the mailbox afterwards, it is passed on to the receiver as is.
+     */
+    fun read(cb: (Result<ByteArray>) -> Unit)
+}
+
+/** Receive counters, rates are measured over the time spent draining (i.e. link throughput). */
+data class BleRxStats(
+    val packets: Long = 0,
+    val bytes: Long = 0,
+    val reads: Long = 0,
+    val drains: Long = 0,
+    val busyNanos: Long = 0,
+) {
+    val packetsPerSecond: Double get() = perSecond(packets)
+    val bytesPerSecond: Double get() = perSecond(bytes)
+
+    private fun perSecond(count: Long) = if (busyNanos == 0L) 0.0 else count * 1e9 / busyNanos
+
+    /** The counters accumulated since [earlier] was taken. */
+    operator fun minus(earlier: BleRxStats) = BleRxStats(
+        packets = packets - earlier.packets,
+        bytes = bytes - earlier.bytes,
+        reads = reads - earlier.reads,
+        drains = drains - earlier.drains,
+        busyNanos = busyNanos - earlier.busyNanos,
+    )
+
+    override fun toString() =
+        "packets=$packets bytes=$bytes reads=$reads drains=$drains " +
+            "%.1f pkt/s %.0f B/s".format(packetsPerSecond, bytesPerSecond)
+}
+
+/**
+ * Pulls packets out of the fromradio mailbox.
+ *
+ * Each drain keeps reading until the mailbox reports empty, instead of bouncing every packet
+ * through a fresh callback chain. Drains never overlap; drain requests that arrive while one is
+ * running (fromNum notifies) collapse into a single follow-up pass, which is what catches
+ * packets queued on the radio after our last read.
+ *
+ * Packets are not copied into pooled buffers. Android already allocates a fresh value for every
+ * characteristic read, so the engine hands that array on instead of cloning it, and a pool on
+ * our side would add a copy without saving an allocation.
+ */
+class BleReceiveEngine(
+    private val scope: CoroutineScope,
+    private val mailbox: FromRadioMailbox,
+    private val onPacket: (ByteArray) -> Unit,
+    private val onError: (Throwable) -> Unit,
+    private val nanoTime: () -> Long = System::nanoTime,
+) {
+    private val drainMutex = Mutex()
+    private val drainRequested = AtomicBoolean(false)
+
+    private val _packets = AtomicLong()
+    private val _bytes = AtomicLong()
+    private val _reads = AtomicLong()
+    private val _drains = AtomicLong()
+    private val _busyNanos = AtomicLong()
+
+    val stats: BleRxStats
+        get() = BleRxStats(_packets.get(), _bytes.get(), _reads.get(), _drains.get(), _busyNanos.get())
+
+    /** Ask for a drain in the background, e.g. because fromNum changed. */
+    fun requestDrain() {
+        if (drainRequested.getAndSet(true)) return // a pass that has not started yet will pick this up
+        scope.handledLaunch {
+            try {
+                drainMutex.withLock {
+                    drainRequested.set(false) // anything arriving from here on gets its own pass
+                    drainLocked()
+                }
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Exception) {
+                onError(ex)
+            }
+        }
+    }
+
+    /** Drain the mailbox now, returns the number of packets received. Errors are thrown. */
+    suspend fun drain(): Int = drainMutex.withLock { drainLocked() }
+
+    private suspend fun drainLocked(): Int {
+        val start = nanoTime()
+        var count = 0
+        try {
+            while (true) {
+                val packet = readOnce()
+                _reads.incrementAndGet()
+                if (packet.isEmpty()) break
+
+                count++
+                _packets.incrementAndGet()
+                _bytes.addAndGet(packet.size.toLong())
+                onPacket(packet)
+            }
+        } finally {
+            _drains.incrementAndGet()
+            _busyNanos.addAndGet(nanoTime() - start)
+        }
+        return count
+    }
+
+    private suspend fun readOnce(): ByteArray = suspendCancellableCoroutine { cont ->
+        mailbox.read { cont.resumeWith(it) }
+    }
+}
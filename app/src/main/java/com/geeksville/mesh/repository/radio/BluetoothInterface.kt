@@ -32,6 +32,7 @@ import dagger.assisted.AssistedInject
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
+import java.io.IOException
 import java.lang.reflect.Method
 import java.util.*
 
@@ -112,6 +113,8 @@ class BluetoothInterface @AssistedInject constructor(
         val BTM_FROMNUM_CHARACTER: UUID =
             UUID.fromString("ed9da18c-a800-4f66-a670-aa7547e34453")
 
+        private val EMPTY_PACKET = ByteArray(0)
+
         /**
          * this is created in onCreate()
          * We do an ugly hack of keeping it in the singleton so we can share it for the rare software update case
@@ -133,6 +136,37 @@ class BluetoothInterface @AssistedInject constructor(
 
     private lateinit var fromNum: BluetoothGattCharacteristic
 
+    /// Looked up once per connection, every mailbox read reuses it
+    private lateinit var fromRadio: BluetoothGattCharacteristic
+
+    private val fromRadioMailbox = FromRadioMailbox { cb ->
+        val s = safe
+        if (s == null) {
+            cb(Result.failure(RadioNotConnectedException("No SafeBluetooth")))
+        } else {
+            // Android hands every read callback a freshly allocated value, so it is passed on without copying
+            s.asyncReadCharacteristic(fromRadio) { r -> cb(r.map { it.value ?: EMPTY_PACKET }) }
+        }
+    }
+
+    private val receiver = BleReceiveEngine(
+        scope = service.serviceScope,
+        mailbox = fromRadioMailbox,
+        onPacket = { service.handleFromRadio(it) },
+        onError = { ex ->
+            when (ex) {
+                // Don't report autobugs for this, getting an exception here is expected behavior
+                is RadioNotConnectedException -> errormsg("Ending fromRadio read, radio not connected", ex)
+                is IOException -> scheduleReconnect("error during doReadFromRadio - disconnecting, ${ex.message}")
+                // a bug handling the packet, the link itself is fine
+                else -> errormsg("Error handling a packet from the radio", ex)
+            }
+        },
+    )
+
+    /// Packets and bytes received over this link so far
+    val receiveStats: BleRxStats get() = receiver.stats
+
     /**
      * With the new rev2 api, our first send is to start the configure readbacks.  In that case,
      * rather than waiting for FromNum notifies - we try to just aggressively read all of the responses.
@@ -181,7 +215,7 @@ class BluetoothInterface @AssistedInject constructor(
 
                         if (isFirstSend) {
                             isFirstSend = false
-                            doReadFromRadio(false)
+                            receiver.requestDrain()
                         }
                     } catch (ex: Exception) {
                         scheduleReconnect("error during asyncWriteCharacteristic - disconnecting, ${ex.message}")
@@ -208,30 +242,14 @@ class BluetoothInterface @AssistedInject constructor(
         }
     }
 
-    /// Attempt to read from the fromRadio mailbox, if data is found broadcast it to android apps
-    private fun doReadFromRadio(firstRead: Boolean) {
-        safe?.let { s ->
-            val fromRadio = getCharacteristic(BTM_FROMRADIO_CHARACTER)
-            s.asyncReadCharacteristic(fromRadio) {
-                try {
-                    val b = it.getOrThrow()
-                        .value.clone() // We clone the array just in case, I'm not sure if they keep reusing the array
-
-                    if (b.isNotEmpty()) {
-                        debug("Received ${b.size} bytes from radio")
-                        service.handleFromRadio(b)
-
-                        // Queue up another read, until we run out of packets
-                        doReadFromRadio(firstRead)
-                    } else {
-                        debug("Done reading from radio, fromradio is empty")
-                        if (firstRead) // If we just finished our initial download, now we want to start listening for notifies
-                            startWatchingFromNum()
-                    }
-                } catch (ex: BLEException) {
-                    scheduleReconnect("error during doReadFromRadio - disconnecting, ${ex.message}")
-                }
-            }
+    /// Drain the fromRadio mailbox, then start listening for notifies
+    private suspend fun doInitialReadFromRadio() {
+        try {
+            val count = receiver.drain()
+            debug("Done reading $count packets from radio, fromradio is empty")
+            startWatchingFromNum()
+        } catch (ex: BLEException) {
+            scheduleReconnect("error during doReadFromRadio - disconnecting, ${ex.message}")
         }
     }
 
@@ -253,25 +271,10 @@ class BluetoothInterface @AssistedInject constructor(
     /// We only force service refresh the _first_ time we connect to the device.  Thereafter it is assumed the firmware didn't change
     private var hasForcedRefresh = false
 
-    @Volatile
-    var fromNumChanged = false
-
     private fun startWatchingFromNum() {
         safe?.setNotify(fromNum, true) {
-            // We might get multiple notifies before we get around to reading from the radio - so just set one flag
-            fromNumChanged = true
-            service.serviceScope.handledLaunch {
-                try {
-                    if (fromNumChanged) {
-                        fromNumChanged = false
-                        debug("fromNum changed, so we are reading new messages")
-                        doReadFromRadio(false)
-                    }
-                } catch (e: RadioNotConnectedException) {
-                    // Don't report autobugs for this, getting an exception here is expected behavior
-                    errormsg("Ending FromNum read, radio not connected", e)
-                }
-            }
+            // We might get multiple notifies before we get around to reading from the radio, the receiver folds them into one drain
+            receiver.requestDrain()
         }
     }
 
@@ -338,6 +341,7 @@ class BluetoothInterface @AssistedInject constructor(
                             } */
 
                             fromNum = getCharacteristic(BTM_FROMNUM_CHARACTER)
+                            fromRadio = getCharacteristic(BTM_FROMRADIO_CHARACTER)
 
                             // We treat the first send by a client as special
                             isFirstSend = true
@@ -347,7 +351,7 @@ class BluetoothInterface @AssistedInject constructor(
 
                             // Immediately broadcast any queued packets sitting on the device
                             delay(1000) // Workaround to avoid two connections in a row
-                            doReadFromRadio(true)
+                            doInitialReadFromRadio()
                         } catch (ex: BLEException) {
                             scheduleReconnect(
                                 "Unexpected error in initial device enumeration, forcing disconnect $ex"
@@ -383,10 +387,11 @@ class BluetoothInterface @AssistedInject constructor(
 
             // we begin by setting our MTU size as high as it can go (if we can)
             if (shouldSetMtu)
-                safe?.asyncRequestMtu(512) { mtuRes ->
+                safe?.asyncRequestMtu(SafeBluetooth.MAX_MTU) { mtuRes ->
                     try {
                         mtuRes.getOrThrow()
                         debug("MTU change attempted")
+                        tuneLink()
 
                         // throw BLEException("Test MTU set failed")
 
@@ -404,8 +409,22 @@ class BluetoothInterface @AssistedInject constructor(
     }
 
 
+    /**
+     * A short connection interval and the 2M PHY cut the time each mailbox read round-trip takes.
+     * Both are only requests, and not every phone or radio supports them.
+     */
+    private fun tuneLink() {
+        safe?.let { s ->
+            val priority = s.requestConnectionPriority()
+            val phy = s.requestLe2MPhy()
+            debug("Link tuning: mtu=${s.mtu} highPriority=$priority le2M=$phy")
+        }
+    }
+
     override fun close() {
         reconnectJob?.cancel() // Cancel any queued reconnect attempts
+        info("BLE receive stats: ${receiver.stats}")
+        safe?.let { s -> info("BLE queue delays: ${s.queueDelays}") }
 
         if (safe != null) {
             info("Closing BluetoothInterface")
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.repository.radio
+
+import com.geeksville.mesh.android.AsyncLogFile
+import com.geeksville.mesh.android.AsyncLogStats
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+enum class RadioFrameType(val code: Int) {
+    /** Connection metadata as `key=value` lines, see [RadioCapture.session] */
+    SESSION(1),
+    TO_RADIO(2),
+    FROM_RADIO(3),
+    CONNECTED(4),
+    DISCONNECTED(5),
+    ;
+
+    companion object {
+        fun forCode(code: Int) = entries.firstOrNull { it.code == code }
+    }
+}
+
+/** One captured frame, [timeMs] is wall clock time when it crossed the radio link. */
+class RadioFrame(
+    val type: RadioFrameType,
+    val timeMs: Long,
+    val payload: ByteArray,
+) {
+    override fun toString() = "RadioFrame($type, $timeMs, ${payload.size} bytes)"
+}
+
+/**
+ * The radio capture format: a plain sequence of self-contained frames,
+ *
+ *     magic (1) | type (1) | time ms (8) | length (4) | payload (length)
+ *
+ * big endian. Every frame stands on its own, so a capture split by log rotation, or cut short
+ * by the app dying mid-write, is still readable up to its last whole frame.
+ */
+object RadioCapture {
+    private const val MAGIC = 0xC7
+    private const val HEADER_SIZE = 14
+    private const val MAX_PAYLOAD = 1 shl 20
+
+    const val KEY_ADDRESS = "address"
+    const val KEY_APP_VERSION = "appVersion"
+    const val KEY_STARTED = "started"
+
+    fun encode(type: RadioFrameType, timeMs: Long, payload: ByteArray): ByteArray {
+        val bytes = ByteArrayOutputStream(HEADER_SIZE + payload.size)
+        DataOutputStream(bytes).apply {
+            writeByte(MAGIC)
+            writeByte(type.code)
+            writeLong(timeMs)
+            writeInt(payload.size)
+            write(payload)
+        }
+        return bytes.toByteArray()
+    }
+
+    fun session(timeMs: Long, metadata: Map<String, String>): ByteArray = encode(
+        RadioFrameType.SESSION,
+        timeMs,
+        metadata.entries.joinToString("\n") { (k, v) -> "$k=${v.replace('\n', ' ')}" }.encodeToByteArray(),
+    )
+
+    fun metadata(frame: RadioFrame): Map<String, String> = frame.payload.decodeToString()
+        .lineSequence()
+        .filter { '=' in it }
+        .associate { it.substringBefore('=') to it.substringAfter('=') }
+
+    /**
+     * Every whole frame in [input], in order. Unknown frame types are skipped, a damaged
+     * or truncated tail ends the capture.
+     */
+    fun read(input: InputStream): List<RadioFrame> {
+        val frames = mutableListOf<RadioFrame>()
+        val data = DataInputStream(input.buffered())
+        try {
+            while (true) {
+                val magic = data.read()
+                if (magic < 0) break
+                if (magic != MAGIC) throw IOException("bad frame marker $magic")
+                val type = RadioFrameType.forCode(data.readUnsignedByte())
+                val time = data.readLong()
+                val length = data.readInt()
+                if (length !in 0..MAX_PAYLOAD) throw IOException("bad frame length $length")
+                val payload = ByteArray(length).also { data.readFully(it) }
+                if (type != null) frames += RadioFrame(type, time, payload)
+            }
+        } catch (ex: EOFException) {
+            // cut short mid-frame
+        } catch (ex: IOException) {
+            // damaged, keep what was readable
+        }
+        return frames
+    }
+}
+
+/**
+ * Records what crosses the radio link into [sink], normally an
+ * [com.geeksville.mesh.android.AsyncLogFile] so capturing never blocks radio I/O.
+ */
+class RadioCaptureWriter(
+    private val sink: (ByteArray) -> Unit,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    fun session(metadata: Map<String, String>) = sink(RadioCapture.session(clock(), metadata))
+    fun toRadio(bytes: ByteArray) = sink(RadioCapture.encode(RadioFrameType.TO_RADIO, clock(), bytes))
+    fun fromRadio(bytes: ByteArray) = sink(RadioCapture.encode(RadioFrameType.FROM_RADIO, clock(), bytes))
+    fun connected() = sink(RadioCapture.encode(RadioFrameType.CONNECTED, clock(), ByteArray(0)))
+    fun disconnected() = sink(RadioCapture.encode(RadioFrameType.DISCONNECTED, clock(), ByteArray(0)))
+}
+
+/**
+ * The capture of the running interface, switched on and off while the link is up.
+ *
+ * [start] opens a capture from [open] and writes its session frame, [stop] closes it at once, so
+ * nothing that crosses the link afterwards reaches storage. Frames seen while stopped go nowhere.
+ */
+class RadioCaptureSwitch(
+    private val open: () -> AsyncLogFile,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    @Volatile
+    private var writer: RadioCaptureWriter? = null
+    private var file: AsyncLogFile? = null
+
+    val isCapturing: Boolean get() = writer != null
+
+    /** @return the new capture, or null if one is already running */
+    @Synchronized
+    fun start(metadata: Map<String, String>, connected: Boolean): AsyncLogFile? {
+        if (file != null) return null
+        val f = open()
+        file = f
+        writer = RadioCaptureWriter(sink = { f.write(it) }, clock = clock).apply {
+            session(metadata)
+            if (connected) connected()
+        }
+        return f
+    }
+
+    /** @return what the capture wrote, or null if none was running */
+    @Synchronized
+    fun stop(): AsyncLogStats? {
+        writer = null
+        val f = file ?: return null
+        file = null
+        f.close() // a frame racing the switch is dropped by the closed file
+        return f.stats
+    }
+
+    fun toRadio(bytes: ByteArray) = writer?.toRadio(bytes)
+    fun fromRadio(bytes: ByteArray) = writer?.fromRadio(bytes)
+    fun connected() = writer?.connected()
+    fun disconnected() = writer?.disconnected()
+}
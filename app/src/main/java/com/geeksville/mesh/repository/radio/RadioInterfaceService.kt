@@ -23,7 +23,8 @@ import androidx.core.content.edit
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.coroutineScope
 import com.geeksville.mesh.CoroutineDispatchers
-import com.geeksville.mesh.android.BinaryLogFile
+import com.emp3r0r7.darkmesh.BuildConfig
+import com.geeksville.mesh.android.AsyncLogFile
 import com.geeksville.mesh.android.BuildUtils
 import com.geeksville.mesh.android.GeeksvilleApplication
 import com.geeksville.mesh.android.Logging
@@ -74,10 +75,14 @@ class RadioInterfaceService @Inject constructor(
     private val _receivedData = MutableSharedFlow<ByteArray>()
     val receivedData: SharedFlow<ByteArray> = _receivedData
 
-    private val logSends = false
-    private val logReceives = false
-    private lateinit var sentPacketsLog: BinaryLogFile // inited in onCreate
-    private lateinit var receivedPacketsLog: BinaryLogFile
+    // Records every frame to and from the radio while the capture pref is on, see setCaptureEnabled
+    private val capture = RadioCaptureSwitch(open = {
+        AsyncLogFile(
+            context.getExternalFilesDir(null) ?: context.filesDir,
+            CAPTURE_FILE,
+            maxFileBytes = CAPTURE_MAX_FILE_BYTES,
+        )
+    })
 
     val mockInterfaceAddress: String by lazy {
         toInterfaceAddress(InterfaceId.MOCK, "")
@@ -113,6 +118,9 @@ class RadioInterfaceService @Inject constructor(
 
     companion object {
         const val DEVADDR_KEY = "devAddr2" // the new name for devaddr
+        const val CAPTURE_KEY = "radioCapture"
+        const val CAPTURE_FILE = "radio_capture.bin"
+        private const val CAPTURE_MAX_FILE_BYTES = 16L * 1024 * 1024
         private const val HEARTBEAT_INTERVAL_MILLIS = 5 * 60 * 1000L
     }
 
@@ -187,15 +195,13 @@ class RadioInterfaceService @Inject constructor(
 
     // Send a packet/command out the radio link, this routine can block if it needs to
     private fun handleSendToRadio(p: ByteArray) {
+        capture.toRadio(p)
         radioIf.handleSendToRadio(p)
     }
 
     // Handle an incoming packet from the radio, broadcasts it as an android intent
     fun handleFromRadio(p: ByteArray) {
-        if (logReceives) {
-            receivedPacketsLog.write(p)
-            receivedPacketsLog.flush()
-        }
+        capture.fromRadio(p)
 
         if (radioIf is SerialInterface) {
             keepAlive(System.currentTimeMillis())
@@ -211,6 +217,7 @@ class RadioInterfaceService @Inject constructor(
     fun onConnect() {
         if (!isConnected) {
             isConnected = true
+            capture.connected()
             broadcastConnectionChanged(isConnected = true, isPermanent = false)
         }
     }
@@ -218,6 +225,7 @@ class RadioInterfaceService @Inject constructor(
     fun onDisconnect(isPermanent: Boolean) {
         if (isConnected) {
             isConnected = false
+            capture.disconnected()
             broadcastConnectionChanged(isConnected = false, isPermanent = isPermanent)
         }
     }
@@ -234,18 +242,43 @@ class RadioInterfaceService @Inject constructor(
                 info("Starting radio ${address.anonymize}")
                 isStarted = true
 
-                if (logSends) {
-                    sentPacketsLog = BinaryLogFile(context, "sent_log.pb")
-                }
-                if (logReceives) {
-                    receivedPacketsLog = BinaryLogFile(context, "receive_log.pb")
-                }
+                if (prefs.getBoolean(CAPTURE_KEY, false)) startCapture(address)
 
                 radioIf = interfaceFactory.createInterface(address)
             }
         }
     }
 
+    val isCaptureEnabled: Boolean get() = prefs.getBoolean(CAPTURE_KEY, false)
+
+    /**
+     * Capture the radio link to [CAPTURE_FILE] in the external files dir, for playback through
+     * [ReplayInterface]. Takes effect at once on the running interface and sticks for every one
+     * started later. The capture holds whole ToRadio/FromRadio frames in plain text, channel and
+     * admin keys included. Waits for the capture file to be written out when turned off.
+     */
+    fun setCaptureEnabled(enabled: Boolean) {
+        prefs.edit { putBoolean(CAPTURE_KEY, enabled) }
+        if (!enabled) {
+            stopCapture()
+        } else if (isStarted) {
+            getBondedDeviceAddress()?.let { startCapture(it) }
+        }
+    }
+
+    private fun startCapture(address: String) {
+        val metadata = mapOf(
+            RadioCapture.KEY_ADDRESS to address.anonymize,
+            RadioCapture.KEY_APP_VERSION to BuildConfig.VERSION_NAME,
+            RadioCapture.KEY_STARTED to System.currentTimeMillis().toString(),
+        )
+        capture.start(metadata, connected = isConnected)?.let { info("Capturing radio traffic to ${it.file}") }
+    }
+
+    private fun stopCapture() {
+        capture.stop()?.let { info("Radio capture closed: $it") }
+    }
+
     private fun stopInterface() {
         val r = radioIf
         info("stopping interface $r")
@@ -257,12 +290,7 @@ class RadioInterfaceService @Inject constructor(
         serviceScope.cancel("stopping interface")
         serviceScope = CoroutineScope(Dispatchers.IO + Job())
 
-        if (logSends) {
-            sentPacketsLog.close()
-        }
-        if (logReceives) {
-            receivedPacketsLog.close()
-        }
+        stopCapture()
 
         // Don't broadcast disconnects if we were just using the nop device
         if (r !is NopInterface) {
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.repository.radio
+
+import com.google.protobuf.InvalidProtocolBufferException
+import kotlinx.coroutines.delay
+import org.meshtastic.proto.MeshProtos
+
+/**
+ * Plays the FromRadio side of one capture session back (see [sessions]), keeping the recorded
+ * gaps between frames.
+ *
+ * [speed] divides every gap: 1.0 is real time, 10.0 ten times faster, and 0 (or less) sends
+ * frames back to back. Only the app's own config nonce changes: recorded `config_complete_id`
+ * values are rewritten to the `want_config_id` the app asked for, so the app accepts the
+ * replayed node DB as its own.
+ */
+class RadioReplay(frames: List<RadioFrame>, private val speed: Double = 1.0) {
+    private val fromRadio = frames.filter { it.type == RadioFrameType.FROM_RADIO }
+
+    val frameCount: Int get() = fromRadio.size
+
+    /** Recorded length of the session in ms, at real time. */
+    val durationMs: Long get() = if (fromRadio.isEmpty()) 0 else fromRadio.last().timeMs - fromRadio.first().timeMs
+
+    /**
+     * @param emit takes each FromRadio frame, in recorded order
+     * @param sleep waits the given ms, replaced by a virtual clock in tests
+     */
+    suspend fun play(
+        wantConfigId: Int,
+        emit: (ByteArray) -> Unit,
+        sleep: suspend (Long) -> Unit = { delay(it) },
+    ) {
+        val start = fromRadio.firstOrNull()?.timeMs ?: return
+        var waited = 0L
+        for (frame in fromRadio) {
+            if (speed > 0) {
+                // measured from the start, so rounding never adds up over a long capture
+                val due = ((frame.timeMs - start) / speed).toLong()
+                if (due > waited) {
+                    sleep(due - waited)
+                    waited = due
+                }
+            }
+            emit(withConfigId(frame.payload, wantConfigId))
+        }
+    }
+
+    companion object {
+        /**
+         * [frames] split into the captures they came from, at each [RadioFrameType.SESSION]
+         * frame. A capture file is appended to, so it usually holds several.
+         */
+        fun sessions(frames: List<RadioFrame>): List<List<RadioFrame>> {
+            val sessions = mutableListOf<MutableList<RadioFrame>>()
+            for (frame in frames) {
+                if (frame.type == RadioFrameType.SESSION || sessions.isEmpty()) sessions += mutableListOf<RadioFrame>()
+                sessions.last() += frame
+            }
+            return sessions
+        }
+    }
+
+    private fun withConfigId(bytes: ByteArray, wantConfigId: Int): ByteArray = try {
+        val proto = MeshProtos.FromRadio.parseFrom(bytes)
+        if (proto.payloadVariantCase == MeshProtos.FromRadio.PayloadVariantCase.CONFIG_COMPLETE_ID) {
+            proto.toBuilder().setConfigCompleteId(wantConfigId).build().toByteArray()
+        } else {
+            bytes
+        }
+    } catch (ex: InvalidProtocolBufferException) {
+        bytes // replay what was recorded, the app copes with garbage from real radios too
+    }
+}
@@ -45,6 +45,9 @@ abstract class RadioRepositoryModule {
     @[Binds IntoMap InterfaceMapKey(InterfaceId.NOP)]
     abstract fun bindNopInterfaceSpec(spec: NopInterfaceSpec): @JvmSuppressWildcards InterfaceSpec<*>
 
+    @[Binds IntoMap InterfaceMapKey(InterfaceId.REPLAY)]
+    abstract fun bindReplayInterfaceSpec(spec: ReplayInterfaceSpec): @JvmSuppressWildcards InterfaceSpec<*>
+
     @[Binds IntoMap InterfaceMapKey(InterfaceId.SERIAL)]
     abstract fun bindSerialInterfaceSpec(spec: SerialInterfaceSpec): @JvmSuppressWildcards InterfaceSpec<*>
 
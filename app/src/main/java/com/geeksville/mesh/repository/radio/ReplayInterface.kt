@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.repository.radio
+
+import com.geeksville.mesh.android.Logging
+import com.geeksville.mesh.concurrent.handledLaunch
+import dagger.assisted.Assisted
+import dagger.assisted.AssistedInject
+import kotlinx.coroutines.Job
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.fromRadio
+import org.meshtastic.proto.queueStatus
+import java.io.File
+
+/**
+ * Plays a radio capture (see [RadioCapture]) back in place of a real radio, alongside
+ * [MockInterface] for simulated data.
+ *
+ * The address is the capture file path, optionally followed by `#speed`: `r/path/capture.bin#10`
+ * replays ten times faster, `#0` as fast as the app takes it. The file may hold several capture
+ * sessions, the latest is played unless a second `#` picks another, counting from 0:
+ * `r/path/capture.bin#1#0` plays the oldest in real time. Playback starts when the app asks
+ * for its config, like a real radio would. Packets the app sends are answered with a queue
+ * status so its send queue keeps moving, and are otherwise ignored.
+ */
+class ReplayInterface @AssistedInject constructor(
+    private val service: RadioInterfaceService,
+    @Assisted val address: String,
+) : IRadioInterface, Logging {
+
+    companion object {
+        fun captureFile(rest: String) = File(rest.substringBefore('#'))
+        fun speed(rest: String) = rest.split('#').getOrNull(1)?.toDoubleOrNull() ?: 1.0
+
+        /** Index of the session to play, negative counts back from the latest. */
+        fun session(rest: String) = rest.split('#').getOrNull(2)?.toIntOrNull() ?: -1
+    }
+
+    private val file = captureFile(address)
+    private val speed = speed(address)
+    private val session = session(address)
+    private var playback: Job? = null
+
+    init {
+        info("Starting the replay interface at ${speed}x")
+        service.onConnect()
+    }
+
+    override fun handleSendToRadio(p: ByteArray) {
+        val pr = MeshProtos.ToRadio.parseFrom(p)
+        when {
+            pr.wantConfigId != 0 -> if (playback == null) {
+                playback = service.serviceScope.handledLaunch {
+                    val sessions = RadioReplay.sessions(file.inputStream().use { RadioCapture.read(it) })
+                    val index = if (session < 0) sessions.size + session else session
+                    val frames = sessions.getOrNull(index).orEmpty()
+                    val replay = RadioReplay(frames, speed)
+                    info("Replaying session ${index + 1} of ${sessions.size}: ${replay.frameCount} frames, ${replay.durationMs / 1000}s recorded")
+                    replay.play(pr.wantConfigId, service::handleFromRadio)
+                    info("Replay finished")
+                }
+            } else {
+                warn("Ignoring config request, the capture is already playing")
+            }
+
+            pr.hasPacket() -> service.handleFromRadio(
+                fromRadio {
+                    queueStatus = queueStatus {
+                        res = 0
+                        free = 16
+                        meshPacketId = pr.packet.id
+                    }
+                }.toByteArray()
+            )
+
+            else -> debug("Ignoring data sent to replay interface")
+        }
+    }
+
+    override fun close() {
+        info("Closing the replay interface")
+        playback?.cancel()
+    }
+}
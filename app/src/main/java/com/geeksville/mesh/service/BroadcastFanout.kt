@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.service
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicLong
+
+/** A manifest declared receiver that asked for explicit broadcasts through subscribeReceiver. */
+data class BroadcastClient(val packageName: String, val receiverName: String)
+
+data class BroadcastFanoutStats(
+    val implicit: Long,
+    val delivered: Map<BroadcastClient, Long>,
+    val skipped: Long,
+) {
+    val total: Long get() = implicit + delivered.values.sum()
+}
+
+/**
+ * Fans service broadcasts out to subscribed clients, on [executor] rather than the caller's
+ * thread.
+ *
+ * Every client has the set of actions its receiver declares. A client whose actions are not
+ * known (null) gets everything, which is how every client was treated before subscriptions.
+ * Each message is also sent once without a target for context-registered receivers.
+ *
+ * Node changes come in batches ([publishBatch]): a client that takes the batch action gets
+ * one message for the whole batch instead of one per node.
+ *
+ * @param send delivers a message to a client, or as an implicit broadcast when the client is
+ * null. Always called on [executor].
+ */
+class BroadcastFanout<T>(
+    private val executor: Executor,
+    private val send: (client: BroadcastClient?, message: T) -> Unit,
+) {
+    private object Everything
+
+    // client -> the actions it takes, or Everything
+    private val subscriptions = ConcurrentHashMap<BroadcastClient, Any>()
+    private val delivered = ConcurrentHashMap<BroadcastClient, AtomicLong>()
+    private val implicit = AtomicLong()
+    private val skipped = AtomicLong()
+
+    /** @param actions what the client's receiver takes, null when that can't be found out */
+    fun subscribe(client: BroadcastClient, actions: Set<String>?) {
+        subscriptions[client] = actions ?: Everything
+        delivered.getOrPut(client) { AtomicLong() }
+    }
+
+    fun unsubscribe(client: BroadcastClient) {
+        subscriptions.remove(client)
+    }
+
+    val clients: Set<BroadcastClient> get() = subscriptions.keys.toSet()
+
+    private fun wants(client: BroadcastClient, action: String): Boolean =
+        subscriptions[client].let { it === Everything || (it is Set<*> && action in it) }
+
+    private fun takesAll(client: BroadcastClient) = subscriptions[client] === Everything
+
+    private fun deliver(client: BroadcastClient, message: T) {
+        send(client, message)
+        delivered.getOrPut(client) { AtomicLong() }.incrementAndGet()
+    }
+
+    private fun deliverImplicit(message: T) {
+        send(null, message)
+        implicit.incrementAndGet()
+    }
+
+    /** [message] is built once, on the executor, and only if anybody gets it. */
+    fun publish(action: String, message: () -> T) = executor.execute {
+        val built = message()
+        deliverImplicit(built)
+        subscriptions.keys.forEach { client ->
+            if (wants(client, action)) deliver(client, built) else skipped.incrementAndGet()
+        }
+    }
+
+    /**
+     * Clients taking [batchAction] get [batch] of all [items] once. Clients that only take
+     * [singleAction], clients whose actions are unknown, and context-registered receivers get
+     * [single] for every item, as before batching existed.
+     */
+    fun <N> publishBatch(
+        singleAction: String,
+        batchAction: String,
+        items: List<N>,
+        single: (N) -> T,
+        batch: (List<N>) -> T,
+    ) {
+        if (items.isEmpty()) return
+        executor.execute {
+            val singles = items.map(single)
+            singles.forEach { deliverImplicit(it) }
+            val batched by lazy { batch(items) }
+            subscriptions.keys.forEach { client ->
+                when {
+                    !takesAll(client) && wants(client, batchAction) -> deliver(client, batched)
+                    wants(client, singleAction) -> singles.forEach { deliver(client, it) }
+                    else -> skipped.incrementAndGet()
+                }
+            }
+        }
+    }
+
+    val stats: BroadcastFanoutStats
+        get() = BroadcastFanoutStats(
+            implicit = implicit.get(),
+            delivered = delivered.mapValues { it.value.get() },
+            skipped = skipped.get(),
+        )
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.service
+
+import com.geeksville.mesh.util.HeadingTracker
+import com.geeksville.mesh.util.channelLoadFactor
+import com.geeksville.mesh.util.latLongToMeter
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+import kotlin.math.min
+
+/** One GPS fix, published as a whole so the beacon never pairs a new latitude with an old longitude. */
+data class BeaconFix(
+    val latitude: Double,
+    val longitude: Double,
+    val altitude: Int?,
+    val timeMs: Long,
+)
+
+/** Local node readings the beacon backs off on, null when the radio hasn't reported them yet. */
+data class BeaconConditions(
+    val batteryLevel: Int? = null,
+    val channelUtilization: Float? = null,
+)
+
+data class DistressBeaconPolicy(
+    /** Turns never beacon more often than this, nor does the user's interval once stretched. */
+    val minIntervalMs: Long = 15_000,
+    /** Stationary beacons are stretched to [stationaryFactor] times the interval, up to this. */
+    val maxIntervalMs: Long = 15 * 60_000,
+    val stationaryFactor: Int = 4,
+    /** Moving this far from the last beacon's position makes the next beacon due. */
+    val moveThresholdM: Double = 30.0,
+    /** Turning this much since the last beacon sends one early, once [minIntervalMs] passed. */
+    val headingThresholdDeg: Double = 45.0,
+    /** Shorter hops are GPS jitter and don't count towards a heading. */
+    val headingMinStepM: Double = 10.0,
+    val lowBatteryPercent: Int = 25,
+    val criticalBatteryPercent: Int = 10,
+    val busyChannelPercent: Float = 25f,
+    val congestedChannelPercent: Float = 50f,
+)
+
+enum class BeaconReason {
+    FIRST,
+    MOVED,
+    TURNED,
+    NO_FIX,
+    HEARTBEAT,
+    WAITING,
+    STATIONARY,
+}
+
+data class BeaconDecision(
+    val send: Boolean,
+    val reason: BeaconReason,
+    /** The interval currently in effect, after battery and channel back-off. */
+    val intervalMs: Long,
+    /** When to ask again, at most [DistressBeaconPolicy.minIntervalMs] so movement is noticed in time. */
+    val wakeInMs: Long,
+)
+
+data class DistressBeaconStats(
+    val sent: Long,
+    val suppressed: Long,
+    val evaluations: Long,
+)
+
+/**
+ * Decides when the distress beacon transmits.
+ *
+ * The user's interval is the base rate. Low battery or a busy channel (as reported by the local
+ * node's device metrics) stretch it. While moving, a beacon goes out every interval; a sharp turn
+ * sends one early so the track stays readable. While stationary the position in the beacon
+ * wouldn't change, so beacons are stretched to a heartbeat of [DistressBeaconPolicy.stationaryFactor]
+ * intervals, enough to show the sender is still alive. Without a fix there is nothing to compare,
+ * and beacons go out every interval as they always did.
+ *
+ * Not thread safe, owned by the beacon thread.
+ */
+class DistressBeaconScheduler @JvmOverloads constructor(
+    private val baseIntervalMs: Long,
+    private val policy: DistressBeaconPolicy = DistressBeaconPolicy(),
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    private var lastSentMs: Long? = null
+    private var lastSentFix: BeaconFix? = null
+    private var lastSentHeading: Double? = null
+    private val headings = HeadingTracker(minStepM = policy.headingMinStepM)
+
+    // intervals already counted as suppressed since the last beacon
+    private var suppressedIntervals = 0L
+
+    private val sent = AtomicLong()
+    private val suppressed = AtomicLong()
+    private val evaluations = AtomicLong()
+
+    fun intervalMs(conditions: BeaconConditions): Long {
+        val battery = conditions.batteryLevel
+        val batteryFactor = when {
+            battery == null || battery <= 0 || battery > 100 -> 1 // unknown, or on external power
+            battery <= policy.criticalBatteryPercent -> 4
+            battery <= policy.lowBatteryPercent -> 2
+            else -> 1
+        }
+        val channelFactor = channelLoadFactor(
+            conditions.channelUtilization,
+            policy.busyChannelPercent,
+            policy.congestedChannelPercent,
+        )
+        if (batteryFactor * channelFactor == 1) return baseIntervalMs
+        val interval = max(baseIntervalMs, policy.minIntervalMs) * batteryFactor * channelFactor
+        return min(interval, max(policy.maxIntervalMs, baseIntervalMs))
+    }
+
+    private fun turned(): Boolean {
+        val now = headings.heading ?: return false
+        val then = lastSentHeading ?: return false
+        return HeadingTracker.turnDeg(then, now) >= policy.headingThresholdDeg
+    }
+
+    /** Whether to beacon now. A decision to send counts as sent, the caller must transmit. */
+    fun evaluate(fix: BeaconFix?, conditions: BeaconConditions = BeaconConditions()): BeaconDecision {
+        evaluations.incrementAndGet()
+        val now = clock()
+        fix?.let { headings.track(it.latitude, it.longitude) }
+        val interval = intervalMs(conditions)
+        val last = lastSentMs
+        val since = if (last == null) Long.MAX_VALUE else now - last
+        val sentFix = lastSentFix
+        val heartbeat = min(interval * policy.stationaryFactor, max(policy.maxIntervalMs, interval))
+
+        val reason = when {
+            last == null -> BeaconReason.FIRST
+            since < min(policy.minIntervalMs, interval) -> BeaconReason.WAITING
+            fix == null -> if (since >= interval) BeaconReason.NO_FIX else BeaconReason.WAITING
+            sentFix == null -> BeaconReason.MOVED // the first fix since beaconing started
+            turned() -> BeaconReason.TURNED
+            since < interval -> BeaconReason.WAITING
+            latLongToMeter(sentFix.latitude, sentFix.longitude, fix.latitude, fix.longitude) >= policy.moveThresholdM ->
+                BeaconReason.MOVED
+            since >= heartbeat -> BeaconReason.HEARTBEAT
+            else -> BeaconReason.STATIONARY
+        }
+        val send = reason != BeaconReason.WAITING && reason != BeaconReason.STATIONARY
+        if (send) {
+            lastSentMs = now
+            lastSentFix = fix ?: lastSentFix
+            lastSentHeading = headings.heading
+            suppressedIntervals = 0
+            sent.incrementAndGet()
+        } else if (reason == BeaconReason.STATIONARY) {
+            val skipped = since / interval
+            if (skipped > suppressedIntervals) {
+                suppressed.addAndGet(skipped - suppressedIntervals)
+                suppressedIntervals = skipped
+            }
+        }
+
+        val due = when {
+            send -> interval
+            since < interval -> interval - since
+            else -> heartbeat - since
+        }
+        return BeaconDecision(send, reason, interval, wakeInMs = min(max(due, 1_000), policy.minIntervalMs))
+    }
+
+    val stats: DistressBeaconStats
+        get() = DistressBeaconStats(sent = sent.get(), suppressed = suppressed.get(), evaluations = evaluations.get())
+}
@@ -54,9 +54,8 @@ public class DistressService extends Service {
 
     private static final int DEFAULT_COORDS_PRECISION = 8;
 
-    private static volatile Double latitude = null;
-    private static volatile Double longitude = null;
-    private static volatile Integer altitude = null;
+    private static volatile BeaconFix fix = null;
+    private static volatile BeaconConditions conditions = new BeaconConditions();
 
     private static volatile boolean livePosition = false;
     private static volatile boolean sendPositionToChat = false;
@@ -85,6 +84,9 @@ public class DistressService extends Service {
     ){}
 
     /**
+     * Beacons on the schedule {@link DistressBeaconScheduler} adapts to movement, battery and
+     * channel load. The loop only wakes up to ask it again.
+     *
      * @noinspection BusyWait
      */
     public void sendDistress(DistressDTO distressDTO) {
@@ -98,29 +100,50 @@ public class DistressService extends Service {
             PREF_STRESSTEST_DEFAULT_PREFIX
         );
 
+        var scheduler = new DistressBeaconScheduler(distressDTO.interval);
+        var timeFormat = new SimpleDateFormat("HHmm", Locale.ROOT);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
         task = CompletableFuture.runAsync(() -> {
 
+            BeaconFix plusFix = null;
+            String plusCode = null;
+            long wakeIn = distressDTO.interval;
+
             while (taskRunning.get()) {
-                wakeLock.acquire(distressDTO.interval + 5_000);
+                wakeLock.acquire(wakeIn + 5_000);
 
                 try {
-                    debug("Sending distress beacon");
+                    var beaconFix = distressDTO.includeGps ? fix : null;
+                    var decision = scheduler.evaluate(beaconFix, conditions);
+                    wakeIn = decision.getWakeInMs();
+
+                    if (!decision.getSend()) {
+                        Thread.sleep(wakeIn);
+                        continue;
+                    }
+
+                    debug("Sending distress beacon, " + decision.getReason()
+                            + " every " + decision.getIntervalMs() + "ms");
 
                     StringBuilder sb = new StringBuilder(96);
                     sb.append(distressPrefix);
 
-                    if (distressDTO.includeGps && latitude != null && longitude != null) {
-                        var plus = coordinatesToPlusCode(
-                                latitude,
-                                longitude,
-                                DEFAULT_COORDS_PRECISION
-                        );
+                    if (beaconFix != null) {
+                        if (beaconFix != plusFix) {
+                            plusCode = coordinatesToPlusCode(
+                                    beaconFix.getLatitude(),
+                                    beaconFix.getLongitude(),
+                                    DEFAULT_COORDS_PRECISION
+                            );
+                            plusFix = beaconFix;
+                        }
 
-                        if (plus != null) {
-                            sb.append(" ").append(plus);
+                        if (plusCode != null) {
+                            sb.append(" ").append(plusCode);
 
-                            if (altitude != null) {
-                                sb.append(" A").append(altitude.intValue());
+                            if (beaconFix.getAltitude() != null) {
+                                sb.append(" A").append(beaconFix.getAltitude().intValue());
                             }
                         }
                     }
@@ -134,10 +157,7 @@ public class DistressService extends Service {
                     }
 
                     if (distressDTO.includeTime) {
-                        SimpleDateFormat sdf = new SimpleDateFormat("HHmm", Locale.ROOT);
-                        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-                        String time = sdf.format(new Date());
-                        sb.append(" Z").append(time);
+                        sb.append(" Z").append(timeFormat.format(new Date()));
                     }
 
                     if(sb.toString().isBlank()){
@@ -145,7 +165,7 @@ public class DistressService extends Service {
                     }
 
                     GlobalRadioMesh.sendMessage(sb.toString(), distressDTO.contactKey, 0);
-                    Thread.sleep(distressDTO.interval);
+                    Thread.sleep(wakeIn);
 
                 } catch (Exception e) {
                     debug("SOS send failed: " + e.getMessage());
@@ -153,6 +173,7 @@ public class DistressService extends Service {
                     if (wakeLock.isHeld()) wakeLock.release();
                 }
             }
+            debug("Distress beacon stopped, " + scheduler.getStats());
         }, executor);
     }
 
@@ -281,28 +302,28 @@ public class DistressService extends Service {
         return null;
     }
 
-    public static synchronized void setAltitude(Integer altitude) {
-        DistressService.altitude = altitude;
-    }
-
-    public static synchronized void setLongitude(Double longitude) {
-        DistressService.longitude = longitude;
+    public static void setPosition(double latitude, double longitude, Integer altitude) {
+        DistressService.fix = new BeaconFix(latitude, longitude, altitude, System.currentTimeMillis());
     }
 
-    public static synchronized void setLatitude(Double latitude) {
-        DistressService.latitude = latitude;
+    /** The local node's latest device metrics, the beacon backs off when either runs low or high. */
+    public static void setLocalMetrics(Integer batteryLevel, Float channelUtilization) {
+        DistressService.conditions = new BeaconConditions(batteryLevel, channelUtilization);
     }
 
-    public static synchronized Integer getAltitude() {
-        return altitude;
+    public static Integer getAltitude() {
+        var current = fix;
+        return current != null ? current.getAltitude() : null;
     }
 
-    public static synchronized Double getLongitude() {
-        return longitude;
+    public static Double getLongitude() {
+        var current = fix;
+        return current != null ? current.getLongitude() : null;
     }
 
-    public static synchronized Double getLatitude() {
-        return latitude;
+    public static Double getLatitude() {
+        var current = fix;
+        return current != null ? current.getLatitude() : null;
     }
 
     public static synchronized boolean isLivePosition() {
@@ -322,9 +343,7 @@ public class DistressService extends Service {
     }
 
     public static synchronized void resetMessagePosition(){
-        DistressService.latitude = null;
-        DistressService.longitude = null;
-        DistressService.altitude = null;
+        DistressService.fix = null;
 
         DistressService.setSendPositionToChat(false);
         DistressService.setLivePosition(false);
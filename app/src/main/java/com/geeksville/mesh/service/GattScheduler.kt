@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.service
+
+/** Scheduling class of a GATT operation, highest priority first. */
+enum class GattPriority {
+    /// Link management plus the fromradio/fromnum traffic that keeps packets flowing
+    CONTROL,
+
+    /// Toradio writes, which always run in the order they were sent
+    USER,
+}
+
+/** A unit of work the [GattScheduler] can order and merge. */
+interface GattWork<W : GattWork<W>> {
+    val priority: GattPriority
+
+    /**
+     * Work with equal non-null keys queued back to back in the same class is merged via [absorb].
+     * Only use a key where running just the newer operation gives the same end state (e.g. a
+     * descriptor write), never for the toradio/fromradio mailboxes.
+     */
+    val coalesceKey: Any?
+
+    /** Take over [newer], which is not going to be run on its own. */
+    fun absorb(newer: W)
+}
+
+/** How long work of one class sat in the queue before it was started. */
+data class GattQueueDelay(
+    val started: Long = 0,
+    val merged: Long = 0,
+    val totalMsec: Long = 0,
+    val maxMsec: Long = 0,
+) {
+    val averageMsec: Double get() = if (started == 0L) 0.0 else totalMsec.toDouble() / started
+}
+
+/**
+ * Orders GATT work for SafeBluetooth, which can only have one operation in flight.
+ *
+ * Work runs strictly by [GattPriority] and first come first served within a class. So that a
+ * steady stream of control work can not starve the lower classes forever, a class that has been
+ * passed over [maxBypass] times in a row gets the next turn. All methods are thread safe.
+ */
+class GattScheduler<W : GattWork<W>>(
+    private val maxBypass: Int = DEFAULT_MAX_BYPASS,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    private class Queued<W>(val work: W, val enqueuedAt: Long)
+
+    private val classes = GattPriority.entries
+    private val queues = classes.map { ArrayDeque<Queued<W>>() }
+    private val bypassed = IntArray(classes.size)
+    private val delays = Array(classes.size) { GattQueueDelay() }
+
+    /// The operation in flight, if any
+    @Volatile
+    var current: W? = null
+        private set
+
+    val pendingCount: Int @Synchronized get() = queues.sumOf { it.size }
+
+    /** Queue [work], returns true if it was merged into the work queued just before it instead. */
+    @Synchronized
+    fun enqueue(work: W): Boolean {
+        val idx = work.priority.ordinal
+        val queue = queues[idx]
+        val key = work.coalesceKey
+        val tail = queue.lastOrNull()
+        if (key != null && tail != null && tail.work.coalesceKey == key) {
+            tail.work.absorb(work)
+            delays[idx] = delays[idx].copy(merged = delays[idx].merged + 1)
+            return true
+        }
+        queue.addLast(Queued(work, clock()))
+        return false
+    }
+
+    /** If nothing is in flight, make the next work [current] and return it, else return null. */
+    @Synchronized
+    fun startNext(): W? {
+        if (current != null) return null
+        val idx = pickClass() ?: return null
+
+        val next = queues[idx].removeFirst()
+        val waited = clock() - next.enqueuedAt
+        val d = delays[idx]
+        delays[idx] = d.copy(
+            started = d.started + 1,
+            totalMsec = d.totalMsec + waited,
+            maxMsec = maxOf(d.maxMsec, waited),
+        )
+        current = next.work
+        return next.work
+    }
+
+    /** The work in flight is done (or abandoned), returns it so it can be resumed. */
+    @Synchronized
+    fun finishCurrent(): W? = current.also { current = null }
+
+    /** Remove everything still queued (not [current]) and return it in run order. */
+    @Synchronized
+    fun drainQueued(): List<W> {
+        val all = queues.flatMap { q -> q.map { it.work } }
+        queues.forEach { it.clear() }
+        bypassed.fill(0)
+        return all
+    }
+
+    @Synchronized
+    fun queueDelay(priority: GattPriority): GattQueueDelay = delays[priority.ordinal]
+
+    private fun pickClass(): Int? {
+        val first = queues.indexOfFirst { it.isNotEmpty() }
+        if (first < 0) return null
+
+        var chosen = first
+        for (idx in first + 1 until queues.size) {
+            if (queues[idx].isNotEmpty() && bypassed[idx] >= maxBypass) {
+                chosen = idx
+                break
+            }
+        }
+        for (idx in queues.indices) {
+            if (idx == chosen || queues[idx].isEmpty()) bypassed[idx] = 0
+            else if (idx > chosen) bypassed[idx]++
+        }
+        return chosen
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BYPASS = 16
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.service
+
+import com.geeksville.mesh.android.Logging
+import com.geeksville.mesh.concurrent.Continuation
+import com.geeksville.mesh.util.exceptionReporter
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * a schedulable bit of bluetooth work, includes both the closure to call to start the operation
+ * and the completion (either async or sync) to call when it completes
+ */
+class BluetoothContinuation(
+    val tag: String,
+    completion: Continuation<*>,
+    override val priority: GattPriority,
+    timeoutMillis: Long, // If we want to timeout this operation at a certain time, use a non zero value
+    override val coalesceKey: Any? = null,
+    private var startWorkFn: () -> Boolean
+) : GattWork<BluetoothContinuation>, Logging {
+
+    /// Work merged into this one shares its result, so there can be more than one caller to resume
+    val completions = mutableListOf(completion)
+
+    var timeoutMillis = timeoutMillis
+        private set
+
+    /// Start running a queued bit of work, return true for success or false for fatal bluetooth error
+    fun startWork(): Boolean {
+        debug("Starting work: $tag")
+        return startWorkFn()
+    }
+
+    /// Only the newer operation is run, but everybody waiting on either gets the result
+    override fun absorb(newer: BluetoothContinuation) {
+        debug("Coalescing work: $tag")
+        startWorkFn = newer.startWorkFn
+        timeoutMillis = newer.timeoutMillis
+        completions += newer.completions
+    }
+
+    override fun toString(): String {
+        return "Work:$tag"
+    }
+
+    /// Connection work items are treated specially
+    fun isConnect() = tag == "connect" || tag == "reconnect"
+}
+
+/**
+ * The one-operation-in-flight GATT work loop of SafeBluetooth, kept free of android types.
+ *
+ * Work is started in [GattScheduler] order. It ends when the GATT callback reports a result
+ * through [completeWork], when its failsafe timer runs out, or when [failAllWork] gives up on
+ * the connection.
+ *
+ * @param beforeStart called with each work just before it starts, returns a non zero status to
+ * fail the work with instead of starting it
+ */
+class GattWorkQueue(
+    private val scope: CoroutineScope,
+    private val scheduler: GattScheduler<BluetoothContinuation> = GattScheduler(),
+    private val beforeStart: (BluetoothContinuation) -> Int = { 0 },
+) : Logging {
+
+    val currentWork get() = scheduler.current
+
+    val pendingCount get() = scheduler.pendingCount
+
+    private var activeTimeout: Job? = null
+
+    /// If we have work we can do, start doing it.
+    private fun startNewWork() {
+        logAssert(currentWork == null)
+
+        val newWork = scheduler.startNext()
+        if (newWork != null) {
+            if (newWork.timeoutMillis != 0L) {
+
+                activeTimeout = scope.launch {
+                    // debug("Starting failsafe timer ${newWork.timeoutMillis}")
+                    delay(newWork.timeoutMillis)
+                    errormsg("Failsafe BLE timer expired for $newWork!")
+                    completeWork(
+                        STATUS_TIMEOUT,
+                        Unit,
+                        newWork
+                    ) // Throw an exception in that work
+                }
+            }
+
+            val failStatus = beforeStart(newWork)
+            if (failStatus != 0) {
+                completeWork(failStatus, Unit)
+            } else {
+                val started = newWork.startWork()
+                if (!started) {
+                    errormsg("Failed to start work, returned error status")
+                    completeWork(
+                        STATUS_NOSTART,
+                        Unit
+                    ) // abandon the current attempt and try for another
+                }
+            }
+        }
+    }
+
+    fun <T> queueWork(
+        tag: String,
+        cont: Continuation<T>,
+        timeout: Long,
+        priority: GattPriority,
+        coalesceKey: Any? = null,
+        initFn: () -> Boolean
+    ) {
+        val btCont =
+            BluetoothContinuation(
+                tag,
+                cont,
+                priority,
+                timeout,
+                coalesceKey,
+                initFn
+            )
+
+        synchronized(scheduler) {
+            debug("Enqueuing $priority work: ${btCont.tag}")
+            scheduler.enqueue(btCont)
+
+            // if we don't have any outstanding operations, run first item in queue
+            if (currentWork == null)
+                startNewWork()
+        }
+    }
+
+    /**
+     * Stop any current work
+     */
+    private fun stopCurrentWork() {
+        activeTimeout?.let {
+            it.cancel()
+            activeTimeout = null
+        }
+        scheduler.finishCurrent()
+    }
+
+    /**
+     * Called from our big GATT callback, completes the current job and then schedules a new one
+     *
+     * @param expected if set, only complete the current job if it is still this one (used by the failsafe timer)
+     */
+    fun <T : Any> completeWork(status: Int, res: T, expected: BluetoothContinuation? = null) {
+        exceptionReporter {
+            // We might unexpectedly fail inside here, but we don't want to pass that exception back up to the bluetooth GATT layer
+
+            // startup next job in queue before calling the completion handler
+            val work =
+                synchronized(scheduler) {
+                    val w = currentWork?.takeIf { expected == null || it === expected }
+
+                    if (w != null) {
+                        stopCurrentWork() // We are now no longer working on anything
+
+                        startNewWork()
+                    }
+                    w
+                }
+
+            if (work == null)
+                warn("wor completed, but we already killed it via failsafetimer? status=$status, res=$res")
+            else {
+                // debug("work ${work.tag} is completed, resuming status=$status, res=$res")
+                work.completions.forEach { completion ->
+                    if (status != 0)
+                        completion.resumeWithException(
+                            SafeBluetooth.BLEStatusException(
+                                status,
+                                "Bluetooth status=$status while doing ${work.tag}"
+                            )
+                        )
+                    else
+                        completion.resume(Result.success(res) as Result<Nothing>)
+                }
+            }
+        }
+    }
+
+    /**
+     * Something went wrong, abort all queued
+     */
+    fun failAllWork(ex: Exception) {
+        synchronized(scheduler) {
+            val queued = scheduler.drainQueued()
+            warn("Failing ${queued.size} works, because ${ex.message}")
+            queued.flatMap { it.completions }.forEach {
+                try {
+                    it.resumeWithException(ex)
+                } catch (ex: Exception) {
+                    errormsg(
+                        "Mystery exception, why were we informed about our own exceptions?",
+                        ex
+                    )
+                }
+            }
+            stopCurrentWork()
+        }
+    }
+
+    /// How long each class of work waited for its turn so far
+    val queueDelays: Map<GattPriority, GattQueueDelay>
+        get() = GattPriority.entries.associateWith { scheduler.queueDelay(it) }
+
+    companion object {
+        // Our own custom BLE status codes
+        const val STATUS_TIMEOUT = 4404
+        const val STATUS_NOSTART = 4405
+    }
+}
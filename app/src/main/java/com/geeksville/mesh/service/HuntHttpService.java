@@ -1,11 +1,10 @@
 package com.geeksville.mesh.service;
 
-import android.content.SharedPreferences;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import com.geeksville.mesh.prefs.UserPrefs;
+import com.geeksville.mesh.prefs.HuntSettings;
 
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicReference;
@@ -78,16 +77,12 @@ public class HuntHttpService {
         });
     }
 
-    public void maybeSendDataJsonAsync(SharedPreferences huntPrefs, String jsonPayload) {
+    public void maybeSendDataJsonAsync(HuntSettings settings, String jsonPayload) {
 
-        boolean isHuntEnabled = huntPrefs.getBoolean(UserPrefs.Hunting.HUNT_MODE, false);
+        if(!settings.getCanUpload()) return;
 
-        if(!isHuntEnabled) return;
-
-        String domain = huntPrefs.getString(UserPrefs.Hunting.HUNT_DOMAIN, null);
-        String token = huntPrefs.getString(UserPrefs.Hunting.HUNT_TOKEN, null);
-
-        if(domain == null || token == null) return;
+        String domain = settings.getDomain();
+        String token = settings.getToken();
 
         Request request = new Request.Builder()
                 .url(domain + MOBILE_ENDPOINT)
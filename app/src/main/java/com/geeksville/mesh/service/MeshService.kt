@@ -23,6 +23,7 @@ import android.content.Context
 import android.content.Intent
 import android.content.SharedPreferences
 import android.content.pm.ServiceInfo
+import android.location.Location
 import android.os.Binder
 import android.os.Build
 import android.os.IBinder
@@ -52,11 +53,20 @@ import com.geeksville.mesh.concurrent.handledLaunch
 import com.geeksville.mesh.database.DbImportState
 import com.geeksville.mesh.database.DbImportState.dbImportContactMap
 import com.geeksville.mesh.database.MeshLogRepository
+import com.geeksville.mesh.database.MeshLink
+import com.geeksville.mesh.database.NodeDbDiff
+import com.geeksville.mesh.database.NodeRetention
 import com.geeksville.mesh.database.NodeRegistryRepository
+import com.geeksville.mesh.database.NodeRegistryUpdate
+import com.geeksville.mesh.database.NodeRegistryWriteBuffer
 import com.geeksville.mesh.database.PacketRepository
+import com.geeksville.mesh.database.RetentionCandidate
+import com.geeksville.mesh.database.TopologyRepository
+import com.geeksville.mesh.database.TopologySource
 import com.geeksville.mesh.database.entity.MeshLog
 import com.geeksville.mesh.database.entity.MyNodeEntity
 import com.geeksville.mesh.database.entity.NodeEntity
+import com.geeksville.mesh.database.getNodeRetentionSettings
 import com.geeksville.mesh.database.entity.Packet
 import com.geeksville.mesh.database.entity.ReactionEntity
 import com.geeksville.mesh.model.DeviceVersion
@@ -65,10 +75,21 @@ import com.geeksville.mesh.model.Node
 import com.geeksville.mesh.model.RelayEvent
 import com.geeksville.mesh.model.UIViewModel.Companion.getPreferences
 import com.geeksville.mesh.model.getNeighborDiscoveryResult
+import com.geeksville.mesh.model.getNeighborInfoLinks
+import com.geeksville.mesh.model.getTracerouteLinks
 import com.geeksville.mesh.model.getTracerouteResponse
+import com.geeksville.mesh.model.lastTracerouteRelayer
+import com.geeksville.mesh.prefs.AdvancedServiceSettings
+import com.geeksville.mesh.prefs.HuntSettings
+import com.geeksville.mesh.prefs.PrefsSnapshot
 import com.geeksville.mesh.prefs.UserPrefs
+import com.geeksville.mesh.prefs.getAdvancedServiceSettings
+import com.geeksville.mesh.prefs.getHuntSettings
 import com.geeksville.mesh.repository.datastore.RadioConfigRepository
 import com.geeksville.mesh.repository.location.LocationEmitPolicy
+import com.geeksville.mesh.repository.location.PositionSample
+import com.geeksville.mesh.repository.location.SmartPositionReporter
+import com.geeksville.mesh.repository.location.getSmartPositionPolicy
 import com.geeksville.mesh.repository.location.LocationRepository
 import com.geeksville.mesh.repository.network.MQTTRepository
 import com.geeksville.mesh.repository.radio.RadioInterfaceService
@@ -78,9 +99,7 @@ import com.geeksville.mesh.service.GlobalRadioMesh.autoDeleteMap
 import com.geeksville.mesh.service.GlobalRadioMesh.ourNeighborRequests
 import com.geeksville.mesh.service.GlobalRadioMesh.ourTracerouteRequests
 import com.geeksville.mesh.ui.ActiveChatTracker
-import com.geeksville.mesh.ui.MUTE_NODEINFO_NOTIFICATIONS
 import com.geeksville.mesh.ui.SKIP_MQTT_ENTIRELY
-import com.geeksville.mesh.ui.TRACE_MAX_PRIORITY_PREF
 import com.geeksville.mesh.util.AppUtil
 import com.geeksville.mesh.util.AppUtil.hexIdToNodeNum
 import com.geeksville.mesh.util.NativeMessageCompression
@@ -99,8 +118,10 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.launchIn
 import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withTimeoutOrNull
 import org.meshtastic.proto.AdminProtos
@@ -181,7 +202,8 @@ class MeshService : Service(), Logging {
     @Inject
     lateinit var nodeRegistryRepository: NodeRegistryRepository
 
-    private lateinit var huntingPrefs: SharedPreferences
+    @Inject
+    lateinit var topologyRepository: TopologyRepository
 
     private val tracerouteStartTimes = ConcurrentHashMap<Int, Long>()
 
@@ -203,6 +225,7 @@ class MeshService : Service(), Logging {
 
         const val BIND_LOCAL_ACTION_INTENT: String = "com.emp3r0r7.mesh.MeshService.BIND_LOCAL"
         const val ACTION_NODE_CHANGE = "$prefix.NODE_CHANGE"
+        const val ACTION_NODES_CHANGED = "$prefix.NODES_CHANGED"
         const val ACTION_MESH_CONNECTED = "$prefix.MESH_CONNECTED"
         const val ACTION_MESSAGE_STATUS = "$prefix.MESSAGE_STATUS"
 
@@ -232,6 +255,12 @@ class MeshService : Service(), Logging {
          * to talk to 2.0 firmwares but only well enough to ask them to firmware update.
          */
         val minDeviceVersion = DeviceVersion("2.3.2")
+
+        private const val SHUTDOWN_FLUSH_TIMEOUT_MS = 2_000L
+        private const val NODE_RETENTION_INTERVAL_MS = 60_000L
+
+        // a relayed packet only adds a topology link when we are at least this sure who relayed it
+        private const val TOPOLOGY_RELAY_MIN_CONFIDENCE = 80
     }
 
     fun buildContactKeyForMessage(node : NodeEntity) : String {
@@ -253,15 +282,53 @@ class MeshService : Service(), Logging {
     private var previousSummary: String? = null
     private var previousStats: LocalStats? = null
 
-    // A mapping of receiver class name to package name - used for explicit broadcasts
-    private val clientPackages = mutableMapOf<String, String>()
     private val serviceNotifications = MeshServiceNotifications(this)
-    private val serviceBroadcasts = MeshServiceBroadcasts(this, clientPackages) {
+
+    // Message and new node notifications, coalesced and kept under the platform's rate limit
+    private val notificationAggregator by lazy {
+        NotificationAggregator(serviceNotifications, schedule = { delayMs ->
+            serviceScope.handledLaunch {
+                delay(delayMs)
+                notificationAggregator.drain()
+            }
+        })
+    }
+    private val serviceBroadcasts = MeshServiceBroadcasts(this) {
         connectionState.also { radioConfigRepository.setConnectionState(it) }
     }
     private val uiPrefs by lazy { getPreferences(this) }
+
+    // settings read on every packet, parsed once and replaced when they change
+    private val beaconingSetting by lazy {
+        PrefsSnapshot(uiPrefs, setOf(PREF_STRESSTEST_ENABLED)) { getBoolean(PREF_STRESSTEST_ENABLED, false) }
+    }
+    private val batteryAlertSettings by lazy {
+        PrefsSnapshot(uiPrefs, BATTERY_ALERT_PREFERENCE_KEYS) { getBatteryAlertSettings() }
+    }
+    private val huntSettings by lazy {
+        PrefsSnapshot(getSharedPreferences(UserPrefs.Hunting.SHARED_HUNT_PREFS, MODE_PRIVATE), HuntSettings.KEYS) {
+            getHuntSettings()
+        }
+    }
+    private val advancedSettings by lazy {
+        PrefsSnapshot(advancedPrefs, AdvancedServiceSettings.KEYS) { getAdvancedServiceSettings() }
+    }
     private val serviceJob = Job()
     private val serviceScope = CoroutineScope(Dispatchers.IO + serviceJob)
+
+    // Registry changes arrive with almost every packet, so they are coalesced and written in batches
+    private val nodeRegistryWriteBuffer by lazy {
+        NodeRegistryWriteBuffer(serviceScope) { nodeRegistryRepository.applyUpdates(it) }
+    }
+
+    // Node changes are persisted and broadcast in batches, several updates per packet are common
+    private val nodeUpdateDispatcher by lazy {
+        NodeUpdateDispatcher(serviceScope) { persist, broadcast ->
+            val nodes = persist.mapNotNull { num -> nodeDBbyNodeNum[num]?.copy() }
+            if (nodes.isNotEmpty()) radioConfigRepository.upsert(nodes)
+            serviceBroadcasts.broadcastNodeChanges(broadcast.mapNotNull { num -> nodeDBbyNodeNum[num]?.toNodeInfo() })
+        }
+    }
     var connectionState = ConnectionState.DISCONNECTED
 
     private var locationFlow: Job? = null
@@ -304,20 +371,23 @@ class MeshService : Service(), Logging {
     @SuppressLint("MissingPermission")
     if (hasLocationPermission()) {
 
-        val beaconing = getPreferences(this)
-            .getBoolean(PREF_STRESSTEST_ENABLED, false)
+        val beaconing = beaconingSetting.value
 
         // Distress più live: quando livePosition è attivo (o stiamo componendo posizione per chat distress)
-        val policy =
-            if (DistressService.isLivePosition() || (beaconing && DistressService.isSendPositionToChat())) {
-                LocationEmitPolicy.Live
-            } else {
-                LocationEmitPolicy.Default
-            }
+        val live = DistressService.isLivePosition() || (beaconing && DistressService.isSendPositionToChat())
+        // outside of distress, positions follow movement rather than a timer
+        val reporter = uiPrefs.getSmartPositionPolicy()?.takeUnless { live }?.let(::SmartPositionReporter)
+        val policy = when {
+            live -> LocationEmitPolicy.Live
+            reporter != null -> LocationEmitPolicy.Smart
+            else -> LocationEmitPolicy.Default
+        }
 
         locationFlow = locationRepository.getLocations(policy).onEach { location ->
 
-            if (DistressService.isLivePosition() || !beaconing) {
+            if ((DistressService.isLivePosition() || !beaconing) &&
+                reporter?.evaluate(location.toPositionSample(), localChannelUtilization)?.send != false
+            ) {
                 sendPosition(
                     position {
                         latitudeI = Position.degI(location.latitude)
@@ -335,15 +405,26 @@ class MeshService : Service(), Logging {
             }
 
             if (beaconing && DistressService.isSendPositionToChat()) {
-                DistressService.setLatitude(location.latitude)
-                DistressService.setLongitude(location.longitude)
-                DistressService.setAltitude(location.altitude.toInt())
+                DistressService.setPosition(location.latitude, location.longitude, location.altitude.toInt())
             }
 
         }.launchIn(serviceScope)
     }
 }
 
+    private val localChannelUtilization: Float?
+        get() = myNodeInfo?.myNodeNum?.let { nodeDBbyNodeNum[it] }
+            ?.takeIf { it.deviceTelemetry.hasDeviceMetrics() }?.deviceMetrics?.channelUtilization
+
+    private fun Location.toPositionSample() = PositionSample(
+        latitude = latitude,
+        longitude = longitude,
+        timeMs = time,
+        speedMps = if (hasSpeed()) speed else null,
+        bearingDeg = if (hasBearing()) bearing else null,
+        accuracyM = if (hasAccuracy()) accuracy else null,
+    )
+
     private fun stopLocationRequests(resetPosition: Boolean) {
         if (locationFlow?.isActive == true) {
             info("Stopping location requests")
@@ -434,7 +515,7 @@ class MeshService : Service(), Logging {
                 }
                 else -> return
             }
-            serviceNotifications.updateMessageNotification(contactKey, getSenderName(dataPacket), message)
+            notificationAggregator.onMessage(contactKey, getSenderName(dataPacket), message)
         } catch (t: Throwable){
             warn("Failed to update notification! ${t.message}")
         }
@@ -444,7 +525,6 @@ class MeshService : Service(), Logging {
         super.onCreate()
 
         info("Creating mesh service")
-        huntingPrefs = getSharedPreferences(UserPrefs.Hunting.SHARED_HUNT_PREFS, MODE_PRIVATE)
         uiPrefs.registerOnSharedPreferenceChangeListener(batteryAlertPrefsListener)
 
         // Switch to the IO thread
@@ -463,8 +543,12 @@ class MeshService : Service(), Logging {
             .launchIn(serviceScope)
         radioConfigRepository.serviceAction.onEach(::onServiceAction)
             .launchIn(serviceScope)
+        // an opened conversation is read, its next notification starts a fresh history
+        ActiveChatTracker.activeContactKey.filterNotNull().onEach { notificationAggregator.clear(it) }
+            .launchIn(serviceScope)
 
         loadSettings() // Load our last known node DB
+        startNodeRetention()
 
         // the rest of our init will happen once we are in radioConnection.onServiceConnected
     }
@@ -526,10 +610,32 @@ class MeshService : Service(), Logging {
         // Make sure we aren't using the notification first
         ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE)
         uiPrefs.unregisterOnSharedPreferenceChangeListener(batteryAlertPrefsListener)
+        listOf(beaconingSetting, batteryAlertSettings, huntSettings, advancedSettings).forEach { it.close() }
         clearLowBatteryAlertState()
 
+        // Don't lose buffered node, registry and topology writes when the service goes away. They
+        // are written off the main thread, and the scope (and broadcasts) only shut down after.
+        serviceScope.handledLaunch {
+            withTimeoutOrNull(SHUTDOWN_FLUSH_TIMEOUT_MS) {
+                flushOnShutdown("node updates") { nodeUpdateDispatcher.flush() }
+                flushOnShutdown("node registry") { nodeRegistryWriteBuffer.flush() }
+                flushOnShutdown("topology") { topologyRepository.flush() }
+            }
+        }.invokeOnCompletion {
+            info("Broadcasts: ${serviceBroadcasts.stats}")
+            serviceBroadcasts.close()
+            serviceJob.cancel()
+        }
         super.onDestroy()
-        serviceJob.cancel()
+    }
+
+    /** A write that fails on the way out is logged, and must not skip the ones after it. */
+    private suspend fun flushOnShutdown(what: String, flush: suspend () -> Unit) {
+        try {
+            flush()
+        } catch (ex: Exception) {
+            errormsg("Failed to flush $what on shutdown", ex)
+        }
     }
 
     //
@@ -604,6 +710,79 @@ class MeshService : Service(), Logging {
 
     // given a nodeNum, return a db entry - creating if necessary
     private fun getOrCreateNodeInfo(n: Int) = nodeDBbyNodeNum.getOrPut(n) {
+        if (archivedNodeNums.remove(n)) restoreArchivedNode(n)
+        defaultNodeInfo(n)
+    }
+
+    private val retentionSettings by lazy { uiPrefs.getNodeRetentionSettings() }
+    private val nodeRetention by lazy { NodeRetention(retentionSettings.capacity, retentionSettings.policy) }
+    private val registryRetention by lazy {
+        NodeRetention(retentionSettings.registryCapacity, retentionSettings.policy)
+    }
+
+    // nodes moved to the archive, restored when heard from again
+    private val archivedNodeNums = ConcurrentHashMap.newKeySet<Int>()
+
+    private fun startNodeRetention() = serviceScope.handledLaunch {
+        archivedNodeNums += radioConfigRepository.getArchivedNodeNums()
+        while (isActive) {
+            delay(NODE_RETENTION_INTERVAL_MS)
+            enforceNodeRetention()
+        }
+    }
+
+    private fun isPinned(node: NodeEntity) =
+        node.num == myNodeInfo?.myNodeNum || node.isFavorite || node.isIgnored
+
+    /**
+     * Archive the nodes [nodeRetention] picks, from the node DB and our map alike, and trim the
+     * registry the same way. Runs in the background, a node heard since it was picked stays.
+     */
+    private suspend fun enforceNodeRetention() {
+        val nodes = nodeDBbyNodeNum.values.toList()
+        val evict = nodeRetention.evictions(
+            nodes.map { RetentionCandidate(it.num, it.lastHeard.toLong(), it.hopsAway, isPinned(it)) }
+        )
+        if (evict.isNotEmpty()) {
+            val picked = evict.toSet()
+            val heardBefore = nodes.filter { it.num in picked }.associate { it.num to it.lastHeard }
+            val archived = radioConfigRepository.archiveNodes(heardBefore)
+            archived.forEach { num ->
+                nodeDBbyNodeNum.computeIfPresent(num) { _, node ->
+                    node.takeIf { it.lastHeard > heardBefore.getValue(num) }
+                }
+            }
+            archivedNodeNums += archived
+            info("Archived ${archived.size} of ${nodes.size} nodes, ${nodeRetention.stats}")
+        }
+
+        val pinned = nodes.filter(::isPinned).mapTo(HashSet()) { it.num }
+        val registryArchived = nodeRegistryRepository.enforceRetention(registryRetention, pinned)
+        if (registryArchived > 0) info("Archived $registryArchived registry nodes, ${registryRetention.stats}")
+    }
+
+    /** Bring back what we knew about an archived node that was just heard from again. */
+    private fun restoreArchivedNode(num: Int) = serviceScope.handledLaunch {
+        val archived = radioConfigRepository.restoreNode(num) ?: return@handledLaunch
+        nodeRetention.onRestored()
+        updateNodeInfo(num) {
+            if (it.isUnknownUser && !archived.isUnknownUser) {
+                it.user = archived.user
+                it.longName = archived.longName
+                it.shortName = archived.shortName
+            }
+            if (it.latitude == 0.0 && it.longitude == 0.0) {
+                it.position = archived.position
+                it.latitude = archived.latitude
+                it.longitude = archived.longitude
+            }
+            if (!it.deviceTelemetry.hasDeviceMetrics()) it.deviceTelemetry = archived.deviceTelemetry
+            if (!it.environmentTelemetry.hasEnvironmentMetrics()) it.environmentTelemetry = archived.environmentTelemetry
+            if (it.nodeStatus == null) it.nodeStatus = archived.nodeStatus
+        }
+    }
+
+    private fun defaultNodeInfo(n: Int): NodeEntity {
         val userId = DataPacket.nodeNumToDefaultId(n)
         val defaultUser = user {
             id = userId
@@ -612,7 +791,7 @@ class MeshService : Service(), Logging {
             hwModel = MeshProtos.HardwareModel.UNSET
         }
 
-        NodeEntity(
+        return NodeEntity(
             num = n,
             user = defaultUser,
             longName = defaultUser.longName,
@@ -657,27 +836,15 @@ class MeshService : Service(), Logging {
             it.shortName = updatedUser.shortName
         }
 
-        serviceScope.handledLaunch {
-            val now = System.currentTimeMillis()
-            val updated = nodeRegistryRepository.updateNodeInfo(
+        nodeRegistryWriteBuffer.submit(
+            NodeRegistryUpdate(
                 nodeId = node.userId,
+                lastSeen = System.currentTimeMillis(),
                 nodeNum = node.nodeNum,
                 longName = node.longName,
                 shortName = node.shortName,
-                lastSeen = now,
             )
-
-            if (updated == 0) {
-                nodeRegistryRepository.insertNodeInfo(
-                    nodeId = node.userId,
-                    nodeNum = node.nodeNum,
-                    longName = node.longName,
-                    shortName = node.shortName,
-                    defaultName = "Meshtastic ${node.userId.takeLast(n = 4)}",
-                    lastSeen = now,
-                )
-            }
-        }
+        )
     }
 
     //fixme! this method currently overwrites existing nodes (even ournode)!
@@ -709,15 +876,11 @@ class MeshService : Service(), Logging {
         val info = getOrCreateNodeInfo(nodeNum)
         updateFn(info)
 
-        if (info.user.id.isNotEmpty() && haveNodeDB) {
-            serviceScope.handledLaunch {
-                radioConfigRepository.upsert(info)
-            }
-        }
-
-        if (withBroadcast) {
-            serviceBroadcasts.broadcastNodeChange(info.toNodeInfo())
-        }
+        nodeUpdateDispatcher.markChanged(
+            nodeNum = nodeNum,
+            persist = info.user.id.isNotEmpty() && haveNodeDB,
+            broadcast = withBroadcast,
+        )
     }
 
     // My node num
@@ -837,8 +1000,7 @@ class MeshService : Service(), Logging {
 
         var priority = MeshPacket.Priority.UNSET
 
-        val beaconing = getPreferences(this)
-            .getBoolean(PREF_STRESSTEST_ENABLED, false)
+        val beaconing = beaconingSetting.value
 
         if(beaconing || p.dataType == Portnums.PortNum.TEXT_MESSAGE_COMPRESSED_APP_VALUE){
             priority = MeshPacket.Priority.ALERT
@@ -931,6 +1093,7 @@ class MeshService : Service(), Logging {
                 }
 
                 if(chatIsFocused){
+                    notificationAggregator.clear(contactKey)
                     clearUnreadCount(contactKey, now)
                 }
             }
@@ -962,6 +1125,7 @@ class MeshService : Service(), Logging {
         }
 
         if (packet.hopStart - packet.hopLimit == 0) {
+            observeRelay(packet.from, packet)
 
             radioConfigRepository.emitRelayEvent(
                 RelayEvent(
@@ -973,6 +1137,10 @@ class MeshService : Service(), Logging {
                 )
             )
         } else if (packet.relayNode != 0) {
+            radioConfigRepository.getRelayNode(packet.relayNode)
+                ?.takeIf { it.confidence >= TOPOLOGY_RELAY_MIN_CONFIDENCE }
+                ?.let { observeRelay(it.node.num, packet) }
+
             radioConfigRepository.emitRelayEvent(
                 RelayEvent(
                     relayNodeLastByte = packet.relayNode,
@@ -983,6 +1151,15 @@ class MeshService : Service(), Logging {
         }
     }
 
+    /** [relay] handed us [packet] over the air. */
+    private fun observeRelay(relay: Int, packet: MeshPacket) {
+        val ourNum = myNodeInfo?.myNodeNum ?: return
+        if (packet.viaMqtt) return
+        topologyRepository.observe(
+            listOf(MeshLink(relay, ourNum, TopologySource.RELAY, packet.rxSnr, System.currentTimeMillis()))
+        )
+    }
+
     private fun parseLastRespondingTracerouteNode(traceResponse: String): String?{
 
         try {
@@ -1045,7 +1222,7 @@ class MeshService : Service(), Logging {
                     }
 
                     Portnums.PortNum.WAYPOINT_APP_VALUE -> {
-                        val u = MeshProtos.Waypoint.parseFrom(data.payload)
+                        val u = dataPacket.waypoint ?: return
                         // Validate locked Waypoints from the original sender
                         if (u.lockedTo != 0 && u.lockedTo != packet.from) return
                         rememberDataPacket(dataPacket, u.expire > currentSecond())
@@ -1059,9 +1236,7 @@ class MeshService : Service(), Logging {
 
                         } else {
 
-                            val positionPayload = AppUtil.mergePacketAndPayload(myNodeID, packet)
-
-                            huntHttpService.maybeSendDataJsonAsync(huntingPrefs, positionPayload)
+                            forwardToHunt(packet)
                             handleReceivedPosition(packet.from, u, dataPacket.time)
                         }
                     }
@@ -1073,9 +1248,7 @@ class MeshService : Service(), Logging {
                                 if (packet.viaMqtt) longName = "$longName (MQTT)"
                             }
 
-                            val telemetryPayload = AppUtil.mergePacketAndPayload(myNodeID, packet)
-
-                            huntHttpService.maybeSendDataJsonAsync(huntingPrefs, telemetryPayload)
+                            forwardToHunt(packet)
 
                             handleReceivedUser(packet.from, u, packet.channel)
                         }
@@ -1085,10 +1258,8 @@ class MeshService : Service(), Logging {
                         val u = TelemetryProtos.Telemetry.parseFrom(data.payload)
                             .copy { if (time == 0) time = (dataPacket.time / 1000L).toInt() }
 
-                        val telemetryPayload = AppUtil.mergePacketAndPayload(myNodeID, packet)
-
                         if (!fromUs) {
-                            huntHttpService.maybeSendDataJsonAsync(huntingPrefs, telemetryPayload)
+                            forwardToHunt(packet)
                         }
 
                         handleReceivedTelemetry(packet.from, u)
@@ -1143,14 +1314,19 @@ class MeshService : Service(), Logging {
                     Portnums.PortNum.TRACEROUTE_APP_VALUE -> {
 
                         //val fullTracePayload = packet.buildTracerouteJson(myNodeID) {nodeNum -> getUserName(nodeNum)}
-                        //fixme move this logic in #maybeSendDataJsonAsync
-                        val traceroutePayload = AppUtil.mergePacketAndPayload(myNodeID, packet)
-
-                        huntHttpService.maybeSendDataJsonAsync(huntingPrefs, traceroutePayload)
+                        forwardToHunt(packet)
+                        topologyRepository.observe(packet.getTracerouteLinks(System.currentTimeMillis()))
 
                         maybeShowTraceResultToast(fromUs, packet)
 
-                        if(!huntingPrefs.getBoolean(UserPrefs.Hunting.BACKGROUND_HUNT, false)){
+                        // the route back names the node that relayed it to us, teach the relay lookup
+                        if (packet.to == myInfo.myNodeNum && packet.relayNode != 0) {
+                            packet.lastTracerouteRelayer?.let { relayer ->
+                                radioConfigRepository.confirmRelayNode(packet.relayNode, relayer)
+                            }
+                        }
+
+                        if(!huntSettings.value.background){
                             val requestId = packet.decoded.requestId
                             val start = tracerouteStartTimes.remove(requestId)
                             traceRouteResponse = packet.getTracerouteResponse(::getUserName)
@@ -1169,14 +1345,13 @@ class MeshService : Service(), Logging {
                     Portnums.PortNum.NEIGHBORINFO_APP_VALUE -> {
                         //fixme, overwrites existing nodes on our db
                         //persistNeighborDiscoveryNodes(packet)
+                        topologyRepository.observe(packet.getNeighborInfoLinks(System.currentTimeMillis()))
 
                         val ourRequestId = ourNeighborRequests.remove(
                             packet.decoded.requestId
                         )
 
-                        val backgroundHunting = huntingPrefs.getBoolean(
-                            UserPrefs.Hunting.BACKGROUND_HUNT, false
-                        )
+                        val backgroundHunting = huntSettings.value.background
 
                         if(ourRequestId != null && !backgroundHunting){
                             //we are only interested in requests generated by this client
@@ -1212,6 +1387,14 @@ class MeshService : Service(), Logging {
         }
     }
 
+    /** Forward a received packet to the hunt server, building its JSON only when hunting is on. */
+    private fun forwardToHunt(packet: MeshPacket) {
+        val settings = huntSettings.value
+        if (settings.canUpload) {
+            huntHttpService.maybeSendDataJsonAsync(settings, AppUtil.mergePacketAndPayload(myNodeID, packet))
+        }
+    }
+
     private fun maybeShowTraceResultToast(fromUs: Boolean,
                                           packet: MeshPacket){
         if (!fromUs && packet.wantAck) {
@@ -1289,75 +1472,35 @@ class MeshService : Service(), Logging {
                 it.isFavorite = false
             }
 
-            val muteNodeInfoPrefs = advancedPrefs.getBoolean(MUTE_NODEINFO_NOTIFICATIONS, false)
+            val muteNodeInfoPrefs = advancedSettings.value.muteNodeInfoNotifications
 
             if (newNode && !dbImport && !muteNodeInfoPrefs) {
-                serviceNotifications.showNewNodeSeenNotification(it)
+                notificationAggregator.onNewNode(NewNodeAlert(it.num, it.user.shortName, it.user.longName))
             }
         }
     }
 
     private fun updateOrInsertNodeRegistry(fromNum: Int, p: MeshProtos.User){
-
-        serviceScope.handledLaunch {
-
-            val now = System.currentTimeMillis()
-
-            val updated = nodeRegistryRepository.updateNodeInfo(
+        nodeRegistryWriteBuffer.submit(
+            NodeRegistryUpdate(
                 nodeId = p.id,
+                lastSeen = System.currentTimeMillis(),
                 nodeNum = fromNum,
                 longName = p.longName,
                 shortName = p.shortName,
-                lastSeen = now
             )
-
-            if(updated == 0){
-                nodeRegistryRepository.insertNodeInfo(
-                    nodeId = p.id,
-                    nodeNum = fromNum,
-                    longName = p.longName,
-                    shortName = p.shortName,
-                    defaultName = "Meshtastic ${p.id.takeLast(n = 4)}",
-                    lastSeen = now
-                )
-                debug("INSERT NodeRegistry ${p.id} NODEUSER entry")
-            } else {
-                debug("UPDATE NodeRegistry ${p.id} NODEUSER entry")
-            }
-        }
+        )
     }
 
     private fun updateOrInsertNodeRegistryPosition(nodeId: String, p: MeshProtos.Position){
-
-        serviceScope.handledLaunch {
-
-            val now = System.currentTimeMillis()
-
-            val updated = nodeRegistryRepository.updatePosition(
+        nodeRegistryWriteBuffer.submit(
+            NodeRegistryUpdate(
                 nodeId = nodeId,
+                lastSeen = System.currentTimeMillis(),
                 latitudeI = p.latitudeI,
                 longitudeI = p.longitudeI,
-                lastSeen = now
             )
-
-            if (updated == 0) {
-
-                val defaultName = "Meshtastic ${nodeId.takeLast(n = 4)}"
-
-                nodeRegistryRepository.insertNodeRegistryPosition(
-                    nodeId = nodeId,
-                    longName = defaultName,
-                    defaultName = defaultName,
-                    shortName = nodeId.takeLast(n = 4),
-                    latitudeI = p.latitudeI,
-                    longitudeI = p.longitudeI,
-                    lastSeen = now
-                )
-                debug("INSERT NodeRegistry $nodeId POSITION entry")
-            } else {
-                debug("UPDATE NodeRegistry $nodeId POSITION entry")
-            }
-        }
+        )
     }
 
     /** Update our DB of users based on someone sending out a Position subpacket
@@ -1375,10 +1518,7 @@ class MeshService : Service(), Logging {
             debug("Ignoring nop position update for the local node")
         } else {
             updateNodeInfo(fromNum) {
-
-                serviceScope.handledLaunch {
-                    updateOrInsertNodeRegistryPosition(it.user.id, p)
-                }
+                updateOrInsertNodeRegistryPosition(it.user.id, p)
 
                 debug("update position: ${it.longName?.toPIIString()} with ${p.toPIIString()}")
                 it.setPosition(p, (defaultTime / 1000L).toInt())
@@ -1408,6 +1548,9 @@ class MeshService : Service(), Logging {
         }
 
         if (t.hasDeviceMetrics()) {
+            if (fromNum == myNodeInfo?.myNodeNum) {
+                DistressService.setLocalMetrics(t.deviceMetrics.batteryLevel, t.deviceMetrics.channelUtilization)
+            }
             maybeUpdateLowBatteryAlert(fromNum)
         }
     }
@@ -1424,7 +1567,7 @@ class MeshService : Service(), Logging {
         }
 
         val node = nodeDBbyNodeNum[nodeNum] ?: return
-        val settings = uiPrefs.getBatteryAlertSettings()
+        val settings = batteryAlertSettings.value
 
         val source = if (myNodeInfo?.myNodeNum == nodeNum) {
             BatteryAlertSource.CONNECTED_NODE
@@ -1517,12 +1660,20 @@ class MeshService : Service(), Logging {
         }
     }
 
+    // Rebroadcasts, store-and-forward replays and MQTT copies of packets we already handled
+    private val packetDedup = PacketDedupCache()
+
     // If apps try to send packets when our radio is sleeping, we queue them here instead
     private val offlineSentPackets = mutableListOf<DataPacket>()
 
     // Update our model and resend as needed for a MeshPacket we just received from the radio
     private fun handleReceivedMeshPacket(packet: MeshPacket) {
         if (haveNodeDB) {
+            // Only packets we can read are remembered, an undecoded copy must not hide a decoded one
+            if (packet.hasDecoded() && packetDedup.isDuplicate(packet)) {
+                debug("Dropping duplicate packet ${packet.id} from ${packet.from} via ${PacketSource.of(packet)}, ${packetDedup.stats}")
+                return
+            }
             processReceivedMeshPacket(packet.toBuilder().apply {
                 // If the rxTime was not set by the device, update with current time
                 if (packet.rxTime == 0) setRxTime(currentSecond())
@@ -1960,7 +2111,7 @@ class MeshService : Service(), Logging {
 
             try {
                 //we want to try this and in case of failure, continue
-                if(advancedPrefs.getBoolean(SKIP_MQTT_ENTIRELY, false) &&
+                if(advancedSettings.value.skipMqtt &&
                     (proto.packet.viaMqtt || proto.packet.transportMechanism == MeshPacket.TransportMechanism.TRANSPORT_MQTT)){
 
                     debug("Skipping MQTT packet since $SKIP_MQTT_ENTIRELY prefs are set to true")
@@ -2060,11 +2211,10 @@ class MeshService : Service(), Logging {
     }
 
     /**
-     * Convert a protobuf NodeInfo into our model objects and update our node DB
+     * Convert a protobuf NodeInfo into our model object, as if we had never heard of the node before
      */
-    private fun installNodeInfo(info: MeshProtos.NodeInfo) {
-        // Just replace/add any entry
-        updateNodeInfo(info.num) {
+    private fun nodeInfoOf(info: MeshProtos.NodeInfo): NodeEntity =
+        defaultNodeInfo(info.num).also {
             if (info.hasUser()) {
                 it.user = info.user.copy {
                     if (isLicensed) clearPublicKey()
@@ -2100,6 +2250,20 @@ class MeshService : Service(), Logging {
             it.role = info.user.role.name
             it.nodeStatus = maybeKeepStatusMessage(info.num)
         }
+
+    /**
+     * Bring our node DB in line with the one the radio sent on (re)connect. Nodes that didn't
+     * change keep their entries and aren't broadcast; the stored copy gets the same treatment
+     * in [com.geeksville.mesh.database.NodeRepository.installNodeDB].
+     */
+    private fun installNodeDB(infos: List<MeshProtos.NodeInfo>) {
+        val diff = NodeDbDiff.of(nodeDBbyNodeNum, infos.map(::nodeInfoOf))
+        diff.deleted.forEach { nodeDBbyNodeNum.remove(it) }
+        diff.upserts.forEach { node ->
+            nodeDBbyNodeNum[node.num] = node
+            nodeUpdateDispatcher.markChanged(nodeNum = node.num, persist = false, broadcast = true)
+        }
+        debug("Node DB reconciled in memory: $diff")
     }
 
     private fun maybeKeepStatusMessage(nodeNum: Int) : String? {
@@ -2247,6 +2411,8 @@ class MeshService : Service(), Logging {
             }.catch { throwable ->
                 radioConfigRepository.setErrorMessage("MqttClientProxy failed: $throwable")
             }.launchIn(serviceScope)
+        } else {
+            mqttRepository.clearOutbox()
         }
     }
 
@@ -2286,15 +2452,20 @@ class MeshService : Service(), Logging {
             if (newMyNodeInfo == null || newNodes.isEmpty()) {
                 errormsg("Did not receive a valid config")
             } else {
-                discardNodeDB()
+                haveNodeDB = false
+                clearLowBatteryAlertState()
                 debug("Installing new node DB")
                 myNodeInfo = newMyNodeInfo
 
-                newNodes.forEach(::installNodeInfo)
+                installNodeDB(newNodes)
                 newNodes.clear() // Just to save RAM ;-)
 
+                val nodes = nodeDBbyNodeNum.values.toList()
                 serviceScope.handledLaunch {
-                    radioConfigRepository.installNodeDB(myNodeInfo!!, nodeDBbyNodeNum.values.toList())
+                    val diff = radioConfigRepository.installNodeDB(myNodeInfo!!, nodes)
+                    archivedNodeNums += diff.deleted
+                    archivedNodeNums -= diff.inserted.map { it.num }.toSet()
+                    debug("Node DB stored: $diff")
                 }
 
                 haveNodeDB = true // we now have nodes from real hardware
@@ -2534,7 +2705,7 @@ class MeshService : Service(), Logging {
         // per https://blog.classycode.com/dealing-with-exceptions-in-aidl-9ba904c6d63
         override fun subscribeReceiver(packageName: String, receiverName: String) =
             toRemoteExceptions {
-                clientPackages[receiverName] = packageName
+                serviceBroadcasts.subscribe(packageName, receiverName)
             }
 
         override fun getUpdateStatus(): Int = -4 // ProgressNotStarted
@@ -2790,9 +2961,7 @@ class MeshService : Service(), Logging {
 
             var priority = MeshPacket.Priority.UNSET
 
-            advancedPrefs.getBoolean(TRACE_MAX_PRIORITY_PREF, false).let{
-                if(it) priority = MeshPacket.Priority.MAX
-            }
+            if (advancedSettings.value.traceMaxPriority) priority = MeshPacket.Priority.MAX
 
             tracerouteStartTimes[requestId] = System.currentTimeMillis()
 
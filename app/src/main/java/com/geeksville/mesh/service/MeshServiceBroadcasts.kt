@@ -23,30 +23,102 @@ import android.os.Parcelable
 import com.geeksville.mesh.DataPacket
 import com.geeksville.mesh.MessageStatus
 import com.geeksville.mesh.NodeInfo
+import org.meshtastic.proto.Portnums
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
 
 class MeshServiceBroadcasts(
     private val context: Context,
-    private val clientPackages: MutableMap<String, String>,
     private val getConnectionState: () -> MeshService.ConnectionState
 ) {
+    // Binder calls for every client add up on a busy mesh, so they leave the packet thread
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor { r ->
+        Thread(r, "MeshServiceBroadcasts").apply { isDaemon = true }
+    }
+
+    // broadcasts queued before close() still go out, anything published after it is dropped
+    private val fanoutExecutor = Executor { task ->
+        try {
+            executor.execute(task)
+        } catch (ex: RejectedExecutionException) {
+            MeshService.debug("Dropping broadcast after close")
+        }
+    }
+
+    private val fanout = BroadcastFanout<Intent>(fanoutExecutor) { client, intent ->
+        if (client != null) intent.setClassName(client.packageName, client.receiverName)
+        else intent.component = null
+        context.sendBroadcast(intent)
+    }
+
+    val stats: BroadcastFanoutStats get() = fanout.stats
+
+    /**
+     * Register a manifest declared receiver for explicit broadcasts. Only the actions its intent
+     * filters declare are sent to it; if those can't be read every action is, as before.
+     */
+    fun subscribe(packageName: String, receiverName: String) = fanoutExecutor.execute {
+        val client = BroadcastClient(packageName, receiverName)
+        val actions = try {
+            receiverActions(packageName)[receiverName]
+        } catch (ex: Exception) {
+            MeshService.warn("Could not read the receivers of $packageName: ${ex.message}")
+            null
+        }
+        MeshService.info("Subscribed $packageName/$receiverName to ${actions?.size ?: "all"} actions")
+        fanout.subscribe(client, actions)
+    }
+
+    // package -> its lastUpdateTime and the known actions of each of its receivers, only used on the executor
+    private val declaredActions = mutableMapOf<String, Pair<Long, Map<String, Set<String>>>>()
+
+    /**
+     * The known actions each receiver in [packageName] declares. That takes a package manager
+     * query per action, so it is done once and redone only when the package is updated.
+     */
+    private fun receiverActions(packageName: String): Map<String, Set<String>> {
+        val pm = context.packageManager
+        val updated = pm.getPackageInfo(packageName, 0).lastUpdateTime
+        declaredActions[packageName]?.let { (at, actions) -> if (at == updated) return actions }
+
+        val actions = mutableMapOf<String, MutableSet<String>>()
+        knownActions.forEach { action ->
+            pm.queryBroadcastReceivers(Intent(action).setPackage(packageName), 0).forEach { info ->
+                info.activityInfo?.name?.let { actions.getOrPut(it) { mutableSetOf() } += action }
+            }
+        }
+        declaredActions[packageName] = updated to actions
+        return actions
+    }
+
+    fun close() = executor.shutdown()
+
     /**
      * Broadcast some received data
      * Payload will be a DataPacket
      */
     fun broadcastReceivedData(payload: DataPacket) {
-
-        explicitBroadcast(
-            Intent(MeshService.actionReceived(payload.dataType)).putExtra(
-                EXTRA_PAYLOAD,
-                payload
-            )
-        )
+        val action = MeshService.actionReceived(payload.dataType)
+        fanout.publish(action) { Intent(action).putExtra(EXTRA_PAYLOAD, payload) }
     }
 
-    fun broadcastNodeChange(info: NodeInfo) {
-        MeshService.debug("Broadcasting node change $info")
-        val intent = Intent(MeshService.ACTION_NODE_CHANGE).putExtra(EXTRA_NODEINFO, info)
-        explicitBroadcast(intent)
+    fun broadcastNodeChange(info: NodeInfo) = broadcastNodeChanges(listOf(info))
+
+    /**
+     * Clients declaring [MeshService.ACTION_NODES_CHANGED] get all of [infos] in one intent,
+     * everybody else one [MeshService.ACTION_NODE_CHANGE] per node.
+     */
+    fun broadcastNodeChanges(infos: List<NodeInfo>) {
+        MeshService.debug("Broadcasting ${infos.size} node changes")
+        fanout.publishBatch(
+            MeshService.ACTION_NODE_CHANGE,
+            MeshService.ACTION_NODES_CHANGED,
+            infos,
+            single = { Intent(MeshService.ACTION_NODE_CHANGE).putExtra(EXTRA_NODEINFO, it) },
+            batch = { Intent(MeshService.ACTION_NODES_CHANGED).putParcelableArrayListExtra(EXTRA_NODEINFOS, ArrayList(it)) },
+        )
     }
 
     fun broadcastMessageStatus(p: DataPacket) = broadcastMessageStatus(p.id, p.status)
@@ -57,11 +129,12 @@ class MeshServiceBroadcasts(
         } else {
             // Do not log, contains PII possibly
             // MeshService.debug("Broadcasting message status $p")
-            val intent = Intent(MeshService.ACTION_MESSAGE_STATUS).apply {
-                putExtra(EXTRA_PACKET_ID, id)
-                putExtra(EXTRA_STATUS, status as Parcelable)
+            fanout.publish(MeshService.ACTION_MESSAGE_STATUS) {
+                Intent(MeshService.ACTION_MESSAGE_STATUS).apply {
+                    putExtra(EXTRA_PACKET_ID, id)
+                    putExtra(EXTRA_STATUS, status as Parcelable)
+                }
             }
-            explicitBroadcast(intent)
         }
     }
 
@@ -69,27 +142,30 @@ class MeshServiceBroadcasts(
      * Broadcast our current connection status
      */
     fun broadcastConnection() {
-        val intent = Intent(MeshService.ACTION_MESH_CONNECTED).putExtra(
-            EXTRA_CONNECTED,
-            getConnectionState().toString()
-        )
-        explicitBroadcast(intent)
+        val state = getConnectionState().toString()
+        fanout.publish(MeshService.ACTION_MESH_CONNECTED) {
+            Intent(MeshService.ACTION_MESH_CONNECTED).putExtra(EXTRA_CONNECTED, state)
+        }
     }
 
-    /**
+    /*
      * See com.geeksville.mesh broadcast intents.
      *
      *     RECEIVED_OPAQUE  for data received from other nodes
      *     NODE_CHANGE  for new IDs appearing or disappearing
+     *     NODES_CHANGED  for several of those at once
      *     ACTION_MESH_CONNECTED for losing/gaining connection to the packet radio
      *         Note: this is not the same as RadioInterfaceService.RADIO_CONNECTED_ACTION,
      *         because it implies we have assembled a valid node db.
      */
-    private fun explicitBroadcast(intent: Intent) {
-        context.sendBroadcast(intent) // We also do a regular (not explicit broadcast) so any context-registered rceivers will work
-        clientPackages.forEach {
-            intent.setClassName(it.value, it.key)
-            context.sendBroadcast(intent)
-        }
+    private val knownActions: List<String> by lazy {
+        listOf(
+            MeshService.ACTION_NODE_CHANGE,
+            MeshService.ACTION_NODES_CHANGED,
+            MeshService.ACTION_MESH_CONNECTED,
+            MeshService.ACTION_MESSAGE_STATUS,
+        ) + Portnums.PortNum.values()
+            .filter { it != Portnums.PortNum.UNRECOGNIZED }
+            .map { MeshService.actionReceived(it.number) }
     }
 }
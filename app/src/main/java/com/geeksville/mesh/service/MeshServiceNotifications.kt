@@ -41,7 +41,7 @@ import org.meshtastic.proto.TelemetryProtos.LocalStats
 @Suppress("TooManyFunctions")
 class MeshServiceNotifications(
     private val context: Context
-) {
+) : NotificationSink {
 
     companion object {
         private const val FIFTEEN_MINUTES_IN_MILLIS = 15L * 60 * 1000
@@ -51,6 +51,8 @@ class MeshServiceNotifications(
         private const val CONNECTED_CRITICAL_BATTERY_ALERT_CHANNEL_ID = "battery_alerts_connected_critical"
         private const val MESH_BATTERY_ALERT_CHANNEL_ID = "battery_alerts_mesh"
         private const val MESH_CRITICAL_BATTERY_ALERT_CHANNEL_ID = "battery_alerts_mesh_critical"
+        private const val NEW_NODES_NOTIFICATION_ID = 102
+        private const val DIGEST_MAX_LINES = 8
     }
 
     private val notificationManager: NotificationManager get() = context.notificationManager
@@ -244,16 +246,21 @@ class MeshServiceNotifications(
         )
     }
 
-    fun updateMessageNotification(contactKey: String, name: String, message: String) =
+    override fun postConversation(contactKey: String, messages: List<NotificationMessage>) =
         notificationManager.notify(
             contactKey.hashCode(), // show unique notifications,
-            createMessageNotification(contactKey, name, message)
+            createMessageNotification(contactKey, messages)
         )
 
-    fun showNewNodeSeenNotification(node: NodeEntity) {
+    override fun postNewNodes(nodes: List<NewNodeAlert>) {
+        val node = nodes.singleOrNull()
         notificationManager.notify(
-            node.num, // show unique notifications
-            createNewNodeSeenNotification(node.user.shortName, node.user.longName)
+            NEW_NODES_NOTIFICATION_ID, // one digest, replaced by the next
+            if (node != null) {
+                createNewNodeSeenNotification(node.shortName, node.longName)
+            } else {
+                createNewNodesDigestNotification(nodes)
+            }
         )
     }
 
@@ -364,19 +371,20 @@ class MeshServiceNotifications(
     }
 
     lateinit var messageNotificationBuilder: NotificationCompat.Builder
-    private fun createMessageNotification(contactKey: String, name: String, message: String): Notification {
+    private fun createMessageNotification(contactKey: String, messages: List<NotificationMessage>): Notification {
         if (!::messageNotificationBuilder.isInitialized) {
             messageNotificationBuilder = commonBuilder(messageChannelId)
         }
-        val person = Person.Builder().setName(name).build()
+        val user = Person.Builder().setName(context.getString(R.string.you)).build()
+        val people = messages.map { it.sender }.distinct().associateWith { Person.Builder().setName(it).build() }
+        val style = NotificationCompat.MessagingStyle(user)
+        messages.forEach { style.addMessage(it.text, it.timeMs, people.getValue(it.sender)) }
         with(messageNotificationBuilder) {
             setContentIntent(openMessageIntent(contactKey))
             priority = NotificationCompat.PRIORITY_DEFAULT
             setCategory(Notification.CATEGORY_MESSAGE)
             setAutoCancel(true)
-            setStyle(
-                NotificationCompat.MessagingStyle(person).addMessage(message, System.currentTimeMillis(), person)
-            )
+            setStyle(style)
         }
         return messageNotificationBuilder.build()
     }
@@ -404,6 +412,26 @@ class MeshServiceNotifications(
         return newNodeSeenNotificationBuilder.build()
     }
 
+    private fun createNewNodesDigestNotification(nodes: List<NewNodeAlert>): Notification {
+        if (!::newNodeSeenNotificationBuilder.isInitialized) {
+            newNodeSeenNotificationBuilder = commonBuilder(newNodeChannelId)
+        }
+        val style = NotificationCompat.InboxStyle()
+        nodes.take(DIGEST_MAX_LINES).forEach { style.addLine("${it.shortName}  ${it.longName}") }
+        if (nodes.size > DIGEST_MAX_LINES) style.setSummaryText("+${nodes.size - DIGEST_MAX_LINES} more")
+        with(newNodeSeenNotificationBuilder) {
+            priority = NotificationCompat.PRIORITY_DEFAULT
+            setCategory(Notification.CATEGORY_STATUS)
+            setAutoCancel(true)
+            setContentTitle("${nodes.size} New Nodes Seen")
+            setContentText(nodes.joinToString { it.shortName })
+            setStyle(style)
+            setWhen(System.currentTimeMillis())
+            setShowWhen(true)
+        }
+        return newNodeSeenNotificationBuilder.build()
+    }
+
     private fun lowBatteryNotificationId(nodeNum: Int): Int = "battery_alert_$nodeNum".hashCode()
 
     private fun batteryAlertSoundUri(soundUri: String?): Uri =
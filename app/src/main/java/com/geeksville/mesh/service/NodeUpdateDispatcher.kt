@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.service
+
+import com.geeksville.mesh.concurrent.handledLaunch
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Coalesces node changes made by MeshService.
+ *
+ * The in-memory node DB is still mutated immediately; this only defers the side effects. Every
+ * node marked within [windowMs] of the first pending change is handed to [flushFn] once, as a
+ * set to persist (one batched upsert) and a set to broadcast (one NODE_CHANGE each), carrying
+ * whatever the node's latest state is at flush time. Flushes never overlap, so the writes for
+ * any single node always land in the order they were made. If [flushFn] throws, its nodes are
+ * marked again and retried after another window.
+ */
+class NodeUpdateDispatcher(
+    private val scope: CoroutineScope,
+    private val windowMs: Long = DEFAULT_WINDOW_MS,
+    private val flushFn: suspend (persist: Set<Int>, broadcast: Set<Int>) -> Unit,
+) {
+    private val lock = Any()
+    private val flushMutex = Mutex()
+    private var persist = LinkedHashSet<Int>()
+    private var broadcast = LinkedHashSet<Int>()
+    private var timerJob: Job? = null
+
+    private val _changes = AtomicLong()
+    private val _flushes = AtomicLong()
+    private val _persisted = AtomicLong()
+    private val _broadcasts = AtomicLong()
+
+    /** Number of [markChanged] calls so far. */
+    val changeCount: Long get() = _changes.get()
+
+    /** Number of non-empty flushes, i.e. batched DB writes at most. */
+    val flushCount: Long get() = _flushes.get()
+
+    /** Number of node rows handed over for persisting. */
+    val persistedCount: Long get() = _persisted.get()
+
+    /** Number of node change broadcasts handed over. */
+    val broadcastCount: Long get() = _broadcasts.get()
+
+    fun markChanged(nodeNum: Int, persist: Boolean, broadcast: Boolean) {
+        if (!persist && !broadcast) return
+        _changes.incrementAndGet()
+        synchronized(lock) {
+            if (persist) this.persist.add(nodeNum)
+            if (broadcast) this.broadcast.add(nodeNum)
+            armTimer()
+        }
+    }
+
+    /** Schedule a flush [windowMs] from now unless one is already scheduled. Call with [lock] held. */
+    private fun armTimer() {
+        if (timerJob != null) return
+        timerJob = scope.handledLaunch {
+            delay(windowMs)
+            flush()
+        }
+    }
+
+    /** Hand over everything pending now and wait for [flushFn] to finish. */
+    suspend fun flush() = flushMutex.withLock {
+        val (toPersist, toBroadcast) = synchronized(lock) {
+            val drained = persist to broadcast
+            persist = LinkedHashSet()
+            broadcast = LinkedHashSet()
+            timerJob = null
+            drained
+        }
+        if (toPersist.isEmpty() && toBroadcast.isEmpty()) return@withLock
+
+        try {
+            flushFn(toPersist, toBroadcast)
+        } catch (ex: Throwable) {
+            requeue(toPersist, toBroadcast)
+            throw ex
+        }
+        _flushes.incrementAndGet()
+        _persisted.addAndGet(toPersist.size.toLong())
+        _broadcasts.addAndGet(toBroadcast.size.toLong())
+    }
+
+    private fun requeue(toPersist: Set<Int>, toBroadcast: Set<Int>) = synchronized(lock) {
+        persist.addAll(toPersist)
+        broadcast.addAll(toBroadcast)
+        // flush() cleared the timer, so without this nothing retries until the next change
+        armTimer()
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW_MS = 250L
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.service
+
+import java.util.concurrent.atomic.AtomicLong
+
+data class NotificationMessage(
+    val sender: String,
+    val text: String,
+    val timeMs: Long,
+)
+
+data class NewNodeAlert(
+    val num: Int,
+    val shortName: String,
+    val longName: String,
+)
+
+/** Where the aggregator's notifications end up, [MeshServiceNotifications] in the app. */
+interface NotificationSink {
+    /** Post or replace the notification for [contactKey], [messages] oldest first. */
+    fun postConversation(contactKey: String, messages: List<NotificationMessage>)
+
+    /** Post or replace the new node notification with the nodes found since the last one. */
+    fun postNewNodes(nodes: List<NewNodeAlert>)
+}
+
+/**
+ * Allows bursts of up to [capacity] and one more every [refillIntervalMs] after that.
+ * Not thread safe.
+ */
+class TokenBucket(
+    private val capacity: Int,
+    private val refillIntervalMs: Long,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    private var tokens = capacity
+    private var refilledAt = clock()
+
+    private fun refill(now: Long) {
+        val earned = (now - refilledAt) / refillIntervalMs
+        if (earned <= 0) return
+        if (tokens + earned >= capacity) {
+            tokens = capacity
+            refilledAt = now
+        } else {
+            tokens += earned.toInt()
+            refilledAt += earned * refillIntervalMs
+        }
+    }
+
+    fun tryAcquire(): Boolean {
+        refill(clock())
+        if (tokens == 0) return false
+        tokens--
+        return true
+    }
+
+    /** How long until [tryAcquire] would succeed, 0 if it would now. */
+    fun msUntilAvailable(): Long {
+        val now = clock()
+        refill(now)
+        return if (tokens > 0) 0 else refillIntervalMs - (now - refilledAt)
+    }
+}
+
+data class NotificationAggregatorStats(
+    val messages: Long,
+    val conversationPosts: Long,
+    val newNodes: Long,
+    val nodeDigests: Long,
+    /** Times the token bucket held pending notifications back. */
+    val throttled: Long,
+)
+
+/**
+ * Sits between incoming traffic and the NotificationManager, which drops updates past a few a
+ * second per app.
+ *
+ * Messages are grouped per contact: each conversation keeps its last [historySize] messages and
+ * is posted as a whole, and messages arriving while it waits for its turn ride along in the same
+ * update. New nodes go out as a digest: the first after a quiet [digestIntervalMs] right away,
+ * the rest gathered until the interval is up. Every post takes a token from [bucket],
+ * conversations first; whatever has to wait is posted by a drain asked for through [schedule].
+ */
+class NotificationAggregator(
+    private val sink: NotificationSink,
+    private val schedule: (delayMs: Long) -> Unit,
+    private val clock: () -> Long = System::currentTimeMillis,
+    private val bucket: TokenBucket = TokenBucket(BURST, REFILL_INTERVAL_MS, clock),
+    private val digestIntervalMs: Long = DIGEST_INTERVAL_MS,
+    private val historySize: Int = HISTORY_SIZE,
+) {
+    companion object {
+        // the platform drops updates past 5 a second, and this never posts more than 5 in one
+        const val BURST = 3
+        const val REFILL_INTERVAL_MS = 500L
+        const val DIGEST_INTERVAL_MS = 60_000L
+        const val HISTORY_SIZE = 8
+    }
+
+    private val lock = Any()
+    private val conversations = HashMap<String, ArrayDeque<NotificationMessage>>()
+    private val dirty = LinkedHashSet<String>() // waiting to be posted, oldest first
+    private val pendingNodes = LinkedHashMap<Int, NewNodeAlert>()
+    private var lastDigestMs: Long? = null
+    private var drainAt: Long? = null // the earliest drain already scheduled
+
+    private val messages = AtomicLong()
+    private val conversationPosts = AtomicLong()
+    private val newNodes = AtomicLong()
+    private val nodeDigests = AtomicLong()
+    private val throttled = AtomicLong()
+
+    fun onMessage(contactKey: String, sender: String, text: String) {
+        messages.incrementAndGet()
+        synchronized(lock) {
+            val history = conversations.getOrPut(contactKey) { ArrayDeque() }
+            history.addLast(NotificationMessage(sender, text, clock()))
+            while (history.size > historySize) history.removeFirst()
+            dirty += contactKey
+        }
+        drain()
+    }
+
+    fun onNewNode(node: NewNodeAlert) {
+        synchronized(lock) {
+            if (pendingNodes.put(node.num, node) != null) return
+        }
+        newNodes.incrementAndGet()
+        drain()
+    }
+
+    /** Forget a conversation once it has been read, so the next message starts a new one. */
+    fun clear(contactKey: String) = synchronized(lock) {
+        conversations.remove(contactKey)
+        dirty.remove(contactKey)
+    }
+
+    /**
+     * Post whatever the token bucket allows, and ask for a later drain if anything is left.
+     * Posts happen under the lock, so updates to one conversation never overtake each other.
+     */
+    fun drain() {
+        var wait: Long? = null
+        synchronized(lock) {
+            val now = clock()
+            drainAt?.let { if (now >= it) drainAt = null }
+
+            // conversations first, they're what the user is waiting for
+            val keys = dirty.iterator()
+            while (keys.hasNext() && bucket.tryAcquire()) {
+                val key = keys.next()
+                keys.remove()
+                conversations[key]?.let { sink.postConversation(key, it.toList()) }
+                conversationPosts.incrementAndGet()
+            }
+
+            val digestIn = lastDigestMs?.let { digestIntervalMs - (now - it) } ?: 0
+            if (pendingNodes.isNotEmpty() && digestIn <= 0 && dirty.isEmpty() && bucket.tryAcquire()) {
+                sink.postNewNodes(pendingNodes.values.toList())
+                pendingNodes.clear()
+                lastDigestMs = now
+                nodeDigests.incrementAndGet()
+            }
+
+            val next = when {
+                dirty.isNotEmpty() -> bucket.msUntilAvailable()
+                pendingNodes.isNotEmpty() -> maxOf(digestIn, bucket.msUntilAvailable())
+                else -> return
+            }.coerceAtLeast(1)
+            if (dirty.isNotEmpty() || digestIn <= 0) throttled.incrementAndGet()
+            val at = now + next
+            if (drainAt.let { it == null || at < it }) {
+                drainAt = at
+                wait = next
+            }
+        }
+        wait?.let(schedule)
+    }
+
+    val stats: NotificationAggregatorStats
+        get() = NotificationAggregatorStats(
+            messages = messages.get(),
+            conversationPosts = conversationPosts.get(),
+            newNodes = newNodes.get(),
+            nodeDigests = nodeDigests.get(),
+            throttled = throttled.get(),
+        )
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.service
+
+import org.meshtastic.proto.MeshProtos.MeshPacket
+import org.meshtastic.proto.Portnums
+import java.util.EnumMap
+import java.util.concurrent.atomic.AtomicLong
+
+/** How a received packet reached us, as far as the packet itself tells. */
+enum class PacketSource {
+    RADIO,
+    STORE_AND_FORWARD,
+    MQTT;
+
+    companion object {
+        fun of(packet: MeshPacket): PacketSource = when {
+            packet.viaMqtt || packet.transportMechanism == MeshPacket.TransportMechanism.TRANSPORT_MQTT -> MQTT
+            packet.hasDecoded() && packet.decoded.portnum == Portnums.PortNum.STORE_FORWARD_APP -> STORE_AND_FORWARD
+            else -> RADIO
+        }
+    }
+}
+
+data class PacketDedupStats(
+    val seen: Long,
+    val suppressed: Map<PacketSource, Long>,
+    val size: Int,
+) {
+    val suppressedTotal: Long get() = suppressed.values.sum()
+}
+
+/**
+ * Remembers the (from, id) of recently received packets so a rebroadcast, a store-and-forward
+ * replay or an MQTT copy of something we already handled is dropped before it is logged,
+ * stored or notified about again.
+ *
+ * A packet is remembered for [ttlMs] after it was first seen, and at most [maxEntries] packets
+ * are remembered at once (oldest forgotten first). Packets with id 0 were never assigned an id
+ * and are always let through.
+ */
+class PacketDedupCache(
+    private val maxEntries: Int = DEFAULT_MAX_ENTRIES,
+    private val ttlMs: Long = DEFAULT_TTL_MSEC,
+    private val clock: () -> Long = System::currentTimeMillis,
+) {
+    // key -> first seen, in the order first seen
+    private val firstSeen = object : LinkedHashMap<Long, Long>(maxEntries, 0.75f, false) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Long>) = size > maxEntries
+    }
+
+    private val seen = AtomicLong()
+    private val suppressed = EnumMap<PacketSource, AtomicLong>(PacketSource::class.java).apply {
+        PacketSource.entries.forEach { put(it, AtomicLong()) }
+    }
+
+    private fun key(from: Int, id: Int) = (from.toLong() shl 32) or (id.toLong() and 0xffffffffL)
+
+    /**
+     * @return true if (from, id) was already seen within the ttl, counting it against [source];
+     * otherwise remembers it and returns false
+     */
+    @Synchronized
+    fun isDuplicate(from: Int, id: Int, source: PacketSource = PacketSource.RADIO): Boolean {
+        seen.incrementAndGet()
+        if (id == 0) return false
+        val now = clock()
+        expire(now)
+
+        val key = key(from, id)
+        if (key in firstSeen) {
+            suppressed.getValue(source).incrementAndGet()
+            return true
+        }
+        firstSeen[key] = now
+        return false
+    }
+
+    fun isDuplicate(packet: MeshPacket): Boolean = isDuplicate(packet.from, packet.id, PacketSource.of(packet))
+
+    // entries are in first-seen order, so expired ones are all at the front
+    private fun expire(now: Long) {
+        val iterator = firstSeen.values.iterator()
+        while (iterator.hasNext() && now - iterator.next() > ttlMs) iterator.remove()
+    }
+
+    @Synchronized
+    fun clear() = firstSeen.clear()
+
+    val stats: PacketDedupStats
+        @Synchronized get() = PacketDedupStats(
+            seen = seen.get(),
+            suppressed = suppressed.mapValues { it.value.get() },
+            size = firstSeen.size,
+        )
+
+    companion object {
+        const val DEFAULT_MAX_ENTRIES = 4096
+
+        // store-and-forward routers replay hours of history
+        const val DEFAULT_TTL_MSEC = 6 * 60 * 60 * 1000L
+    }
+}
@@ -113,13 +113,15 @@ public class PlanMsgService extends Service {
                     } else {
 
                         Calendar now = Calendar.getInstance();
+                        String today = PlanMsgActivity.DAYS[(now.get(Calendar.DAY_OF_WEEK) + 5) % 7]; // DOM=1 → "DOM"=6
+                        int nowMinutes = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
 
                         for (Map.Entry<String, ScheduledMsg> entry : taskMap.entrySet()) {
 
                             ScheduledMsg m = entry.getValue();
                             String sentKey = entry.getKey();
 
-                            if (shouldSend(now, m.day, m.time)) {
+                            if (m.isDue(today, nowMinutes)) {
 
                                 if (SENT_TODAY.contains(sentKey)) continue;
 
@@ -180,27 +182,6 @@ public class PlanMsgService extends Service {
         }, executor);
     }
 
-    public boolean shouldSend(Calendar now, String day, String time) {
-        //FIXME , this method and the whole service should be redone completely it has been cooked badly and too fast
-        String today = PlanMsgActivity.DAYS[(now.get(Calendar.DAY_OF_WEEK) + 5) % 7]; // DOM=1 → "DOM"=6
-
-        if (!day.equals(today)) return false;
-
-        String[] parts = time.split(":");
-        int scheduledHour = Integer.parseInt(parts[0]);
-        int scheduledMinute = Integer.parseInt(parts[1]);
-
-        int nowHour = now.get(Calendar.HOUR_OF_DAY);
-        int nowMinute = now.get(Calendar.MINUTE);
-
-        int scheduledTotalMinutes = scheduledHour * 60 + scheduledMinute;
-        int nowTotalMinutes = nowHour * 60 + nowMinute;
-
-        int diff = nowTotalMinutes - scheduledTotalMinutes;
-        return diff >= 0 && diff <= 15; //tolleranza di +15 min dell invio (utile in background)
-    }
-
-
     @SuppressWarnings("unused")
     private void removePlanFromSharedPref(ScheduledMsg m) {
 
@@ -418,8 +399,36 @@ public class PlanMsgService extends Service {
     /**
      * @param day  "LUN", "MAR", ...
      * @param time "13:00"
+     * @param minuteOfDay {@code time} parsed once when the plan is loaded, -1 if malformed
      */
-    public record ScheduledMsg(String nodeId, String day, String time, String msg, int toRemove) {
+    public record ScheduledMsg(String nodeId, String day, String time, String msg, int toRemove, int minuteOfDay) {
+
+        public ScheduledMsg(String nodeId, String day, String time, String msg, int toRemove) {
+            this(nodeId, day, time, msg, toRemove, parseMinuteOfDay(time));
+        }
+
+        static int parseMinuteOfDay(String time) {
+            String[] parts = time.split(":");
+            if (parts.length != 2) return -1;
+            try {
+                int hour = Integer.parseInt(parts[0].trim());
+                int minute = Integer.parseInt(parts[1].trim());
+                return hour * 60 + minute;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * @param today      "LUN", "MAR", ...
+         * @param nowMinutes minutes since midnight
+         */
+        public boolean isDue(String today, int nowMinutes) {
+            if (minuteOfDay < 0 || !day.equals(today)) return false;
+            int diff = nowMinutes - minuteOfDay;
+            return diff >= 0 && diff <= 15; //tolleranza di +15 min dell invio (utile in background)
+        }
+
         public String key() {
             return day + " " + time + "@" + nodeId;
         }
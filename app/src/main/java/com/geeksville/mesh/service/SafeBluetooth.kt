@@ -61,10 +61,6 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
     @Volatile
     var state = BluetoothProfile.STATE_DISCONNECTED
 
-    @Volatile
-    private var currentWork: BluetoothContinuation? = null
-    private val workQueue = mutableListOf<BluetoothContinuation>()
-
     // Called for reconnection attemps
     @Volatile
     private var connectionCallback: ((Result<Unit>) -> Unit)? = null
@@ -77,6 +73,21 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
 
     private val serviceScope = CoroutineScope(Dispatchers.IO)
 
+    /// All GATT work goes through here, only currentWork is in flight at any time
+    private val workQueue = GattWorkQueue(serviceScope) { work ->
+        isSettingMtu = false // Most work is not doing MTU stuff, the work that is will re set this flag
+
+        val failThis = simFailures && !work.isConnect() && failRandom.nextInt(100) < failPercent
+        if (failThis) {
+            errormsg("Simulating random work failure!")
+            STATUS_SIMFAILURE
+        } else {
+            0
+        }
+    }
+
+    private val currentWork get() = workQueue.currentWork
+
     /**
      * A BLE status code based error
      */
@@ -86,31 +97,6 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
     private val configurationDescriptorUUID =
         longBLEUUID("2902")
 
-    /**
-     * a schedulable bit of bluetooth work, includes both the closure to call to start the operation
-     * and the completion (either async or sync) to call when it completes
-     */
-    private class BluetoothContinuation(
-        val tag: String,
-        val completion: com.geeksville.mesh.concurrent.Continuation<*>,
-        val timeoutMillis: Long = 0, // If we want to timeout this operation at a certain time, use a non zero value
-        private val startWorkFn: () -> Boolean
-    ) : Logging {
-
-        /// Start running a queued bit of work, return true for success or false for fatal bluetooth error
-        fun startWork(): Boolean {
-            debug("Starting work: $tag")
-            return startWorkFn()
-        }
-
-        override fun toString(): String {
-            return "Work:$tag"
-        }
-
-        /// Connection work items are treated specially
-        fun isConnect() = tag == "connect" || tag == "reconnect"
-    }
-
     /**
      * skanky hack to restart BLE if it says it is hosed
      * https://stackoverflow.com/questions/35103701/ble-android-onconnectionstatechange-not-being-called
@@ -139,10 +125,16 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
 
     // Our own custom BLE status codes
     private val STATUS_RELIABLE_WRITE_FAILED = 4403
-    private val STATUS_TIMEOUT = 4404
-    private val STATUS_NOSTART = 4405
     private val STATUS_SIMFAILURE = 4406
 
+    companion object {
+        /// ATT_MTU before any exchange (BLE 4.0)
+        const val DEFAULT_MTU = 23
+
+        /// Largest ATT_MTU the spec allows, android will settle on the most the device agrees to
+        const val MAX_MTU = 517
+    }
+
     /**
      * Should we automatically try to reconnect when we lose our connection?
      *
@@ -263,14 +255,21 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
         }
 
         override fun onMtuChanged(gatt: BluetoothGatt, mtu: Int, status: Int) {
-            // Alas, passing back an Int mtu isn't working and since I don't really care what MTU
-            // the device was willing to let us have I'm just punting and returning Unit
-            if (isSettingMtu)
+            // Alas, passing back an Int mtu isn't working, so the negotiated value is kept in [mtu] instead
+            if (isSettingMtu) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    info("MTU is now $mtu")
+                    this@SafeBluetooth.mtu = mtu
+                }
                 completeWork(status, Unit)
-            else
+            } else
                 errormsg("Ignoring bogus onMtuChanged")
         }
 
+        override fun onPhyUpdate(gatt: BluetoothGatt, txPhy: Int, rxPhy: Int, status: Int) {
+            info("PHY update tx=$txPhy rx=$rxPhy status=$status")
+        }
+
         /**
          * Callback triggered as a result of a remote characteristic notification.
          *
@@ -332,143 +331,21 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
         10 // 15% failure is unusably high because of constant reconnects, 7% somewhat usable, 10% pretty bad
     private val failRandom = Random()
 
-    private var activeTimeout: Job? = null
-
-    /// If we have work we can do, start doing it.
-    private fun startNewWork() {
-        logAssert(currentWork == null)
-
-        if (workQueue.isNotEmpty()) {
-            val newWork = workQueue.removeAt(0)
-            currentWork = newWork
-
-            if (newWork.timeoutMillis != 0L) {
-
-                activeTimeout = serviceScope.launch {
-                    // debug("Starting failsafe timer ${newWork.timeoutMillis}")
-                    delay(newWork.timeoutMillis)
-                    errormsg("Failsafe BLE timer expired!")
-                    completeWork(
-                        STATUS_TIMEOUT,
-                        Unit
-                    ) // Throw an exception in that work
-                }
-            }
-
-            isSettingMtu =
-                false // Most work is not doing MTU stuff, the work that is will re set this flag
-
-            val failThis =
-                simFailures && !newWork.isConnect() && failRandom.nextInt(100) < failPercent
-
-            if (failThis) {
-                errormsg("Simulating random work failure!")
-                completeWork(STATUS_SIMFAILURE, Unit)
-            } else {
-                val started = newWork.startWork()
-                if (!started) {
-                    errormsg("Failed to start work, returned error status")
-                    completeWork(
-                        STATUS_NOSTART,
-                        Unit
-                    ) // abandon the current attempt and try for another
-                }
-            }
-        }
-    }
-
     private fun <T> queueWork(
         tag: String,
         cont: Continuation<T>,
         timeout: Long,
+        priority: GattPriority,
+        coalesceKey: Any? = null,
         initFn: () -> Boolean
-    ) {
-        val btCont =
-            BluetoothContinuation(
-                tag,
-                cont,
-                timeout,
-                initFn
-            )
+    ) = workQueue.queueWork(tag, cont, timeout, priority, coalesceKey, initFn)
 
-        synchronized(workQueue) {
-            debug("Enqueuing work: ${btCont.tag}")
-            workQueue.add(btCont)
+    private fun <T : Any> completeWork(status: Int, res: T) = workQueue.completeWork(status, res)
 
-            // if we don't have any outstanding operations, run first item in queue
-            if (currentWork == null)
-                startNewWork()
-        }
-    }
+    private fun failAllWork(ex: Exception) = workQueue.failAllWork(ex)
 
-    /**
-     * Stop any current work
-     */
-    private fun stopCurrentWork() {
-        activeTimeout?.let {
-            it.cancel()
-            activeTimeout = null
-        }
-        currentWork = null
-    }
-
-    /**
-     * Called from our big GATT callback, completes the current job and then schedules a new one
-     */
-    private fun <T : Any> completeWork(status: Int, res: T) {
-        exceptionReporter {
-            // We might unexpectedly fail inside here, but we don't want to pass that exception back up to the bluetooth GATT layer
-
-            // startup next job in queue before calling the completion handler
-            val work =
-                synchronized(workQueue) {
-                    val w = currentWork
-
-                    if (w != null) {
-                        stopCurrentWork() // We are now no longer working on anything
-
-                        startNewWork()
-                    }
-                    w
-                }
-
-            if (work == null)
-                warn("wor completed, but we already killed it via failsafetimer? status=$status, res=$res")
-            else {
-                // debug("work ${work.tag} is completed, resuming status=$status, res=$res")
-                if (status != 0)
-                    work.completion.resumeWithException(
-                        BLEStatusException(
-                            status,
-                            "Bluetooth status=$status while doing ${work.tag}"
-                        )
-                    )
-                else
-                    work.completion.resume(Result.success(res) as Result<Nothing>)
-            }
-        }
-    }
-
-    /**
-     * Something went wrong, abort all queued
-     */
-    private fun failAllWork(ex: Exception) {
-        synchronized(workQueue) {
-            warn("Failing ${workQueue.size} works, because ${ex.message}")
-            workQueue.forEach {
-                try {
-                    it.completion.resumeWithException(ex)
-                } catch (ex: Exception) {
-                    errormsg(
-                        "Mystery exception, why were we informed about our own exceptions?",
-                        ex
-                    )
-                }
-            }
-            workQueue.clear()
-            stopCurrentWork()
-        }
-    }
+    /// How long each class of work waited for its turn on this connection so far
+    val queueDelays: Map<GattPriority, GattQueueDelay> get() = workQueue.queueDelays
 
     /// helper glue to make sync continuations and then wait for the result
     private fun <T> makeSync(wrappedFn: (SyncContinuation<T>) -> Unit): T {
@@ -487,6 +364,7 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
     private fun lowLevelConnect(autoNow: Boolean): BluetoothGatt? {
         currentConnectIsAuto = autoNow
         logAssert(gatt == null)
+        mtu = DEFAULT_MTU
 
         val g = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             device.connectGatt(
@@ -520,7 +398,7 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
         this.autoConnect = autoConnect
 
         // assert(gatt == null) this now might be !null with our new reconnect support
-        queueWork("connect", cont, timeout) {
+        queueWork("connect", cont, timeout, GattPriority.CONTROL) {
 
             // Note: To workaround https://issuetracker.google.com/issues/36995652
             // Always call BluetoothDevice#connectGatt() with autoConnect=false
@@ -546,7 +424,7 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
         cb: (Result<Unit>) -> Unit,
         lostConnectCb: () -> Unit
     ) {
-        logAssert(workQueue.isEmpty())
+        logAssert(workQueue.pendingCount == 0)
         if (currentWork != null)
             throw AssertionError("currentWork was not null: $currentWork")
 
@@ -605,7 +483,7 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
             }
 
             // note - we don't need an init fn (because that would normally redo the connectGatt call - which we don't need)
-            queueWork("reconnect", CallbackContinuation(cb), 0) { -> true }
+            queueWork("reconnect", CallbackContinuation(cb), 0, GattPriority.CONTROL) { -> true }
         } else {
             debug("No connectionCallback registered")
         }
@@ -614,10 +492,11 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
     fun connect(autoConnect: Boolean = false) =
         makeSync<Unit> { queueConnect(autoConnect, it) }
 
+    /// Reads are never coalesced, reading fromradio pops the mailbox
     private fun queueReadCharacteristic(
         c: BluetoothGattCharacteristic,
         cont: Continuation<BluetoothGattCharacteristic>, timeout: Long = 0
-    ) = queueWork("readC ${c.uuid}", cont, timeout) { gatt!!.readCharacteristic(c) }
+    ) = queueWork("readC ${c.uuid}", cont, timeout, GattPriority.CONTROL) { gatt!!.readCharacteristic(c) }
 
     fun asyncReadCharacteristic(
         c: BluetoothGattCharacteristic,
@@ -631,7 +510,7 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
         makeSync { queueReadCharacteristic(c, it, timeout) }
 
     private fun queueDiscoverServices(cont: Continuation<Unit>, timeout: Long = 0) {
-        queueWork("discover", cont, timeout) {
+        queueWork("discover", cont, timeout, GattPriority.CONTROL) {
             gatt?.discoverServices()
                 ?: false // throw BLEException("GATT is null") - if we return false here it is probably because the device is being torn down
         }
@@ -654,7 +533,7 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
     private fun queueRequestMtu(
         len: Int,
         cont: Continuation<Unit>
-    ) = queueWork("reqMtu", cont, 10 * 1000) {
+    ) = queueWork("reqMtu", cont, 10 * 1000, GattPriority.CONTROL, coalesceKey = "reqMtu") {
         isSettingMtu = true
         gatt?.requestMtu(len) ?: false
     }
@@ -668,13 +547,44 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
 
     fun requestMtu(len: Int): Unit = makeSync { queueRequestMtu(len, it) }
 
+    /// The ATT MTU agreed with the device, the BLE default until a requestMtu has succeeded
+    @Volatile
+    var mtu = DEFAULT_MTU
+        private set
+
+    /**
+     * Ask for a shorter connection interval.  This is not a queued GATT operation (there is no
+     * completion callback), so it can be called at any time while connected.
+     */
+    fun requestConnectionPriority(priority: Int = BluetoothGatt.CONNECTION_PRIORITY_HIGH): Boolean =
+        gatt?.requestConnectionPriority(priority) ?: false
+
+    /**
+     * Prefer the LE 2M PHY if both this phone and the OS support it.  The device is free to refuse,
+     * the outcome only shows up in onPhyUpdate.
+     */
+    fun requestLe2MPhy(): Boolean {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return false
+        if (context.bluetoothManager?.adapter?.isLe2MPhySupported != true)
+            return false
+        val g = gatt ?: return false
+        g.setPreferredPhy(
+            BluetoothDevice.PHY_LE_2M_MASK,
+            BluetoothDevice.PHY_LE_2M_MASK,
+            BluetoothDevice.PHY_OPTION_NO_PREFERRED
+        )
+        return true
+    }
+
     private var currentReliableWrite: ByteArray? = null
 
+    /// Writes are never coalesced or reordered, every toradio write is its own packet
     private fun queueWriteCharacteristic(
         c: BluetoothGattCharacteristic,
         v: ByteArray,
         cont: Continuation<BluetoothGattCharacteristic>, timeout: Long = 0
-    ) = queueWork("writeC ${c.uuid}", cont, timeout) {
+    ) = queueWork("writeC ${c.uuid}", cont, timeout, GattPriority.USER) {
         currentReliableWrite = null
         c.value = v
         gatt?.writeCharacteristic(c) ?: false
@@ -699,7 +609,7 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
     private fun queueWriteReliable(
         c: BluetoothGattCharacteristic,
         cont: Continuation<Unit>, timeout: Long = 0
-    ) = queueWork("rwriteC ${c.uuid}", cont, timeout) {
+    ) = queueWork("rwriteC ${c.uuid}", cont, timeout, GattPriority.USER) {
         logAssert(gatt!!.beginReliableWrite())
         currentReliableWrite = c.value.clone()
         gatt?.writeCharacteristic(c) ?: false
@@ -713,10 +623,17 @@ class SafeBluetooth(private val context: Context, private val device: BluetoothD
     fun writeReliable(c: BluetoothGattCharacteristic): Unit =
         makeSync { queueWriteReliable(c, it) }
 
+    /// The descriptor object carries its value, so back to back writes to it only need the last one
     private fun queueWriteDescriptor(
         c: BluetoothGattDescriptor,
         cont: Continuation<BluetoothGattDescriptor>, timeout: Long = 0
-    ) = queueWork("writeD", cont, timeout) { gatt?.writeDescriptor(c) ?: false }
+    ) = queueWork(
+        "writeD",
+        cont,
+        timeout,
+        GattPriority.CONTROL,
+        coalesceKey = "writeD ${c.characteristic?.uuid} ${c.uuid}"
+    ) { gatt?.writeDescriptor(c) ?: false }
 
     fun asyncWriteDescriptor(
         c: BluetoothGattDescriptor,
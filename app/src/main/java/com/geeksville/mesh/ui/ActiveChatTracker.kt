@@ -1,10 +1,13 @@
 package com.geeksville.mesh.ui
 
 import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
 
 object ActiveChatTracker {
 
     private val _activeContactKey = MutableStateFlow<String?>(null)
+    val activeContactKey: StateFlow<String?> = _activeContactKey.asStateFlow()
 
     internal fun setActiveChat(contactKey: String) {
         _activeContactKey.value = contactKey
@@ -17,6 +17,10 @@ import com.emp3r0r7.darkmesh.R
 import com.geeksville.mesh.MainActivity
 import com.geeksville.mesh.android.advancedPrefs
 import com.geeksville.mesh.model.UIViewModel
+import com.geeksville.mesh.repository.location.PREF_SMART_POSITION_ENABLED
+import com.geeksville.mesh.repository.location.PREF_SMART_POSITION_MAX_INTERVAL_S
+import com.geeksville.mesh.repository.location.PREF_SMART_POSITION_MIN_INTERVAL_S
+import com.geeksville.mesh.repository.location.SmartPositionPolicy
 import com.geeksville.mesh.service.DistressService.PREF_STRESSTEST_DEFAULT_PREFIX
 import com.geeksville.mesh.service.DistressService.PREF_STRESSTEST_PREFIX
 import com.geeksville.mesh.ui.AutoDeleteConfig.hoursValues
@@ -46,6 +50,26 @@ object AutoDeleteConfig {
     )
 }
 
+/** Choices offered for the [PREF_SMART_POSITION_MIN_INTERVAL_S] and max interval prefs, in seconds. */
+object SmartPositionConfig {
+
+    val minIntervalSecs = listOf(
+        5,
+        15,
+        30,
+        60,
+    )
+
+    val maxIntervalSecs = listOf(
+        5 * 60,
+        15 * 60,
+        30 * 60,
+        60 * 60,
+    )
+
+    fun label(secs: Int) = if (secs < 60) "$secs s" else "${secs / 60} min"
+}
+
 class AdvancedSettings : AppCompatActivity() {
 
     override fun onCreate(savedInstanceState: Bundle?) {
@@ -99,6 +123,13 @@ class AdvancedSettings : AppCompatActivity() {
 
         val autoDeleteTimeSpinner = findViewById<Spinner>(R.id.autoDeleteTiming)
 
+        val smartPositionSwitch =
+            findViewById<SwitchCompat>(R.id.smartPositionSwitch)
+
+        val smartPositionMinSpinner = findViewById<Spinner>(R.id.smartPositionMinInterval)
+
+        val smartPositionMaxSpinner = findViewById<Spinner>(R.id.smartPositionMaxInterval)
+
         val autoDeleteNodesHoursAdapter = ArrayAdapter(
             this,
             android.R.layout.simple_spinner_item,
@@ -184,6 +215,25 @@ class AdvancedSettings : AppCompatActivity() {
             override fun onNothingSelected(parent: AdapterView<*>) {}
         }
 
+        // smart position lives in the UI prefs, where MeshService reads it
+        val smartDefaults = SmartPositionPolicy()
+        smartPositionSwitch.isChecked = uiModelPrefs.getBoolean(PREF_SMART_POSITION_ENABLED, false)
+        smartPositionSwitch.setOnCheckedChangeListener { _, isChecked ->
+            uiModelPrefs.edit { putBoolean(PREF_SMART_POSITION_ENABLED, isChecked) }
+        }
+        setIntervalSpinner(
+            smartPositionMinSpinner,
+            SmartPositionConfig.minIntervalSecs,
+            PREF_SMART_POSITION_MIN_INTERVAL_S,
+            (smartDefaults.minIntervalMs / 1000).toInt(),
+        )
+        setIntervalSpinner(
+            smartPositionMaxSpinner,
+            SmartPositionConfig.maxIntervalSecs,
+            PREF_SMART_POSITION_MAX_INTERVAL_S,
+            (smartDefaults.maxIntervalMs / 1000).toInt(),
+        )
+
         beaconPrefixBtn.setOnClickListener {
 
             val value = distressBeaconPrefix.text.toString().trim()
@@ -215,6 +265,32 @@ class AdvancedSettings : AppCompatActivity() {
 
     }
 
+    private fun setIntervalSpinner(spinner: Spinner, secs: List<Int>, prefsKey: String, default: Int) {
+        val uiModelPrefs = UIViewModel.getPreferences(this)
+        val adapter = ArrayAdapter(
+            this,
+            android.R.layout.simple_spinner_item,
+            secs.map(SmartPositionConfig::label)
+        )
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item)
+        spinner.adapter = adapter
+
+        val current = uiModelPrefs.getInt(prefsKey, default)
+        spinner.setSelection(secs.indexOf(current).takeIf { it >= 0 } ?: secs.indexOf(default).coerceAtLeast(0))
+
+        spinner.onItemSelectedListener = object : AdapterView.OnItemSelectedListener {
+            override fun onItemSelected(
+                parent: AdapterView<*>,
+                view: View?,
+                position: Int,
+                id: Long
+            ) {
+                uiModelPrefs.edit { putInt(prefsKey, secs[position]) }
+            }
+            override fun onNothingSelected(parent: AdapterView<*>) {}
+        }
+    }
+
     private fun setSwitchListener(
         switchCompat: SwitchCompat,
         prefsFlag: String,
@@ -48,7 +48,9 @@ import androidx.compose.runtime.Composable
 import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.derivedStateOf
 import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
+import androidx.compose.runtime.setValue
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
 import androidx.compose.ui.platform.ComposeView
@@ -71,6 +73,7 @@ import androidx.lifecycle.compose.collectAsStateWithLifecycle
 import com.emp3r0r7.darkmesh.R
 import com.geeksville.mesh.database.entity.MeshLog
 import com.geeksville.mesh.model.DebugViewModel
+import com.geeksville.mesh.ui.components.SimpleAlertDialog
 import com.geeksville.mesh.ui.theme.AppTheme
 import dagger.hilt.android.AndroidEntryPoint
 import java.text.DateFormat
@@ -103,6 +106,7 @@ class DebugFragment : Fragment() {
                                     }
                                 },
                                 actions = {
+                                    RadioCaptureButton(viewModel)
                                     Button(onClick = viewModel::deleteAllLogs) {
                                         Text(text = stringResource(R.string.clear))
                                     }
@@ -121,6 +125,33 @@ class DebugFragment : Fragment() {
     }
 }
 
+/**
+ * Turns the radio capture on, once the user has read that it stores keys in the clear, or off.
+ */
+@Composable
+private fun RadioCaptureButton(viewModel: DebugViewModel) {
+    val captureEnabled by viewModel.captureEnabled.collectAsStateWithLifecycle()
+    var showWarning by remember { mutableStateOf(false) }
+
+    if (showWarning) {
+        SimpleAlertDialog(
+            title = R.string.radio_capture,
+            text = R.string.radio_capture_warning,
+            onConfirm = {
+                viewModel.setCaptureEnabled(true)
+                showWarning = false
+            },
+            onDismiss = { showWarning = false },
+        )
+    }
+    Button(
+        onClick = { if (captureEnabled) viewModel.setCaptureEnabled(false) else showWarning = true },
+        modifier = Modifier.padding(end = 8.dp),
+    ) {
+        Text(text = stringResource(if (captureEnabled) R.string.radio_capture_stop else R.string.radio_capture))
+    }
+}
+
 private val REGEX_ANNOTATED_NODE_ID = Regex("\\(![0-9a-fA-F]{8}\\)$", RegexOption.MULTILINE)
 
 /**
@@ -51,6 +51,7 @@ import androidx.compose.ui.graphics.Path
 import androidx.compose.ui.graphics.StrokeCap
 import androidx.compose.ui.graphics.drawscope.Stroke
 import androidx.compose.ui.platform.LocalConfiguration
+import androidx.compose.ui.platform.LocalDensity
 import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.text.TextStyle
 import androidx.compose.ui.text.font.FontWeight
@@ -67,6 +68,7 @@ import com.geeksville.mesh.ui.theme.DarkGray
 import com.geeksville.mesh.util.GraphUtil
 import com.geeksville.mesh.util.GraphUtil.createPath
 import com.geeksville.mesh.util.GraphUtil.plotPoint
+import com.geeksville.mesh.util.SeriesDownsampleCache
 import org.meshtastic.proto.TelemetryProtos.Telemetry
 
 private val DEVICE_METRICS_COLORS = listOf(Color.Green, Color.Magenta, Color.Cyan)
@@ -109,6 +111,7 @@ fun DeviceMetricsScreen(
                 .fillMaxHeight(fraction = 0.33f),
             data.reversed(),
             selectedTimeFrame,
+            viewModel.chartCache,
             promptInfoDialog = { displayInfoDialog = true }
         )
 
@@ -134,6 +137,7 @@ private fun DeviceMetricsChart(
     modifier: Modifier = Modifier,
     telemetries: List<Telemetry>,
     selectedTime: TimeFrame,
+    chartCache: SeriesDownsampleCache<TimeFrame>,
     promptInfoDialog: () -> Unit
 ) {
 
@@ -164,6 +168,18 @@ private fun DeviceMetricsChart(
         mutableStateOf(selectedTime.dp(screenWidth, time = timeDiff.toLong()))
     }
 
+    /* Only draw what can show up at this width, each series keeps its own extremes */
+    val widthPx = with(LocalDensity.current) { dp.toPx() }.toInt()
+    val chUtil = chartCache.reduce(selectedTime, "chUtil", telemetries, widthPx, { it.time.toLong() }) {
+        it.deviceMetrics.channelUtilization
+    }
+    val airUtil = chartCache.reduce(selectedTime, "airUtil", telemetries, widthPx, { it.time.toLong() }) {
+        it.deviceMetrics.airUtilTx
+    }
+    val battery = chartCache.reduce(selectedTime, "battery", telemetries, widthPx, { it.time.toLong() }) {
+        it.deviceMetrics.batteryLevel.toFloat()
+    }
+
     Row {
         Box(
             contentAlignment = Alignment.TopStart,
@@ -196,27 +212,27 @@ private fun DeviceMetricsChart(
 
                 val height = size.height
                 val width = size.width
-                for (i in telemetries.indices) {
-                    val telemetry = telemetries[i]
 
-                    /* x-value time */
-                    val xRatio = (telemetry.time - oldest.time).toFloat() / timeDiff
-                    val x = xRatio * width
+                /* x-value time */
+                fun xOf(telemetry: Telemetry) = (telemetry.time - oldest.time).toFloat() / timeDiff * width
 
-                    /* Channel Utilization */
+                /* Channel Utilization */
+                for (telemetry in chUtil) {
                     plotPoint(
                         drawContext = drawContext,
                         color = DEVICE_METRICS_COLORS[Device.CH_UTIL.ordinal],
-                        x = x,
+                        x = xOf(telemetry),
                         value = telemetry.deviceMetrics.channelUtilization,
                         divisor = MAX_PERCENT_VALUE
                     )
+                }
 
-                    /* Air Utilization Transmit */
+                /* Air Utilization Transmit */
+                for (telemetry in airUtil) {
                     plotPoint(
                         drawContext = drawContext,
                         color = DEVICE_METRICS_COLORS[Device.AIR_UTIL.ordinal],
-                        x = x,
+                        x = xOf(telemetry),
                         value = telemetry.deviceMetrics.airUtilTx,
                         divisor = MAX_PERCENT_VALUE
                     )
@@ -224,10 +240,10 @@ private fun DeviceMetricsChart(
 
                 /* Battery Line */
                 var index = 0
-                while (index < telemetries.size) {
+                while (index < battery.size) {
                     val path = Path()
                     index = createPath(
-                        telemetries = telemetries,
+                        telemetries = battery,
                         index = index,
                         path = path,
                         oldestTime = oldest.time,
@@ -235,7 +251,7 @@ private fun DeviceMetricsChart(
                         width = width,
                         timeThreshold = selectedTime.timeThreshold()
                     ) { i ->
-                        val telemetry = telemetries.getOrNull(i) ?: telemetries.last()
+                        val telemetry = battery.getOrNull(i) ?: battery.last()
                         val ratio = telemetry.deviceMetrics.batteryLevel / MAX_PERCENT_VALUE
                         val y = height - (ratio * height)
                         return@createPath y
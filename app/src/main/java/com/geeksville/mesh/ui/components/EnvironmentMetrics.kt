@@ -51,6 +51,8 @@ import androidx.compose.ui.graphics.StrokeCap
 import androidx.compose.ui.graphics.asAndroidPath
 import androidx.compose.ui.graphics.asComposePath
 import androidx.compose.ui.graphics.drawscope.Stroke
+import androidx.compose.ui.platform.LocalConfiguration
+import androidx.compose.ui.platform.LocalDensity
 import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.text.TextStyle
 import androidx.compose.ui.text.font.FontWeight
@@ -59,9 +61,11 @@ import androidx.hilt.navigation.compose.hiltViewModel
 import androidx.lifecycle.compose.collectAsStateWithLifecycle
 import com.emp3r0r7.darkmesh.R
 import com.geeksville.mesh.model.MetricsViewModel
+import com.geeksville.mesh.model.TimeFrame
 import com.geeksville.mesh.ui.components.CommonCharts.DATE_TIME_FORMAT
 import com.geeksville.mesh.ui.components.CommonCharts.MS_PER_SEC
 import com.geeksville.mesh.ui.components.CommonCharts.X_AXIS_SPACING
+import com.geeksville.mesh.util.SeriesDownsampleCache
 import org.meshtastic.proto.TelemetryProtos.Telemetry
 import org.meshtastic.proto.copy
 
@@ -134,6 +138,9 @@ fun EnvironmentMetricsScreen(
                 .fillMaxWidth()
                 .fillMaxHeight(fraction = 0.33f),
             telemetries = processedTelemetries.reversed(),
+            selectedTime = selectedTimeFrame,
+            isFahrenheit = state.isFahrenheit,
+            chartCache = viewModel.chartCache,
             promptInfoDialog = { displayInfoDialog = true }
         )
 
@@ -163,6 +170,9 @@ fun EnvironmentMetricsScreen(
 private fun EnvironmentMetricsChart(
     modifier: Modifier = Modifier,
     telemetries: List<Telemetry>,
+    selectedTime: TimeFrame,
+    isFahrenheit: Boolean,
+    chartCache: SeriesDownsampleCache<TimeFrame>,
     promptInfoDialog: () -> Unit
 ) {
     ChartHeader(amount = telemetries.size)
@@ -219,6 +229,21 @@ private fun EnvironmentMetricsChart(
     )
     val diff = max - min
 
+    /* The chart is one screen wide with samples evenly spaced, so buckets are by index rather than time */
+    val widthPx = with(LocalDensity.current) { LocalConfiguration.current.screenWidthDp.dp.toPx() }.toInt()
+    val unit = if (isFahrenheit) "F" else "C"
+    val byIndex: (Int) -> Double = { it.toDouble() }
+    val revision = telemetries.first().time to telemetries.last().time
+    val temperatureIdx = chartCache.indices(selectedTime, "temperature$unit", telemetries.size, widthPx, byIndex, revision) {
+        telemetries[it].environmentMetrics.temperature
+    }
+    val humidityIdx = chartCache.indices(selectedTime, "humidity", telemetries.size, widthPx, byIndex, revision) {
+        telemetries[it].environmentMetrics.relativeHumidity
+    }
+    val iaqIdx = chartCache.indices(selectedTime, "iaq", telemetries.size, widthPx, byIndex, revision) {
+        telemetries[it].environmentMetrics.iaq.toFloat()
+    }
+
     Box(contentAlignment = Alignment.TopStart) {
         ChartOverlay(
             modifier = modifier,
@@ -235,28 +260,8 @@ private fun EnvironmentMetricsChart(
             val spacePerEntry = (width - spacing) / telemetries.size
 
             /* Temperature */
-            var lastTempX = 0f
-            val temperaturePath = Path().apply {
-                for (i in telemetries.indices) {
-                    val envMetrics = telemetries[i].environmentMetrics
-                    val nextEnvMetrics =
-                        (telemetries.getOrNull(i + 1) ?: telemetries.last()).environmentMetrics
-                    val leftRatio = (envMetrics.temperature - min) / diff
-                    val rightRatio = (nextEnvMetrics.temperature - min) / diff
-
-                    val x1 = spacing + i * spacePerEntry
-                    val y1 = height - (leftRatio * height)
-
-                    val x2 = spacing + (i + 1) * spacePerEntry
-                    val y2 = height - (rightRatio * height)
-                    if (i == 0) {
-                        moveTo(x1, y1)
-                    }
-                    lastTempX = (x1 + x2) / 2f
-                    quadraticTo(
-                        x1, y1, lastTempX, (y1 + y2) / 2f
-                    )
-                }
+            val (temperaturePath, lastTempX) = indexedLinePath(temperatureIdx, spacing, spacePerEntry, height) { i ->
+                (telemetries[i].environmentMetrics.temperature - min) / diff
             }
 
             val fillPath = android.graphics.Path(temperaturePath.asAndroidPath())
@@ -288,28 +293,8 @@ private fun EnvironmentMetricsChart(
             )
 
             /* Relative Humidity */
-            var lastHumidityX = 0f
-            val humidityPath = Path().apply {
-                for (i in telemetries.indices) {
-                    val envMetrics = telemetries[i].environmentMetrics
-                    val nextEnvMetrics =
-                        (telemetries.getOrNull(i + 1) ?: telemetries.last()).environmentMetrics
-                    val leftRatio = (envMetrics.relativeHumidity - min) / diff
-                    val rightRatio = (nextEnvMetrics.relativeHumidity - min) / diff
-
-                    val x1 = spacing + i * spacePerEntry
-                    val y1 = height - (leftRatio * height)
-
-                    val x2 = spacing + (i + 1) * spacePerEntry
-                    val y2 = height - (rightRatio * height)
-                    if (i == 0) {
-                        moveTo(x1, y1)
-                    }
-                    lastHumidityX = (x1 + x2) / 2f
-                    quadraticTo(
-                        x1, y1, lastHumidityX, (y1 + y2) / 2f
-                    )
-                }
+            val (humidityPath, lastHumidityX) = indexedLinePath(humidityIdx, spacing, spacePerEntry, height) { i ->
+                (telemetries[i].environmentMetrics.relativeHumidity - min) / diff
             }
 
             val fillHumidityPath = android.graphics.Path(humidityPath.asAndroidPath())
@@ -341,31 +326,8 @@ private fun EnvironmentMetricsChart(
             )
 
             /* Air Quality */
-            var lastIaqX = 0f
-            val iaqPath = Path().apply {
-                for (i in telemetries.indices) {
-                    val envMetrics = telemetries[i].environmentMetrics
-                    val nextEnvMetrics =
-                        (telemetries.getOrNull(i + 1) ?: telemetries.last()).environmentMetrics
-                    val leftRatio = (envMetrics.iaq - min) / diff
-                    val rightRatio = (nextEnvMetrics.iaq - min) / diff
-
-                    val x1 = spacing + i * spacePerEntry
-                    val y1 = height - (leftRatio * height)
-
-                    val x2 = spacing + (i + 1) * spacePerEntry
-                    val y2 = height - (rightRatio * height)
-                    if (i == 0) {
-                        moveTo(x1, y1)
-                    }
-                    lastIaqX = (x1 + x2) / 2f
-                    quadraticTo(
-                        x1,
-                        y1,
-                        lastIaqX,
-                        (y1 + y2) / 2f
-                    )
-                }
+            val (iaqPath, lastIaqX) = indexedLinePath(iaqIdx, spacing, spacePerEntry, height) { i ->
+                (telemetries[i].environmentMetrics.iaq - min) / diff
             }
 
             val fillIaqPath = android.graphics.Path(iaqPath.asAndroidPath())
@@ -404,6 +366,40 @@ private fun EnvironmentMetricsChart(
     Spacer(modifier = Modifier.height(16.dp))
 }
 
+/**
+ * Creates the smoothed line through the samples at [kept] indices, spaced by their index in the full series.
+ *
+ * @param ratio (`index`) -> value scaled to 0..1 of the chart height
+ * @return the [Path] and the x where it ends
+ */
+private fun indexedLinePath(
+    kept: IntArray,
+    spacing: Float,
+    spacePerEntry: Float,
+    height: Float,
+    ratio: (Int) -> Float
+): Pair<Path, Float> {
+    var lastX = 0f
+    val path = Path().apply {
+        for (k in kept.indices) {
+            val i = kept[k]
+            val next = kept.getOrNull(k + 1)
+
+            val x1 = spacing + i * spacePerEntry
+            val y1 = height - (ratio(i) * height)
+
+            val x2 = spacing + (next ?: (i + 1)) * spacePerEntry
+            val y2 = height - (ratio(next ?: i) * height)
+            if (k == 0) {
+                moveTo(x1, y1)
+            }
+            lastX = (x1 + x2) / 2f
+            quadraticTo(x1, y1, lastX, (y1 + y2) / 2f)
+        }
+    }
+    return path to lastX
+}
+
 @Suppress("LongMethod")
 @Composable
 private fun EnvironmentMetricsCard(telemetry: Telemetry, environmentDisplayFahrenheit: Boolean) {
@@ -49,6 +49,7 @@ import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
 import androidx.compose.ui.platform.LocalConfiguration
+import androidx.compose.ui.platform.LocalDensity
 import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.text.TextStyle
 import androidx.compose.ui.text.font.FontWeight
@@ -61,6 +62,7 @@ import com.geeksville.mesh.model.TimeFrame
 import com.geeksville.mesh.ui.components.CommonCharts.DATE_TIME_FORMAT
 import com.geeksville.mesh.ui.components.CommonCharts.MS_PER_SEC
 import com.geeksville.mesh.util.GraphUtil.plotPoint
+import com.geeksville.mesh.util.SeriesDownsampleCache
 import org.meshtastic.proto.MeshProtos.MeshPacket
 
 private val METRICS_COLORS = listOf(Color.Green, Color.Blue)
@@ -106,6 +108,7 @@ fun SignalMetricsScreen(
                 .fillMaxHeight(fraction = 0.33f),
             meshPackets = data.reversed(),
             selectedTimeFrame,
+            viewModel.chartCache,
             promptInfoDialog = { displayInfoDialog = true }
         )
 
@@ -130,6 +133,7 @@ private fun SignalMetricsChart(
     modifier: Modifier = Modifier,
     meshPackets: List<MeshPacket>,
     selectedTime: TimeFrame,
+    chartCache: SeriesDownsampleCache<TimeFrame>,
     promptInfoDialog: () -> Unit
 ) {
     ChartHeader(amount = meshPackets.size)
@@ -163,6 +167,13 @@ private fun SignalMetricsChart(
         mutableStateOf(selectedTime.dp(screenWidth, time = (newest.rxTime - oldest.rxTime).toLong()))
     }
 
+    /* Only draw what can show up at this width, each series keeps its own extremes */
+    val widthPx = with(LocalDensity.current) { dp.toPx() }.toInt()
+    val snr = chartCache.reduce(selectedTime, "snr", meshPackets, widthPx, { it.rxTime.toLong() }) { it.rxSnr }
+    val rssi = chartCache.reduce(selectedTime, "rssi", meshPackets, widthPx, { it.rxTime.toLong() }) {
+        it.rxRssi.toFloat()
+    }
+
     Row {
         YAxisLabels(
             modifier = modifier.weight(weight = .1f),
@@ -193,26 +204,25 @@ private fun SignalMetricsChart(
             /* Plot SNR and RSSI */
             Canvas(modifier = modifier.width(dp)) {
                 val width = size.width
-                /* Plot */
-                for (packet in meshPackets) {
+                fun xOf(packet: MeshPacket) = (packet.rxTime - oldest.rxTime).toFloat() / timeDiff * width
 
-                    val xRatio = (packet.rxTime - oldest.rxTime).toFloat() / timeDiff
-                    val x = xRatio * width
-
-                    /* SNR */
+                /* SNR */
+                for (packet in snr) {
                     plotPoint(
                         drawContext = drawContext,
                         color = METRICS_COLORS[Metric.SNR.ordinal],
-                        x = x,
+                        x = xOf(packet),
                         value = packet.rxSnr - Metric.SNR.min,
                         divisor = snrDiff
                     )
+                }
 
-                    /* RSSI */
+                /* RSSI */
+                for (packet in rssi) {
                     plotPoint(
                         drawContext = drawContext,
                         color = METRICS_COLORS[Metric.RSSI.ordinal],
-                        x = x,
+                        x = xOf(packet),
                         value = packet.rxRssi - Metric.RSSI.min,
                         divisor = rssiDiff
                     )
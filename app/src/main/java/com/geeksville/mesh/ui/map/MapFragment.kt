@@ -72,7 +72,8 @@ import com.geeksville.mesh.android.getLocationPermissions
 import com.geeksville.mesh.android.gpsDisabled
 import com.geeksville.mesh.android.hasGps
 import com.geeksville.mesh.android.hasLocationPermission
-import com.geeksville.mesh.database.entity.Packet
+import com.geeksville.mesh.database.GeoBox
+import com.geeksville.mesh.database.entity.WaypointEntity
 import com.geeksville.mesh.model.MapMode
 import com.geeksville.mesh.model.NeighborDiscoveryMap
 import com.geeksville.mesh.model.Node
@@ -80,6 +81,7 @@ import com.geeksville.mesh.model.TraceRouteMap
 import com.geeksville.mesh.model.UIViewModel
 import com.geeksville.mesh.model.colorizeTracerouteResponse
 import com.geeksville.mesh.model.map.CustomTileSource
+import com.geeksville.mesh.model.map.MarkerReconciler
 import com.geeksville.mesh.model.map.MarkerWithLabel
 import com.geeksville.mesh.model.map.clustering.RadiusMarkerClusterer
 import com.geeksville.mesh.model.neighborDiscoverySnrColor
@@ -112,6 +114,7 @@ import org.osmdroid.tileprovider.tilesource.TileSourcePolicyException
 import org.osmdroid.util.BoundingBox
 import org.osmdroid.util.GeoPoint
 import org.osmdroid.views.MapView
+import org.osmdroid.views.overlay.FolderOverlay
 import org.osmdroid.views.overlay.MapEventsOverlay
 import org.osmdroid.views.overlay.Marker
 import org.osmdroid.views.overlay.Polygon
@@ -151,19 +154,44 @@ class MapFragment : ScreenFragment("Map Fragment"), Logging {
     }
 }
 
+/** Everything a node marker shows, the marker is only touched when this changes. */
+private data class NodeMarkerState(
+    val num: Int,
+    val id: String?,
+    val label: String,
+    val title: String,
+    val snippet: String,
+    val subDescription: String?,
+    val position: GeoPoint,
+    val colors: Pair<Int, Int>,
+    val precisionBits: Int?,
+)
+
+/** Everything a waypoint marker shows, the marker is only touched when this changes. */
+private data class WaypointMarkerState(
+    val id: Int,
+    val label: String,
+    val emoji: String,
+    val title: String,
+    val snippet: String,
+    val position: GeoPoint,
+)
+
 @Composable
 private fun MapView.UpdateMarkers(
-    nodeMarkers: List<MarkerWithLabel>,
-    waypointMarkers: List<MarkerWithLabel>,
+    nodeMarkers: MarkerReconciler<Int, NodeMarkerState, MarkerWithLabel>,
+    nodeStates: Map<Int, NodeMarkerState>,
+    waypointMarkers: MarkerReconciler<Int, WaypointMarkerState, MarkerWithLabel>,
+    waypointStates: Map<Int, WaypointMarkerState>,
     nodeClusterer: RadiusMarkerClusterer
 ) {
-    debug("Showing on map: ${nodeMarkers.size} nodes ${waypointMarkers.size} waypoints")
-    overlays.removeAll { it is MarkerWithLabel }
-    // overlays.addAll(nodeMarkers + waypointMarkers)
-    overlays.addAll(waypointMarkers)
-    nodeClusterer.items.clear()
-    nodeClusterer.items.addAll(nodeMarkers)
-    nodeClusterer.invalidate()
+    val nodeChanges = nodeMarkers.reconcile(nodeStates)
+    val waypointChanges = waypointMarkers.reconcile(waypointStates)
+    if (nodeChanges.isEmpty && waypointChanges.isEmpty) return
+
+    debug("Showing on map: ${nodeStates.size} nodes $nodeChanges, ${waypointStates.size} waypoints $waypointChanges")
+    if (!nodeChanges.isEmpty) nodeClusterer.invalidate() // positions or the set changed, so cluster again
+    invalidate()
 }
 
 //    private fun addWeatherLayer() {
@@ -270,8 +298,21 @@ fun bearing(from: GeoPoint, to: GeoPoint): Double {
 
 
 
+/** Holds the traceroute and neighbor lines, so redrawing them leaves the node and waypoint markers alone. */
+private class RouteLinesOverlay : FolderOverlay()
+
+private fun MapView.routeLines(): RouteLinesOverlay =
+    overlays.filterIsInstance<RouteLinesOverlay>().firstOrNull()
+        ?: RouteLinesOverlay().also { overlays.add(it) }
+
+fun MapView.clearRouteLines() {
+    overlays.filterIsInstance<RouteLinesOverlay>().forEach { folder ->
+        folder.items.toList().forEach { folder.remove(it) }
+    }
+}
+
 fun MapView.drawTraceroute(trace: TraceRouteMap) {
-    overlays.removeAll { it is Polyline || it is Marker }
+    clearRouteLines()
 
     val forwardSegments =
         buildSegmentsForTraceroute(
@@ -291,14 +332,14 @@ fun MapView.drawTraceroute(trace: TraceRouteMap) {
 
 
     (forwardSegments + backSegments).forEach {
-        overlays.add(it.toPolyline())
+        routeLines().add(it.toPolyline())
     }
 
     invalidate()
 }
 
 fun MapView.drawNeighborDiscovery(discovery: NeighborDiscoveryMap) {
-    overlays.removeAll { it is Polyline || it is Marker }
+    clearRouteLines()
 
     discovery.links.mapNotNull { link ->
         buildSegmentForNeighbor(
@@ -309,7 +350,7 @@ fun MapView.drawNeighborDiscovery(discovery: NeighborDiscoveryMap) {
             side = 1,
         )
     }.forEach {
-        overlays.add(it.toPolyline())
+        routeLines().add(it.toPolyline())
     }
 
     invalidate()
@@ -597,14 +638,57 @@ fun MapView(
         AppCompatResources.getDrawable(context, R.drawable.ic_baseline_location_on_24)
     }
 
-    fun MapView.onNodesChanged(nodes: Collection<Node>): List<MarkerWithLabel> {
+    /// The nodes currently on the map, so marker listeners always act on the latest version of a node
+    val shownNodes = remember { HashMap<Int, Node>() }
+
+    fun MarkerWithLabel.show(state: NodeMarkerState) {
+        label = state.label
+        id = state.id
+        title = state.title
+        snippet = state.snippet
+        subDescription = state.subDescription
+        position = state.position
+        setNodeColors(state.colors)
+        setPrecisionBits(state.precisionBits)
+    }
+
+    val nodeMarkers = remember(map, nodeClusterer) {
+        MarkerReconciler<Int, NodeMarkerState, MarkerWithLabel>(
+            create = { state ->
+                MarkerWithLabel(mapView = map, label = state.label).apply {
+                    setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_BOTTOM)
+                    icon = markerIcon
+                    setOnLongClickListener {
+                        performHapticFeedback()
+                        shownNodes[state.num]?.let { node ->
+                            if (!node.isValidNodeLite()) {
+                                model.filterForNode(node, null)
+                            } else {
+                                model.filterForNode(null, node.liteLongName)
+                            }
+                        }
+                        true
+                    }
+                    show(state)
+                }
+            },
+            update = { marker, state -> marker.show(state) },
+            attach = { nodeClusterer.items.add(it) },
+            detach = { nodeClusterer.items.remove(it) },
+        )
+    }
+
+    fun onNodesChanged(nodes: Collection<Node>): Map<Int, NodeMarkerState> {
 
         val nodesWithPosition = nodes.filter { it.validPosition != null || it.isValidNodeLite() }
         val ourNode = model.ourNodeInfo.value
 
         val gpsFormat = AppUtil.safeGpsFormat(model.config.display.gpsFormat)
         val displayUnits = model.config.display.units.number
-        return nodesWithPosition.map { node ->
+
+        shownNodes.clear()
+        return nodesWithPosition.associate { node ->
+            shownNodes[node.num] = node
 
             val (p, u) = node.position to node.user
 
@@ -614,39 +698,19 @@ fun MapView(
                 GeoPoint(node.liteLatitude!!, node.liteLongitude!!)
             }
 
-            MarkerWithLabel(
-                mapView = this,
-                label = if (!node.isValidNodeLite()) "${u.shortName} ${formatAgo(p.time)}" else "${node.liteShortName}"
-
-            ).apply {
-                id = if(!node.isValidNodeLite()) u.id else node.liteNodeId
-                title = if(!node.isValidNodeLite()) "${u.longName} ${node.batteryStr}" else "${node.liteLongName}"
-                snippet = node.gpsString(gpsFormat)
-
-                ourNode?.distanceStr(node, displayUnits)?.let { dist ->
-                    subDescription =
-                        context.getString(R.string.map_subDescription, ourNode.bearing(node), dist)
-                }
-
-                setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_BOTTOM)
-                position = nodePosition
-                icon = markerIcon
-
-                setOnLongClickListener{
-                    performHapticFeedback()
-                    if(!node.isValidNodeLite()){
-                        model.filterForNode(node, null)
-                    } else {
-                        model.filterForNode(null, node.liteLongName)
-                    }
-                    true
-                }
-
-                setNodeColors(node.colors)
-                if(!node.isValidNodeLite()){
-                    setPrecisionBits(p.precisionBits)
-                }
-            }
+            node.num to NodeMarkerState(
+                num = node.num,
+                id = if (!node.isValidNodeLite()) u.id else node.liteNodeId,
+                label = if (!node.isValidNodeLite()) "${u.shortName} ${formatAgo(p.time)}" else "${node.liteShortName}",
+                title = if (!node.isValidNodeLite()) "${u.longName} ${node.batteryStr}" else "${node.liteLongName}",
+                snippet = node.gpsString(gpsFormat),
+                subDescription = ourNode?.distanceStr(node, displayUnits)?.let { dist ->
+                    context.getString(R.string.map_subDescription, ourNode.bearing(node), dist)
+                },
+                position = nodePosition,
+                colors = node.colors,
+                precisionBits = if (!node.isValidNodeLite()) p.precisionBits else null,
+            )
         }
     }
 
@@ -678,7 +742,7 @@ fun MapView(
     fun showMarkerLongPressDialog(id: Int) {
         performHapticFeedback()
         debug("marker long pressed id=$id")
-        val waypoint = waypoints[id]?.data?.waypoint ?: return
+        val waypoint = waypoints[id]?.toProto() ?: return
         // edit only when unlocked or lockedTo myNodeNum
         if (waypoint.lockedTo in setOf(0, model.myNodeNum ?: 0) && model.isConnected()) {
             showEditWaypointDialog = waypoint
@@ -693,25 +757,46 @@ fun MapView(
         model.getUser(id).longName
     }
 
-    fun MapView.onWaypointChanged(waypoints: Collection<Packet>): List<MarkerWithLabel> {
+    fun MarkerWithLabel.show(state: WaypointMarkerState) {
+        label = state.label
+        emoji = state.emoji
+        title = state.title
+        snippet = state.snippet
+        position = state.position
+    }
+
+    val waypointMarkers = remember(map) {
+        MarkerReconciler<Int, WaypointMarkerState, MarkerWithLabel>(
+            create = { state ->
+                MarkerWithLabel(map, state.label, state.emoji).apply {
+                    id = "${state.id}"
+                    setVisible(false)
+                    setOnLongClickListener {
+                        showMarkerLongPressDialog(state.id)
+                        true
+                    }
+                    show(state)
+                }
+            },
+            update = { marker, state -> marker.show(state) },
+            attach = { map.overlays.add(it) },
+            detach = { map.overlays.remove(it) },
+        )
+    }
+
+    fun onWaypointChanged(waypoints: Collection<WaypointEntity>): Map<Int, WaypointMarkerState> {
         val dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT)
-        return waypoints.mapNotNull { waypoint ->
-            val pt = waypoint.data.waypoint ?: return@mapNotNull null
+        return waypoints.associate { pt ->
             val lock = if (pt.lockedTo != 0) "\uD83D\uDD12" else ""
-            val time = dateFormat.format(waypoint.received_time)
-            val label = pt.name + " " + formatAgo((waypoint.received_time / 1000).toInt())
-            val emoji = String(Character.toChars(if (pt.icon == 0) 128205 else pt.icon))
-            MarkerWithLabel(this, label, emoji).apply {
-                id = "${pt.id}"
-                title = "${pt.name} (${getUsername(waypoint.data.from)}$lock)"
-                snippet = "[$time] " + pt.description
-                position = GeoPoint(pt.latitudeI * 1e-7, pt.longitudeI * 1e-7)
-                setVisible(false)
-                setOnLongClickListener {
-                    showMarkerLongPressDialog(pt.id)
-                    true
-                }
-            }
+            val time = dateFormat.format(pt.receivedTime)
+            pt.id to WaypointMarkerState(
+                id = pt.id,
+                label = pt.name + " " + formatAgo((pt.receivedTime / 1000).toInt()),
+                emoji = String(Character.toChars(if (pt.icon == 0) 128205 else pt.icon)),
+                title = "${pt.name} (${getUsername(pt.from)}$lock)",
+                snippet = "[$time] " + pt.description,
+                position = GeoPoint(pt.latitude, pt.longitude),
+            )
         }
     }
 
@@ -786,7 +871,7 @@ fun MapView(
             }
 
             MapMode.Normal -> {
-                map.overlays.removeAll { it is Polyline }
+                map.clearRouteLines()
                 map.invalidate()
             }
         }
@@ -833,11 +918,13 @@ fun MapView(
         var wpts = onWaypointChanged(waypoints.values)
 
         if(mapMode is MapMode.Traceroute || mapMode is MapMode.NeighborDiscovery){
-            wpts = emptyList()
+            wpts = emptyMap()
         }
 
         UpdateMarkers(
+            nodeMarkers,
             onNodesChanged(visibleNodes),
+            waypointMarkers,
             wpts,
             nodeClusterer
         )
@@ -866,15 +953,21 @@ fun MapView(
         cacheEstimate = context.getString(R.string.map_cache_tiles, tileCount)
     }
 
+    fun MapView.reportViewport() = with(boundingBox) {
+        model.setMapViewport(GeoBox(latSouth, latNorth, lonWest, lonEast))
+    }
+
     val boxOverlayListener = object : MapListener {
         override fun onScroll(event: ScrollEvent): Boolean {
             if (downloadRegionBoundingBox != null) {
                 event.source.generateBoxOverlay()
             }
+            event.source.reportViewport()
             return true
         }
 
         override fun onZoom(event: ZoomEvent): Boolean {
+            event.source.reportViewport()
             return false
         }
     }
@@ -970,6 +1063,7 @@ fun MapView(
                     map.apply {
                         setDestroyMode(false) // keeps map instance alive when in the background
                         addMapListener(boxOverlayListener)
+                        addOnFirstLayoutListener { _, _, _, _, _ -> reportViewport() }
                     }
                 },
                 modifier = Modifier.fillMaxSize(),
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.util
+
+import kotlin.math.abs
+import kotlin.math.min
+
+/**
+ * The direction of travel, for position reporting that follows turns.
+ *
+ * Derived from fixes at least [minStepM] apart, shorter hops are GPS jitter, unless the provider
+ * reports a bearing of its own through [set].
+ */
+class HeadingTracker(private val minStepM: Double) {
+    // the last fix far enough from its predecessor to give a heading
+    private var fromLat = 0.0
+    private var fromLon = 0.0
+    private var hasFrom = false
+
+    /** Degrees from north, null until the device has moved far enough to tell. */
+    var heading: Double? = null
+        private set
+
+    /** Takes the provider's own bearing, better than one derived from a couple of fixes. */
+    fun set(bearingDeg: Double) {
+        heading = bearingDeg
+    }
+
+    fun track(latitude: Double, longitude: Double) {
+        if (!hasFrom) {
+            fromLat = latitude
+            fromLon = longitude
+            hasFrom = true
+            return
+        }
+        if (latLongToMeter(fromLat, fromLon, latitude, longitude) >= minStepM) {
+            heading = bearing(fromLat, fromLon, latitude, longitude)
+            fromLat = latitude
+            fromLon = longitude
+        }
+    }
+
+    companion object {
+        /** The turn between two headings, 0 to 180 degrees either way round. */
+        fun turnDeg(from: Double, to: Double): Double {
+            val delta = abs(to - from) % 360
+            return min(delta, 360 - delta)
+        }
+    }
+}
+
+/**
+ * How many times less often to transmit given the local node's channel utilization: 2 from
+ * [busyPercent], 4 from [congestedPercent], 1 when unknown.
+ */
+fun channelLoadFactor(utilization: Float?, busyPercent: Float, congestedPercent: Float): Int {
+    val util = utilization ?: return 1
+    return when {
+        util >= congestedPercent -> 4
+        util >= busyPercent -> 2
+        else -> 1
+    }
+}
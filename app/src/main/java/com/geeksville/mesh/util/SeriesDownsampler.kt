@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh.util
+
+import java.util.concurrent.atomic.AtomicLong
+
+object SeriesDownsampler {
+
+    /**
+     * Below this many samples per bucket there is nothing worth dropping, a bucket keeps up to 4.
+     */
+    private const val MIN_SAMPLES_PER_BUCKET = 4
+
+    /**
+     * Picks the samples of a series worth drawing at [buckets] pixels wide.
+     *
+     * The x range is cut into [buckets] equal slices and each slice keeps its first, last, lowest
+     * and highest sample (min/max per bucket, a.k.a. M4). Drawn at that width the result covers
+     * exactly the same pixels as the full series, so no peak or dip disappears, and because the
+     * first and last samples of each slice are kept a gap between samples stays a gap.
+     *
+     * @param count number of samples, which must be sorted by [x]
+     * @param x (`index`) -> x value, e.g. the sample time
+     * @param y (`index`) -> y value
+     * @return indices of the samples to keep, ascending
+     */
+    fun minMaxIndices(count: Int, buckets: Int, x: (Int) -> Double, y: (Int) -> Float): IntArray {
+        if (buckets <= 0 || count <= buckets * MIN_SAMPLES_PER_BUCKET) return IntArray(count) { it }
+
+        val x0 = x(0)
+        val span = x(count - 1) - x0
+        if (span <= 0.0) return minMaxIndices(count, buckets, { it.toDouble() }, y)
+
+        val kept = IntArray(buckets * MIN_SAMPLES_PER_BUCKET)
+        var size = 0
+        var bucket = -1
+        var first = 0
+        var minIdx = 0
+        var maxIdx = 0
+
+        fun emitBucket(last: Int) {
+            // the four are already in index order apart from min and max
+            val a = minOf(minIdx, maxIdx)
+            val b = maxOf(minIdx, maxIdx)
+            for (idx in intArrayOf(first, a, b, last)) {
+                if (size == 0 || kept[size - 1] != idx) kept[size++] = idx
+            }
+        }
+
+        for (i in 0 until count) {
+            val b = (((x(i) - x0) / span) * buckets).toInt().coerceIn(0, buckets - 1)
+            if (b != bucket) {
+                if (bucket >= 0) emitBucket(i - 1)
+                bucket = b
+                first = i
+                minIdx = i
+                maxIdx = i
+            } else {
+                val v = y(i)
+                if (v < y(minIdx)) minIdx = i
+                if (v > y(maxIdx)) maxIdx = i
+            }
+        }
+        emitBucket(count - 1)
+
+        return kept.copyOf(size)
+    }
+}
+
+/**
+ * Remembers downsampled series so charts only redo the work when the data changed.
+ *
+ * Entries are kept per [K] (e.g. the selected time frame) and series name, so switching back and
+ * forth between time frames is free. An entry is reused as long as the sample count, the x of the
+ * first and last sample and the bucket count are the same, i.e. until a sample arrives or ages out.
+ */
+class SeriesDownsampleCache<K : Any> {
+
+    private data class Signature(
+        val count: Int,
+        val firstX: Double,
+        val lastX: Double,
+        val buckets: Int,
+        val revision: Any?,
+    )
+
+    private class Entry(val signature: Signature, val indices: IntArray)
+
+    private val entries = HashMap<Pair<K, String>, Entry>()
+
+    private val _hits = AtomicLong()
+    private val _misses = AtomicLong()
+
+    val hitCount: Long get() = _hits.get()
+    val missCount: Long get() = _misses.get()
+
+    /**
+     * [SeriesDownsampler.minMaxIndices], served from the cache when nothing changed.
+     *
+     * @param revision anything else that changes with the data when x does not, e.g. the time of
+     * the newest sample for a series plotted by index
+     */
+    fun indices(
+        key: K,
+        series: String,
+        count: Int,
+        buckets: Int,
+        x: (Int) -> Double,
+        revision: Any? = null,
+        y: (Int) -> Float,
+    ): IntArray {
+        if (count == 0) return IntArray(0)
+        val signature = Signature(count, x(0), x(count - 1), buckets, revision)
+        synchronized(entries) {
+            val cached = entries[key to series]
+            if (cached?.signature == signature) {
+                _hits.incrementAndGet()
+                return cached.indices
+            }
+        }
+        _misses.incrementAndGet()
+        val indices = SeriesDownsampler.minMaxIndices(count, buckets, x, y)
+        synchronized(entries) { entries[key to series] = Entry(signature, indices) }
+        return indices
+    }
+
+    /** Same as [indices] for a list, returning the samples to draw. */
+    fun <T> reduce(key: K, series: String, items: List<T>, buckets: Int, x: (T) -> Long, y: (T) -> Float): List<T> {
+        val indices = indices(key, series, items.size, buckets, { x(items[it]).toDouble() }) { y(items[it]) }
+        if (indices.size == items.size) return items
+        return indices.map { items[it] }
+    }
+
+    fun clear() = synchronized(entries) { entries.clear() }
+}
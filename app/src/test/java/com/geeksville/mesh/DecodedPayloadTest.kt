@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2025 Meshtastic LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.geeksville.mesh
+
+import kotlinx.serialization.json.Json
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.Portnums
+import java.util.Collections
+import java.util.IdentityHashMap
+
+class DecodedPayloadTest {
+
+    private fun waypoint(id: Int) = MeshProtos.Waypoint.newBuilder()
+        .setId(id)
+        .setName("Waypoint $id")
+        .setLatitudeI(450000000 + id)
+        .setLongitudeI(90000000)
+        .setExpire(Int.MAX_VALUE)
+        .build()
+
+    private fun status(text: String) = DataPacket(
+        bytes = MeshProtos.StatusMessage.newBuilder().setStatus(text).build().toByteArray(),
+        dataType = Portnums.PortNum.NODE_STATUS_APP_VALUE,
+    )
+
+    @Test
+    fun `decodes by port`() {
+        assertEquals("hi", DataPacket(DataPacket.ID_BROADCAST, 0, "hi".encodeToByteArray(), "").text)
+        assertEquals("clear", DataPacket(DataPacket.ID_BROADCAST, 0, "zz".encodeToByteArray(), "clear").text)
+        assertEquals(waypoint(3), DataPacket(DataPacket.ID_BROADCAST, 0, waypoint(3)).waypoint)
+        assertEquals("busy", status("busy").statusMessageText)
+
+        val position = DataPacket(
+            bytes = MeshProtos.Position.newBuilder().setLatitudeI(1).build().toByteArray(),
+            dataType = Portnums.PortNum.POSITION_APP_VALUE,
+        )
+        assertNull(position.text)
+        assertNull(position.waypoint)
+        assertNull(position.statusMessageText)
+        assertSame(DecodedPayload.Opaque, position.payload)
+    }
+
+    @Test
+    fun `accessors for another port do not decode`() {
+        val packet = DataPacket(DataPacket.ID_BROADCAST, 0, waypoint(5))
+        assertNull(packet.text)
+        assertNull(packet.statusMessageText)
+        assertFalse(packet.isDecoded)
+        assertEquals(waypoint(5), packet.waypoint)
+    }
+
+    @Test
+    fun `garbage is reported rather than thrown`() {
+        val broken = DataPacket(bytes = byteArrayOf(0x0a, 0x7f), dataType = Portnums.PortNum.WAYPOINT_APP_VALUE)
+        assertTrue(broken.payload is DecodedPayload.Undecodable)
+        assertNull(broken.waypoint)
+    }
+
+    @Test
+    fun `the cache does not leak into json`() {
+        val packet = DataPacket(DataPacket.ID_BROADCAST, 0, waypoint(7))
+        packet.waypoint // decode before serializing
+        val json = Json.encodeToString(DataPacket.serializer(), packet)
+        assertTrue("decoded" !in json)
+
+        val restored = Json.decodeFromString(DataPacket.serializer(), json)
+        assertEquals(packet, restored)
+        assertEquals(waypoint(7), restored.waypoint)
+    }
+
+    @Test
+    fun `copies decode their own bytes`() {
+        val packet = status("before")
+        assertEquals("before", packet.statusMessageText)
+        val copy = packet.copy(bytes = MeshProtos.StatusMessage.newBuilder().setStatus("after").build().toByteArray())
+        assertEquals("after", copy.statusMessageText)
+    }
+
+    /**
+     * A map and message list refresh: every packet is asked for its text, waypoint and status by
+     * the list, the map markers and the notification builder, and the screen redraws a few times.
+     */
+    @Test
+    fun `a screen refresh decodes each packet once`() {
+        val packets = List(300) { i ->
+            when (i % 3) {
+                0 -> DataPacket(DataPacket.ID_BROADCAST, 0, "message $i".encodeToByteArray(), "")
+                1 -> DataPacket(DataPacket.ID_BROADCAST, 0, waypoint(i))
+                else -> status("status $i")
+            }
+        }
+        // every distinct payload object handed out is one decode
+        val seen = Collections.newSetFromMap(IdentityHashMap<DecodedPayload, Boolean>())
+        fun refresh() = packets.sumOf { p ->
+            repeat(3) { p.text; p.waypoint; p.statusMessageText }
+            seen += p.payload
+            (p.waypoint?.id ?: 0) + (p.text?.length ?: 0)
+        }
+
+        // what the accessors cost when each of them parses the bytes again
+        var uncachedDecodes = 0
+        fun decode(p: DataPacket) = DecodedPayload.decode(p.dataType, p.bytes).also { uncachedDecodes++ }
+        fun refreshUncached() = packets.sumOf { p ->
+            repeat(3) {
+                if (DecodedPayload.isText(p.dataType)) decode(p)
+                if (p.dataType == Portnums.PortNum.WAYPOINT_APP_VALUE) decode(p)
+                if (p.dataType == Portnums.PortNum.NODE_STATUS_APP_VALUE) decode(p)
+            }
+            ((decode(p) as? DecodedPayload.Waypoint)?.waypoint?.id ?: 0) +
+                ((decode(p) as? DecodedPayload.Text)?.text?.length ?: 0)
+        }
+
+        val first = refresh()
+        var cachedNanos = 0L
+        var uncachedNanos = 0L
+        repeat(REFRESHES - 1) {
+            val start = System.nanoTime()
+            assertEquals(first, refresh())
+            val mid = System.nanoTime()
+            assertEquals(first, refreshUncached())
+            uncachedNanos += System.nanoTime() - mid
+            cachedNanos += mid - start
+        }
+        println(
+            "${seen.size} decodes cached (${cachedNanos / 1000}us), " +
+                "$uncachedDecodes uncached (${uncachedNanos / 1000}us) over ${REFRESHES - 1} refreshes"
+        )
+
+        assertEquals(packets.size, seen.size)
+        assertTrue(seen.size * 10 < uncachedDecodes)
+        assertSame((packets[1].payload as DecodedPayload.Waypoint).waypoint, packets[1].waypoint)
+    }
+
+    companion object {
+        private const val REFRESHES = 10
+    }
+}
@@ -0,0 +1,215 @@
+package com.geeksville.mesh.android
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+class AsyncLogFileTest {
+
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("async-log").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun lines(name: String) = File(dir, name).readLines()
+
+    @Test
+    fun `ring keeps order and reports full and empty`() {
+        val ring = LogRing<Int>(5)
+        assertEquals(8, ring.capacity)
+        repeat(8) { assertTrue(ring.offer(it)) }
+        assertTrue(!ring.offer(8))
+        assertEquals(8, ring.count)
+        assertEquals((0 until 8).toList(), List(8) { ring.poll() })
+        assertEquals(null, ring.poll())
+        // wraps around
+        repeat(20) { assertTrue(ring.offer(it)); assertEquals(it, ring.poll()) }
+    }
+
+    @Test
+    fun `ring loses nothing under concurrent producers`() {
+        val ring = LogRing<Long>(1024)
+        val producers = 4
+        val perProducer = 100_000
+        val seen = LongArray(producers) { -1 }
+        val start = CountDownLatch(1)
+        val threads = List(producers) { p ->
+            thread {
+                start.await()
+                for (i in 0 until perProducer) {
+                    while (!ring.offer(p.toLong() * perProducer + i)) Thread.yield()
+                }
+            }
+        }
+        start.countDown()
+        var taken = 0
+        while (taken < producers * perProducer) {
+            val v = ring.poll() ?: continue
+            val p = (v / perProducer).toInt()
+            val i = v % perProducer
+            assertTrue("producer $p out of order", i > seen[p])
+            seen[p] = i
+            taken++
+        }
+        threads.forEach { it.join() }
+        assertTrue(seen.all { it == perProducer - 1L })
+    }
+
+    @Test
+    fun `lines and bytes reach the file in order`() {
+        val log = AsyncLogFile(dir, "debug.txt")
+        repeat(1_000) { log.log("line $it") }
+        log.close()
+        assertEquals(List(1_000) { "line $it" }, lines("debug.txt"))
+
+        val bin = AsyncLogFile(dir, "packets.pb")
+        val packets = List(100) { i -> ByteArray(i + 1) { i.toByte() } }
+        packets.forEach { bin.write(it) }
+        bin.close()
+        assertTrue(File(dir, "packets.pb").readBytes().contentEquals(packets.reduce { a, b -> a + b }))
+        assertEquals(100L, bin.stats.written)
+    }
+
+    @Test
+    fun `rotates by size and keeps a bounded number of files`() {
+        val log = AsyncLogFile(dir, "r.txt", maxFileBytes = 1_000, keepFiles = 2)
+        repeat(500) { log.log("%04d".format(it)) } // 5 bytes a line, 2500 bytes
+        log.close()
+
+        assertEquals(setOf("r.txt", "r.txt.1", "r.txt.2"), dir.list()!!.toSet())
+        assertTrue(dir.listFiles()!!.all { it.length() <= 1_000 })
+        // the newest lines survive, in order, oldest file first
+        val kept = lines("r.txt.2") + lines("r.txt.1") + lines("r.txt")
+        assertEquals(kept.map { it.toInt() }, (500 - kept.size until 500).toList())
+        assertTrue(log.stats.rotations >= 2)
+    }
+
+    @Test
+    fun `rotates by age`() {
+        val now = AtomicLong(1_000_000L)
+        val log = AsyncLogFile(dir, "a.txt", maxAgeMs = 60_000, flushIntervalMs = 5, clock = now::get)
+        log.log("old")
+        while (log.stats.written < 1) Thread.sleep(1)
+        now.addAndGet(61_000)
+        log.log("new")
+        log.close()
+        assertEquals(listOf("old"), lines("a.txt.1"))
+        assertEquals(listOf("new"), lines("a.txt"))
+    }
+
+    @Test
+    fun `full buffer follows the drop policy`() {
+        // a 16 entry ring filled far faster than the writer drains it
+        for (policy in LogDropPolicy.entries) {
+            val name = "drop-$policy.txt"
+            val small = AsyncLogFile(dir, name, bufferEntries = 16, dropPolicy = policy, flushIntervalMs = 3_600_000)
+            repeat(10_000) { small.log("$it") }
+            small.close()
+
+            val kept = lines(name).map { it.toInt() }
+            assertEquals(10_000L, small.stats.written + small.stats.dropped)
+            assertEquals(kept.sorted(), kept)
+            when (policy) {
+                LogDropPolicy.DROP_NEWEST -> assertEquals(0, kept.first())
+                LogDropPolicy.DROP_OLDEST -> assertEquals(9_999, kept.last())
+            }
+        }
+    }
+
+    /**
+     * Four threads stand in for the radio read and write paths, each logging a 200 byte packet per
+     * call. Every entry is either written in full or counted as dropped.
+     */
+    @Test
+    fun `concurrent writers lose nothing unaccounted`() {
+        val threads = 4
+        val perThread = 5_000
+        val packet = ByteArray(200) { it.toByte() }
+
+        val async = AsyncLogFile(dir, "async.pb", maxFileBytes = 64L * 1024 * 1024, bufferEntries = 1 shl 15)
+        val start = CountDownLatch(1)
+        val workers = List(threads) {
+            thread {
+                start.await()
+                repeat(perThread) { async.write(packet) }
+            }
+        }
+        start.countDown()
+        workers.forEach { it.join() }
+        async.close()
+
+        val produced = threads * perThread.toLong()
+        assertEquals(produced, async.stats.written + async.stats.dropped)
+        assertTrue(async.stats.written > 0)
+        assertEquals(async.stats.written * packet.size, File(dir, "async.pb").length())
+    }
+
+    @Test
+    fun `callers stay fast while the writer is stuck on storage`() {
+        // the clock is only read by the writer thread, right before it touches the file
+        val stuck = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val log = AsyncLogFile(dir, "stuck.txt", flushIntervalMs = 1, clock = {
+            stuck.countDown()
+            release.await()
+            0L
+        })
+        log.log("first")
+        assertTrue(stuck.await(5, TimeUnit.SECONDS))
+
+        val calls = 10_000
+        var slowest = 0L
+        val start = System.nanoTime()
+        repeat(calls) {
+            val t = System.nanoTime()
+            log.log("line $it")
+            slowest = maxOf(slowest, System.nanoTime() - t)
+        }
+        val totalMs = (System.nanoTime() - start) / 1_000_000
+        release.countDown()
+        log.close()
+
+        // a caller waiting on the writer would block until the release above
+        assertTrue("$calls calls took ${totalMs}ms", totalMs < 1_000)
+        assertTrue("slowest call ${slowest / 1_000}us", slowest < TimeUnit.MILLISECONDS.toNanos(100))
+        assertEquals(calls + 1L, log.stats.written + log.stats.dropped)
+        assertTrue(log.stats.dropped > 0)
+    }
+
+    @Test
+    fun `entries racing close are written or counted`() {
+        repeat(20) { round ->
+            val log = AsyncLogFile(dir, "close-$round.txt", flushIntervalMs = 1)
+            val start = CountDownLatch(1)
+            val perThread = 2_000
+            val workers = List(4) { t ->
+                thread {
+                    start.await()
+                    repeat(perThread) { log.log("$t $it") }
+                }
+            }
+            start.countDown()
+            log.close()
+            workers.forEach { it.join() }
+
+            assertEquals(4L * perThread, log.stats.written + log.stats.dropped)
+            val file = File(dir, "close-$round.txt")
+            assertEquals(log.stats.written, if (file.exists()) file.readLines().size.toLong() else 0L)
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.geeksville.mesh.database
+
+import com.geeksville.mesh.database.entity.ContactSettings
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+class ContactSettingsCacheTest {
+
+    private val cache = ContactSettingsCache()
+
+    // stands in for the contact_settings table
+    private val table = ConcurrentHashMap<String, ContactSettings>()
+    private val dbReads = AtomicLong()
+
+    private fun write(contacts: List<String>, until: Long) {
+        contacts.forEach { table[it] = (table[it] ?: ContactSettings(it)).copy(muteUntil = until) }
+    }
+
+    private fun emit() = cache.hydrate(HashMap(table))
+
+    /** What PacketRepository.getContactSettings does. */
+    private fun read(contact: String) = cache.get(contact) ?: run {
+        dbReads.incrementAndGet()
+        table[contact] ?: ContactSettings(contact)
+    }
+
+    private fun setMuteUntil(contacts: List<String>, until: Long) {
+        cache.setMuteUntil(contacts, until)
+        write(contacts, until)
+    }
+
+    @Test
+    fun `reads go to the DB until the first snapshot`() {
+        write(listOf("0!a"), Long.MAX_VALUE)
+
+        assertTrue(read("0!a").isMuted)
+        assertEquals(1L, dbReads.get())
+
+        emit()
+        assertTrue(read("0!a").isMuted)
+        assertFalse(read("0!b").isMuted)
+        assertEquals(1L, dbReads.get())
+        assertEquals(1L, cache.stats.coldReads)
+    }
+
+    @Test
+    fun `a mute is visible before the DB emits it`() {
+        emit()
+        setMuteUntil(listOf("0!a", "0!b"), Long.MAX_VALUE)
+
+        assertTrue(cache.get("0!a")!!.isMuted)
+        assertTrue(cache.get("0!b")!!.isMuted)
+        assertEquals(2, cache.stats.pendingWrites)
+
+        emit()
+        assertEquals(0, cache.stats.pendingWrites)
+        assertTrue(cache.get("0!a")!!.isMuted)
+    }
+
+    @Test
+    fun `a snapshot from before the write doesn't undo it`() {
+        emit()
+        val stale = HashMap(table)
+        setMuteUntil(listOf("0!a"), Long.MAX_VALUE)
+
+        cache.hydrate(stale)
+        assertTrue(cache.get("0!a")!!.isMuted)
+
+        emit()
+        setMuteUntil(listOf("0!a"), 0L)
+        cache.hydrate(HashMap(table).apply { put("0!a", ContactSettings("0!a", Long.MAX_VALUE)) })
+        assertFalse(cache.get("0!a")!!.isMuted)
+    }
+
+    @Test
+    fun `a write set before the first snapshot survives it`() {
+        cache.setMuteUntil(listOf("0!a"), Long.MAX_VALUE)
+        assertNull(cache.get("0!a"))
+
+        emit() // the DB write hasn't landed yet
+        assertTrue(cache.get("0!a")!!.isMuted)
+    }
+
+    @Test
+    fun `a failed write is discarded`() {
+        write(listOf("0!a"), 1234L)
+        emit()
+        cache.setMuteUntil(listOf("0!a", "0!b"), Long.MAX_VALUE)
+        cache.discard(listOf("0!a", "0!b"))
+
+        assertEquals(1234L, cache.get("0!a")!!.muteUntil)
+        assertEquals(0L, cache.get("0!b")!!.muteUntil)
+        assertEquals(0, cache.stats.pendingWrites)
+    }
+
+    @Test
+    fun `readers never see a mute go backwards under concurrent writes and emissions`() {
+        val contacts = (0 until 16).map { "0!%08x".format(it) }
+        emit()
+        val done = AtomicBoolean()
+        val violations = AtomicLong()
+
+        // writes are serialized in the repository, and each one only ever raises muteUntil here
+        val writer = thread {
+            for (until in 1L..20_000L) setMuteUntil(listOf(contacts[(until % contacts.size).toInt()]), until)
+            done.set(true)
+        }
+        val emitter = thread { while (!done.get()) emit() }
+        val readers = (0 until 4).map {
+            thread {
+                val seen = LongArray(contacts.size)
+                while (!done.get()) {
+                    contacts.forEachIndexed { i, contact ->
+                        val until = read(contact).muteUntil
+                        if (until < seen[i]) violations.incrementAndGet()
+                        seen[i] = until
+                    }
+                }
+            }
+        }
+        (listOf(writer, emitter) + readers).forEach { it.join() }
+        emit()
+
+        assertEquals(0L, violations.get())
+        assertEquals(0L, dbReads.get())
+        assertEquals(0, cache.stats.pendingWrites)
+        contacts.forEach { assertEquals(table.getValue(it), cache.get(it)) }
+    }
+
+    @Test
+    fun `replaying a message stream reads the DB zero times once warm`() {
+        val contacts = (0 until 50).map { "0!%08x".format(it) }
+        val messages = 200_000
+        write(contacts.take(10), Long.MAX_VALUE)
+        emit()
+
+        var muted = 0
+        for (i in 0 until messages) {
+            if (i % 10_000 == 0) { // someone toggles a mute now and then
+                val contact = contacts[i / 10_000 % contacts.size]
+                setMuteUntil(listOf(contact), if (read(contact).isMuted) 0L else Long.MAX_VALUE)
+                emit()
+            }
+            if (read(contacts[i % contacts.size]).isMuted) muted++
+        }
+
+        assertEquals(0L, dbReads.get())
+        assertTrue(muted > 0)
+    }
+}
@@ -0,0 +1,268 @@
+package com.geeksville.mesh.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.exp
+import kotlin.math.hypot
+import kotlin.math.ln
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+class MeshTopologyTest {
+
+    private var now = 1_700_000_000_000L
+    private val topology = MeshTopology(clock = { now })
+
+    private fun link(from: Int, to: Int, snr: Float? = 5f, source: TopologySource = TopologySource.NEIGHBOR_INFO) =
+        topology.observe(from, to, source, snr)
+
+    /**
+     * [n] nodes dropped at random on a unit square, each linked to those within radio range, the
+     * range set for [degree] neighbors on average and SNR falling off with distance.
+     */
+    private fun randomMesh(n: Int, degree: Double, seed: Int, into: MeshTopology = topology, firstNum: Int = 1) {
+        val random = Random(seed)
+        val x = DoubleArray(n) { random.nextDouble() }
+        val y = DoubleArray(n) { random.nextDouble() }
+        val range = sqrt(degree / (PI * n))
+        for (i in 0 until n) for (j in i + 1 until n) {
+            val d = hypot(x[i] - x[j], y[i] - y[j])
+            if (d < range) {
+                val snr = (10 - 30 * d / range).toFloat()
+                val source = TopologySource.entries[random.nextInt(TopologySource.entries.size)]
+                into.observe(firstNum + i, firstNum + j, source, snr, now - random.nextLong(0, 6 * HOUR_MS))
+            }
+        }
+    }
+
+    /** Nodes reachable from [start] in [snapshot] without going through [without]. */
+    private fun reachable(snapshot: TopologySnapshot, start: Int, without: Int? = null): Set<Int> {
+        val seen = hashSetOf(start)
+        val queue = ArrayDeque(listOf(start))
+        while (queue.isNotEmpty()) {
+            snapshot.neighbors(queue.removeFirst()).keys.forEach {
+                if (it != without && seen.add(it)) queue += it
+            }
+        }
+        return seen
+    }
+
+    @Test
+    fun `every inner node of a long chain is an articulation point`() {
+        (1 until 1_000).forEach { link(it, it + 1) }
+        val snapshot = topology.snapshot()
+
+        assertEquals(1_000, snapshot.nodeCount)
+        assertEquals(999, snapshot.linkCount)
+        assertEquals((2..999).toSet(), snapshot.articulationPoints)
+        assertEquals(1, snapshot.connectedComponents.size)
+        assertEquals(999, snapshot.shortestPath(1, 1_000)?.hops)
+        assertEquals((1..1_000).toList(), snapshot.mostReliablePath(1, 1_000)?.nodes)
+    }
+
+    @Test
+    fun `articulation points match removing each node in turn`() {
+        randomMesh(n = 400, degree = 2.5, seed = 50)
+        val snapshot = topology.snapshot()
+        val nodes = snapshot.connectedComponents.flatten()
+
+        val componentOf = HashMap<Int, Set<Int>>()
+        snapshot.connectedComponents.forEach { component -> component.forEach { componentOf[it] = component } }
+        val expected = nodes.filter { node ->
+            val component = componentOf.getValue(node)
+            val start = component.firstOrNull { it != node } ?: return@filter false
+            reachable(snapshot, start, without = node).size < component.size - 1
+        }.toSet()
+
+        assertTrue("a sparse mesh should have some", expected.isNotEmpty())
+        assertEquals(expected, snapshot.articulationPoints)
+    }
+
+    @Test
+    fun `two meshes joined through one node`() {
+        val mesh = MeshTopology(clock = { now })
+        randomMesh(n = 700, degree = 12.0, seed = 1, into = mesh)
+        randomMesh(n = 700, degree = 12.0, seed = 2, into = mesh, firstNum = 10_001)
+        val bridge = 50_000
+        mesh.observe(1, bridge, TopologySource.TRACEROUTE, 0f)
+        mesh.observe(bridge, 10_001, TopologySource.TRACEROUTE, 0f)
+        val snapshot = mesh.snapshot()
+
+        assertTrue(bridge in snapshot.articulationPoints)
+        val joined = snapshot.connectedComponents.single { bridge in it }
+        assertEquals(joined, reachable(snapshot, bridge))
+
+        val west = joined.filter { it < 10_001 }.max()
+        val east = joined.filter { it in 10_001 until bridge }.max()
+        val path = snapshot.shortestPath(west, east)!!
+        assertTrue(bridge in path.nodes)
+        assertEquals(path.nodes.toSet().size, path.nodes.size)
+    }
+
+    @Test
+    fun `components come largest first`() {
+        (1 until 10).forEach { link(it, it + 1) }
+        (101 until 105).forEach { link(it, it + 1) }
+        link(201, 202)
+        val components = topology.snapshot().connectedComponents
+
+        assertEquals(listOf(10, 5, 2), components.map { it.size })
+        assertEquals(setOf(201, 202), components.last())
+        assertNull(topology.snapshot().shortestPath(1, 201))
+    }
+
+    @Test
+    fun `the most reliable path can take more hops than the shortest`() {
+        link(1, 2, snr = -18f)
+        link(2, 4, snr = -18f)
+        link(1, 3, snr = 8f)
+        link(3, 5, snr = 8f)
+        link(5, 4, snr = 8f)
+        val snapshot = topology.snapshot()
+
+        val shortest = snapshot.shortestPath(1, 4)!!
+        val reliable = snapshot.mostReliablePath(1, 4)!!
+        assertEquals(listOf(1, 2, 4), shortest.nodes)
+        assertEquals(listOf(1, 3, 5, 4), reliable.nodes)
+        assertTrue("$shortest vs $reliable", reliable.reliability > shortest.reliability)
+        assertEquals(setOf(2, 3), snapshot.neighbors(1).keys)
+    }
+
+    @Test
+    fun `most reliable paths agree with a brute force relaxation on a 1200 node mesh`() {
+        randomMesh(n = 1_200, degree = 8.0, seed = 3)
+        val snapshot = topology.snapshot()
+        val source = snapshot.connectedComponents.first().first()
+
+        // Bellman-Ford over -ln(reliability), the slow way round
+        val cost = HashMap<Int, Double>().apply { put(source, 0.0) }
+        do {
+            var changed = false
+            cost.keys.toList().forEach { v ->
+                snapshot.neighbors(v).forEach { (w, reliability) ->
+                    val next = cost.getValue(v) - ln(reliability)
+                    if (next < (cost[w] ?: Double.POSITIVE_INFINITY) - 1e-12) {
+                        cost[w] = next
+                        changed = true
+                    }
+                }
+            }
+        } while (changed)
+
+        cost.forEach { (target, expected) ->
+            val path = snapshot.mostReliablePath(source, target)!!
+            assertEquals("to $target", exp(-expected), path.reliability, 1e-9)
+            assertTrue(path.hops >= snapshot.shortestPath(source, target)!!.hops)
+        }
+    }
+
+    @Test
+    fun `links fade with age and stale ones are pruned`() {
+        link(1, 2, snr = null)
+        val fresh = topology.links().single()
+        assertEquals(0.5, topology.reliability(fresh), 1e-9)
+        assertEquals(0.25, topology.reliability(fresh, now + MeshTopology.DEFAULT_HALF_LIFE_MS), 1e-9)
+
+        now += MeshTopology.DEFAULT_STALE_AFTER_MS
+        link(2, 3)
+        assertEquals(0, topology.prune())
+        now += 1
+        assertEquals(1, topology.prune())
+        assertEquals(setOf(2, 3), topology.snapshot().connectedComponents.single())
+        assertEquals(1L, topology.stats.pruned)
+    }
+
+    @Test
+    fun `snr is smoothed and kept when a report doesn't measure it`() {
+        link(1, 2, snr = -5f)
+        link(1, 2, snr = null)
+        assertEquals(-5f, topology.links().single().snr)
+        link(1, 2, snr = 5f)
+        assertEquals(0f, topology.links().single().snr)
+        assertEquals(3, topology.links().single().observations)
+
+        // an older report counts but doesn't move the link back in time
+        now -= 1_000
+        link(1, 2, snr = -20f)
+        assertEquals(0f, topology.links().single().snr)
+        assertEquals(now + 1_000, topology.links().single().lastSeen)
+    }
+
+    @Test
+    fun `links to nobody or to themselves are ignored`() {
+        link(1, 1)
+        link(0, 1)
+        link(1, -1) // broadcast
+        assertEquals(0, topology.size)
+    }
+
+    @Test
+    fun `snapshots are reused until something changes`() {
+        link(1, 2)
+        val first = topology.snapshot()
+        assertSame(first, topology.snapshot())
+
+        link(2, 3)
+        val second = topology.snapshot()
+        assertNotSame(first, second)
+
+        now += MeshTopology.SNAPSHOT_MAX_AGE_MS
+        assertNotSame(second, topology.snapshot())
+    }
+
+    @Test
+    fun `changes drain for the store and survive a reload`() {
+        randomMesh(n = 1_000, degree = 6.0, seed = 4)
+        val changes = topology.drainChanges()
+        assertEquals(topology.size, changes.upserts.size)
+        assertTrue(topology.drainChanges().isEmpty)
+
+        link(1, 2, snr = 9f)
+        now += MeshTopology.DEFAULT_STALE_AFTER_MS + 1
+        link(2, 3)
+        val pruned = topology.prune()
+        val next = topology.drainChanges()
+        assertEquals(1, next.upserts.size)
+        assertEquals(pruned, next.deletes.size)
+
+        // a failed write comes back, under the links changed since
+        topology.requeue(next)
+        assertEquals(next.upserts.toSet(), topology.drainChanges().upserts.toSet())
+
+        val reloaded = MeshTopology(clock = { now })
+        reloaded.observe(2, 3, TopologySource.NEIGHBOR_INFO, -1f, now + 10)
+        reloaded.load(topology.links())
+        assertEquals(topology.size, reloaded.size)
+        assertEquals(now + 10, reloaded.links().single { it.from == 2 && it.to == 3 }.lastSeen)
+        assertFalse(reloaded.drainChanges().upserts.any { it.from != 2 })
+    }
+
+    @Test
+    fun `paths on a 5000 node mesh are consistent`() {
+        randomMesh(n = 5_000, degree = 8.0, seed = 5)
+        val snapshot = topology.snapshot()
+
+        val random = Random(5)
+        val nodes = snapshot.connectedComponents.first().toList()
+        repeat(200) {
+            val from = nodes.random(random)
+            val to = nodes.random(random)
+            val shortest = snapshot.shortestPath(from, to)!!
+            val reliable = snapshot.mostReliablePath(from, to)!!
+            assertEquals(listOf(from, to), listOf(shortest.nodes.first(), shortest.nodes.last()))
+            assertTrue(reliable.hops >= shortest.hops)
+            assertTrue(reliable.reliability >= shortest.reliability - 1e-12)
+        }
+        assertSame(snapshot, topology.snapshot())
+    }
+
+    private companion object {
+        const val HOUR_MS = 60 * 60 * 1000L
+    }
+}
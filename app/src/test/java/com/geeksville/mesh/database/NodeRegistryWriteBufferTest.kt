@@ -0,0 +1,153 @@
+package com.geeksville.mesh.database
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+
+class NodeRegistryWriteBufferTest {
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val batches = Collections.synchronizedList(mutableListOf<List<NodeRegistryUpdate>>())
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+    }
+
+    private fun userUpdate(nodeId: String, lastSeen: Long, name: String) =
+        NodeRegistryUpdate(nodeId = nodeId, lastSeen = lastSeen, nodeNum = 1, longName = name, shortName = name.take(4))
+
+    private fun positionUpdate(nodeId: String, lastSeen: Long, lat: Int) =
+        NodeRegistryUpdate(nodeId = nodeId, lastSeen = lastSeen, latitudeI = lat, longitudeI = -lat)
+
+    /** Replays written batches the same way the DAO does, to get the resulting table contents. */
+    private fun replay(written: List<List<NodeRegistryUpdate>>): Map<String, NodeRegistryUpdate> {
+        val table = mutableMapOf<String, NodeRegistryUpdate>()
+        written.flatten().forEach { u -> table[u.nodeId] = table[u.nodeId]?.mergedWith(u) ?: u }
+        return table
+    }
+
+    @Test
+    fun `coalesces user and position changes for the same node into one row`() = runBlocking {
+        val buffer = NodeRegistryWriteBuffer(scope, flushDelayMs = 60_000) { batches += it }
+
+        buffer.submit(userUpdate("!a", 1, "Alpha"))
+        buffer.submit(positionUpdate("!a", 2, 10))
+        buffer.submit(positionUpdate("!a", 3, 20))
+        buffer.flush()
+
+        assertEquals(1, batches.size)
+        val row = batches.single().single()
+        assertEquals("Alpha", row.longName)
+        assertEquals(20, row.latitudeI)
+        assertEquals(3L, row.lastSeen)
+        assertEquals(3L, buffer.submittedCount)
+        assertEquals(1L, buffer.writtenCount)
+    }
+
+    @Test
+    fun `flushes on the timer`() = runBlocking {
+        val buffer = NodeRegistryWriteBuffer(scope, flushDelayMs = 20) { batches += it }
+
+        buffer.submit(userUpdate("!a", 1, "Alpha"))
+        withTimeout(5_000) { while (batches.isEmpty()) delay(5) }
+
+        assertEquals(0, buffer.pendingCount)
+        assertEquals(1L, buffer.batchCount)
+    }
+
+    @Test
+    fun `flushes when the size threshold is reached`() = runBlocking {
+        val buffer = NodeRegistryWriteBuffer(scope, flushDelayMs = 60_000, maxPending = 3) { batches += it }
+
+        buffer.submit(userUpdate("!a", 1, "Alpha"))
+        buffer.submit(userUpdate("!b", 1, "Bravo"))
+        buffer.submit(userUpdate("!c", 1, "Charlie"))
+        withTimeout(5_000) { while (batches.isEmpty()) delay(5) }
+
+        assertEquals(3, batches.single().size)
+    }
+
+    @Test
+    fun `failed batch is merged back under newer changes`() = runBlocking {
+        var fail = true
+        val buffer = NodeRegistryWriteBuffer(scope, flushDelayMs = 60_000) {
+            if (fail) error("disk full")
+            batches += it
+        }
+
+        buffer.submit(userUpdate("!a", 1, "Alpha"))
+        runCatching { buffer.flush() }
+        buffer.submit(positionUpdate("!a", 2, 10))
+        fail = false
+        buffer.flush()
+
+        val row = batches.single().single()
+        assertEquals("Alpha", row.longName)
+        assertEquals(10, row.latitudeI)
+        assertEquals(2L, row.lastSeen)
+    }
+
+    @Test
+    fun `failed batch is retried on the timer`() = runBlocking {
+        var fail = true
+        val buffer = NodeRegistryWriteBuffer(scope, flushDelayMs = 20) {
+            if (fail) error("disk full")
+            batches += it
+        }
+
+        buffer.submit(userUpdate("!a", 1, "Alpha"))
+        runCatching { buffer.flush() }
+        fail = false
+        withTimeout(5_000) { while (batches.isEmpty()) delay(5) }
+
+        assertEquals("Alpha", batches.single().single().longName)
+        assertEquals(0, buffer.pendingCount)
+    }
+
+    @Test
+    fun `no updates are lost across flush boundaries`() = runBlocking {
+        val buffer = NodeRegistryWriteBuffer(scope, flushDelayMs = 1, maxPending = 8) {
+            delay(2) // keep writes in flight while producers keep submitting
+            batches += it
+        }
+        val nodeCount = 40
+        val updatesPerNode = 200
+
+        // one producer per node keeps per-node ordering, producers race each other and the flushes
+        (0 until nodeCount).map { n ->
+            scope.launch {
+                repeat(updatesPerNode) { i ->
+                    val seen = i.toLong() + 1
+                    if (i % 2 == 0) {
+                        buffer.submit(userUpdate("!$n", seen, "Node $n rev $i"))
+                    } else {
+                        buffer.submit(positionUpdate("!$n", seen, n * 1000 + i))
+                    }
+                }
+            }
+        }.forEach { it.join() }
+        buffer.flush()
+
+        val table = replay(batches.toList())
+        assertEquals(nodeCount, table.size)
+        (0 until nodeCount).forEach { n ->
+            val row = table.getValue("!$n")
+            assertEquals("Node $n rev ${updatesPerNode - 2}", row.longName)
+            assertEquals(n * 1000 + updatesPerNode - 1, row.latitudeI)
+            assertEquals(updatesPerNode.toLong(), row.lastSeen)
+        }
+        assertEquals((nodeCount * updatesPerNode).toLong(), buffer.submittedCount)
+        assertTrue(buffer.writtenCount < buffer.submittedCount)
+    }
+}
@@ -0,0 +1,91 @@
+package com.geeksville.mesh.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class NodeRetentionTest {
+
+    private fun node(num: Int, lastHeard: Long, hopsAway: Int = 1, pinned: Boolean = false) =
+        RetentionCandidate(num, lastHeard, hopsAway, pinned)
+
+    @Test
+    fun `nothing is evicted within capacity`() {
+        val retention = NodeRetention(capacity = 10)
+        assertEquals(emptyList<Int>(), retention.evictions(List(10) { node(it, it.toLong()) }))
+        assertEquals(0L, retention.stats.runs)
+    }
+
+    @Test
+    fun `least recently heard go first, down to the low water mark`() {
+        val retention = NodeRetention(capacity = 10, lowWater = 8)
+        val nodes = List(12) { node(it, lastHeard = 1_000L - it * 10) } // node 11 is the oldest
+        assertEquals(listOf(11, 10, 9, 8), retention.evictions(nodes.shuffled(Random(44))))
+        assertEquals(NodeRetentionStats(runs = 1, evicted = 4, restored = 0), retention.stats)
+    }
+
+    @Test
+    fun `farthest first breaks ties by last heard`() {
+        val retention = NodeRetention(capacity = 4, NodeEvictionPolicy.FARTHEST_FIRST, lowWater = 2)
+        val nodes = listOf(
+            node(1, lastHeard = 100, hopsAway = 0),
+            node(2, lastHeard = 50, hopsAway = 3),
+            node(3, lastHeard = 10, hopsAway = 3),
+            node(4, lastHeard = 500, hopsAway = -1), // unknown counts as farthest
+            node(5, lastHeard = 1, hopsAway = 1),
+        )
+        assertEquals(listOf(4, 3, 2), retention.evictions(nodes))
+        assertEquals(
+            listOf(5, 3, 2),
+            NodeRetention(capacity = 4, NodeEvictionPolicy.LEAST_RECENTLY_HEARD, lowWater = 2).evictions(nodes)
+        )
+    }
+
+    @Test
+    fun `pinned nodes are never evicted`() {
+        val retention = NodeRetention(capacity = 3, lowWater = 2)
+        val nodes = List(6) { node(it, lastHeard = it.toLong(), pinned = it < 4) }
+        // only the two unpinned can go, the table stays over capacity
+        assertEquals(listOf(4, 5), retention.evictions(nodes))
+    }
+
+    @Test
+    fun `policies round trip through their ids`() {
+        NodeEvictionPolicy.all.forEach { assertEquals(it, NodeEvictionPolicy.forId(it.id)) }
+        assertEquals(NodeEvictionPolicy.LEAST_RECENTLY_HEARD, NodeEvictionPolicy.forId("unknown"))
+        assertEquals(NodeEvictionPolicy.LEAST_RECENTLY_HEARD, NodeEvictionPolicy.forId(null))
+    }
+
+    /**
+     * A long hunting session: 20,000 distinct nodes heard over time, a quarter of them heard
+     * again later, with retention running every 200 packets as the service's timer would.
+     */
+    @Test
+    fun `a long session stays within capacity`() {
+        val retention = NodeRetention(capacity = 500)
+        val random = Random(44)
+        val table = HashMap<Int, RetentionCandidate<Int>>()
+        val archive = HashMap<Int, RetentionCandidate<Int>>()
+        var largest = 0
+        var restored = 0
+
+        repeat(25_000) { t ->
+            val num = if (t > 1_000 && random.nextInt(5) == 0) random.nextInt(t * 4 / 5) else t
+            val pinned = num % 97 == 0
+            if (archive.remove(num) != null) {
+                restored++
+                retention.onRestored()
+            }
+            table[num] = node(num, lastHeard = t.toLong(), hopsAway = random.nextInt(-1, 7), pinned = pinned)
+            largest = maxOf(largest, table.size)
+            if (t % 200 == 199) {
+                retention.evictions(table.values).forEach { archive[it] = table.remove(it)!! }
+            }
+        }
+
+        assertTrue("largest $largest", largest <= 500 + 200 + table.values.count { it.pinned })
+        assertTrue(table.size <= 500 + table.values.count { it.pinned })
+        assertEquals(restored.toLong(), retention.stats.restored)
+    }
+}
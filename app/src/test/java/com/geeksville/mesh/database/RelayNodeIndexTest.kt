@@ -0,0 +1,164 @@
+package com.geeksville.mesh.database
+
+import com.geeksville.mesh.model.Node
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.meshtastic.proto.ConfigProtos.Config.DeviceConfig
+import kotlin.random.Random
+
+class RelayNodeIndexTest {
+
+    private val index = RelayNodeIndex()
+
+    private fun node(num: Int, hopsAway: Int = 1, lastHeard: Int = 1, role: String = "") =
+        Node(num = num, hopsAway = hopsAway, lastHeard = lastHeard, role = role)
+
+    /** What Packet.getRelayNode did: filter every node, take the fewest hops. */
+    private fun linearLookup(relayNode: Int, nodes: List<Node>, ourNodeNum: Int?) = nodes.filter {
+        it.num != ourNodeNum &&
+            it.role != DeviceConfig.Role.CLIENT_MUTE.name &&
+            it.lastHeard != 0 &&
+            (it.num and 0xFF) == (relayNode and 0xFF)
+    }.minByOrNull { it.hopsAway }
+
+    @Test
+    fun `colliding suffixes rank by hops and leave out nodes that can't relay`() {
+        val far = node(0x10AB, hopsAway = 3)
+        val near = node(0x20AB, hopsAway = 1)
+        index.update(
+            listOf(
+                far,
+                near,
+                node(0x30AB, hopsAway = 0, lastHeard = 0), // never heard
+                node(0x40AB, hopsAway = 0, role = DeviceConfig.Role.CLIENT_MUTE.name),
+                node(0x50AB, hopsAway = 0), // ours
+                node(0x10AC, hopsAway = 0),
+            ),
+            ourNodeNum = 0x50AB,
+        )
+
+        val candidates = index.candidates(0xAB)
+        assertEquals(listOf(near, far), candidates.map { it.node })
+        assertTrue("$candidates", candidates[0].confidence > candidates[1].confidence)
+        // only the low byte counts
+        assertEquals(near, index.lookup(0x7F00_00AB)?.node)
+        assertNull(index.lookup(0xAD))
+    }
+
+    @Test
+    fun `unknown hops rank after known ones`() {
+        val unknown = node(0x01CD, hopsAway = -1)
+        val known = node(0x02CD, hopsAway = 5)
+        index.update(listOf(unknown, known), ourNodeNum = null)
+
+        assertEquals(known, index.lookup(0xCD)?.node)
+    }
+
+    @Test
+    fun `a lone candidate keeps the confidence the hop guess gave it`() {
+        index.update(listOf(node(0x01EE, hopsAway = 0)), ourNodeNum = null)
+
+        assertEquals(75, index.lookup(0xEE)?.confidence)
+    }
+
+    @Test
+    fun `traceroute confirmations override the hop guess and follow a relay that moves`() {
+        val far = node(0x10AB, hopsAway = 4)
+        val near = node(0x20AB, hopsAway = 0)
+        index.update(listOf(far, near), ourNodeNum = null)
+        assertEquals(near, index.lookup(0xAB)?.node)
+
+        repeat(3) { assertTrue(index.confirm(0xAB, far.num)) }
+        assertEquals(RelayCandidate(far, 100), index.lookup(0xAB))
+        assertEquals(0, index.candidates(0xAB).last().confidence)
+
+        repeat(3) { index.confirm(0xAB, near.num) }
+        val best = index.lookup(0xAB)!!
+        assertEquals(near, best.node)
+        assertTrue("$best", best.confidence in 80..99)
+    }
+
+    @Test
+    fun `a confirmation for a node with another suffix is refused`() {
+        index.update(listOf(node(0x10AB)), ourNodeNum = null)
+
+        assertFalse(index.confirm(0xAB, 0x10AC))
+        assertEquals(0L, index.stats.confirmations)
+    }
+
+    @Test
+    fun `confirmations outlive the node leaving and coming back`() {
+        val far = node(0x10AB, hopsAway = 4)
+        val near = node(0x20AB, hopsAway = 0)
+        repeat(3) { index.confirm(0xAB, far.num) }
+        index.update(listOf(near), ourNodeNum = null)
+        assertEquals(near, index.lookup(0xAB)?.node)
+
+        index.update(listOf(far, near), ourNodeNum = null)
+        assertEquals(far, index.lookup(0xAB)?.node)
+    }
+
+    @Test
+    fun `updates only re-rank the suffixes that changed`() {
+        val random = Random(49)
+        val nodes = List(1_000) { node(random.nextInt(), hopsAway = random.nextInt(8)) }.distinctBy { it.num }
+        index.update(nodes, ourNodeNum = null)
+        val suffixes = nodes.map { it.num and 0xFF }.distinct().size
+        assertEquals(suffixes.toLong(), index.stats.bucketsRebuilt)
+
+        index.update(nodes, ourNodeNum = null)
+        assertEquals(suffixes.toLong(), index.stats.bucketsRebuilt)
+
+        val changed = nodes[10].copy(hopsAway = nodes[10].hopsAway + 1)
+        index.update(nodes.toMutableList().apply { set(10, changed) }, ourNodeNum = null)
+        assertEquals(suffixes + 1L, index.stats.bucketsRebuilt)
+        assertTrue(changed in index.candidates(changed.num).map { it.node })
+
+        index.update(nodes - nodes[10], ourNodeNum = null)
+        assertEquals(suffixes + 2L, index.stats.bucketsRebuilt)
+        assertFalse(changed in index.candidates(changed.num).map { it.node })
+
+        index.update(nodes - nodes[10], ourNodeNum = nodes[20].num)
+        assertFalse(nodes[20] in index.candidates(nodes[20].num).map { it.node })
+    }
+
+    @Test
+    fun `attribution over a 1500 node mesh improves after learning from traceroutes`() {
+        val random = Random(49)
+        // a dozen neighbors really relay to us, among 1500 nodes of which many share their suffix
+        val nodes = List(1_500) { i ->
+            node(random.nextInt(), hopsAway = if (i < 12) random.nextInt(2) else random.nextInt(8))
+        }
+        val relays = nodes.take(12)
+        index.update(nodes, ourNodeNum = null)
+
+        val packets = 20_000
+        fun accuracy(attribute: (Int) -> Node?): Double {
+            var right = 0
+            repeat(packets) {
+                val relay = relays.random(random)
+                if (attribute(relay.num and 0xFF)?.num == relay.num) right++
+            }
+            return right.toDouble() / packets
+        }
+
+        // before any confirmation the index ranks like the linear scan did
+        relays.forEach { relay ->
+            val suffix = relay.num and 0xFF
+            assertEquals(linearLookup(suffix, nodes, null)?.hopsAway, index.lookup(suffix)?.node?.hopsAway)
+        }
+        val guessed = accuracy { index.lookup(it)?.node }
+
+        repeat(200) {
+            val relay = relays.random(random)
+            index.confirm(relay.num and 0xFF, relay.num)
+        }
+        val learned = accuracy { index.lookup(it)?.node }
+
+        assertTrue("before $guessed, after $learned", learned > guessed)
+        assertTrue("after $learned", learned >= 0.8)
+    }
+}
@@ -0,0 +1,98 @@
+package com.geeksville.mesh.model.map
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class MarkerReconcilerTest {
+
+    private data class State(val label: String, val lat: Double, val lon: Double)
+
+    private class FakeMarker(var state: State)
+
+    /** Stands in for the clusterer item list, counting every change made to it. */
+    private class FakeOverlay {
+        val items = ArrayList<FakeMarker>()
+        var mutations = 0L
+    }
+
+    private fun reconciler(overlay: FakeOverlay, updates: IntArray = IntArray(1)) =
+        MarkerReconciler<Int, State, FakeMarker>(
+            create = { FakeMarker(it) },
+            update = { marker, state -> marker.state = state; updates[0]++ },
+            attach = { overlay.items.add(it); overlay.mutations++ },
+            detach = { overlay.items.remove(it); overlay.mutations++ },
+        )
+
+    @Test
+    fun `only changed keys touch the overlay`() {
+        val overlay = FakeOverlay()
+        val updates = IntArray(1)
+        val r = reconciler(overlay, updates)
+
+        assertEquals(
+            MarkerChanges(added = 3),
+            r.reconcile(mapOf(1 to State("a", 1.0, 1.0), 2 to State("b", 2.0, 2.0), 3 to State("c", 3.0, 3.0)))
+        )
+        val markerB = r.markerFor(2)
+
+        val changes = r.reconcile(mapOf(2 to State("b", 2.5, 2.0), 3 to State("c", 3.0, 3.0), 4 to State("d", 4.0, 4.0)))
+        assertEquals(MarkerChanges(added = 1, removed = 1, updated = 1, unchanged = 1), changes)
+        assertSame(markerB, r.markerFor(2)) // moved in place, not replaced
+        assertEquals(2.5, r.markerFor(2)!!.state.lat, 0.0)
+        assertEquals(1, updates[0])
+        assertEquals(3, overlay.items.size)
+        assertEquals(5L, overlay.mutations) // 3 + 1 added, 1 removed
+
+        assertTrue(r.reconcile(mapOf(2 to State("b", 2.5, 2.0), 3 to State("c", 3.0, 3.0), 4 to State("d", 4.0, 4.0))).isEmpty)
+
+        r.clear()
+        assertEquals(0, r.size)
+        assertTrue(overlay.items.isEmpty())
+    }
+
+    @Test
+    fun `2000 nodes with one position update per second only touch the moved marker`() {
+        val nodes = 2_000
+        val frames = 300 // five minutes of one update a second
+        val random = Random(7)
+        val states = HashMap<Int, State>()
+        for (num in 0 until nodes) states[num] = State("N$num", random.nextDouble(-60.0, 60.0), random.nextDouble(-180.0, 180.0))
+
+        // what UpdateMarkers used to do: drop every marker and add a freshly built set
+        val rebuilt = FakeOverlay()
+        fun rebuild() {
+            rebuilt.mutations += rebuilt.items.size
+            rebuilt.items.clear()
+            for (state in states.values) rebuilt.items.add(FakeMarker(state))
+            rebuilt.mutations += states.size
+        }
+
+        val diffed = FakeOverlay()
+        val r = reconciler(diffed)
+
+        rebuild()
+        r.reconcile(HashMap(states))
+        val rebuildBase = rebuilt.mutations
+        val diffBase = diffed.mutations
+
+        repeat(frames) {
+            val num = random.nextInt(nodes)
+            val old = states.getValue(num)
+            states[num] = old.copy(lat = old.lat + 1e-4)
+
+            rebuild()
+            val changes = r.reconcile(HashMap(states))
+            assertEquals(1, changes.updated)
+            assertEquals(nodes - 1, changes.unchanged)
+        }
+
+        val rebuildPerFrame = (rebuilt.mutations - rebuildBase) / frames
+        val diffPerFrame = (diffed.mutations - diffBase) / frames.toDouble()
+        assertEquals(2L * nodes, rebuildPerFrame)
+        assertEquals(0.0, diffPerFrame, 0.0) // a move is an in-place update, the overlay list is untouched
+        assertEquals(nodes, diffed.items.size)
+    }
+}
@@ -0,0 +1,171 @@
+package com.geeksville.mesh.prefs
+
+import android.content.SharedPreferences
+import com.geeksville.mesh.ui.SKIP_MQTT_ENTIRELY
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CopyOnWriteArraySet
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+/** In-memory prefs that lock per read and notify per changed key, like the platform's. */
+private class FakePrefs : SharedPreferences {
+    private val lock = Any()
+    private val values = HashMap<String, Any?>()
+    private val listeners = CopyOnWriteArraySet<SharedPreferences.OnSharedPreferenceChangeListener>()
+
+    private fun <T> get(key: String, default: T): T = synchronized(lock) {
+        @Suppress("UNCHECKED_CAST")
+        if (values.containsKey(key)) values[key] as T else default
+    }
+
+    override fun getAll(): Map<String, *> = synchronized(lock) { HashMap(values) }
+    override fun getString(key: String, defValue: String?): String? = get(key, defValue)
+    override fun getStringSet(key: String, defValues: Set<String>?): Set<String>? = get(key, defValues)
+    override fun getInt(key: String, defValue: Int): Int = get(key, defValue)
+    override fun getLong(key: String, defValue: Long): Long = get(key, defValue)
+    override fun getFloat(key: String, defValue: Float): Float = get(key, defValue)
+    override fun getBoolean(key: String, defValue: Boolean): Boolean = get(key, defValue)
+    override fun contains(key: String): Boolean = synchronized(lock) { values.containsKey(key) }
+
+    override fun registerOnSharedPreferenceChangeListener(l: SharedPreferences.OnSharedPreferenceChangeListener) {
+        listeners += l
+    }
+
+    override fun unregisterOnSharedPreferenceChangeListener(l: SharedPreferences.OnSharedPreferenceChangeListener) {
+        listeners -= l
+    }
+
+    override fun edit(): SharedPreferences.Editor = object : SharedPreferences.Editor {
+        private val changes = HashMap<String, Any?>()
+
+        private fun put(key: String, value: Any?): SharedPreferences.Editor {
+            changes[key] = value
+            return this
+        }
+
+        override fun putString(key: String, value: String?) = put(key, value)
+        override fun putStringSet(key: String, values: Set<String>?) = put(key, values)
+        override fun putInt(key: String, value: Int) = put(key, value)
+        override fun putLong(key: String, value: Long) = put(key, value)
+        override fun putFloat(key: String, value: Float) = put(key, value)
+        override fun putBoolean(key: String, value: Boolean) = put(key, value)
+        override fun remove(key: String) = put(key, null)
+        override fun clear(): SharedPreferences.Editor {
+            synchronized(lock) { values.keys.forEach { changes[it] = null } }
+            return this
+        }
+
+        override fun commit(): Boolean {
+            synchronized(lock) {
+                changes.forEach { (key, value) -> if (value == null) values.remove(key) else values[key] = value }
+            }
+            changes.keys.forEach { key -> listeners.forEach { it.onSharedPreferenceChanged(this@FakePrefs, key) } }
+            return true
+        }
+
+        override fun apply() {
+            commit()
+        }
+    }
+}
+
+class PrefsSnapshotTest {
+
+    private val prefs = FakePrefs()
+
+    private fun huntSnapshot() = PrefsSnapshot(prefs, HuntSettings.KEYS) { getHuntSettings() }
+
+    @Test
+    fun `reads the settings once and again only when one of its keys changes`() {
+        val snapshot = huntSnapshot()
+        assertFalse(snapshot.value.canUpload)
+        assertEquals(1L, snapshot.parseCount)
+
+        prefs.edit().putString("unrelated", "x").commit()
+        assertEquals(1L, snapshot.parseCount)
+
+        prefs.edit()
+            .putBoolean(UserPrefs.Hunting.HUNT_MODE, true)
+            .putString(UserPrefs.Hunting.HUNT_DOMAIN, "https://hunt.example")
+            .putString(UserPrefs.Hunting.HUNT_TOKEN, "t0k3n")
+            .commit()
+        assertTrue(snapshot.value.canUpload)
+        assertEquals("https://hunt.example", snapshot.value.domain)
+    }
+
+    @Test
+    fun `a value is shared by every reader until replaced`() {
+        val snapshot = huntSnapshot()
+        val first = snapshot.value
+        assertSame(first, snapshot.value)
+
+        prefs.edit().putBoolean(UserPrefs.Hunting.BACKGROUND_HUNT, true).commit()
+        assertTrue(snapshot.value.background)
+        assertFalse(first.background)
+    }
+
+    @Test
+    fun `stops following the prefs once closed`() {
+        val snapshot = huntSnapshot()
+        snapshot.close()
+
+        prefs.edit().putBoolean(UserPrefs.Hunting.HUNT_MODE, true).commit()
+        assertFalse(snapshot.value.enabled)
+        assertEquals(1L, snapshot.parseCount)
+    }
+
+    @Test
+    fun `readers never see a half applied change`() {
+        val snapshot = huntSnapshot()
+        val done = AtomicBoolean()
+        val torn = AtomicLong()
+
+        // domain and token always change together
+        val writer = thread {
+            for (i in 0 until 5_000) {
+                prefs.edit()
+                    .putString(UserPrefs.Hunting.HUNT_DOMAIN, "d$i")
+                    .putString(UserPrefs.Hunting.HUNT_TOKEN, "t$i")
+                    .commit()
+            }
+            done.set(true)
+        }
+        val reader = thread {
+            while (!done.get()) {
+                val settings = snapshot.value
+                if (settings.domain?.drop(1) != settings.token?.drop(1)) torn.incrementAndGet()
+            }
+        }
+        writer.join()
+        reader.join()
+
+        assertEquals(0L, torn.get())
+        assertEquals("d4999", snapshot.value.domain)
+    }
+
+    @Test
+    fun `per packet settings checks agree with the prefs and parse once`() {
+        prefs.edit().putBoolean(UserPrefs.Hunting.HUNT_MODE, false).commit()
+        val hunt = huntSnapshot()
+        val advanced = PrefsSnapshot(prefs, AdvancedServiceSettings.KEYS) { getAdvancedServiceSettings() }
+
+        // what MeshService checked per received packet before: hunt mode, then skip MQTT
+        fun fromPrefs(): Boolean {
+            val hunting = prefs.getBoolean(UserPrefs.Hunting.HUNT_MODE, false) &&
+                prefs.getString(UserPrefs.Hunting.HUNT_DOMAIN, null) != null &&
+                prefs.getString(UserPrefs.Hunting.HUNT_TOKEN, null) != null
+            return hunting || prefs.getBoolean(SKIP_MQTT_ENTIRELY, false)
+        }
+
+        fun fromSnapshot() = hunt.value.canUpload || advanced.value.skipMqtt
+
+        repeat(100_000) { assertEquals(fromPrefs(), fromSnapshot()) }
+        assertFalse(fromSnapshot())
+        assertEquals(2L, hunt.parseCount + advanced.parseCount)
+    }
+}
@@ -0,0 +1,216 @@
+package com.geeksville.mesh.repository.location
+
+import com.geeksville.mesh.util.latLongToMeter
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.time.Instant
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.random.Random
+
+/**
+ * Replays GPX tracks through the reporter the way MeshService feeds it (a fix every
+ * [FIX_INTERVAL_S]) and scores every second of the true track by its distance from the last
+ * reported position, against a fixed timer given the same number of transmissions.
+ */
+class SmartPositionReporterTest {
+
+    private companion object {
+        const val LAT0 = 45.0
+        const val LON0 = 7.0
+        const val METERS_PER_DEG_LAT = 111_320.0
+        val METERS_PER_DEG_LON = METERS_PER_DEG_LAT * cos(Math.toRadians(LAT0))
+        const val START_MS = 1_700_000_000_000L
+        const val FIX_INTERVAL_S = 10
+        const val GPS_SIGMA_M = 3.0
+    }
+
+    /** Where the device truly is, meters east and north of the start, and its speed and course. */
+    private data class Truth(val east: Double, val north: Double, val speed: Double, val course: Double)
+
+    private data class TrackPoint(val lat: Double, val lon: Double, val timeMs: Long, val speed: Float, val course: Float)
+
+    private data class Score(val transmissions: Int, val meanErrorM: Double, val p95ErrorM: Double, val maxErrorM: Double)
+
+    /** A track as a function of seconds since its start. */
+    private fun interface Track {
+        fun at(t: Int): Truth
+    }
+
+    private fun stationary() = Track { Truth(0.0, 0.0, 0.0, 0.0) }
+
+    /** Walking city blocks: [legM] straight, then a right angle turn, at [speed]. */
+    private fun blocks(speed: Double = 1.4, legM: Double = 200.0) = Track { t ->
+        val traveled = t * speed
+        val leg = (traveled / legM).toInt()
+        val along = traveled - leg * legM
+        // a staircase going north east: even legs east, odd legs north
+        val east = (leg + 1) / 2 * legM + if (leg % 2 == 0) along else 0.0
+        val north = leg / 2 * legM + if (leg % 2 == 1) along else 0.0
+        Truth(east, north, speed, if (leg % 2 == 0) 90.0 else 0.0)
+    }
+
+    /** Walk, sit down, walk on. */
+    private fun mixed(walkS: Int, restS: Int): Track {
+        val walk = blocks()
+        return Track { t ->
+            when {
+                t < walkS -> walk.at(t)
+                t < walkS + restS -> walk.at(walkS).copy(speed = 0.0)
+                else -> walk.at(t - restS)
+            }
+        }
+    }
+
+    /** Driving a wide curve at [speed]. */
+    private fun drive(speed: Double = 15.0, radiusM: Double = 2_000.0) = Track { t ->
+        val angle = t * speed / radiusM
+        Truth(radiusM * sin(angle), radiusM * (1 - cos(angle)), speed, 90.0 - Math.toDegrees(angle))
+    }
+
+    private fun latOf(north: Double) = LAT0 + north / METERS_PER_DEG_LAT
+    private fun lonOf(east: Double) = LON0 + east / METERS_PER_DEG_LON
+
+    /** Records [track] as a GPX 1.0 file the way a phone would: noisy fixes with speed and course. */
+    private fun recordGpx(track: Track, durationS: Int, seed: Int = 1): String {
+        val random = Random(seed)
+        fun noise() = random.nextDouble(-1.0, 1.0) * GPS_SIGMA_M * 1.7
+        return buildString {
+            append("""<?xml version="1.0" encoding="UTF-8"?>""").append('\n')
+            append("""<gpx version="1.0" creator="test"><trk><trkseg>""").append('\n')
+            for (t in 0 until durationS step FIX_INTERVAL_S) {
+                val truth = track.at(t)
+                val speed = if (truth.speed > 0) truth.speed + random.nextDouble(-0.2, 0.2) else 0.0
+                val course = (truth.course + random.nextDouble(-5.0, 5.0) + 360) % 360
+                append("""<trkpt lat="${latOf(truth.north + noise())}" lon="${lonOf(truth.east + noise())}">""")
+                append("<time>${Instant.ofEpochMilli(START_MS + t * 1000L)}</time>")
+                append("<course>$course</course><speed>$speed</speed></trkpt>\n")
+            }
+            append("</trkseg></trk></gpx>\n")
+        }
+    }
+
+    private val trkpt = Regex("""<trkpt lat="([^"]+)" lon="([^"]+)">(.*?)</trkpt>""")
+
+    private fun tag(body: String, name: String) = Regex("<$name>([^<]+)</$name>").find(body)?.groupValues?.get(1)
+
+    private fun parseGpx(gpx: String): List<TrackPoint> = trkpt.findAll(gpx).map { match ->
+        val (lat, lon, body) = match.destructured
+        TrackPoint(
+            lat = lat.toDouble(),
+            lon = lon.toDouble(),
+            timeMs = Instant.parse(tag(body, "time")).toEpochMilli(),
+            speed = tag(body, "speed")?.toFloat() ?: 0f,
+            course = tag(body, "course")?.toFloat() ?: 0f,
+        )
+    }.toList()
+
+    /** Scores the reports ([sent], by time) against every second of the true [track]. */
+    private fun score(track: Track, durationS: Int, sent: List<TrackPoint>): Score {
+        var next = 0
+        var reported: TrackPoint? = null
+        val errors = (0 until durationS).map { t ->
+            while (next < sent.size && sent[next].timeMs <= START_MS + t * 1000L) reported = sent[next++]
+            val truth = track.at(t)
+            reported?.let { latLongToMeter(it.lat, it.lon, latOf(truth.north), lonOf(truth.east)) } ?: 0.0
+        }.sorted()
+        return Score(sent.size, errors.average(), errors[errors.size * 95 / 100], errors.last())
+    }
+
+    private fun replaySmart(
+        gpx: String,
+        policy: SmartPositionPolicy = SmartPositionPolicy(),
+        channelUtilization: Float? = null,
+    ): List<TrackPoint> {
+        val reporter = SmartPositionReporter(policy)
+        return parseGpx(gpx).filter { p ->
+            val sample = PositionSample(p.lat, p.lon, p.timeMs, p.speed, p.course, accuracyM = 5f)
+            reporter.evaluate(sample, channelUtilization).send
+        }
+    }
+
+    /** A fixed timer spending [transmissions] evenly over the track. */
+    private fun replayTimer(gpx: String, transmissions: Int): List<TrackPoint> {
+        val fixes = parseGpx(gpx)
+        val every = maxOf(1, fixes.size / transmissions)
+        return fixes.filterIndexed { i, _ -> i % every == 0 }
+    }
+
+    private fun compare(track: Track, durationS: Int): Pair<Score, Score> {
+        val gpx = recordGpx(track, durationS)
+        val smart = score(track, durationS, replaySmart(gpx))
+        val timer = score(track, durationS, replayTimer(gpx, smart.transmissions))
+        return smart to timer
+    }
+
+    @Test
+    fun `a stationary device goes quiet down to the heartbeat`() {
+        val durationS = 2 * 3600
+        val sent = replaySmart(recordGpx(stationary(), durationS))
+
+        // the first fix, then one heartbeat every 15 minutes, while a 30 s timer would send 240
+        assertEquals(1 + (durationS - FIX_INTERVAL_S) / (15 * 60), sent.size)
+    }
+
+    @Test
+    fun `a walker stays tracked within the distance threshold`() {
+        val durationS = 3600
+        val (smart, _) = compare(blocks(), durationS)
+
+        // 30 m threshold, plus the walk between fixes and GPS noise
+        assertTrue("$smart", smart.maxErrorM < 30 + 1.4 * FIX_INTERVAL_S + 6 * GPS_SIGMA_M)
+        assertTrue("$smart", smart.meanErrorM < 30)
+        // walking pace crosses the threshold every 20 to 30 s
+        assertTrue("$smart", smart.transmissions <= durationS / 20)
+    }
+
+    @Test
+    fun `turns report early`() {
+        val gpx = recordGpx(blocks(), 3600)
+        val reporter = SmartPositionReporter()
+        parseGpx(gpx).forEach { reporter.evaluate(PositionSample(it.lat, it.lon, it.timeMs, it.speed, it.course)) }
+
+        assertTrue("${reporter.stats}", reporter.stats.turns > 0)
+    }
+
+    @Test
+    fun `movement driven reports beat a timer with the same budget`() {
+        val (smart, timer) = compare(mixed(walkS = 1200, restS = 2400), 4800)
+
+        assertTrue("smart $smart, timer $timer", smart.p95ErrorM < timer.p95ErrorM)
+        assertTrue("smart $smart, timer $timer", smart.maxErrorM < timer.maxErrorM)
+    }
+
+    @Test
+    fun `fast movers are limited by the minimum interval`() {
+        val durationS = 1800
+        val (smart, _) = compare(drive(), durationS)
+
+        val policy = SmartPositionPolicy()
+        assertTrue("$smart", smart.transmissions <= durationS * 1000 / policy.minIntervalMs + 1)
+        assertTrue("$smart", smart.transmissions >= durationS / (2 * FIX_INTERVAL_S) - 1)
+    }
+
+    @Test
+    fun `a congested channel trades accuracy for airtime`() {
+        val durationS = 3600
+        val gpx = recordGpx(blocks(), durationS)
+        val quiet = replaySmart(gpx, channelUtilization = 5f).size
+        val congested = replaySmart(gpx, channelUtilization = 60f).size
+
+        assertTrue("quiet $quiet, congested $congested", congested * 2 < quiet)
+    }
+
+    @Test
+    fun `inaccurate fixes are ignored and nothing goes out before the minimum interval`() {
+        val reporter = SmartPositionReporter()
+        val bad = PositionSample(latOf(0.0), lonOf(0.0), START_MS, accuracyM = 500f)
+        assertEquals(PositionReason.INACCURATE, reporter.evaluate(bad).reason)
+        assertEquals(PositionReason.FIRST, reporter.evaluate(bad.copy(accuracyM = 10f)).reason)
+
+        val far = bad.copy(latitude = latOf(1_000.0), timeMs = START_MS + 1_000, accuracyM = 10f)
+        assertEquals(PositionReason.TOO_SOON, reporter.evaluate(far).reason)
+        assertEquals(PositionReason.MOVED, reporter.evaluate(far.copy(timeMs = START_MS + 20_000)).reason)
+    }
+}
@@ -0,0 +1,348 @@
+package com.geeksville.mesh.repository.network
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.MqttException
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.DataInputStream
+import java.io.File
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.file.Files
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.concurrent.thread
+
+class MqttOutboundQueueTest {
+
+    /**
+     * Just enough of an MQTT 3.1.1 broker for a publishing client: CONNECT, QoS 0/1 PUBLISH,
+     * PINGREQ and DISCONNECT. [stop] drops every connection like a network outage would, [start]
+     * brings it back on the same port.
+     */
+    private class LocalBroker {
+        val received = CopyOnWriteArrayList<String>()
+
+        // close the connection instead of sending PUBACK, after storing the message
+        @Volatile
+        var loseAcks = false
+
+        private var server: ServerSocket? = null
+        private val sockets = CopyOnWriteArrayList<Socket>()
+        var port = 0
+            private set
+        val uri get() = "tcp://127.0.0.1:$port"
+
+        fun start() {
+            val s = ServerSocket().apply {
+                reuseAddress = true
+                bind(InetSocketAddress("127.0.0.1", port))
+            }
+            port = s.localPort
+            server = s
+            thread(isDaemon = true) {
+                while (true) {
+                    val socket = try {
+                        s.accept()
+                    } catch (ex: IOException) {
+                        break
+                    }
+                    sockets += socket
+                    thread(isDaemon = true) { serve(socket) }
+                }
+            }
+        }
+
+        fun stop() {
+            server?.close()
+            sockets.forEach { runCatching { it.close() } }
+            sockets.clear()
+        }
+
+        private fun serve(socket: Socket) {
+            try {
+                val input = DataInputStream(socket.getInputStream().buffered())
+                val out = socket.getOutputStream()
+                while (true) {
+                    val header = input.readUnsignedByte()
+                    var length = 0
+                    var multiplier = 1
+                    do {
+                        val b = input.readUnsignedByte()
+                        length += (b and 0x7f) * multiplier
+                        multiplier *= 128
+                    } while (b and 0x80 != 0)
+                    val body = ByteArray(length).also { input.readFully(it) }
+
+                    when (header shr 4) {
+                        1 -> out.write(byteArrayOf(0x20, 2, 0, 0)) // CONNACK, accepted
+                        3 -> {
+                            val qos = (header shr 1) and 3
+                            val topicLength = ((body[0].toInt() and 0xff) shl 8) or (body[1].toInt() and 0xff)
+                            var pos = 2 + topicLength
+                            val id = if (qos > 0) body.copyOfRange(pos, pos + 2).also { pos += 2 } else null
+                            received += String(body, pos, body.size - pos)
+                            if (id != null) {
+                                if (loseAcks) {
+                                    socket.close()
+                                    return
+                                }
+                                out.write(byteArrayOf(0x40, 2) + id) // PUBACK
+                            }
+                        }
+                        12 -> out.write(byteArrayOf(0xd0.toByte(), 0)) // PINGRESP
+                        14 -> return
+                    }
+                    out.flush()
+                }
+            } catch (ex: IOException) {
+                // connection dropped
+            } finally {
+                socket.close()
+            }
+        }
+    }
+
+    /** Wired to the client the same way MQTTRepository does it. */
+    private class Publisher(uri: String, val queue: MqttOutboundQueue) : MqttCallbackExtended {
+        val client = MqttAsyncClient(uri, "test-${System.nanoTime()}", MemoryPersistence())
+
+        init {
+            client.setCallback(this)
+            client.connect(MqttConnectOptions().apply {
+                isAutomaticReconnect = true
+                maxReconnectDelay = 500
+                maxInflight = WINDOW
+            })
+        }
+
+        fun publish(text: String) {
+            queue.add("msh/2/e/LongFast/!1234", text.encodeToByteArray(), false)
+            drain()
+        }
+
+        fun drain() {
+            if (!client.isConnected) return
+            try {
+                queue.drain(WINDOW) { entry ->
+                    val message = MqttMessage(entry.payload).apply { qos = 1; isRetained = entry.retained }
+                    client.publish(entry.topic, message, entry.seq, null)
+                }
+            } catch (ex: MqttException) {
+                // retried on the next delivery or reconnect
+            }
+        }
+
+        fun close() {
+            runCatching { client.disconnectForcibly(0, 0) }
+            client.close(true)
+        }
+
+        override fun connectComplete(reconnect: Boolean, serverURI: String) {
+            queue.rewind()
+            drain()
+        }
+
+        override fun deliveryComplete(token: IMqttDeliveryToken?) {
+            (token?.userContext as? Long)?.let { queue.ack(it) }
+            drain()
+        }
+
+        override fun connectionLost(cause: Throwable?) {}
+        override fun messageArrived(topic: String, message: MqttMessage) {}
+    }
+
+    private lateinit var dir: File
+    private val broker = LocalBroker()
+    private val publishers = mutableListOf<Publisher>()
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("mqtt-outbound").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        publishers.forEach { it.close() }
+        broker.stop()
+        dir.deleteRecursively()
+    }
+
+    private fun publisher(queue: MqttOutboundQueue) = Publisher(broker.uri, queue).also { publishers += it }
+
+    private fun waitFor(what: String, timeoutMs: Long = 15_000, condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + timeoutMs
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline) throw AssertionError("timed out waiting for $what")
+            Thread.sleep(10)
+        }
+    }
+
+    /** What the broker got, without the duplicates at-least-once delivery is allowed to produce. */
+    private fun delivered() = broker.received.distinct()
+
+    @Test
+    fun `messages survive reopening in order`() {
+        MqttOutboundQueue(dir).apply {
+            repeat(5) { add("t/$it", byteArrayOf(it.toByte()), it == 0) }
+        }
+        File(dir, "99.tmp").writeText("half written")
+
+        val reopened = MqttOutboundQueue(dir)
+        val seen = mutableListOf<MqttOutboundQueue.Entry>()
+        reopened.drain(10) { seen += it }
+        assertEquals((0 until 5).map { "t/$it" }, seen.map { it.topic })
+        assertTrue(seen.first().retained)
+        assertEquals(listOf("0000000000000000000.msg"), dir.list()!!.sorted().take(1))
+        assertEquals(5, dir.list()!!.size)
+
+        // new messages keep counting up after a reopen
+        assertEquals(5L, reopened.add("t/5", byteArrayOf(), false))
+    }
+
+    @Test
+    fun `window, ack and rewind`() {
+        val queue = MqttOutboundQueue(dir)
+        repeat(6) { queue.add("t", byteArrayOf(it.toByte()), false) }
+        val sent = mutableListOf<Long>()
+        assertEquals(4, queue.drain(4) { sent += it.seq })
+        assertEquals(0, queue.drain(4) { sent += it.seq })
+
+        queue.ack(0)
+        queue.ack(1)
+        assertEquals(2, queue.drain(4) { sent += it.seq })
+        assertEquals(listOf(0L, 1L, 2L, 3L, 4L, 5L), sent)
+
+        // connection dropped with 2..5 unacknowledged: they go again, oldest first
+        queue.rewind()
+        sent.clear()
+        queue.drain(4) { sent += it.seq }
+        assertEquals(listOf(2L, 3L, 4L, 5L), sent)
+        assertEquals(4L, queue.stats.replayed)
+    }
+
+    @Test
+    fun `a failed send is retried from the same message`() {
+        val queue = MqttOutboundQueue(dir)
+        repeat(3) { queue.add("t", byteArrayOf(it.toByte()), false) }
+        val sent = mutableListOf<Long>()
+        try {
+            queue.drain(10) { if (it.seq == 1L) throw MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED.toInt()) else sent += it.seq }
+        } catch (ex: MqttException) {
+            // expected
+        }
+        queue.drain(10) { sent += it.seq }
+        assertEquals(listOf(0L, 1L, 2L), sent)
+    }
+
+    @Test
+    fun `overflow drops the oldest and counts them`() {
+        val byCount = MqttOutboundQueue(File(dir, "count"), maxMessages = 10)
+        repeat(25) { byCount.add("t", byteArrayOf(it.toByte()), false) }
+        val kept = mutableListOf<Int>()
+        byCount.drain(100) { kept += it.payload[0].toInt() }
+        assertEquals((15 until 25).toList(), kept)
+        assertEquals(15L, byCount.stats.dropped)
+
+        val bySize = MqttOutboundQueue(File(dir, "size"), maxBytes = 10_000)
+        repeat(50) { bySize.add("t", ByteArray(1_000), false) }
+        assertTrue(bySize.stats.bytes <= 10_000)
+        assertEquals(50L, bySize.stats.dropped + bySize.size)
+    }
+
+    @Test
+    fun `expired messages are dropped unsent`() {
+        var now = 1_000_000L
+        val queue = MqttOutboundQueue(dir, maxAgeMs = 60_000, clock = { now })
+        repeat(3) { queue.add("old", byteArrayOf(it.toByte()), false) }
+        now += 30_000
+        queue.add("new", byteArrayOf(), false)
+        now += 40_000
+
+        val sent = mutableListOf<String>()
+        queue.drain(10) { sent += it.topic }
+        assertEquals(listOf("new"), sent)
+        assertEquals(3L, queue.stats.expired)
+        assertEquals(0L, queue.stats.dropped)
+    }
+
+    private fun outage(outageMs: Long, during: Int, capacity: Int = MqttOutboundQueue.DEFAULT_MAX_MESSAGES) {
+        broker.start()
+        val queue = MqttOutboundQueue(dir, maxMessages = capacity)
+        val publisher = publisher(queue)
+        waitFor("connect") { publisher.client.isConnected }
+
+        val before = List(20) { "before $it" }
+        before.forEach { publisher.publish(it) }
+        waitFor("first batch acked") { queue.size == 0 }
+
+        broker.stop()
+        waitFor("disconnect") { !publisher.client.isConnected }
+        val outage = List(during) { "outage $it" }
+        outage.forEach { publisher.publish(it) }
+        Thread.sleep(outageMs)
+        broker.start()
+
+        val expected = before + outage.takeLast(minOf(during, capacity))
+        waitFor("replay after ${outageMs}ms outage") { queue.size == 0 && delivered().size == expected.size }
+        assertEquals(expected, delivered())
+        assertEquals((during - capacity).coerceAtLeast(0).toLong(), queue.stats.dropped)
+    }
+
+    @Test
+    fun `a blip replays everything in order`() = outage(outageMs = 0, during = 50)
+
+    @Test
+    fun `a longer outage replays everything in order`() = outage(outageMs = 3_000, during = 500)
+
+    @Test
+    fun `an outage past capacity keeps the newest`() = outage(outageMs = 1_000, during = 300, capacity = 100)
+
+    @Test
+    fun `unacknowledged messages are sent again after the connection drops`() {
+        broker.start()
+        val queue = MqttOutboundQueue(dir)
+        val publisher = publisher(queue)
+        waitFor("connect") { publisher.client.isConnected }
+
+        broker.loseAcks = true
+        val messages = List(30) { "message $it" }
+        messages.forEach { publisher.publish(it) }
+        waitFor("first message stored") { broker.received.isNotEmpty() }
+        broker.loseAcks = false
+
+        waitFor("replay") { queue.size == 0 }
+        assertEquals(messages, delivered())
+        assertTrue(queue.stats.replayed > 0)
+    }
+
+    @Test
+    fun `messages queued before the process died are delivered by the next one`() {
+        broker.start()
+        broker.stop() // the broker is unreachable while the first process runs
+
+        MqttOutboundQueue(dir).apply {
+            repeat(40) { add("msh/2/e/LongFast/!1234", "queued $it".encodeToByteArray(), false) }
+        }
+
+        broker.start()
+        val queue = MqttOutboundQueue(dir)
+        publisher(queue)
+        waitFor("delivery") { queue.size == 0 }
+        assertEquals(List(40) { "queued $it" }, delivered())
+        assertEquals(0, dir.list()!!.size)
+    }
+
+    companion object {
+        private const val WINDOW = 10
+    }
+}
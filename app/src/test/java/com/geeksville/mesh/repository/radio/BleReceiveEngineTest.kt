@@ -0,0 +1,147 @@
+package com.geeksville.mesh.repository.radio
+
+import com.geeksville.mesh.android.Logging
+import com.geeksville.mesh.concurrent.CallbackContinuation
+import com.geeksville.mesh.service.FakeGatt
+import com.geeksville.mesh.service.GattPriority
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.Collections
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+class BleReceiveEngineTest {
+
+    /**
+     * Stands in for the radio's fromradio characteristic: completes every read on a separate
+     * "binder" thread after [latencyNanos], like the GATT callback would.
+     */
+    private class FakeMailbox(private val latencyNanos: Long = 0) : FromRadioMailbox {
+        val queue = ConcurrentLinkedQueue<ByteArray>()
+        @Volatile
+        var failNext = false
+        private val binder = Executors.newSingleThreadExecutor()
+
+        override fun read(cb: (Result<ByteArray>) -> Unit) {
+            binder.execute {
+                if (latencyNanos > 0) LockSupport.parkNanos(latencyNanos)
+                if (failNext) {
+                    failNext = false
+                    cb(Result.failure(IOException("GATT read failed")))
+                } else {
+                    cb(Result.success(queue.poll() ?: ByteArray(0)))
+                }
+            }
+        }
+
+        fun shutdown() {
+            binder.shutdown()
+            binder.awaitTermination(5, TimeUnit.SECONDS)
+        }
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val mailbox = FakeMailbox()
+    private val received = Collections.synchronizedList(mutableListOf<ByteArray>())
+    private val errors = Collections.synchronizedList(mutableListOf<Throwable>())
+
+    private fun engine(box: FromRadioMailbox = mailbox) =
+        BleReceiveEngine(scope, box, onPacket = { received += it }, onError = { errors += it })
+
+    private fun packet(i: Int, size: Int = 16) = ByteArray(size) { (i + it).toByte() }
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+        mailbox.shutdown()
+    }
+
+    @Test
+    fun `drains until empty in order`() = runBlocking {
+        (0 until 50).forEach { mailbox.queue += packet(it) }
+        val engine = engine()
+
+        assertEquals(50, engine.drain())
+
+        assertEquals(50, received.size)
+        received.forEachIndexed { i, p -> assertArrayEquals(packet(i), p) }
+        assertEquals(51L, engine.stats.reads) // the final read is the empty one
+        assertEquals(50L * 16, engine.stats.bytes)
+        assertEquals(1L, engine.stats.drains)
+    }
+
+    @Test
+    fun `notifies during a drain are folded into one more pass`() = runBlocking {
+        val engine = engine()
+        mailbox.queue += packet(0)
+        engine.requestDrain()
+        repeat(100) { i ->
+            mailbox.queue += packet(i + 1)
+            engine.requestDrain()
+        }
+
+        withTimeout(5_000) { while (received.size < 101) delay(5) }
+        delay(50) // let any trailing pass finish
+
+        assertEquals(101, received.size)
+        received.forEachIndexed { i, p -> assertArrayEquals(packet(i), p) }
+        assertTrue(errors.isEmpty())
+    }
+
+    @Test
+    fun `read errors are reported and the next drain starts fresh`() = runBlocking {
+        val engine = engine()
+        mailbox.queue += packet(0)
+        mailbox.failNext = true
+
+        engine.requestDrain()
+        withTimeout(5_000) { while (errors.isEmpty()) delay(5) }
+        assertTrue(received.isEmpty())
+
+        engine.requestDrain()
+        withTimeout(5_000) { while (received.isEmpty()) delay(5) }
+        assertArrayEquals(packet(0), received.single())
+    }
+
+    /** The fromradio mailbox as BluetoothInterface builds it, every read queued on SafeBluetooth's work loop. */
+    private fun gattMailbox(gatt: FakeGatt, radio: ConcurrentLinkedQueue<ByteArray>) = FromRadioMailbox { cb ->
+        gatt.submit("readC fromradio", GattPriority.CONTROL, CallbackContinuation(cb)) { radio.poll() ?: ByteArray(0) }
+    }
+
+    @Test
+    fun `drains a long stream of full size packets through the GATT work loop`() = runBlocking {
+        val printlog = FakeGatt.muteLogs()
+        val size = 237 // a full FromRadio at the default 247 byte MTU
+        // no latency, and 1ms per read, the finest the fake GATT schedules
+        listOf(0L to 20_000, 1L to 500).forEach { (latency, count) ->
+            val gatt = FakeGatt(scope, latencyMsec = latency)
+            val radio = ConcurrentLinkedQueue<ByteArray>()
+            repeat(count) { radio += packet(it, size) }
+            val engine = BleReceiveEngine(scope, gattMailbox(gatt, radio), onPacket = {}, onError = { errors += it })
+            assertEquals(count, engine.drain())
+            gatt.shutdown()
+
+            val stats = engine.stats
+            assertEquals(count.toLong(), stats.packets)
+            assertEquals(count.toLong() * size, stats.bytes)
+            assertEquals(count + 1L, stats.reads)
+            assertEquals(count + 1L, gatt.queue.queueDelays.getValue(GattPriority.CONTROL).started)
+            assertTrue(stats.packetsPerSecond > 0)
+            assertTrue(errors.isEmpty())
+        }
+        Logging.printlog = printlog
+    }
+}
@@ -0,0 +1,195 @@
+package com.geeksville.mesh.repository.radio
+
+import com.geeksville.mesh.DecodedPayload
+import com.geeksville.mesh.android.AsyncLogFile
+import com.geeksville.mesh.service.PacketDedupCache
+import com.google.protobuf.ByteString
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.meshtastic.proto.MeshProtos
+import org.meshtastic.proto.Portnums
+import org.meshtastic.proto.fromRadio
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.file.Files
+import kotlin.random.Random
+
+class RadioReplayTest {
+
+    private fun textPacket(from: Int, id: Int, text: String) = fromRadio {
+        packet = MeshProtos.MeshPacket.newBuilder().apply {
+            this.from = from
+            this.id = id
+            to = 0xffffffff.toInt()
+            decoded = MeshProtos.Data.newBuilder().apply {
+                portnum = Portnums.PortNum.TEXT_MESSAGE_APP
+                payload = ByteString.copyFromUtf8(text)
+            }.build()
+        }.build()
+    }.toByteArray()
+
+    /** Capture [block] the way RadioInterfaceService does, with a fake clock. */
+    private fun capture(block: RadioCaptureWriter.(advance: (Long) -> Unit) -> Unit): ByteArray {
+        val out = ByteArrayOutputStream()
+        var now = 1_700_000_000_000L
+        val writer = RadioCaptureWriter(sink = { out.write(it) }, clock = { now })
+        writer.block { now += it }
+        return out.toByteArray()
+    }
+
+    /**
+     * A busy mesh: a config exchange, then [packets] text messages from 40 nodes arriving every
+     * 0-2 s, a quarter of them heard a second time through a rebroadcast.
+     */
+    private fun busyMesh(packets: Int, random: Random = Random(40)) = capture { advance ->
+        session(mapOf(RadioCapture.KEY_ADDRESS to "x12:34", RadioCapture.KEY_APP_VERSION to "test"))
+        connected()
+        toRadio(MeshProtos.ToRadio.newBuilder().setWantConfigId(77).build().toByteArray())
+        fromRadio(fromRadio { myInfo = MeshProtos.MyNodeInfo.newBuilder().setMyNodeNum(1).build() }.toByteArray())
+        fromRadio(fromRadio { configCompleteId = 77 }.toByteArray())
+        repeat(packets) { i ->
+            advance(random.nextLong(0, 2_000))
+            val bytes = textPacket(2 + i % 40, 1_000 + i, "message $i")
+            fromRadio(bytes)
+            if (i % 4 == 0) fromRadio(bytes)
+        }
+        disconnected()
+    }
+
+    @Test
+    fun `frames round trip with metadata`() {
+        val bytes = busyMesh(10)
+        val frames = RadioCapture.read(ByteArrayInputStream(bytes))
+        assertEquals(RadioFrameType.SESSION, frames.first().type)
+        assertEquals("x12:34", RadioCapture.metadata(frames.first())[RadioCapture.KEY_ADDRESS])
+        assertEquals(RadioFrameType.CONNECTED, frames[1].type)
+        assertEquals(RadioFrameType.TO_RADIO, frames[2].type)
+        assertEquals(RadioFrameType.DISCONNECTED, frames.last().type)
+        assertEquals(2 + 10 + 3, frames.count { it.type == RadioFrameType.FROM_RADIO })
+        assertEquals(frames.map { it.timeMs }.sorted(), frames.map { it.timeMs })
+    }
+
+    @Test
+    fun `a truncated capture keeps its whole frames`() {
+        val bytes = busyMesh(10)
+        val whole = RadioCapture.read(ByteArrayInputStream(bytes))
+        val cut = RadioCapture.read(ByteArrayInputStream(bytes.copyOf(bytes.size - 3)))
+        assertEquals(whole.size - 1, cut.size)
+        assertArrayEquals(whole[4].payload, cut[4].payload)
+    }
+
+    @Test
+    fun `replay keeps the recorded timing, scaled by speed`() = runBlocking {
+        val frames = RadioCapture.read(ByteArrayInputStream(capture { advance ->
+            fromRadio(textPacket(2, 1, "a"))
+            advance(1_000)
+            fromRadio(textPacket(2, 2, "b"))
+            advance(2_500)
+            fromRadio(textPacket(2, 3, "c"))
+        }))
+
+        for ((speed, expected) in listOf(1.0 to listOf(1_000L, 2_500L), 10.0 to listOf(100L, 250L), 0.0 to emptyList())) {
+            val sleeps = mutableListOf<Long>()
+            var emitted = 0
+            RadioReplay(frames, speed).play(wantConfigId = 1, emit = { emitted++ }, sleep = { sleeps += it })
+            assertEquals("speed $speed", expected, sleeps)
+            assertEquals(3, emitted)
+        }
+    }
+
+    @Test
+    fun `config complete carries the app's nonce`() = runBlocking {
+        val replay = RadioReplay(RadioCapture.read(ByteArrayInputStream(busyMesh(3))), speed = 0.0)
+        val emitted = mutableListOf<MeshProtos.FromRadio>()
+        replay.play(wantConfigId = 4242, emit = { emitted += MeshProtos.FromRadio.parseFrom(it) })
+        assertEquals(4242, emitted.single { it.hasConfigCompleteId() }.configCompleteId)
+        assertEquals(1, emitted.first().myInfo.myNodeNum)
+        assertEquals(listOf("message 0", "message 0", "message 1", "message 2"),
+            emitted.filter { it.hasPacket() }.map { it.packet.decoded.payload.toStringUtf8() })
+    }
+
+    @Test
+    fun `a file holding two sessions replays one of them`() = runBlocking {
+        val bytes = busyMesh(3) + capture { advance ->
+            advance(3_600_000) // the next capture, an hour later
+            session(mapOf(RadioCapture.KEY_ADDRESS to "x56:78"))
+            connected()
+            fromRadio(fromRadio { myInfo = MeshProtos.MyNodeInfo.newBuilder().setMyNodeNum(2).build() }.toByteArray())
+            fromRadio(fromRadio { configCompleteId = 88 }.toByteArray())
+            advance(500)
+            fromRadio(textPacket(3, 1, "later"))
+        }
+        val sessions = RadioReplay.sessions(RadioCapture.read(ByteArrayInputStream(bytes)))
+        assertEquals(2, sessions.size)
+        assertEquals("x56:78", RadioCapture.metadata(sessions[1].first())[RadioCapture.KEY_ADDRESS])
+
+        val emitted = mutableListOf<MeshProtos.FromRadio>()
+        val sleeps = mutableListOf<Long>()
+        RadioReplay(sessions.last()).play(
+            wantConfigId = 9,
+            emit = { emitted += MeshProtos.FromRadio.parseFrom(it) },
+            sleep = { sleeps += it },
+        )
+        assertEquals(listOf(500L), sleeps)
+        assertEquals(2, emitted.single { it.hasMyInfo() }.myInfo.myNodeNum)
+        assertEquals(9, emitted.single { it.hasConfigCompleteId() }.configCompleteId)
+        assertEquals(listOf("later"), emitted.filter { it.hasPacket() }.map { it.packet.decoded.payload.toStringUtf8() })
+
+        assertEquals(-1, ReplayInterface.session("/sdcard/capture.bin#10"))
+        assertEquals(0, ReplayInterface.session("/sdcard/capture.bin#10#0"))
+        assertEquals(10.0, ReplayInterface.speed("/sdcard/capture.bin#10#0"), 0.0)
+    }
+
+    @Test
+    fun `nothing is written once the capture is switched off`() {
+        val dir = Files.createTempDirectory("radio-capture").toFile()
+        try {
+            val capture = RadioCaptureSwitch(open = { AsyncLogFile(dir, "capture.bin") })
+            capture.fromRadio(textPacket(2, 1, "before"))
+            capture.start(mapOf(RadioCapture.KEY_ADDRESS to "x12:34"), connected = true)
+            capture.toRadio(MeshProtos.ToRadio.newBuilder().setWantConfigId(5).build().toByteArray())
+            capture.fromRadio(textPacket(2, 2, "captured"))
+            val stats = capture.stop()!!
+            capture.fromRadio(textPacket(2, 3, "after"))
+            capture.toRadio(MeshProtos.ToRadio.newBuilder().setWantConfigId(6).build().toByteArray())
+
+            val frames = File(dir, "capture.bin").inputStream().use { RadioCapture.read(it) }
+            assertEquals(
+                listOf(RadioFrameType.SESSION, RadioFrameType.CONNECTED, RadioFrameType.TO_RADIO, RadioFrameType.FROM_RADIO),
+                frames.map { it.type },
+            )
+            assertEquals(4L, stats.written)
+            assertFalse(capture.isCapturing)
+            assertNull(capture.stop())
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+
+    /**
+     * Replays a busy capture through the JVM side of the receive path:
+     * parse, drop duplicates, decode the payload.
+     */
+    @Test
+    fun `a busy capture replays through the receive path`() = runBlocking {
+        val packets = 50_000
+        val replay = RadioReplay(RadioCapture.read(ByteArrayInputStream(busyMesh(packets))), speed = 0.0)
+        val dedup = PacketDedupCache()
+        var texts = 0
+
+        replay.play(wantConfigId = 1, emit = { bytes ->
+            val proto = MeshProtos.FromRadio.parseFrom(bytes)
+            if (proto.hasPacket() && !dedup.isDuplicate(proto.packet)) {
+                val decoded = proto.packet.decoded
+                if (DecodedPayload.decode(decoded.portnumValue, decoded.payload.toByteArray()) is DecodedPayload.Text) texts++
+            }
+        })
+        assertEquals(packets, texts)
+        assertEquals((packets + 3) / 4L, dedup.stats.suppressedTotal)
+    }
+}
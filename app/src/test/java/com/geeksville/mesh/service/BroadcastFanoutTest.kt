@@ -0,0 +1,141 @@
+package com.geeksville.mesh.service
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class BroadcastFanoutTest {
+
+    private data class Message(val action: String, val nodes: List<Int> = emptyList())
+
+    private val sent = mutableListOf<Pair<BroadcastClient?, Message>>()
+    private val direct = Executor { it.run() }
+    private fun fanout(executor: Executor = direct) =
+        BroadcastFanout<Message>(executor) { client, message -> synchronized(sent) { sent += client to message } }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+    }
+
+    private val text = "RECEIVED.TEXT_MESSAGE_APP"
+    private val position = "RECEIVED.POSITION_APP"
+    private val telemetry = "RECEIVED.TELEMETRY_APP"
+    private val node = "NODE_CHANGE"
+    private val nodes = "NODES_CHANGED"
+    private val status = "MESSAGE_STATUS"
+
+    private val chat = BroadcastClient("org.example.chat", "org.example.chat.Receiver")
+    private val tracker = BroadcastClient("org.example.tracker", "org.example.tracker.Receiver")
+    private val legacy = BroadcastClient("org.example.legacy", "org.example.legacy.Receiver")
+    private val widget = BroadcastClient("org.example.widget", "org.example.widget.Receiver")
+
+    private fun deliveredTo(client: BroadcastClient?) = sent.filter { it.first == client }.map { it.second }
+
+    @Test
+    fun `clients only get the actions they declare`() {
+        val fanout = fanout()
+        fanout.subscribe(chat, setOf(text, status))
+        fanout.subscribe(legacy, null)
+
+        fanout.publish(text) { Message(text) }
+        fanout.publish(position) { Message(position) }
+        fanout.publish(status) { Message(status) }
+
+        assertEquals(listOf(text, status), deliveredTo(chat).map { it.action })
+        assertEquals(listOf(text, position, status), deliveredTo(legacy).map { it.action })
+        assertEquals(listOf(text, position, status), deliveredTo(null).map { it.action })
+        assertEquals(1L, fanout.stats.skipped)
+        assertEquals(mapOf(chat to 2L, legacy to 3L), fanout.stats.delivered)
+    }
+
+    @Test
+    fun `node changes are batched for clients that take the batch`() {
+        val fanout = fanout()
+        fanout.subscribe(tracker, setOf(nodes, node))
+        fanout.subscribe(legacy, setOf(node))
+        fanout.subscribe(widget, setOf(status))
+
+        fanout.publishBatch(node, nodes, listOf(1, 2, 3), { Message(node, listOf(it)) }, { Message(nodes, it) })
+
+        assertEquals(listOf(Message(nodes, listOf(1, 2, 3))), deliveredTo(tracker))
+        assertEquals(listOf(1, 2, 3).map { Message(node, listOf(it)) }, deliveredTo(legacy))
+        assertEquals(3, deliveredTo(null).size)
+        assertTrue(deliveredTo(widget).isEmpty())
+    }
+
+    @Test
+    fun `messages leave the caller's thread in order`() {
+        val executor = Executors.newSingleThreadExecutor()
+        val fanout = fanout(executor)
+        fanout.subscribe(legacy, null)
+        val caller = Thread.currentThread()
+        var senderThread: Thread? = null
+        val checked = BroadcastFanout<Int>(executor) { _, _ -> senderThread = Thread.currentThread() }
+        checked.publish(text) { 1 }
+        repeat(100) { i -> fanout.publish(text) { Message("$i") } }
+        executor.shutdown()
+        executor.awaitTermination(5, TimeUnit.SECONDS)
+
+        assertTrue(senderThread != null && senderThread != caller)
+        assertEquals(List(100) { "$it" }, deliveredTo(legacy).map { it.action })
+    }
+
+    /**
+     * 1,000 packets from 60 nodes, each updating its sender's node entry, with node changes
+     * flushed in 250 ms windows the way NodeUpdateDispatcher does at roughly 10 packets a second.
+     * Compares the binder calls of the old everybody-gets-everything fan-out with subscriptions
+     * and batching, for four typical clients.
+     */
+    @Test
+    fun `broadcasts per 1000 received packets`() = runBlocking {
+        val ports = listOf(text, position, position, telemetry, telemetry, telemetry)
+
+        suspend fun run(fanout: BroadcastFanout<Message>, batched: Boolean): Long {
+            val random = Random(41) // the same packets for both
+            sent.clear()
+            val dispatcher = NodeUpdateDispatcher(scope, windowMs = 60_000) { _, broadcast ->
+                if (batched) {
+                    fanout.publishBatch(node, nodes, broadcast.toList(), { Message(node, listOf(it)) }, { Message(nodes, it) })
+                } else {
+                    broadcast.forEach { fanout.publishBatch(node, nodes, listOf(it), { n -> Message(node, listOf(n)) }, { l -> Message(nodes, l) }) }
+                }
+            }
+            repeat(1_000) { i ->
+                val port = ports[random.nextInt(ports.size)]
+                fanout.publish(port) { Message(port) }
+                dispatcher.markChanged(random.nextInt(60), persist = true, broadcast = true)
+                if (port == text) fanout.publish(status) { Message(status) }
+                if (i % 3 == 2) dispatcher.flush() // 3 packets per window
+            }
+            dispatcher.flush()
+            return fanout.stats.total
+        }
+
+        val before = fanout().apply { listOf(chat, tracker, legacy, widget).forEach { subscribe(it, null) } }
+        val after = fanout().apply {
+            subscribe(chat, setOf(text, status))
+            subscribe(tracker, setOf(position, nodes))
+            subscribe(legacy, null)
+            subscribe(widget, setOf(telemetry))
+        }
+        val unfiltered = run(before, batched = false)
+        val filtered = run(after, batched = true)
+
+        assertTrue("$filtered of $unfiltered", filtered < unfiltered * 3 / 4)
+        // the client that declares nothing still gets exactly what it always did
+        assertEquals(before.stats.delivered[legacy], after.stats.delivered[legacy])
+    }
+}
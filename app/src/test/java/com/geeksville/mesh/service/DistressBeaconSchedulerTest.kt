@@ -0,0 +1,158 @@
+package com.geeksville.mesh.service
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.cos
+import kotlin.random.Random
+
+class DistressBeaconSchedulerTest {
+
+    private var now = 1_700_000_000_000L
+    private val start = now
+
+    private val lat0 = 45.0
+    private val lon0 = 7.0
+    private val metersPerDegLat = 111_320.0
+    private val metersPerDegLon = metersPerDegLat * cos(Math.toRadians(lat0))
+
+    private fun fixAt(east: Double, north: Double) =
+        BeaconFix(lat0 + north / metersPerDegLat, lon0 + east / metersPerDegLon, 300, now)
+
+    /** A position in meters east and north of the start, by seconds since the start. */
+    private fun interface Track {
+        fun at(seconds: Double): Pair<Double, Double>?
+    }
+
+    private class Beacon(val atMs: Long, val reason: BeaconReason)
+
+    /** Runs [scheduler] the way DistressService does, sleeping whatever it asks for. */
+    private fun run(
+        scheduler: DistressBeaconScheduler,
+        durationMs: Long,
+        track: Track,
+        conditions: (Long) -> BeaconConditions = { BeaconConditions() },
+    ): List<Beacon> {
+        val beacons = mutableListOf<Beacon>()
+        while (now - start < durationMs) {
+            val fix = track.at((now - start) / 1000.0)?.let { (e, n) -> fixAt(e, n) }
+            val decision = scheduler.evaluate(fix, conditions(now - start))
+            if (decision.send) beacons += Beacon(now - start, decision.reason)
+            now += decision.wakeInMs
+        }
+        return beacons
+    }
+
+    private fun newScheduler(intervalMs: Long = 30_000) = DistressBeaconScheduler(intervalMs, clock = { now })
+
+    private fun gaps(beacons: List<Beacon>) = beacons.zipWithNext { a, b -> b.atMs - a.atMs }
+
+    private val jitter = Random(42)
+    private fun still(east: Double = 0.0, north: Double = 0.0) = Track {
+        east + jitter.nextDouble(-3.0, 3.0) to north + jitter.nextDouble(-3.0, 3.0)
+    }
+
+    @Test
+    fun `stationary beacons back off to a heartbeat`() {
+        val scheduler = newScheduler()
+        val beacons = run(scheduler, 60 * 60_000L, still())
+
+        // once at the start, then every 4 intervals instead of every interval
+        assertEquals(BeaconReason.FIRST, beacons.first().reason)
+        assertTrue(beacons.drop(2).all { it.reason == BeaconReason.HEARTBEAT })
+        assertTrue(beacons.size <= 2 + 60 / 2)
+        assertTrue(gaps(beacons).drop(1).all { it in 120_000L..135_000L })
+        assertTrue(scheduler.stats.suppressed >= 60 * 2 - beacons.size - 2)
+    }
+
+    @Test
+    fun `moving beacons keep the interval`() {
+        val scheduler = newScheduler()
+        // walking north at 1.4 m/s
+        val beacons = run(scheduler, 30 * 60_000L, Track { 0.0 to 1.4 * it })
+
+        assertTrue(beacons.drop(2).all { it.reason == BeaconReason.MOVED })
+        assertTrue(gaps(beacons).all { it <= 30_000L })
+        assertEquals(0L, scheduler.stats.suppressed)
+    }
+
+    @Test
+    fun `a sharp turn beacons early`() {
+        val scheduler = newScheduler(intervalMs = 120_000)
+        // 10 minutes driving east at 10 m/s, then north
+        val beacons = run(scheduler, 20 * 60_000L, Track { s ->
+            if (s < 600) 10.0 * s to 0.0 else 6_000.0 to 10.0 * (s - 600)
+        })
+
+        val turn = beacons.single { it.reason == BeaconReason.TURNED }
+        assertTrue(turn.atMs in 600_000L..600_000L + 2 * 15_000L)
+        assertTrue(gaps(beacons).all { it <= 120_000L })
+    }
+
+    @Test
+    fun `low battery and a busy channel stretch the interval`() {
+        val scheduler = newScheduler()
+        assertEquals(30_000L, scheduler.intervalMs(BeaconConditions(batteryLevel = 80, channelUtilization = 5f)))
+        assertEquals(30_000L, scheduler.intervalMs(BeaconConditions(batteryLevel = 101))) // external power
+        assertEquals(60_000L, scheduler.intervalMs(BeaconConditions(batteryLevel = 20)))
+        assertEquals(120_000L, scheduler.intervalMs(BeaconConditions(batteryLevel = 8)))
+        assertEquals(60_000L, scheduler.intervalMs(BeaconConditions(channelUtilization = 30f)))
+        assertEquals(120_000L, scheduler.intervalMs(BeaconConditions(batteryLevel = 20, channelUtilization = 30f)))
+        assertEquals(480_000L, scheduler.intervalMs(BeaconConditions(batteryLevel = 5, channelUtilization = 70f)))
+        assertEquals(15 * 60_000L, newScheduler(intervalMs = 120_000).intervalMs(BeaconConditions(batteryLevel = 5, channelUtilization = 70f)))
+
+        // walking, the channel gets congested half way through
+        val beacons = run(scheduler, 40 * 60_000L, Track { 0.0 to 1.4 * it }) { t ->
+            BeaconConditions(channelUtilization = if (t < 20 * 60_000L) 10f else 55f)
+        }
+        val (calm, busy) = beacons.partition { it.atMs < 20 * 60_000L }
+        assertTrue(calm.size >= 40)
+        assertTrue(busy.size <= 10)
+    }
+
+    @Test
+    fun `without a fix beacons keep the fixed rate`() {
+        val beacons = run(newScheduler(), 10 * 60_000L, Track { null })
+        assertEquals(20, beacons.size)
+        assertTrue(gaps(beacons).all { it == 30_000L })
+    }
+
+    @Test
+    fun `a user interval below the turn limit is kept`() {
+        val beacons = run(newScheduler(intervalMs = 5_000), 60_000L, Track { null })
+        assertEquals(12, beacons.size)
+    }
+
+    /**
+     * A two hour synthetic search: walk 20 minutes, rest 40, walk with a few turns for 20, then
+     * sit still waiting for rescue. Compares the fixed-rate beacon with the adaptive one.
+     */
+    @Test
+    fun `airtime on a synthetic track`() {
+        val scheduler = newScheduler()
+        var east = 0.0
+        var north = 0.0
+        var lastSecond = 0.0
+        val legs = listOf(1.0 to 0.0, 0.0 to 1.0, -1.0 to 0.0, 0.0 to 1.0)
+        val track = Track { s ->
+            val dt = s - lastSecond
+            lastSecond = s
+            val minute = s / 60
+            when {
+                minute < 20 -> north += 1.4 * dt
+                minute < 60 -> Unit
+                minute < 80 -> legs[((minute - 60) / 5).toInt()].let { (e, n) -> east += e * 1.4 * dt; north += n * 1.4 * dt }
+                else -> Unit
+            }
+            east + jitter.nextDouble(-3.0, 3.0) to north + jitter.nextDouble(-3.0, 3.0)
+        }
+        val durationMs = 120 * 60_000L
+        val beacons = run(scheduler, durationMs, track)
+        val fixedRate = durationMs / 30_000
+
+        assertTrue("${beacons.size} of $fixedRate, ${scheduler.stats}", beacons.size < fixedRate * 2 / 3)
+        // while walking nobody waits longer than an interval plus one check for a fresh position
+        val walking = beacons.filter { it.atMs < 20 * 60_000L || it.atMs in 60 * 60_000L..80 * 60_000L }
+        assertTrue(walking.zipWithNext { a, b -> b.atMs - a.atMs }.filter { it < 5 * 60_000L }.all { it <= 45_000L })
+    }
+}
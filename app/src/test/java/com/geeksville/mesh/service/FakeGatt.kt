@@ -0,0 +1,58 @@
+package com.geeksville.mesh.service
+
+import com.geeksville.mesh.android.Logging
+import com.geeksville.mesh.android.LogPrinter
+import com.geeksville.mesh.concurrent.Continuation
+import kotlinx.coroutines.CoroutineScope
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * A scripted stand-in for BluetoothGatt behind SafeBluetooth's [GattWorkQueue].
+ *
+ * Every operation it starts is answered on a single "binder" thread after its latency, through
+ * [GattWorkQueue.completeWork] as the GATT callback does. An operation can also be held until a
+ * gate opens, or never be answered at all so that its failsafe timer has to fire.
+ */
+class FakeGatt(scope: CoroutineScope, private val latencyMsec: Long = 0) {
+    private val binder = Executors.newSingleThreadScheduledExecutor()
+
+    val queue = GattWorkQueue(scope)
+
+    /// Tags of the operations the queue actually started, in order
+    val started: MutableList<String> = Collections.synchronizedList(mutableListOf())
+
+    fun <T : Any> submit(
+        tag: String,
+        priority: GattPriority,
+        cont: Continuation<T>,
+        timeout: Long = 0,
+        coalesceKey: Any? = null,
+        latencyMsec: Long = this.latencyMsec,
+        status: Int = 0,
+        gate: CountDownLatch? = null,
+        answer: Boolean = true,
+        result: () -> T,
+    ) = queue.queueWork(tag, cont, timeout, priority, coalesceKey) {
+        started += tag
+        if (answer) {
+            binder.schedule({
+                gate?.await()
+                queue.completeWork(status, result())
+            }, latencyMsec, TimeUnit.MILLISECONDS)
+        }
+        true
+    }
+
+    fun shutdown() {
+        binder.shutdownNow()
+        binder.awaitTermination(5, TimeUnit.SECONDS)
+    }
+
+    companion object {
+        /** The work loop logs every operation, which android.util.Log can't take in a JVM test. */
+        fun muteLogs(): LogPrinter = Logging.printlog.also { Logging.printlog = { _, _, _ -> } }
+    }
+}
@@ -0,0 +1,108 @@
+package com.geeksville.mesh.service
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class GattSchedulerTest {
+
+    private class FakeOp(
+        override val priority: GattPriority,
+        val name: String,
+        override val coalesceKey: Any? = null,
+    ) : GattWork<FakeOp> {
+        val absorbed = mutableListOf<FakeOp>()
+        override fun absorb(newer: FakeOp) {
+            absorbed += newer
+        }
+    }
+
+    private var now = 0L
+    private fun scheduler(maxBypass: Int = GattScheduler.DEFAULT_MAX_BYPASS) =
+        GattScheduler<FakeOp>(maxBypass) { now }
+
+    private fun GattScheduler<FakeOp>.runAll(): List<String> {
+        val order = mutableListOf<String>()
+        while (true) {
+            val op = startNext() ?: break
+            order += op.name
+            finishCurrent()
+        }
+        return order
+    }
+
+    @Test
+    fun `runs by class and first come first served within a class`() {
+        val s = scheduler()
+        s.enqueue(FakeOp(GattPriority.USER, "admin"))
+        s.enqueue(FakeOp(GattPriority.CONTROL, "ctl1"))
+        s.enqueue(FakeOp(GattPriority.USER, "text"))
+        s.enqueue(FakeOp(GattPriority.CONTROL, "ctl2"))
+        s.enqueue(FakeOp(GattPriority.USER, "want_config"))
+
+        assertEquals(listOf("ctl1", "ctl2", "admin", "text", "want_config"), s.runAll())
+    }
+
+    @Test
+    fun `only one operation is in flight`() {
+        val s = scheduler()
+        s.enqueue(FakeOp(GattPriority.USER, "a"))
+        s.enqueue(FakeOp(GattPriority.CONTROL, "b"))
+
+        assertEquals("b", s.startNext()?.name)
+        assertNull(s.startNext())
+        assertEquals("b", s.finishCurrent()?.name)
+        assertEquals("a", s.startNext()?.name)
+    }
+
+    @Test
+    fun `adjacent work with the same key is merged`() {
+        val s = scheduler()
+        val first = FakeOp(GattPriority.CONTROL, "cccd on", coalesceKey = "cccd")
+        assertFalse(s.enqueue(first))
+        assertTrue(s.enqueue(FakeOp(GattPriority.CONTROL, "cccd off", coalesceKey = "cccd")))
+        assertFalse(s.enqueue(FakeOp(GattPriority.CONTROL, "read", coalesceKey = null)))
+        assertFalse(s.enqueue(FakeOp(GattPriority.CONTROL, "cccd on again", coalesceKey = "cccd")))
+
+        assertEquals(listOf("cccd on", "read", "cccd on again"), s.runAll())
+        assertEquals(listOf("cccd off"), first.absorbed.map { it.name })
+        assertEquals(1L, s.queueDelay(GattPriority.CONTROL).merged)
+    }
+
+    @Test
+    fun `work already in flight is never merged into`() {
+        val s = scheduler()
+        s.enqueue(FakeOp(GattPriority.CONTROL, "mtu1", coalesceKey = "mtu"))
+        s.startNext()
+        assertFalse(s.enqueue(FakeOp(GattPriority.CONTROL, "mtu2", coalesceKey = "mtu")))
+    }
+
+    @Test
+    fun `lower classes get a turn after being bypassed`() {
+        val s = scheduler(maxBypass = 2)
+        s.enqueue(FakeOp(GattPriority.USER, "write"))
+        val order = mutableListOf<String>()
+        repeat(4) { i ->
+            s.enqueue(FakeOp(GattPriority.CONTROL, "ctl$i"))
+            s.startNext()?.let { order += it.name }
+            s.finishCurrent()
+        }
+
+        assertEquals(listOf("ctl0", "ctl1", "write", "ctl2"), order)
+    }
+
+    @Test
+    fun `drain leaves the work in flight alone`() {
+        val s = scheduler()
+        s.enqueue(FakeOp(GattPriority.USER, "a"))
+        s.enqueue(FakeOp(GattPriority.USER, "b"))
+        s.enqueue(FakeOp(GattPriority.CONTROL, "c"))
+        s.startNext()
+
+        assertEquals(listOf("a", "b"), s.drainQueued().map { it.name })
+        assertEquals("c", s.current?.name)
+        assertEquals(0, s.pendingCount)
+    }
+}
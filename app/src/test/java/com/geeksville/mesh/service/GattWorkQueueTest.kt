@@ -0,0 +1,163 @@
+package com.geeksville.mesh.service
+
+import com.geeksville.mesh.android.LogPrinter
+import com.geeksville.mesh.android.Logging
+import com.geeksville.mesh.concurrent.CallbackContinuation
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class GattWorkQueueTest {
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private lateinit var gatt: FakeGatt
+    private lateinit var printlog: LogPrinter
+
+    @Before
+    fun setUp() {
+        printlog = FakeGatt.muteLogs()
+        gatt = FakeGatt(scope)
+    }
+
+    @After
+    fun tearDown() {
+        gatt.shutdown()
+        scope.cancel()
+        Logging.printlog = printlog
+    }
+
+    /** Collects results, [done] counts down once per result. */
+    private class Results(count: Int) {
+        val all: MutableList<Result<Any>> = Collections.synchronizedList(mutableListOf())
+        val done = CountDownLatch(count)
+
+        fun cont() = CallbackContinuation<Any> {
+            all += it
+            done.countDown()
+        }
+
+        fun await() = assertTrue("timed out waiting for GATT results", done.await(5, TimeUnit.SECONDS))
+    }
+
+    private fun Result<Any>.status() = (exceptionOrNull() as SafeBluetooth.BLEStatusException).status
+
+    @Test
+    fun `merged work resumes every caller with the one result`() {
+        val results = Results(4)
+        val gate = CountDownLatch(1)
+        gatt.submit("discover", GattPriority.CONTROL, results.cont(), gate = gate) { "services" }
+        repeat(3) { i ->
+            gatt.submit("cccd$i", GattPriority.CONTROL, results.cont(), coalesceKey = "cccd") { "cccd$i" }
+        }
+        gate.countDown()
+        results.await()
+
+        // only the newest descriptor write reaches the GATT, all three callers get its answer
+        assertEquals(listOf("discover", "cccd2"), gatt.started)
+        assertEquals(listOf("services", "cccd2", "cccd2", "cccd2"), results.all.map { it.getOrThrow() })
+        assertEquals(2L, gatt.queue.queueDelays.getValue(GattPriority.CONTROL).merged)
+    }
+
+    @Test
+    fun `a failed merged write fails every caller`() {
+        val results = Results(2)
+        val gate = CountDownLatch(1)
+        gatt.submit("discover", GattPriority.CONTROL, CallbackContinuation<Any> {}, gate = gate) { Unit }
+        repeat(2) { i ->
+            gatt.submit("cccd$i", GattPriority.CONTROL, results.cont(), coalesceKey = "cccd", status = 133) { Unit }
+        }
+        gate.countDown()
+        results.await()
+
+        assertEquals(listOf(133, 133), results.all.map { it.status() })
+    }
+
+    @Test
+    fun `the failsafe timer fails the stuck work and moves on`() {
+        val results = Results(2)
+        gatt.submit("reqMtu", GattPriority.CONTROL, results.cont(), timeout = 50, answer = false) { Unit }
+        gatt.submit("readC", GattPriority.CONTROL, results.cont()) { "packet" }
+        results.await()
+
+        assertEquals(GattWorkQueue.STATUS_TIMEOUT, results.all[0].status())
+        assertEquals("packet", results.all[1].getOrThrow())
+        assertEquals(listOf("reqMtu", "readC"), gatt.started)
+    }
+
+    @Test
+    fun `a late failsafe for earlier work leaves the work in flight alone`() {
+        val mtuGate = CountDownLatch(1)
+        val mtuDone = Results(1)
+        gatt.submit("reqMtu", GattPriority.CONTROL, mtuDone.cont(), timeout = 60_000, gate = mtuGate) { Unit }
+        val mtu = gatt.queue.currentWork!!
+        mtuGate.countDown()
+        mtuDone.await()
+
+        val results = Results(1)
+        val readGate = CountDownLatch(1)
+        gatt.submit("readC", GattPriority.CONTROL, results.cont(), gate = readGate) { "packet" }
+        val read = gatt.queue.currentWork!!
+
+        // the reqMtu timer firing after all must not take the read down with it
+        gatt.queue.completeWork(GattWorkQueue.STATUS_TIMEOUT, Unit, expected = mtu)
+        assertSame(read, gatt.queue.currentWork)
+        assertTrue(results.all.isEmpty())
+
+        readGate.countDown()
+        results.await()
+        assertEquals("packet", results.all.single().getOrThrow())
+    }
+
+    @Test
+    fun `fromnum reads overtake a write backlog that keeps its order`() {
+        fun simulate(readPriority: GattPriority): Pair<List<String>, Map<GattPriority, GattQueueDelay>> {
+            val gatt = FakeGatt(scope, latencyMsec = 2)
+            val results = Results(WRITES + READS)
+            val gate = CountDownLatch(1)
+            // a config download's worth of toradio writes, held up behind the first one
+            repeat(WRITES) { i ->
+                gatt.submit("write$i", GattPriority.USER, results.cont(), gate = gate.takeIf { i == 0 }) { Unit }
+            }
+            // the fromradio reads fromNum notifies ask for meanwhile
+            repeat(READS) { i -> gatt.submit("fromradio$i", readPriority, results.cont()) { Unit } }
+            gate.countDown()
+            results.await()
+            gatt.shutdown()
+            return gatt.started.toList() to gatt.queue.queueDelays
+        }
+
+        // everything in one FIFO queue, which is what SafeBluetooth used to do
+        val (_, fifo) = simulate(GattPriority.USER)
+        val (order, delays) = simulate(GattPriority.CONTROL)
+
+        // every read goes right after the write that was in flight, the writes keep their order
+        assertEquals(
+            listOf("write0") + List(READS) { "fromradio$it" } + List(WRITES - 1) { "write${it + 1}" },
+            order,
+        )
+        val reads = delays.getValue(GattPriority.CONTROL)
+        val writes = delays.getValue(GattPriority.USER)
+        assertEquals(READS.toLong(), reads.started)
+        assertEquals(WRITES.toLong(), writes.started)
+        assertTrue("read max ${reads.maxMsec}ms, writes ${writes.maxMsec}ms", reads.maxMsec < writes.maxMsec)
+        assertTrue(
+            "read max ${reads.maxMsec}ms, FIFO read max ${fifo.getValue(GattPriority.USER).maxMsec}ms",
+            reads.maxMsec < fifo.getValue(GattPriority.USER).maxMsec,
+        )
+    }
+
+    companion object {
+        private const val WRITES = 50
+        private const val READS = 5
+    }
+}
@@ -0,0 +1,141 @@
+package com.geeksville.mesh.service
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+
+class NodeUpdateDispatcherTest {
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+    // stands in for MeshService.nodeDBbyNodeNum: node num -> number of updates applied
+    private val nodeVersions = ConcurrentHashMap<Int, Int>()
+    private val persistedVersions = ConcurrentHashMap<Int, MutableList<Int>>()
+    private var dbWrites = 0
+    private var broadcasts = 0
+
+    private fun dispatcher(windowMs: Long) = NodeUpdateDispatcher(scope, windowMs) { persist, broadcast ->
+        if (persist.isNotEmpty()) dbWrites++
+        persist.forEach { num ->
+            persistedVersions.getOrPut(num) { mutableListOf() } += nodeVersions.getValue(num)
+        }
+        broadcasts += broadcast.size
+    }
+
+    private fun update(dispatcher: NodeUpdateDispatcher, num: Int, broadcast: Boolean) {
+        nodeVersions.merge(num, 1, Int::plus)
+        dispatcher.markChanged(num, persist = true, broadcast = broadcast)
+    }
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+    }
+
+    @Test
+    fun `merges changes to the same node into one write and one broadcast`() = runBlocking {
+        val dispatcher = dispatcher(windowMs = 60_000)
+
+        update(dispatcher, 1, broadcast = false)
+        update(dispatcher, 1, broadcast = true)
+        update(dispatcher, 1, broadcast = true)
+        dispatcher.flush()
+
+        assertEquals(1, dbWrites)
+        assertEquals(1, broadcasts)
+        assertEquals(listOf(3), persistedVersions[1])
+    }
+
+    @Test
+    fun `flushes automatically after the window`() = runBlocking {
+        val dispatcher = dispatcher(windowMs = 20)
+
+        update(dispatcher, 1, broadcast = true)
+        update(dispatcher, 2, broadcast = false)
+        withTimeout(5_000) { while (dispatcher.flushCount == 0L) delay(5) }
+
+        assertEquals(1, dbWrites)
+        assertEquals(setOf(1, 2), persistedVersions.keys)
+        assertEquals(1, broadcasts)
+    }
+
+    @Test
+    fun `keeps per node ordering across flushes`() = runBlocking {
+        val dispatcher = dispatcher(windowMs = 1)
+
+        (1..20).map { num ->
+            scope.launch {
+                repeat(200) {
+                    update(dispatcher, num, broadcast = it % 2 == 0)
+                    if (it % 25 == 0) delay(1)
+                }
+            }
+        }.forEach { it.join() }
+        dispatcher.flush()
+
+        (1..20).forEach { num ->
+            val versions = persistedVersions.getValue(num)
+            assertEquals(versions.sorted(), versions)
+            assertEquals(200, versions.last())
+        }
+    }
+
+    @Test
+    fun `a failed flush is retried with the nodes it dropped`() = runBlocking {
+        var fail = true
+        val flushed = mutableListOf<Pair<Set<Int>, Set<Int>>>()
+        val dispatcher = NodeUpdateDispatcher(scope, windowMs = 20) { persist, broadcast ->
+            if (fail) error("disk full")
+            flushed += persist to broadcast
+        }
+
+        dispatcher.markChanged(1, persist = true, broadcast = true)
+        dispatcher.markChanged(2, persist = true, broadcast = false)
+        runCatching { dispatcher.flush() }
+        fail = false
+        withTimeout(5_000) { while (dispatcher.flushCount == 0L) delay(5) }
+
+        assertEquals(listOf(setOf(1, 2) to setOf(1)), flushed)
+    }
+
+    /**
+     * Replays the update pattern of MeshService.processReceivedMeshPacket: our own node's lastHeard
+     * (broadcast for packets from others), the sender's bookkeeping (no broadcast) and the payload
+     * handler (broadcast). Previously each of those was its own upsert and broadcast.
+     */
+    @Test
+    fun `replayed packets need far fewer db writes and broadcasts`() = runBlocking {
+        val dispatcher = dispatcher(windowMs = NodeUpdateDispatcher.DEFAULT_WINDOW_MS / 5)
+        val myNodeNum = 0
+        val senders = 30
+        val packets = 600
+        var writesBefore = 0
+        var broadcastsBefore = 0
+
+        repeat(packets) { i ->
+            val from = 1 + i % senders
+            update(dispatcher, myNodeNum, broadcast = true)
+            update(dispatcher, from, broadcast = false)
+            update(dispatcher, from, broadcast = true)
+            writesBefore += 3
+            broadcastsBefore += 2
+            if (i % 3 == 0) delay(1) // ~ a busy mesh delivering a few hundred packets per second
+        }
+        dispatcher.flush()
+
+        assertTrue("$dbWrites writes", dbWrites < writesBefore / 10)
+        assertTrue("$broadcasts broadcasts", broadcasts < broadcastsBefore)
+        assertEquals(packets + 2 * packets, nodeVersions.values.sum())
+        (0..senders).forEach { assertEquals(nodeVersions[it], persistedVersions.getValue(it).last()) }
+    }
+}
@@ -0,0 +1,165 @@
+package com.geeksville.mesh.service
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class NotificationAggregatorTest {
+
+    private var now = 1_000_000L
+    private val clock = { now }
+
+    private val conversations = mutableListOf<Pair<String, List<NotificationMessage>>>()
+    private val digests = mutableListOf<List<NewNodeAlert>>()
+    private val postTimes = mutableListOf<Long>()
+    private val postOrder = mutableListOf<String>()
+    private val sink = object : NotificationSink {
+        override fun postConversation(contactKey: String, messages: List<NotificationMessage>) {
+            conversations += contactKey to messages
+            postTimes += now
+            postOrder += contactKey
+        }
+
+        override fun postNewNodes(nodes: List<NewNodeAlert>) {
+            digests += nodes
+            postTimes += now
+            postOrder += "digest"
+        }
+    }
+
+    // drains asked for, as absolute times
+    private val scheduled = sortedSetOf<Long>()
+
+    private val aggregator = NotificationAggregator(sink, schedule = { scheduled += now + it }, clock = clock)
+
+    /** Moves the clock on, running the drains that come due on the way. */
+    private fun advance(ms: Long) {
+        val until = now + ms
+        while (scheduled.isNotEmpty() && scheduled.first() <= until) {
+            now = scheduled.pollFirst()!!
+            aggregator.drain()
+        }
+        now = until
+    }
+
+    private fun node(num: Int) = NewNodeAlert(num, "N$num", "Node $num")
+
+    @Test
+    fun `token bucket allows a burst then one per interval`() {
+        val bucket = TokenBucket(capacity = 3, refillIntervalMs = 100, clock = clock)
+
+        repeat(3) { assertTrue(bucket.tryAcquire()) }
+        assertFalse(bucket.tryAcquire())
+        assertEquals(100L, bucket.msUntilAvailable())
+
+        now += 60
+        assertEquals(40L, bucket.msUntilAvailable())
+        now += 40
+        assertTrue(bucket.tryAcquire())
+        assertFalse(bucket.tryAcquire())
+
+        now += 10_000
+        repeat(3) { assertTrue(bucket.tryAcquire()) }
+        assertFalse(bucket.tryAcquire())
+    }
+
+    @Test
+    fun `a quiet message is posted straight away`() {
+        aggregator.onMessage("0!a", "Alice", "hi")
+
+        assertEquals(1, conversations.size)
+        assertEquals("hi", conversations.single().second.single().text)
+        assertTrue(scheduled.isEmpty())
+    }
+
+    @Test
+    fun `a burst is coalesced per contact and drained within the rate`() {
+        repeat(100) { i -> aggregator.onMessage("0!${i % 5}", "Sender ${i % 5}", "msg $i") }
+        advance(60_000)
+
+        // every contact's last post shows its latest messages, oldest first
+        val last = conversations.associate { it }
+        assertEquals(5, last.size)
+        last.forEach { (key, messages) ->
+            assertEquals(NotificationAggregator.HISTORY_SIZE, messages.size)
+            assertEquals("msg ${95 + key.last().digitToInt()}", messages.last().text)
+            assertEquals(messages.sortedBy { it.timeMs }, messages)
+        }
+        assertTrue(conversations.size < 100)
+        assertRate()
+        assertEquals(100L, aggregator.stats.messages)
+        assertTrue(aggregator.stats.throttled > 0)
+    }
+
+    @Test
+    fun `sustained traffic never exceeds the bucket`() {
+        repeat(2_000) { i ->
+            aggregator.onMessage("0!${i % 40}", "S", "m$i")
+            advance(20) // 50 messages a second over 40 contacts
+        }
+        advance(60_000)
+
+        assertRate()
+        assertTrue(conversations.size < 2_000)
+        // nothing is lost: every contact's last post has its last message
+        val last = conversations.associate { it }
+        (0 until 40).forEach { c -> assertEquals("m${1960 + c}", last.getValue("0!$c").last().text) }
+    }
+
+    @Test
+    fun `new nodes are batched into a digest`() {
+        aggregator.onNewNode(node(1))
+        assertEquals(listOf(listOf(node(1))), digests)
+
+        (2..30).forEach { aggregator.onNewNode(node(it)); advance(1_000) }
+        assertEquals(1, digests.size)
+
+        advance(NotificationAggregator.DIGEST_INTERVAL_MS)
+        assertEquals(2, digests.size)
+        assertEquals((2..30).map(::node), digests[1])
+        assertEquals(30L, aggregator.stats.newNodes)
+        assertEquals(2L, aggregator.stats.nodeDigests)
+    }
+
+    @Test
+    fun `a node reported twice before the digest shows once`() {
+        aggregator.onNewNode(node(1))
+        aggregator.onNewNode(node(2))
+        aggregator.onNewNode(node(2))
+        advance(NotificationAggregator.DIGEST_INTERVAL_MS)
+
+        assertEquals(listOf(node(2)), digests.last())
+    }
+
+    @Test
+    fun `messages go before the node digest`() {
+        aggregator.onNewNode(node(1))
+        advance(NotificationAggregator.DIGEST_INTERVAL_MS)
+        repeat(10) { aggregator.onMessage("0!$it", "S", "m") }
+        aggregator.onNewNode(node(2)) // due, but the bucket is spent on messages
+        advance(60_000)
+
+        assertEquals(listOf(node(2)), digests.last())
+        assertEquals(10, conversations.size)
+        assertEquals(listOf("digest") + (0 until 10).map { "0!$it" } + "digest", postOrder)
+    }
+
+    @Test
+    fun `a cleared conversation starts over`() {
+        aggregator.onMessage("0!a", "Alice", "one")
+        aggregator.clear("0!a")
+        aggregator.onMessage("0!a", "Alice", "two")
+
+        assertEquals(listOf("two"), conversations.last().second.map { it.text })
+    }
+
+    /** No second may hold more than the platform's 5 posts. */
+    private fun assertRate() {
+        val times = postTimes.sorted()
+        times.forEachIndexed { i, t ->
+            val inWindow = times.subList(i, times.size).takeWhile { it < t + 1_000 }.size
+            assertTrue("$inWindow posts within a second at $t", inWindow <= 5)
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.geeksville.mesh.service
+
+import com.google.protobuf.ByteString
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.meshtastic.proto.MeshProtos.Data
+import org.meshtastic.proto.MeshProtos.MeshPacket
+import org.meshtastic.proto.Portnums
+import org.meshtastic.proto.StoreAndForwardProtos
+import kotlin.random.Random
+
+class PacketDedupCacheTest {
+
+    private fun text(from: Int, id: Int) = MeshPacket.newBuilder().apply {
+        this.from = from
+        this.id = id
+        to = 0xffffffff.toInt()
+        decoded = Data.newBuilder().apply {
+            portnum = Portnums.PortNum.TEXT_MESSAGE_APP
+            payload = ByteString.copyFromUtf8("hello $id")
+        }.build()
+    }.build()
+
+    /**
+     * The same [packet] arriving again the ways a real mesh delivers it: rebroadcast by a neighbour
+     * with one hop less, replayed by a store-and-forward router, and echoed back from MQTT. All keep
+     * the original from and id.
+     */
+    private fun redeliveries(packet: MeshPacket): List<MeshPacket> = listOf(
+        packet.toBuilder().apply {
+            hopStart = 3
+            hopLimit = 1
+        }.build(),
+        packet.toBuilder().apply {
+            decoded = Data.newBuilder().apply {
+                portnum = Portnums.PortNum.STORE_FORWARD_APP
+                payload = StoreAndForwardProtos.StoreAndForward.newBuilder().apply {
+                    rr = StoreAndForwardProtos.StoreAndForward.RequestResponse.ROUTER_TEXT_BROADCAST
+                    text = packet.decoded.payload
+                }.build().toByteString()
+            }.build()
+        }.build(),
+        packet.toBuilder().apply {
+            viaMqtt = true
+            transportMechanism = MeshPacket.TransportMechanism.TRANSPORT_MQTT
+        }.build(),
+    )
+
+    @Test
+    fun `redeliveries are each caught and attributed`() {
+        val cache = PacketDedupCache()
+        val original = text(0x42424243, 51)
+        val copies = redeliveries(original)
+        assertEquals(
+            listOf(PacketSource.RADIO, PacketSource.STORE_AND_FORWARD, PacketSource.MQTT),
+            copies.map { PacketSource.of(it) }
+        )
+
+        assertFalse(cache.isDuplicate(original))
+        copies.forEach { assertTrue(cache.isDuplicate(it)) }
+        assertEquals(
+            mapOf(PacketSource.RADIO to 1L, PacketSource.STORE_AND_FORWARD to 1L, PacketSource.MQTT to 1L),
+            cache.stats.suppressed
+        )
+    }
+
+    @Test
+    fun `interleaved duplicate streams let each packet through once`() {
+        val random = Random(38)
+        val senders = listOf(0x1001, 0x1002, 0x1003, 0x1004)
+        val originals = List(500) { text(senders[it % senders.size], 1000 + it / senders.size) }
+
+        // every packet shows up once directly and again through each redelivery path, shuffled
+        // within a sliding window so copies of neighbouring packets overtake each other
+        val stream = originals.flatMap { listOf(it) + redeliveries(it) }
+            .chunked(40).flatMap { it.shuffled(random) }
+
+        val cache = PacketDedupCache()
+        val handled = stream.filterNot { cache.isDuplicate(it) }
+
+        assertEquals(originals.size, handled.size)
+        assertEquals(originals.map { it.from to it.id }.toSet(), handled.map { it.from to it.id }.toSet())
+        assertEquals(stream.size.toLong(), cache.stats.seen)
+        assertEquals((stream.size - originals.size).toLong(), cache.stats.suppressedTotal)
+    }
+
+    @Test
+    fun `same id from different senders is not a duplicate`() {
+        val cache = PacketDedupCache()
+        assertFalse(cache.isDuplicate(1, 7))
+        assertFalse(cache.isDuplicate(2, 7))
+        assertFalse(cache.isDuplicate(-1, 7))
+        assertTrue(cache.isDuplicate(-1, 7))
+        // unassigned ids are never deduplicated
+        assertFalse(cache.isDuplicate(1, 0))
+        assertFalse(cache.isDuplicate(1, 0))
+    }
+
+    @Test
+    fun `entries expire after the ttl`() {
+        var now = 0L
+        val cache = PacketDedupCache(ttlMs = 1_000, clock = { now })
+        assertFalse(cache.isDuplicate(1, 1))
+        now = 500
+        assertFalse(cache.isDuplicate(1, 2))
+        now = 1_000
+        assertTrue(cache.isDuplicate(1, 1))
+
+        now = 1_001
+        assertFalse(cache.isDuplicate(1, 1)) // expired, so it counts as new again
+        assertTrue(cache.isDuplicate(1, 2))
+        now = 1_501
+        assertFalse(cache.isDuplicate(9, 9))
+        assertEquals(2, cache.stats.size) // (1, 2) is gone, (1, 1) was seen again at 1001
+    }
+
+    @Test
+    fun `size is bounded, oldest forgotten first`() {
+        val cache = PacketDedupCache(maxEntries = 100)
+        repeat(250) { cache.isDuplicate(1, it + 1) }
+        assertEquals(100, cache.stats.size)
+        assertFalse(cache.isDuplicate(1, 1))
+        assertTrue(cache.isDuplicate(1, 250))
+    }
+
+    @Test
+    fun `a long stream of doubled packets lets half through`() {
+        val cache = PacketDedupCache()
+        val stream = List(200_000) { text((it / 2) % 64, it / 2 + 1) } // every packet twice
+        val handled = stream.count { !cache.isDuplicate(it) }
+        assertEquals(stream.size / 2, handled)
+        assertEquals(stream.size / 2L, cache.stats.suppressedTotal)
+    }
+}
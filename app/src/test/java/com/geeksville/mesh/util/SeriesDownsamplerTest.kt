@@ -0,0 +1,107 @@
+package com.geeksville.mesh.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class SeriesDownsamplerTest {
+
+    /** A noisy random walk with the odd spike, sampled at slightly irregular times. */
+    private fun series(count: Int, seed: Int = 1): Pair<LongArray, FloatArray> {
+        val random = Random(seed)
+        val times = LongArray(count)
+        val values = FloatArray(count)
+        var t = 1_700_000_000L
+        var v = 50f
+        for (i in 0 until count) {
+            t += 30 + random.nextInt(60)
+            v += random.nextFloat() - 0.5f
+            times[i] = t
+            values[i] = if (random.nextInt(1000) == 0) v + 40f else v
+        }
+        return times to values
+    }
+
+    private fun reduce(times: LongArray, values: FloatArray, buckets: Int) =
+        SeriesDownsampler.minMaxIndices(times.size, buckets, { times[it].toDouble() }) { values[it] }
+
+    @Test
+    fun `short series are left alone`() {
+        val (times, values) = series(100)
+        assertArrayEquals(IntArray(100) { it }, reduce(times, values, 400))
+    }
+
+    @Test
+    fun `keeps every bucket's extremes and both ends`() {
+        val (times, values) = series(50_000)
+        val buckets = 500
+        val kept = reduce(times, values, buckets)
+        val keptSet = kept.toSet()
+
+        assertTrue(kept.size <= buckets * 4)
+        assertTrue(kept.toList().zipWithNext().all { (a, b) -> a < b })
+        assertEquals(0, kept.first())
+        assertEquals(times.size - 1, kept.last())
+
+        // recompute the buckets independently and check each one's min and max value survived
+        val x0 = times.first().toDouble()
+        val span = times.last() - x0
+        val byBucket = values.indices.groupBy { (((times[it] - x0) / span) * buckets).toInt().coerceIn(0, buckets - 1) }
+        byBucket.values.forEach { members ->
+            val keptValues = members.filter { it in keptSet }.map { values[it] }
+            assertEquals(members.minOf { values[it] }, keptValues.min())
+            assertEquals(members.maxOf { values[it] }, keptValues.max())
+        }
+        assertEquals(values.max(), kept.maxOf { values[it] })
+        assertEquals(values.min(), kept.minOf { values[it] })
+    }
+
+    @Test
+    fun `a gap in time stays between the same two samples`() {
+        val (times, values) = series(10_000)
+        for (i in 5_000 until times.size) times[i] += 86_400 // the node was off for a day
+        val kept = reduce(times, values, 300)
+
+        val (before, after) = kept.toList().zipWithNext().maxBy { (a, b) -> times[b] - times[a] }
+        assertEquals(4_999, before)
+        assertEquals(5_000, after)
+    }
+
+    @Test
+    fun `cache reuses results until the data changes`() {
+        val cache = SeriesDownsampleCache<String>()
+        val (times, values) = series(20_000)
+        fun lookup(key: String, count: Int) =
+            cache.indices(key, "value", count, 200, { times[it].toDouble() }) { values[it] }
+
+        val first = lookup("day", 19_999)
+        assertSame(first, lookup("day", 19_999))
+        assertEquals(1L, cache.hitCount)
+
+        assertNotSame(first, lookup("week", 19_999)) // separate entry per key
+        assertNotSame(first, lookup("day", 20_000)) // a new sample arrived
+        assertEquals(3L, cache.missCount)
+
+        val byIndex = { i: Int -> i.toDouble() }
+        val a = cache.indices("day", "indexed", 1_000, 50, byIndex, revision = 1) { values[it] }
+        assertSame(a, cache.indices("day", "indexed", 1_000, 50, byIndex, revision = 1) { values[it] })
+        assertNotSame(a, cache.indices("day", "indexed", 1_000, 50, byIndex, revision = 2) { values[it] })
+    }
+
+    @Test
+    fun `50k points reduce to a screen's worth`() {
+        val (times, values) = series(50_000)
+        val buckets = 1080 // a phone screen's worth of pixels
+        val kept = reduce(times, values, buckets)
+
+        assertTrue(kept.size <= buckets * 4)
+        assertTrue(kept.size < times.size / 10)
+        assertEquals(0, kept.first())
+        assertEquals(times.size - 1, kept.last())
+        assertTrue((1 until kept.size).all { kept[it] > kept[it - 1] })
+    }
+}